@@ -0,0 +1,96 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchReader;
+
+/**
+ * Building a proposal from the pending requests (leader) and reading the
+ * requests back from a proposal (every replica).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class BatchBenchmark {
+
+    @Param({"1", "100", "1024"})
+    public int batchSize;
+
+    @Param({"0", "1024"})
+    public int requestSize;
+
+    @Param({"false", "true"})
+    public boolean useSignatures;
+
+    private ServerViewController controller;
+    private BatchBuilder builder;
+    private List<TOMMessage> requests;
+    private byte[] batch;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+
+        controller = Requests.controller();
+        builder = new BatchBuilder(42);
+        requests = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            TOMMessage request = Requests.request(1000 + i, 0, requestSize, rnd);
+            if (useSignatures) {
+                request.serializedMessageSignature = new byte[72]; // size of an ECDSA signature
+                rnd.nextBytes(request.serializedMessageSignature);
+            }
+            requests.add(request);
+        }
+
+        batch = builder.makeBatch(requests, 0, 42, System.currentTimeMillis(), useSignatures);
+    }
+
+    @Benchmark
+    public byte[] makeBatch() {
+        return builder.makeBatch(requests, 0, 42, System.currentTimeMillis(), useSignatures);
+    }
+
+    @Benchmark
+    public TOMMessage[] deserialiseRequests() {
+        return new BatchReader(batch, useSignatures).deserialiseRequests(controller);
+    }
+}
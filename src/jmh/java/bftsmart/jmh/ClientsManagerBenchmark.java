@@ -0,0 +1,77 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.clientsmanagement.RequestList;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Selection of the requests to propose by the leader under a given number of
+ * clients. Every client keeps one pending request: each operation takes a batch
+ * (at most system.totalordermulticast.maxbatchsize requests) and hands it back
+ * as not proposed, so the clients stay ready for the next operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class ClientsManagerBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ClientsManager clientsManager;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+
+        clientsManager = new ClientsManager(Requests.controller(), null, request -> true, null, null);
+
+        for (int i = 0; i < clients; i++) {
+            TOMMessage request = Requests.request(1000 + i, 0, 64, rnd);
+            if (!clientsManager.requestReceived(request, true)) {
+                throw new IllegalStateException("Request from client " + request.getSender() + " was not accepted");
+            }
+        }
+    }
+
+    @Benchmark
+    public RequestList getPendingRequests() {
+        RequestList batch = clientsManager.getPendingRequests();
+        clientsManager.requestsNotProposed(batch.toArray(new TOMMessage[batch.size()]));
+        return batch;
+    }
+}
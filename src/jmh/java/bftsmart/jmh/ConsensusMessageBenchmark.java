@@ -0,0 +1,113 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+
+/**
+ * Encoding and decoding of the messages exchanged in each consensus instance,
+ * in the format in which they are sent between replicas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class ConsensusMessageBenchmark {
+
+    /**
+     * PROPOSE_1K/PROPOSE_64K carry a batch of that size, WRITE carries a hash,
+     * and the ACCEPTs carry a hash and either a signature or a MAC vector for
+     * four replicas as proof.
+     */
+    @Param({"PROPOSE_1K", "PROPOSE_64K", "WRITE", "ACCEPT_SIGNATURE", "ACCEPT_MACS"})
+    public String message;
+
+    private ConsensusMessage consensusMessage;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Random rnd = new Random(42);
+        MessageFactory factory = new MessageFactory(0);
+
+        switch (message) {
+            case "PROPOSE_1K":
+                consensusMessage = factory.createPropose(100, 0, random(rnd, 1024));
+                break;
+            case "PROPOSE_64K":
+                consensusMessage = factory.createPropose(100, 0, random(rnd, 65536));
+                break;
+            case "WRITE":
+                consensusMessage = factory.createWrite(100, 0, random(rnd, 32));
+                break;
+            case "ACCEPT_SIGNATURE":
+                consensusMessage = factory.createAccept(100, 0, random(rnd, 32));
+                consensusMessage.setProof(random(rnd, 72));
+                break;
+            case "ACCEPT_MACS":
+                consensusMessage = factory.createAccept(100, 0, random(rnd, 32));
+                HashMap<Integer, byte[]> macs = new HashMap<>();
+                for (int i = 0; i < 4; i++) {
+                    macs.put(i, random(rnd, 32));
+                }
+                consensusMessage.setProof(macs);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message " + message);
+        }
+
+        encoded = SystemMessageCodec.encode(consensusMessage);
+    }
+
+    private static byte[] random(Random rnd, int size) {
+        byte[] data = new byte[size];
+        rnd.nextBytes(data);
+        return data;
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return SystemMessageCodec.encode(consensusMessage);
+    }
+
+    @Benchmark
+    public SystemMessage decode() throws IOException, ClassNotFoundException {
+        return SystemMessageCodec.decode(encoded);
+    }
+}
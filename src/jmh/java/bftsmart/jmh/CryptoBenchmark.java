@@ -0,0 +1,71 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.security.PrivateKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Hashing and signing with the algorithms of the default configuration, as done
+ * for every proposal (hash) and every ACCEPT when signatures are used (sign).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class CryptoBenchmark {
+
+    @Param({"32", "1024", "1048576"})
+    public int dataSize;
+
+    private PrivateKey key;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        key = Requests.controller().getStaticConf().getPrivateKey();
+        data = new byte[dataSize];
+        new Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public byte[] computeHash() {
+        return TOMUtil.computeHash(data);
+    }
+
+    @Benchmark
+    public byte[] signMessage() {
+        return TOMUtil.signMessage(key, data);
+    }
+}
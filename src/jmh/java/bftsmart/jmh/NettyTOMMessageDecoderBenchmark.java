@@ -0,0 +1,105 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bftsmart.communication.client.netty.NettyClientServerSession;
+import bftsmart.communication.client.netty.NettyTOMMessageDecoder;
+import bftsmart.communication.client.netty.NettyTOMMessageEncoder;
+import bftsmart.tom.core.messages.TOMMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Decoding of client requests at the replica side, for a given number of
+ * requests arriving in the same read from the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class NettyTOMMessageDecoderBenchmark {
+
+    @Param({"1", "64"})
+    public int requestsPerRead;
+
+    @Param({"0", "1024"})
+    public int requestSize;
+
+    private EmbeddedChannel channel;
+    private byte[] frames;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable = new ConcurrentHashMap<>();
+        ReentrantReadWriteLock rl = new ReentrantReadWriteLock();
+
+        // the requests are framed by the encoder used by the clients
+        EmbeddedChannel encoder = new EmbeddedChannel(new NettyTOMMessageEncoder(true, sessionTable, rl));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < requestsPerRead; i++) {
+            encoder.writeOutbound(Requests.request(1000, i, requestSize, rnd));
+            ByteBuf frame = encoder.readOutbound();
+            byte[] bytes = new byte[frame.readableBytes()];
+            frame.readBytes(bytes);
+            frame.release();
+            bos.write(bytes, 0, bytes.length);
+        }
+        encoder.finishAndReleaseAll();
+        frames = bos.toByteArray();
+
+        channel = new EmbeddedChannel(new NettyTOMMessageDecoder(false, sessionTable, Requests.controller(), rl));
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        channel.writeInbound(Unpooled.wrappedBuffer(frames));
+
+        TOMMessage request;
+        while ((request = channel.readInbound()) != null) {
+            bh.consume(request);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Fixtures shared by the micro-benchmarks.
+ */
+final class Requests {
+
+    private Requests() {
+    }
+
+    /**
+     * Creates the view controller of replica 0 from the default configuration
+     * (the config folder of the working directory), which also initializes the
+     * cryptographic algorithms used by TOMUtil.
+     *
+     * @return The view controller
+     */
+    static ServerViewController controller() {
+        return new ServerViewController(0, "", null);
+    }
+
+    /**
+     * Creates an ordered request with random content, already serialized as it
+     * is received from the client
+     *
+     * @param sender Client ID
+     * @param sequence Sequence number of the request
+     * @param size Size of the content, in bytes
+     * @param rnd Source of the content
+     * @return The request
+     */
+    static TOMMessage request(int sender, int sequence, int size, Random rnd) {
+        byte[] content = new byte[size];
+        rnd.nextBytes(content);
+
+        TOMMessage request = new TOMMessage(sender, 0, sequence, sequence, content, 0,
+                TOMMessageType.ORDERED_REQUEST);
+        request.serializedMessage = serialize(request);
+        return request;
+    }
+
+    static byte[] serialize(TOMMessage request) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(request.getContent().length + 64);
+            DataOutputStream dos = new DataOutputStream(bos);
+            request.wExternal(dos);
+            dos.flush();
+            return bos.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Serialization of client requests, as done by the client proxy (wExternal)
+ * and by the replicas when a request arrives (rExternal).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.security.properties=config/java.security",
+        "-Dlogback.configurationFile=config/logback.xml"})
+public class TOMMessageBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int requestSize;
+
+    private TOMMessage request;
+    private byte[] serialized;
+    private ByteArrayOutputStream bos;
+
+    @Setup
+    public void setup() {
+        request = Requests.request(1000, 0, requestSize, new Random(42));
+        serialized = request.serializedMessage;
+        bos = new ByteArrayOutputStream(serialized.length);
+    }
+
+    @Benchmark
+    public byte[] wExternal() throws IOException {
+        bos.reset();
+        DataOutputStream dos = new DataOutputStream(bos);
+        request.wExternal(dos);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public TOMMessage rExternal() throws IOException, ClassNotFoundException {
+        TOMMessage read = new TOMMessage();
+        read.rExternal(new DataInputStream(new ByteArrayInputStream(serialized)));
+        return read;
+    }
+}
@@ -15,14 +15,10 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +31,10 @@ public class ClientData {
 
     ReentrantLock clientLock = new ReentrantLock();
 
+    // both guarded by clientLock and maintained by the ClientsManager
+    int unproposed = 0; // number of pending requests not yet proposed
+    boolean ready = false; // true while this client is in the ready queue
+
     private int clientId;
     //private PublicKey publicKey = null;
 
@@ -50,26 +50,14 @@ public class ClientData {
     private RequestList orderedRequests = new RequestList(MAX_SIZE_ORDERED_REQUESTS);
     private RequestList replyStore = new RequestList(MAX_SIZE_ORDERED_REQUESTS);
 
-    private Signature signatureVerificator = null;
-    
     /**
-     * Class constructor. Just store the clientId and creates a signature
-     * verificator for a given client public key.
+     * Class constructor. Just store the clientId (signatures are verified by
+     * the SignatureVerifier of the ClientsManager).
      *
      * @param clientId client unique id
-     * @param publicKey client public key
      */
-    public ClientData(int clientId, PublicKey publicKey) {
+    public ClientData(int clientId) {
         this.clientId = clientId;
-        if(publicKey != null) {
-            try {
-                signatureVerificator = TOMUtil.getSigEngine();
-                signatureVerificator.initVerify(publicKey);
-                logger.debug("Signature verifier initialized for client "+clientId);
-            } catch (Exception ex) {
-                logger.error("Failed to create client data object",ex);
-            }
-        }
     }
 
     public int getClientId() {
@@ -116,24 +104,36 @@ public class ClientData {
         return lastMessageReceivedTime;
     }
 
-    public boolean verifySignature(byte[] message, byte[] signature) {
-        if(signatureVerificator != null) {
-            try {
-                return TOMUtil.verifySignature(signatureVerificator, message, signature);
-            } catch (SignatureException ex) {
-                logger.error("Failed to verify signature", ex);
+    /**
+     * Removes a request from the pending requests and adds it to the ordered ones.
+     *
+     * @param request the request ordered by the consensus
+     * @return the pending instance of the request, or null if it was not pending
+     */
+    public TOMMessage removeOrderedRequest(TOMMessage request) {
+        Iterator<TOMMessage> it = pendingRequests.iterator();
+        while (it.hasNext()) {
+            TOMMessage pending = it.next();
+            if (pending.equals(request)) {
+                it.remove();
+                //anb: new code to deal with client requests that arrive after their execution
+                orderedRequests.addLast(request);
+                return pending;
             }
         }
-        return false;
+        return null;
     }
 
-    public boolean removeOrderedRequest(TOMMessage request) {
-        if(pendingRequests.remove(request)) {
-            //anb: new code to deal with client requests that arrive after their execution
-            orderedRequests.addLast(request);
-            return true;
+    /**
+     * @return the oldest pending request that was not proposed yet, or null
+     */
+    public TOMMessage getNextNotProposed() {
+        for (TOMMessage pending : pendingRequests) {
+            if (!pending.alreadyProposed) {
+                return pending;
+            }
         }
-        return false;
+        return null;
     }
 
     public boolean removeRequest(TOMMessage request) {
@@ -15,27 +15,34 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.RequestsTimer;
+import bftsmart.tom.metrics.Metrics;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.util.TOMUtil;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps the state of the clients (pending requests, replies, etc.).
+ *
+ * The clients table is a concurrent map and each client is protected by its own
+ * lock, so requests received by different threads only contend if they come from
+ * the same client. Clients with requests that were not proposed yet are kept in
+ * a ready queue, from which the proposer takes requests in round-robin order.
  *
  * @author alysson
  */
@@ -45,25 +52,37 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private Map<Integer, ClientData> clientsData = new ConcurrentHashMap<>();
+
+    //clients with pending requests not yet proposed (see ClientData.ready)
+    private Deque<ClientData> readyClients = new ConcurrentLinkedDeque<>();
+    //number and size of the pending requests not yet proposed
+    private AtomicInteger notProposedCount = new AtomicInteger();
+    private AtomicLong notProposedBytes = new AtomicLong();
     private RequestVerifier verifier;
     private ServerCommunicationSystem cs;
+    private SignatureVerifier signatureVerifier;
     
     //Used when the intention is to perform benchmarking with signature verification, but
     //without having to make the clients create one first. Useful to optimize resources
     private byte[] benchMsg = null;
     private byte[] benchSig = null;
-    private HashMap<String,Signature> benchEngines = new HashMap<>();
+    private Map<String,Signature> benchEngines = new ConcurrentHashMap<>();
     
     private ReentrantLock clientsLock = new ReentrantLock();
 
     private long startTime = -1;
 
-    public ClientsManager(ServerViewController controller, RequestsTimer timer, RequestVerifier verifier, ServerCommunicationSystem cs) {
+    public ClientsManager(ServerViewController controller, RequestsTimer timer, RequestVerifier verifier,
+            ServerCommunicationSystem cs, SignatureVerifier signatureVerifier) {
         this.controller = controller;
         this.timer = timer;
         this.verifier = verifier;
         this.cs = cs;
+        this.signatureVerifier = signatureVerifier;
+
+        Metrics.of(controller.getStaticConf().getProcessId())
+                .gauge(Metrics.QUEUE_DEPTH, "queue", "pending_requests", notProposedCount::get);
         
         if (controller.getStaticConf().getUseSignatures() == 2) {
             benchMsg = new byte []{3,5,6,7,4,3,5,6,4,7,4,1,7,7,5,4,3,1,4,85,7,5,7,3};
@@ -73,148 +92,99 @@ public class ClientsManager {
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
-     *
+     * Gets the data of a client, creating it if this is the first time
+     * the client is seen.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
         ClientData clientData = clientsData.get(clientId);
 
         if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
-
-            //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
-                    (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
-            //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
+            clientData = clientsData.computeIfAbsent(clientId, id -> {
+                logger.debug("Creating new client data, client id=" + id);
+                return new ClientData(id);
+            });
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
         return clientData;
     }
 
     /**
      * Get pending requests in a fair way (one request from each client
-     * queue until the max number of requests is obtained).
+     * with pending requests until the max number of requests is obtained).
+     * Only the clients in the ready queue are visited, so the cost is
+     * proportional to the size of the batch and not to the number of clients.
      *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize());
+    }
+
+    /**
+     * Get pending requests in a fair way, up to the specified number of requests
+     *
+     * @param maxBatchSize Maximum number of requests to be returned
+     * @return the set of all pending requests of this system
+     */
+    public RequestList getPendingRequests(int maxBatchSize) {
         RequestList allReq = new RequestList();
         long allReqSizeInBytes = 0;
-        boolean allReqSizeInBytesExceeded = false;
-        
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        List<Entry<Integer, ClientData>> clientsEntryList = new ArrayList<>(clientsData.entrySet().size());
-        clientsEntryList.addAll(clientsData.entrySet());
-        
-        if (controller.getStaticConf().getFairBatch()) // ensure fairness
-            Collections.shuffle(clientsEntryList);
-
-        logger.debug("Number of active clients: {}", clientsEntryList.size());
-        
-        for (int i = 0; true; i++) {
-                        
-            Iterator<Entry<Integer, ClientData>> it = clientsEntryList.iterator();
-            int noMoreMessages = 0;
-            
-            logger.debug("Fetching requests with internal index {}", i);
-            
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntryList.size()) {
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+        long maxBatchSizeInBytes = controller.getStaticConf().getMaxBatchSizeInBytes();
 
-                clientData.clientLock.lock();
+        logger.debug("Number of clients with pending requests: {}", readyClients.size());
 
-                logger.debug("Number of pending requests for client {}: {}.", clientData.getClientId(), clientPendingRequests.size());
+        ClientData clientData;
+        while (allReq.size() < maxBatchSize && (clientData = readyClients.poll()) != null) {
 
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            boolean allReqSizeInBytesExceeded = false;
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage request = clientData.getNextNotProposed();
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        if(allReqSizeInBytes + request.serializedMessage.length <= controller.getStaticConf().getMaxBatchSizeInBytes()) {
+            if (request != null) {
+                if (allReqSizeInBytes + request.getSerializedSize() <= maxBatchSizeInBytes) {
 
-                            logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
+                    logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
 
-                            //this client have pending message
-                            request.alreadyProposed = true;
-                            allReq.addLast(request);
-                            allReqSizeInBytes += request.serializedMessage.length;
-                        } else {
-                            allReqSizeInBytesExceeded = true;
-                        }
-                    }
+                    request.alreadyProposed = true;
+                    notProposedRemoved(clientData, request);
+                    allReq.addLast(request);
+                    allReqSizeInBytes += request.getSerializedSize();
                 } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
+                    allReqSizeInBytesExceeded = true;
                 }
             }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntryList.size() ||
-                    allReqSizeInBytesExceeded) {
-                
+
+            if (allReqSizeInBytesExceeded) {
+                //this client goes first in the next batch
+                readyClients.offerFirst(clientData);
+            } else if (clientData.unproposed > 0) {
+                //back to the end of the round
+                readyClients.offer(clientData);
+            } else {
+                clientData.ready = false;
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+
+            if (allReqSizeInBytesExceeded) {
                 break;
             }
         }
-        
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
+
         return allReq;
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
-     *
      * @return true if there are some pending requests and false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        return notProposedCount.get() > 0;
     }
     
     /**
@@ -223,34 +193,43 @@ public class ClientsManager {
      * @return true if there are enough requests and false otherwise
      */
     public boolean isNextBatchReady() {
-        int count = 0;
-        long size = 0;
+        return isNextBatchReady(controller.getStaticConf().getMaxBatchSize());
+    }
 
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
+    /**
+     * Checks if there are enough pending requests to fill a batch of the
+     * specified size (or the maximum batch size in bytes).
+     * @param batchSize Number of requests of the batch
+     * @return true if there are enough requests and false otherwise
+     */
+    public boolean isNextBatchReady(int batchSize) {
+        return notProposedCount.get() >= batchSize
+                || notProposedBytes.get() >= controller.getStaticConf().getMaxBatchSizeInBytes();
+    }
 
-        while (it.hasNext()) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        count++;
-                        size += msg.serializedMessage.length;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
+    /**
+     * Accounts for a pending request that can be proposed, putting its client
+     * in the ready queue if needed. Caller must hold clientData.clientLock.
+     */
+    private void notProposedAdded(ClientData clientData, TOMMessage request) {
+        clientData.unproposed++;
+        notProposedCount.incrementAndGet();
+        notProposedBytes.addAndGet(request.getSerializedSize());
+
+        if (!clientData.ready) {
+            clientData.ready = true;
+            readyClients.offer(clientData);
         }
+    }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return count >= controller.getStaticConf().getMaxBatchSize()
-                || size >= controller.getStaticConf().getMaxBatchSizeInBytes();
+    /**
+     * Accounts for a pending request that was proposed or is no longer
+     * pending. Caller must hold clientData.clientLock.
+     */
+    private void notProposedRemoved(ClientData clientData, TOMMessage request) {
+        clientData.unproposed--;
+        notProposedCount.decrementAndGet();
+        notProposedBytes.addAndGet(-request.getSerializedSize());
     }
 
     /**
@@ -282,6 +261,30 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Get the pending and the recently ordered requests of a client with some
+     * sequence number.
+     *
+     * @param clientId the client identifier
+     * @param sequence the sequence number of the request
+     * @return the pending request (or null) followed by the ordered one (or null)
+     */
+    public TOMMessage[] getBySequence(int clientId, int sequence) {
+        ClientData clientData = getClientData(clientId);
+
+        clientData.clientLock.lock();
+        /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage[] requests = new TOMMessage[] {
+            clientData.getPendingRequests().getBySequence(sequence),
+            clientData.getOrderedRequests().getBySequence(sequence)
+        };
+
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return requests;
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
@@ -392,8 +395,8 @@ public class ClientsManager {
             //it is a valid new message and I have to verify it's signature
             if (isValid &&
                     ((engine != null && benchMsg != null && benchSig != null && TOMUtil.verifySigForBenchmark(engine, benchMsg, benchSig)) 
-                            || (((!request.signed) || clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature)) // message is either not signed or if it is signed the signature is valid
-                                    && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)))) { // additionally, unsigned messages from the client are not allowed when useSignatures == 1. Forwarded and proposed requests do not have 'signed' set to true.
+                            || (((!request.signed) || signatureVerifier.verify(request)) // message is either not signed or if it is signed the signature is valid (usually already verified by the verifier threads)
+                                    && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)))) { // additionally, unsigned messages from the client are not allowed when useSignatures == 1.
 
                 logger.debug("Message from client {} is valid", clientData.getClientId());
 
@@ -402,6 +405,7 @@ public class ClientsManager {
 
                 request.recvFromClient = fromClient;
                 clientData.getPendingRequests().add(request); 
+                notProposedAdded(clientData, request);
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -464,6 +468,9 @@ public class ClientsManager {
                 //Without clearing the timer a leader change would be triggered, because the removed request will never be processed.
                 timer.unwatch(m);
 	        }
+            if (!m.alreadyProposed) {
+                notProposedRemoved(clientData, m);
+            }
 	    }
         clientData.getPendingRequests().clear();
 	}
@@ -474,13 +481,33 @@ public class ClientsManager {
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
+    }
+
+    /**
+     * Notifies the ClientsManager that these requests were proposed in a consensus
+     * instance that was discarded, so that they can be proposed again.
+     *
+     * @param requests the array of requests to account as not proposed
+     */
+    public void requestsNotProposed(TOMMessage[] requests) {
+        for (TOMMessage request : requests) {
+            ClientData clientData = getClientData(request.getSender());
+
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage pending = clientData.getPendingRequests().getById(request.getId());
+            if (pending != null && pending.alreadyProposed) {
+                pending.alreadyProposed = false;
+                notProposedAdded(clientData, pending);
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+        }
     }
 
     /**
@@ -490,12 +517,10 @@ public class ClientsManager {
      */
     public void requestsExecuted(TOMMessage[] requests) {
         logger.debug("Requests executed()");
-        clientsLock.lock();
         for (TOMMessage request : requests) {
             requestExecuted(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -528,8 +553,12 @@ public class ClientsManager {
         }
 
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-        if (!clientData.removeOrderedRequest(request)) {
+        TOMMessage pending = clientData.removeOrderedRequest(request);
+        if (pending == null) {
             logger.debug("Request " + request + " does not exist in pending requests");
+        } else if (!pending.alreadyProposed) {
+            //ordered in an instance proposed by another replica
+            notProposedRemoved(clientData, pending);
         }
         if(clientData.getSession() == request.getSession()) {
             //When a client sends a message with a big sequence number and shortly afterwards a message with
@@ -550,6 +579,9 @@ public class ClientsManager {
     public void clear() {
         clientsLock.lock();
         clientsData.clear();
+        readyClients.clear();
+        notProposedCount.set(0);
+        notProposedBytes.set(0);
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
@@ -0,0 +1,292 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.Metrics;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Verifies the signatures of client requests in a pool of dedicated threads,
+ * so that the threads receiving messages from the network are not blocked by
+ * signature verification.
+ *
+ * Each verifier thread has a bounded work queue, from which it takes all the
+ * available jobs at once, and its own signature and hash engines. Requests
+ * received from a client are always handled by the same thread, so they are
+ * passed on in the order they were received. The digests of the requests whose
+ * signature was found valid are kept in a cache, so that a request verified when
+ * it was received from its client is not verified again when it is proposed.
+ */
+public class SignatureVerifier {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int QUEUE_SIZE = 10000;
+    private static final int CACHE_SIZE = 100000;
+
+    private final ServerViewController controller;
+    private final Worker[] workers;
+    private final Histogram verificationTime;
+
+    // two generations of valid request digests, the oldest is dropped when the newest is full
+    private volatile Set<ByteBuffer> recent = ConcurrentHashMap.newKeySet();
+    private volatile Set<ByteBuffer> older = ConcurrentHashMap.newKeySet();
+
+    // public keys of the clients, read from the configuration only once
+    private final Map<Integer, PublicKey> publicKeys = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Signature> sigEngine = ThreadLocal.withInitial(() -> {
+        try {
+            return TOMUtil.getSigEngine();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to get signature engine", e);
+        }
+    });
+    private final ThreadLocal<MessageDigest> hashEngine = ThreadLocal.withInitial(() -> {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to get hash engine", e);
+        }
+    });
+
+    /**
+     * Creates the verifier and starts its threads
+     *
+     * @param controller Used to retrieve the public keys of the clients
+     * @param nThreads Number of verifier threads
+     */
+    public SignatureVerifier(ServerViewController controller, int nThreads) {
+        this.controller = controller;
+        this.workers = new Worker[nThreads];
+        this.verificationTime = Metrics.of(controller.getStaticConf().getProcessId())
+                .latency(Metrics.SIGNATURE_VERIFICATION);
+
+        for (int i = 0; i < nThreads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Verifies the signature of a request received from a client in one of the
+     * verifier threads, which then passes the request on. Blocks if the work
+     * queue of that thread is full.
+     *
+     * @param request The request
+     * @param then Invoked by the verifier thread after the verification
+     */
+    public void verify(TOMMessage request, Consumer<TOMMessage> then) {
+        Worker worker = workers[Math.floorMod(request.getSender(), workers.length)];
+        worker.put(new Job(new TOMMessage[] {request}, 0, 1, then, null));
+    }
+
+    /**
+     * Verifies the signatures of the requests in a batch, dividing them among
+     * the verifier threads, and waits until all of them are handled.
+     *
+     * @param requests The requests in the batch
+     * @param then Invoked by the verifier threads after verifying each request
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void verifyBatch(TOMMessage[] requests, Consumer<TOMMessage> then) throws InterruptedException {
+        if (requests.length == 0) {
+            return;
+        }
+
+        int nJobs = Math.min(workers.length, requests.length);
+        int chunk = (requests.length + nJobs - 1) / nJobs;
+        nJobs = (requests.length + chunk - 1) / chunk;
+
+        CountDownLatch latch = new CountDownLatch(nJobs);
+
+        for (int i = 0; i < nJobs; i++) {
+            int from = i * chunk;
+            int to = Math.min(from + chunk, requests.length);
+            workers[i].put(new Job(requests, from, to, then, latch));
+        }
+
+        latch.await();
+    }
+
+    /**
+     * Verifies the signature of a request in the calling thread (or just looks
+     * it up in the cache). A request is only verified once, later calls return
+     * the first result.
+     *
+     * @param request The request
+     * @return true if the signature is valid, false otherwise
+     */
+    public boolean verify(TOMMessage request) {
+        if (request.signatureChecked) {
+            return request.verified;
+        }
+        request.verified = check(request);
+        request.signatureChecked = true;
+        return request.verified;
+    }
+
+    private boolean check(TOMMessage request) {
+        if (request.verified) {
+            return true;
+        }
+
+        if (controller.getStaticConf().getUseSignatures() != 1 || request.serializedMessageSignature == null) {
+            return false;
+        }
+
+        // the request is hashed and verified in place, without copying it out of its batch
+        MessageDigest md = hashEngine.get();
+        md.update(request.getSerializedBuffer());
+        ByteBuffer digest = ByteBuffer.wrap(md.digest());
+
+        if (recent.contains(digest) || older.contains(digest)) {
+            return true;
+        }
+
+        PublicKey key = publicKeys.computeIfAbsent(request.getSender(),
+                id -> controller.getStaticConf().getPublicKey(id));
+        if (key == null) {
+            return false;
+        }
+
+        boolean valid = false;
+        long start = System.nanoTime();
+        try {
+            Signature engine = sigEngine.get();
+            engine.initVerify(key);
+            valid = TOMUtil.verifySignature(engine, request.getSerializedBuffer(), request.serializedMessageSignature);
+        } catch (Exception ex) {
+            logger.error("Failed to verify signature", ex);
+        }
+        verificationTime.record(System.nanoTime() - start);
+
+        if (valid) {
+            cache(digest);
+        }
+        return valid;
+    }
+
+    private void cache(ByteBuffer digest) {
+        Set<ByteBuffer> current = recent;
+        current.add(digest);
+
+        if (current.size() > CACHE_SIZE / 2) {
+            synchronized (this) {
+                if (recent == current) {
+                    older = current;
+                    recent = ConcurrentHashMap.newKeySet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the verifier threads
+     */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private static class Job {
+
+        private final TOMMessage[] requests;
+        private final int from;
+        private final int to;
+        private final Consumer<TOMMessage> then;
+        private final CountDownLatch done;
+
+        private Job(TOMMessage[] requests, int from, int to, Consumer<TOMMessage> then, CountDownLatch done) {
+            this.requests = requests;
+            this.from = from;
+            this.to = to;
+            this.then = then;
+            this.done = done;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        private Worker(int id) {
+            super("Signature verifier " + id);
+            setDaemon(true);
+        }
+
+        private void put(Job job) {
+            try {
+                queue.put(job);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Job> jobs = new ArrayList<>();
+
+            try {
+                while (true) {
+                    jobs.add(queue.take());
+                    queue.drainTo(jobs);
+
+                    for (Job job : jobs) {
+                        for (int i = job.from; i < job.to; i++) {
+                            TOMMessage request = job.requests[i];
+                            try {
+                                if (request.signed) {
+                                    verify(request);
+                                }
+                                job.then.accept(request);
+                            } catch (Exception ex) {
+                                logger.error("Error while handling request " + request, ex);
+                            }
+                        }
+                        if (job.done != null) {
+                            job.done.countDown();
+                        }
+                    }
+                    jobs.clear();
+                }
+            } catch (InterruptedException ex) {
+                logger.debug("Signature verifier stopped");
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import bftsmart.consensus.roles.Acceptor;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.util.TOMUtil;
@@ -101,6 +102,9 @@ public class MessageHandler {
 					TOMMessage request = ((ForwardedMessage) sm).getRequest();
 					tomLayer.requestReceived(request, false);//false -> message was received from a replica -> do not drop it
 
+				} else if (sm instanceof RequestFetchMessage) {
+					tomLayer.getProposalResolver().fetchReceived((RequestFetchMessage) sm);
+
 					/** This is Joao's code, to handle state transfer */
 				} else if (sm instanceof SMMessage) {
 					SMMessage smsg = (SMMessage) sm;
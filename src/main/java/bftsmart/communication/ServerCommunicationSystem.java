@@ -19,6 +19,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
 
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
@@ -29,6 +30,7 @@ import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.metrics.Metrics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +63,7 @@ public class ServerCommunicationSystem extends Thread {
         messageHandler = new MessageHandler();
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
+        Metrics.of(controller.getStaticConf().getProcessId()).gauge(Metrics.QUEUE_DEPTH, "queue", "in", inQueue::size);
 
         serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
 
@@ -171,4 +174,12 @@ public class ServerCommunicationSystem extends Thread {
     public SecretKey getSecretKey(int id) {
 		return serversConn.getSecretKey(id);
 	}
+
+    public SecretKey getMACKey(int id) {
+		return serversConn.getMACKey(id);
+	}
+
+    public SSLContext getSSLContext() {
+		return serversConn.getSSLContext();
+	}
 }
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.communication;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -54,14 +56,35 @@ public abstract class SystemMessage implements Externalizable {
         return sender;
     }
 
+    /**
+     * Writes the fields of this message. Used by SystemMessageCodec to build
+     * the binary format exchanged among replicas, so subclasses must override
+     * it (calling the super-class implementation first) to write their own fields.
+     * @param out Output to write to
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+        out.writeInt(sender);
+    }
+
+    /**
+     * Reads the fields written by wExternal
+     * @param in Input to read from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+        sender = in.readInt();
+    }
+
     // This methods implement the Externalizable interface
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeInt(sender);
+        wExternal(out);
     }
     
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        sender = in.readInt();
+        rExternal(in);
     }
 }
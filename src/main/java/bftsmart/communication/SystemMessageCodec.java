@@ -0,0 +1,239 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import bftsmart.communication.server.KeyExchangeMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Binary codec used to exchange SystemMessages among replicas.
+ *
+ * Each message is encoded as a version byte, a type tag and the fields written
+ * by the message's own wExternal method. The type tag identifies which class has
+ * to be instantiated at the receiver, so no class descriptors or reflection are
+ * involved. Message classes that are not registered (e.g., a custom SMMessage
+ * defined by the application) are still supported, but are encoded with Java
+ * serialization under the SERIALIZED tag.
+ */
+public final class SystemMessageCodec {
+
+    public static final byte VERSION = 1;
+
+    // type tags of the messages known by the library
+    public static final byte SERIALIZED = 0;
+    public static final byte CONSENSUS = 1;
+    public static final byte FORWARDED = 2;
+    public static final byte LEADER_CHANGE = 3;
+    public static final byte STANDARD_SM = 4;
+    public static final byte CST_SM = 5;
+    public static final byte VIEW_MANAGER = 6;
+    public static final byte REQUEST_FETCH = 7;
+    public static final byte KEY_EXCHANGE = 8;
+
+    private static final Map<Class<? extends SystemMessage>, Byte> tags = new ConcurrentHashMap<>();
+    private static final Map<Byte, Supplier<? extends SystemMessage>> factories = new ConcurrentHashMap<>();
+
+    static {
+        register(CONSENSUS, ConsensusMessage.class, ConsensusMessage::new);
+        register(FORWARDED, ForwardedMessage.class, ForwardedMessage::new);
+        register(LEADER_CHANGE, LCMessage.class, LCMessage::new);
+        register(STANDARD_SM, StandardSMMessage.class, StandardSMMessage::new);
+        register(CST_SM, CSTSMMessage.class, CSTSMMessage::new);
+        register(VIEW_MANAGER, VMMessage.class, VMMessage::new);
+        register(REQUEST_FETCH, RequestFetchMessage.class, RequestFetchMessage::new);
+        register(KEY_EXCHANGE, KeyExchangeMessage.class, KeyExchangeMessage::new);
+    }
+
+    private SystemMessageCodec() {
+    }
+
+    /**
+     * Registers a message class in the codec. The class must override wExternal
+     * and rExternal, and the same tag must be registered at every replica.
+     *
+     * @param tag Type tag used on the wire for this class (must be positive)
+     * @param type Message class
+     * @param factory Creates empty instances of the class, to be filled by rExternal
+     */
+    public static <T extends SystemMessage> void register(byte tag, Class<T> type, Supplier<T> factory) {
+        if (tag <= SERIALIZED) {
+            throw new IllegalArgumentException("Type tags must be positive");
+        }
+        Supplier<? extends SystemMessage> previous = factories.putIfAbsent(tag, factory);
+        if (previous != null) {
+            throw new IllegalArgumentException("Type tag " + tag + " is already registered");
+        }
+        tags.put(type, tag);
+    }
+
+    /**
+     * Encodes a message into the replica wire format
+     *
+     * @param sm Message to be encoded
+     * @return The encoded message
+     * @throws IOException If the message could not be encoded
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        DataOutputStream out = new DataOutputStream(bOut);
+
+        out.writeByte(VERSION);
+
+        Byte tag = tags.get(sm.getClass());
+        if (tag != null) {
+            out.writeByte(tag);
+            sm.wExternal(out);
+        } else {
+            out.writeByte(SERIALIZED);
+            writeObject(out, sm);
+        }
+
+        out.flush();
+        return bOut.toByteArray();
+    }
+
+    /**
+     * Decodes a message from the replica wire format
+     *
+     * @param data The encoded message
+     * @return The decoded message
+     * @throws IOException If the data is malformed or uses an unknown version/tag
+     * @throws ClassNotFoundException If the class of a serialized field is not found
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        return decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Decodes a message from the replica wire format
+     *
+     * @param in Input positioned at the beginning of the encoded message
+     * @return The decoded message
+     * @throws IOException If the data is malformed or uses an unknown version/tag
+     * @throws ClassNotFoundException If the class of a serialized field is not found
+     */
+    public static SystemMessage decode(DataInput in) throws IOException, ClassNotFoundException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire format version " + version);
+        }
+
+        byte tag = in.readByte();
+        if (tag == SERIALIZED) {
+            return (SystemMessage) readObject(in);
+        }
+
+        Supplier<? extends SystemMessage> factory = factories.get(tag);
+        if (factory == null) {
+            throw new IOException("Unknown message type " + tag);
+        }
+
+        SystemMessage sm = factory.get();
+        sm.rExternal(in);
+        return sm;
+    }
+
+    /**
+     * Writes a byte array that may be null
+     *
+     * @param out Output to write to
+     * @param array The array, or null
+     * @throws IOException If the output fails
+     */
+    public static void writeBytes(DataOutput out, byte[] array) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(array.length);
+            out.write(array);
+        }
+    }
+
+    /**
+     * Reads a byte array written by writeBytes
+     *
+     * @param in Input to read from
+     * @return The array, or null
+     * @throws IOException If the input fails
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] array = new byte[length];
+        in.readFully(array);
+        return array;
+    }
+
+    /**
+     * Writes an object with Java serialization. This is only meant for fields
+     * that are not exchanged during normal operation, such as the application
+     * state or views carried by state transfer and reconfiguration messages.
+     *
+     * @param out Output to write to
+     * @param obj The object, or null
+     * @throws IOException If the object could not be serialized
+     */
+    public static void writeObject(DataOutput out, Object obj) throws IOException {
+        if (obj == null) {
+            writeBytes(out, null);
+            return;
+        }
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream oOut = new ObjectOutputStream(bOut)) {
+            oOut.writeObject(obj);
+        }
+        writeBytes(out, bOut.toByteArray());
+    }
+
+    /**
+     * Reads an object written by writeObject
+     *
+     * @param in Input to read from
+     * @return The object, or null
+     * @throws IOException If the input fails
+     * @throws ClassNotFoundException If the class of the object is not found
+     */
+    public static Object readObject(DataInput in) throws IOException, ClassNotFoundException {
+        byte[] data = readBytes(in);
+        if (data == null) {
+            return null;
+        }
+        try (ObjectInputStream oIn = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return oIn.readObject();
+        }
+    }
+}
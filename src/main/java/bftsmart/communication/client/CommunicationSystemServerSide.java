@@ -24,6 +24,17 @@ import bftsmart.tom.core.messages.TOMMessage;
  */
 public interface CommunicationSystemServerSide {   
    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders);
+
+   /**
+    * Defers the flush of the messages sent by the calling thread until it invokes flushBatch(),
+    * so that the replies to a batch of requests reach each client with a single flush
+    */
+   public void startBatch();
+
+   /**
+    * Flushes the messages sent by the calling thread since it invoked startBatch()
+    */
+   public void flushBatch();
    public int[] getClients();
    public void setRequestReceiver(RequestReceiver requestReceiver);
    public void shutdown();
@@ -28,12 +28,12 @@ import bftsmart.reconfiguration.ClientViewController;
 
 public class NettyClientPipelineFactory{
 	
-    NettyClientServerCommunicationSystemClientSide ncs;
+    NettyClientRuntime ncs;
 	ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable;
     ClientViewController controller;
     ReentrantReadWriteLock rl;
 
-    public NettyClientPipelineFactory(NettyClientServerCommunicationSystemClientSide ncs, 
+    public NettyClientPipelineFactory(NettyClientRuntime ncs, 
     		ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable, ClientViewController controller, ReentrantReadWriteLock rl) {
         this.ncs = ncs;
         this.sessionTable = sessionTable;
@@ -0,0 +1,382 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.client.netty;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * The event loop group and the connections to the replicas used by the client
+ * side of the client-server communication system. The requests of all the
+ * clients registered in a runtime are sent over the same connection to each
+ * replica, and their replies are dispatched according to the client id that
+ * precedes each reply.
+ *
+ * By default each client has its own runtime. If system.client.shared_runtime is
+ * enabled, the clients created in the same JVM with the same configuration share
+ * a single runtime, which is closed when its last client is closed. The runtime
+ * uses the view controller of its clients that knows the most recent view.
+ */
+@Sharable
+public class NettyClientRuntime extends SimpleChannelInboundHandler<TOMMessage> {
+
+	private static final Logger logger = LoggerFactory.getLogger(NettyClientRuntime.class);
+
+	// shared runtimes, by configuration home
+	private static final Map<String, NettyClientRuntime> sharedRuntimes = new HashMap<>();
+
+	/* Tulio Ribeiro */
+	private static int tcpSendBufferSize = 8 * 1024 * 1024;
+	private static int connectionTimeoutMsec = 40000; /* (40 seconds, timeout) */
+	/* end Tulio Ribeiro */
+
+	private final String sharedKey; // null if the runtime is not shared
+	private final EventLoopGroup workerGroup;
+	private final ConcurrentHashMap<Integer, NettyClientServerSession> sessionClientToReplica = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, NettyClientServerCommunicationSystemClientSide> clients = new ConcurrentHashMap<>();
+	private final ReentrantReadWriteLock rl = new ReentrantReadWriteLock();
+	private final NettyClientPipelineFactory pipelineFactory;
+
+	private volatile ClientViewController controller;
+	private volatile boolean closed = false;
+
+	// the replicas are connected to by the first client registered, without holding
+	// the lock of the shared runtimes; the next clients wait on connectLock
+	private final Object connectLock = new Object();
+	private boolean connected = false;
+
+	private NettyClientRuntime(String sharedKey, ClientViewController controller) {
+		this.sharedKey = sharedKey;
+		this.controller = controller;
+		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+		this.pipelineFactory = new NettyClientPipelineFactory(this, sessionClientToReplica, controller, rl);
+	}
+
+	/**
+	 * Registers a client in a runtime, creating the runtime and connecting it to
+	 * the replicas if needed
+	 *
+	 * @param client The client side of the communication system of the client
+	 * @param clientId The id of the client
+	 * @param controller The view controller of the client
+	 * @return The runtime used by the client
+	 */
+	static NettyClientRuntime register(NettyClientServerCommunicationSystemClientSide client, int clientId,
+			ClientViewController controller) {
+		NettyClientRuntime runtime;
+		if (controller.getStaticConf().useClientSharedRuntime()) {
+			String key = controller.getStaticConf().getConfigHome();
+			synchronized (sharedRuntimes) {
+				runtime = sharedRuntimes.get(key);
+				if (runtime == null) {
+					runtime = new NettyClientRuntime(key, controller);
+					sharedRuntimes.put(key, runtime);
+				}
+				runtime.addClient(clientId, client);
+			}
+			runtime.adoptView(controller);
+		} else {
+			runtime = new NettyClientRuntime(null, controller);
+			runtime.addClient(clientId, client);
+		}
+		runtime.awaitConnected();
+		return runtime;
+	}
+
+	private void awaitConnected() {
+		synchronized (connectLock) {
+			if (!connected && !closed) {
+				connect(controller.getCurrentViewProcesses());
+				connected = true;
+			}
+		}
+	}
+
+	// the runtime keeps the controller of its clients with the most recent view
+	private synchronized void adoptView(ClientViewController controller) {
+		if (controller.getCurrentViewId() > this.controller.getCurrentViewId()) {
+			this.controller = controller;
+		}
+	}
+
+	private void addClient(int clientId, NettyClientServerCommunicationSystemClientSide client) {
+		if (clients.putIfAbsent(clientId, client) != null) {
+			throw new IllegalStateException("Client " + clientId + " is already registered in the client runtime");
+		}
+		logger.debug("Client {} registered, {} clients in the runtime", clientId, clients.size());
+	}
+
+	/**
+	 * Unregisters a client, closing the runtime if no other client uses it
+	 *
+	 * @param clientId The id of the client
+	 */
+	void unregister(int clientId) {
+		if (sharedKey != null) {
+			synchronized (sharedRuntimes) {
+				clients.remove(clientId);
+				if (!clients.isEmpty()) {
+					return;
+				}
+				sharedRuntimes.remove(sharedKey);
+			}
+		} else {
+			clients.remove(clientId);
+		}
+		close();
+	}
+
+	private void close() {
+		this.closed = true;
+		rl.readLock().lock();
+		ArrayList<NettyClientServerSession> sessions = new ArrayList<>(sessionClientToReplica.values());
+		rl.readLock().unlock();
+		for (NettyClientServerSession ncss : sessions) {
+			closeChannelAndEventLoop(ncss.getChannel());
+		}
+		workerGroup.shutdownGracefully();
+	}
+
+	/**
+	 * @param replicaId The id of the replica
+	 * @return The channel to the replica, or null if there is none
+	 */
+	Channel getChannel(int replicaId) {
+		rl.readLock().lock();
+		try {
+			NettyClientServerSession session = sessionClientToReplica.get(replicaId);
+			return session != null ? session.getChannel() : null;
+		} finally {
+			rl.readLock().unlock();
+		}
+	}
+
+	private void connect(int[] replicas) {
+		for (int replicaId : replicas) {
+			if (closed) {
+				return;
+			}
+			ChannelFuture future = connectToReplica(replicaId);
+
+			logger.debug("Connecting to replica {}, at address: {}", replicaId, controller.getRemoteAddress(replicaId));
+
+			future.awaitUninterruptibly();
+
+			if (!future.isSuccess()) {
+				logger.error("Impossible to connect to " + replicaId);
+			}
+		}
+	}
+
+	/**
+	 * Opens connections to the replicas of the current view of a client that
+	 * are not yet connected
+	 *
+	 * @param controller The view controller of the client
+	 */
+	void updateConnections(ClientViewController controller) {
+		adoptView(controller);
+		controller = this.controller;
+		int[] currV = controller.getCurrentViewProcesses();
+		for (int replicaId : currV) {
+			rl.readLock().lock();
+			if (sessionClientToReplica.get(replicaId) == null) {
+				rl.readLock().unlock();
+				rl.writeLock().lock();
+				try {
+					if (sessionClientToReplica.get(replicaId) == null) {
+						ChannelFuture future = connectToReplica(replicaId);
+						logger.debug("Updating connection to replica {}, at address: {}", replicaId,
+								controller.getRemoteAddress(replicaId));
+
+						future.awaitUninterruptibly();
+
+						if (!future.isSuccess()) {
+							logger.error("Impossible to connect to " + replicaId);
+						}
+					}
+				} finally {
+					rl.writeLock().unlock();
+				}
+			} else {
+				rl.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Tulio Ribeiro Connect to specific replica and returns the ChannelFuture.
+	 * sessionClientToReplica is replaced with the new connection.
+	 */
+	private synchronized ChannelFuture connectToReplica(int replicaId) {
+
+		Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(NioSocketChannel.class);
+		b.option(ChannelOption.SO_KEEPALIVE, true);
+		b.option(ChannelOption.TCP_NODELAY, true);
+		b.option(ChannelOption.SO_SNDBUF, tcpSendBufferSize);
+		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
+		b.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			public void initChannel(SocketChannel ch) throws Exception {
+				ch.pipeline().addLast(pipelineFactory.getDecoder());
+				ch.pipeline().addLast(pipelineFactory.getEncoder());
+				ch.pipeline().addLast(pipelineFactory.getHandler());
+			}
+		});
+
+		ChannelFuture channelFuture = b.connect(controller.getRemoteAddress(replicaId));
+
+		NettyClientServerSession ncss = new NettyClientServerSession(channelFuture.channel(), replicaId);
+		sessionClientToReplica.put(replicaId, ncss);
+
+		return channelFuture;
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		if (cause instanceof ClosedChannelException) {
+			logger.error("Connection with replica closed.", cause);
+		} else if (cause instanceof ConnectException) {
+			logger.error("Impossible to connect to replica.", cause);
+		} else if (cause instanceof IOException) {
+			logger.error("Replica disconnected. Connection reset by peer.");
+		} else {
+			logger.error("Replica disconnected.", cause);
+		}
+	}
+
+	@Override
+	public void channelRead0(ChannelHandlerContext ctx, TOMMessage sm) throws Exception {
+		if (closed) {
+			closeChannelAndEventLoop(ctx.channel());
+			return;
+		}
+		NettyClientServerCommunicationSystemClientSide client = clients.get(sm.destination);
+		if (client != null) {
+			client.replyReceived(sm);
+		} else {
+			logger.debug("Discarding reply to unknown client {} from {}", sm.destination, sm.getSender());
+		}
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) {
+		if (closed) {
+			closeChannelAndEventLoop(ctx.channel());
+			return;
+		}
+		logger.debug("Channel active");
+	}
+
+	@Override
+	public void channelUnregistered(final ChannelHandlerContext ctx) throws Exception {
+		scheduleReconnect(ctx, 10);
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) {
+		scheduleReconnect(ctx, 10);
+	}
+
+	private void closeChannelAndEventLoop(Channel c) {
+		// once having an event in your handler (EchoServerHandler)
+		// Close the current channel
+		c.close();
+		// Then close the parent channel (the one attached to the bind)
+		if (c.parent() != null) {
+			c.parent().close();
+		}
+		workerGroup.shutdownGracefully();
+	}
+
+	private void scheduleReconnect(final ChannelHandlerContext ctx, int time) {
+		if (closed) {
+			closeChannelAndEventLoop(ctx.channel());
+			return;
+		}
+
+		final EventLoop loop = ctx.channel().eventLoop();
+		loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reconnect(ctx);
+			}
+		}, time, TimeUnit.SECONDS);
+	}
+
+	private void reconnect(final ChannelHandlerContext ctx) {
+
+		rl.writeLock().lock();
+
+		ArrayList<NettyClientServerSession> sessions = new ArrayList<NettyClientServerSession>(
+				sessionClientToReplica.values());
+		for (NettyClientServerSession ncss : sessions) {
+			if (ncss.getChannel() == ctx.channel()) {
+				int replicaId = ncss.getReplicaId();
+
+				if (controller.getRemoteAddress(replicaId) != null) {
+
+					ChannelFuture future = connectToReplica(replicaId);
+					try {
+						// Re-transmit the pending requests after re-connection
+						future.await();
+						for (NettyClientServerCommunicationSystemClientSide client : clients.values()) {
+							client.retransmitMessage(replicaId);
+						}
+					} catch (InterruptedException e) {
+						logger.error("Interrupted while re-connecting to replica", e);
+					}
+					logger.info("Re-connection to replica {}, at address: {}", replicaId,
+							controller.getRemoteAddress(replicaId));
+
+				} else {
+					// This cleans an old server from the session table
+					sessionClientToReplica.remove(replicaId);
+				}
+			}
+		}
+
+		rl.writeLock().unlock();
+	}
+}
@@ -18,27 +18,15 @@ package bftsmart.communication.client.netty;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.nio.channels.ClosedChannelException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Signature;
-import java.security.spec.InvalidKeySpecException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,28 +36,18 @@ import bftsmart.communication.client.ReplyReceiver;
 import bftsmart.reconfiguration.ClientViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.util.TOMUtil;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoop;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.GenericFutureListener;
 
 /**
+ * Client side of the client-server communication system of a client. The
+ * connections to the replicas belong to a NettyClientRuntime, which may be
+ * shared with other clients.
  *
  * @author Paulo
  */
-@Sharable
-public class NettyClientServerCommunicationSystemClientSide extends SimpleChannelInboundHandler<TOMMessage>
-		implements CommunicationSystemClientSide {
+public class NettyClientServerCommunicationSystemClientSide implements CommunicationSystemClientSide {
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -78,184 +56,42 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	// ******* EDUARDO BEGIN **************//
 	private ClientViewController controller;
 	// ******* EDUARDO END **************//
-	private ConcurrentHashMap<Integer, NettyClientServerSession> sessionClientToReplica = new ConcurrentHashMap<>();
-	private ReentrantReadWriteLock rl;
+	private NettyClientRuntime runtime;
 	private Signature signatureEngine;
 	private boolean closed = false;
 
-	private EventLoopGroup workerGroup;
 	private SyncListener listener;
 
-	private SecretKeyFactory secretKeyFactory;
-
 	/* Tulio Ribeiro */
-	private static int tcpSendBufferSize = 8 * 1024 * 1024;
-	private static int connectionTimeoutMsec = 40000; /* (40 seconds, timeout) */
 	private PrivateKey privKey;
 	/* end Tulio Ribeiro */
 
 	// Used for a re-transmission of the last (pending) request in case of a re-connect to some replica
-	private TOMMessage pendingRequest;
-	private boolean pendingRequestSign;
+	private volatile TOMMessage pendingRequest;
+	private volatile boolean pendingRequestSign;
 
 	public NettyClientServerCommunicationSystemClientSide(int clientId, ClientViewController controller) {
 		super();
 
 		this.clientId = clientId;
-		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
-		try {
-
-			this.secretKeyFactory = TOMUtil.getSecretFactory();
-
-			this.controller = controller;
-
-			/* Tulio Ribeiro */
-			privKey = controller.getStaticConf().getPrivateKey();
-
-			this.listener = new SyncListener();
-			this.rl = new ReentrantReadWriteLock();
-
-			int[] currV = controller.getCurrentViewProcesses();
-
-			for (int i = 0; i < currV.length; i++) {
-				int replicaId = currV[i];
-				try {
+		this.controller = controller;
 
-					ChannelFuture future = connectToReplica(replicaId, secretKeyFactory);
+		/* Tulio Ribeiro */
+		privKey = controller.getStaticConf().getPrivateKey();
 
-					logger.debug("ClientID {}, connecting to replica {}, at address: {}", clientId, replicaId,
-							controller.getRemoteAddress(replicaId));
-
-					future.awaitUninterruptibly();
-
-					if (!future.isSuccess()) {
-						logger.error("Impossible to connect to " + replicaId);
-					}
-
-				} catch (java.lang.NullPointerException ex) {
-					// What is this??? This is not possible!!!
-					logger.debug("Should fix the problem, and I think it has no other implications :-), "
-							+ "but we must make the servers store the view in a different place.");
-				} catch (Exception ex) {
-					logger.error("Failed to initialize MAC engine", ex);
-				}
-			}
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to initialize secret key factory", ex);
-		}
+		this.listener = new SyncListener();
+		this.runtime = NettyClientRuntime.register(this, clientId, controller);
 	}
 
 	@Override
 	public void updateConnections() {
-		int[] currV = controller.getCurrentViewProcesses();
-		try {
-			// open connections with new servers
-			for (int i = 0; i < currV.length; i++) {
-
-				int replicaId = currV[i];
-
-				rl.readLock().lock();
-				if (sessionClientToReplica.get(replicaId) == null) {
-					rl.readLock().unlock();
-					rl.writeLock().lock();
-					try {
-						ChannelFuture future = connectToReplica(replicaId, secretKeyFactory);
-						logger.debug("ClientID {}, updating connection to replica {}, at address: {}", clientId,
-								replicaId, controller.getRemoteAddress(replicaId));
-
-						future.awaitUninterruptibly();
-
-						if (!future.isSuccess()) {
-							logger.error("Impossible to connect to " + replicaId);
-						}
-
-					} catch (InvalidKeyException | InvalidKeySpecException ex) {
-						logger.error("Failed to initialize MAC engine", ex);
-					}
-					rl.writeLock().unlock();
-				} else {
-					rl.readLock().unlock();
-				}
-			}
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to initialzie secret key factory", ex);
-		}
-	}
-
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		if (cause instanceof ClosedChannelException) {
-			logger.error("Connection with replica closed.", cause);
-		} else if (cause instanceof ConnectException) {
-			logger.error("Impossible to connect to replica.", cause);
-		} else if (cause instanceof IOException) {
-			logger.error("Replica disconnected. Connection reset by peer.");
-		} else {
-			logger.error("Replica disconnected.", cause);
-		}
+		runtime.updateConnections(controller);
 	}
 
-	@Override
-	public void channelRead0(ChannelHandlerContext ctx, TOMMessage sm) throws Exception {
-		logger.debug("channelRead0(ChannelHandlerContext ctx, TOMMessage sm).");
-
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
-			return;
-		}
-		trr.replyReceived(sm);
-	}
-
-	@Override
-	public void channelActive(ChannelHandlerContext ctx) {
-
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
-			return;
-		}
-		logger.debug("Channel active");
-	}
-
-	public void reconnect(final ChannelHandlerContext ctx) {
-
-		rl.writeLock().lock();
-
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<NettyClientServerSession>(
-				sessionClientToReplica.values());
-		for (NettyClientServerSession ncss : sessions) {
-			if (ncss.getChannel() == ctx.channel()) {
-				int replicaId = ncss.getReplicaId();
-				try {
-
-					if (controller.getRemoteAddress(replicaId) != null) {
-
-						ChannelFuture future;
-						try {
-							future = connectToReplica(replicaId, secretKeyFactory);
-							// Re-transmit a request after re-connection
-							future.await();
-							logger.info("Retransmitting message after a re-connect: " + this.pendingRequest.getSequence());
-							retransmitMessage(this.pendingRequest, replicaId, this.pendingRequestSign);
-						} catch (InvalidKeyException | InvalidKeySpecException e) {
-							// TODO Auto-generated catch block
-							logger.error("Error in key.",e);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-						logger.info("ClientID {}, re-connection to replica {}, at address: {}", clientId, replicaId,
-								controller.getRemoteAddress(replicaId));
-
-					} else {
-						// This cleans an old server from the session table
-						removeClient(replicaId);
-					}
-				} catch (NoSuchAlgorithmException ex) {
-					logger.error("Failed to reconnect to replica", ex);
-				}
-			}
+	void replyReceived(TOMMessage sm) {
+		if (!closed) {
+			trr.replyReceived(sm);
 		}
-
-		rl.writeLock().unlock();
 	}
 
 	@Override
@@ -308,10 +144,8 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 			sm.destination = target;
 
-			rl.readLock().lock();
-			Channel channel = ((NettyClientServerSession) sessionClientToReplica.get(target)).getChannel();
-			rl.readLock().unlock();
-			if (channel.isActive()) {
+			Channel channel = runtime.getChannel(target);
+			if (channel != null && channel.isActive()) {
 				sm.signed = sign;
 				ChannelFuture f = channel.writeAndFlush(sm);
 
@@ -393,68 +227,10 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 	@Override
 	public void close() {
-		this.closed = true;
-		// Iterator sessions = sessionClientToReplica.values().iterator();
-		rl.readLock().lock();
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<>(sessionClientToReplica.values());
-		rl.readLock().unlock();
-		for (NettyClientServerSession ncss : sessions) {
-			Channel c = ncss.getChannel();
-			closeChannelAndEventLoop(c);
-		}
-	}
-
-	private ChannelInitializer getChannelInitializer() throws NoSuchAlgorithmException {
-
-		final NettyClientPipelineFactory nettyClientPipelineFactory = new NettyClientPipelineFactory(this,
-				sessionClientToReplica, controller, rl);
-
-		ChannelInitializer channelInitializer = new ChannelInitializer<SocketChannel>() {
-			@Override
-			public void initChannel(SocketChannel ch) throws Exception {
-				ch.pipeline().addLast(nettyClientPipelineFactory.getDecoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getEncoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getHandler());
-
-			}
-		};
-		return channelInitializer;
-	}
-
-	@Override
-	public void channelUnregistered(final ChannelHandlerContext ctx) throws Exception {
-		scheduleReconnect(ctx, 10);
-	}
-
-	@Override
-	public void channelInactive(final ChannelHandlerContext ctx) {
-		scheduleReconnect(ctx, 10);
-	}
-
-	private void closeChannelAndEventLoop(Channel c) {
-		// once having an event in your handler (EchoServerHandler)
-		// Close the current channel
-		c.close();
-		// Then close the parent channel (the one attached to the bind)
-		if (c.parent() != null) {
-			c.parent().close();
-		}
-		workerGroup.shutdownGracefully();
-	}
-
-	private void scheduleReconnect(final ChannelHandlerContext ctx, int time) {
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
-			return;
+		if (!closed) {
+			this.closed = true;
+			runtime.unregister(clientId);
 		}
-
-		final EventLoop loop = ctx.channel().eventLoop();
-		loop.schedule(new Runnable() {
-			@Override
-			public void run() {
-				reconnect(ctx);
-			}
-		}, time, TimeUnit.SECONDS);
 	}
 
 	private class SyncListener implements GenericFutureListener<ChannelFuture> {
@@ -517,48 +293,14 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 	}
 
-	/**
-	 * Tulio Ribeiro Connect to specific replica and returns the ChannelFuture.
-	 * sessionClientToReplica is replaced with the new connection. Removed redundant
-	 * code.
-	 */
-	public synchronized ChannelFuture connectToReplica(int replicaId, SecretKeyFactory fac)
-			throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
-
-		String str = this.clientId + ":" + replicaId;
-		PBEKeySpec spec = TOMUtil.generateKeySpec(str.toCharArray());
-		SecretKey authKey = fac.generateSecret(spec);
-
-		Bootstrap b = new Bootstrap();
-		b.group(workerGroup);
-		b.channel(NioSocketChannel.class);
-		b.option(ChannelOption.SO_KEEPALIVE, true);
-		b.option(ChannelOption.TCP_NODELAY, true);
-		b.option(ChannelOption.SO_SNDBUF, tcpSendBufferSize);
-		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
-		b.handler(getChannelInitializer());
-
-		ChannelFuture channelFuture = b.connect(controller.getRemoteAddress(replicaId));
-
-		NettyClientServerSession ncss = new NettyClientServerSession(
-				channelFuture.channel(), replicaId);
-		sessionClientToReplica.put(replicaId, ncss);
-
-		return channelFuture;
-	}
-
-	public synchronized void removeClient(int clientId) {
-		sessionClientToReplica.remove(clientId);
-	}
-
 	/**
 	 * Re-transmits a pending request to a recovered replica after successful re-connection
 	 *
-	 * @param sm pending TOM Message
 	 * @param replicaId recovered replica's id
-	 * @param sign if a signature should be added
 	 */
-	private void retransmitMessage(TOMMessage sm, int replicaId, boolean sign) {
+	void retransmitMessage(int replicaId) {
+		TOMMessage sm = this.pendingRequest;
+		boolean sign = this.pendingRequestSign;
 		// No pending request then abort;
 		if (sm == null) {
 			return;
@@ -577,10 +319,8 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 			logger.error("Failed to clone TOMMessage", e);
 		}
 		sm.destination = replicaId;
-		rl.readLock().lock();
-		Channel channel = sessionClientToReplica.get(replicaId).getChannel();
-		rl.readLock().unlock();
-		if (channel.isActive()) {
+		Channel channel = runtime.getChannel(replicaId);
+		if (channel != null && channel.isActive()) {
 			sm.signed = sign;
 			ChannelFuture f = channel.writeAndFlush(sm);
 			f.addListener(listener);
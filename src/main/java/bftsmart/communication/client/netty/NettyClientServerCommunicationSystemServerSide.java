@@ -19,8 +19,11 @@ import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.HashedWheelTimer;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.*;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -29,8 +32,6 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -40,6 +41,7 @@ import java.security.PrivateKey;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
@@ -73,6 +75,13 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	private PrivateKey privKey;
 	/* Tulio Ribeiro */
 
+	// a single timer for the replies to clients whose connection is not yet established
+	private final HashedWheelTimer retryTimer = new HashedWheelTimer("reply retry timer", 100,
+			TimeUnit.MILLISECONDS, 512);
+
+	// channels whose flush is deferred until the thread that holds them invokes flushBatch()
+	private final ThreadLocal<List<NettyReplyWriter>> heldFlushes = new ThreadLocal<>();
+
 	public NettyClientServerCommunicationSystemServerSide(ServerViewController controller) {
 		try {
 
@@ -175,6 +184,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		logger.info("Shutting down Netty system");
 
 		this.closed = true;
+		retryTimer.stop();
 
 		closeChannelAndEventLoop(mainChannel);
 
@@ -243,16 +253,17 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 
 		// debugSessions();
 
+		// a channel may be shared by several clients, whose sessions are all closed
 		rl.writeLock().lock();
-		Set<Entry<Integer, NettyClientServerSession>> s = sessionReplicaToClient.entrySet();
-		for (Entry<Integer, NettyClientServerSession> m : s) {
-			NettyClientServerSession value = m.getValue();
-			if (ctx.channel().equals(value.getChannel())) {
-				int key = m.getKey();
-				toRemove(key);
-				break;
+		List<Integer> keys = new ArrayList<>();
+		for (Entry<Integer, NettyClientServerSession> m : sessionReplicaToClient.entrySet()) {
+			if (ctx.channel().equals(m.getValue().getChannel())) {
+				keys.add(m.getKey());
 			}
 		}
+		for (Integer key : keys) {
+			toRemove(key);
+		}
 		rl.writeLock().unlock();
 
 		logger.debug("Session Closed, active clients=" + sessionReplicaToClient.size());
@@ -274,76 +285,115 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		this.requestReceiver = tl;
 	}
 
-	private void retrySend(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
-		send(targets, sm, serializeClassHeaders);
+	@Override
+	public void startBatch() {
+		if (heldFlushes.get() == null) {
+			heldFlushes.set(new ArrayList<>());
+		}
 	}
 
 	@Override
-	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
-
-		// serialize message
-		DataOutputStream dos = null;
-
-		byte[] data = null;
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			dos = new DataOutputStream(baos);
-			sm.wExternal(dos);
-			dos.flush();
-			data = baos.toByteArray();
-			sm.serializedMessage = data;
-		} catch (IOException ex) {
-			logger.error("Failed to serialize message.", ex);
+	public void flushBatch() {
+		List<NettyReplyWriter> held = heldFlushes.get();
+		if (held != null) {
+			heldFlushes.remove();
+			for (NettyReplyWriter writer : held) {
+				writer.scheduleFlush();
+			}
 		}
+	}
 
+	@Override
+	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
 		// replies are not signed in the current JBP version
 		sm.signed = false;
-		// produce signature if necessary (never in the current version)
-		if (sm.signed) {
-			sm.serializedMessageSignature = TOMUtil.signMessage(privKey, data);
-		}
+		send(targets, sm, sm.retry);
+	}
 
-		for (int target : targets) {
-			try {
-				sm = (TOMMessage) sm.clone();
-			} catch (CloneNotSupportedException ex) {
-				logger.error("Failed to clone TOMMessage", ex);
-				continue;
-			}
+	private void send(int[] targets, TOMMessage sm, int retries) {
 
-			rl.readLock().lock();
-			if (sessionReplicaToClient.containsKey(target)) {
-				sm.destination = target;
-				sessionReplicaToClient.get(target).getChannel().writeAndFlush(sm);
-			} else {
-				logger.debug("Client not into sessionReplicaToClient({}):{}, waiting and retrying.", target,
-						sessionReplicaToClient.containsKey(target));
-				/*
-				 * ClientSession clientSession = new ClientSession(target, sm); new
-				 * Thread(clientSession).start();
-				 */
-				// should I wait for the client?
-				// cb: the below code fixes an issue that occurs if a replica tries to send a reply back to some client
-				// *before* the connection to that client is successfully established. The client may then fail to
-				// gather enough responses and run in a timeout. In this fix we periodically retry to send that response
-
-				if (sm.retry > 0) {
-					int retryAfterMillis = (int) (1000 * // Double retry-timeout every time while approaching client's invokeOrdered timeout
-							((double) controller.getStaticConf().getClientInvokeOrderedTimeout() * Math.pow(2, -1 * sm.retry)));
-					sm.retry = sm.retry - 1;
-					TOMMessage finalSm = sm;
-					TimerTask timertask = new TimerTask() {
-						@Override
-						public void run() {
-							retrySend(targets, finalSm, serializeClassHeaders);
-						}
-					};
-					Timer timer = new Timer("retry");
-					timer.schedule(timertask, retryAfterMillis);
+		List<NettyReplyWriter> held = heldFlushes.get();
+		ByteBuf frame = null;
+
+		rl.readLock().lock();
+		try {
+			for (int i = 0; i < targets.length; i++) {
+				NettyClientServerSession session = sessionReplicaToClient.get(targets[i]);
+				if (session == null) {
+					logger.debug("Client not into sessionReplicaToClient({}), waiting and retrying.", targets[i]);
+					scheduleRetry(targets[i], sm, retries);
+					continue;
 				}
 
+				// the reply is serialized once, and only copied for all but the last target
+				if (frame == null) {
+					frame = encode(session.getChannel().alloc(), sm);
+					if (frame == null) {
+						return;
+					}
+				}
+				ByteBuf out;
+				if (i < targets.length - 1) {
+					out = frame.copy();
+				} else {
+					out = frame;
+					frame = null;
+				}
+				out.setInt(Integer.BYTES, targets[i]);
+
+				NettyReplyWriter writer = session.getWriter();
+				if (writer.enqueue(out)) {
+					if (held != null) {
+						held.add(writer);
+					} else {
+						writer.scheduleFlush();
+					}
+				}
 			}
+		} finally {
 			rl.readLock().unlock();
+			if (frame != null) {
+				frame.release();
+			}
+		}
+	}
+
+	// cb: this fixes an issue that occurs if a replica tries to send a reply back to some client *before* the
+	// connection to that client is successfully established. The client may then fail to gather enough responses
+	// and run in a timeout. In this fix we periodically retry to send that response
+	private void scheduleRetry(int target, TOMMessage sm, int retries) {
+		if (retries <= 0 || closed) {
+			return;
+		}
+		// Double retry-timeout every time while approaching client's invokeOrdered timeout
+		long retryAfterMillis = (long) (1000 * ((double) controller.getStaticConf().getClientInvokeOrderedTimeout()
+				* Math.pow(2, -1 * retries)));
+		retryTimer.schedule(() -> send(new int[] { target }, sm, retries - 1), retryAfterMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Encodes a reply in the format of NettyTOMMessageEncoder, preceded by the id of the client it is addressed
+	 * to, so that clients multiplexed over the same connection can tell their replies apart. The reply is
+	 * encoded directly into a buffer of the allocator of the channel (pooled by default), and the client id
+	 * is set by the caller.
+	 */
+	private ByteBuf encode(ByteBufAllocator alloc, TOMMessage sm) {
+		byte[] content = sm.getContent();
+		ByteBuf frame = alloc.ioBuffer(128 + (content != null ? content.length : 0));
+		try {
+			frame.writeInt(0); // frame length
+			frame.writeInt(-1); // client id
+			frame.writeInt(0); // message length
+			sm.wExternal(new ByteBufOutputStream(frame));
+			int msgLength = frame.writerIndex() - 3 * Integer.BYTES;
+			frame.writeInt(0); // replies are not signed
+			frame.setInt(0, frame.writerIndex() - Integer.BYTES);
+			frame.setInt(2 * Integer.BYTES, msgLength);
+			return frame;
+		} catch (IOException ex) {
+			frame.release();
+			logger.error("Failed to serialize message.", ex);
+			return null;
 		}
 	}
 
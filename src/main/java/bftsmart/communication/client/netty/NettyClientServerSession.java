@@ -32,18 +32,34 @@ public class NettyClientServerSession {
     private int replicaId;
     private Lock lock;
     private int lastMsgReceived;
+    private NettyReplyWriter writer;
 
     public NettyClientServerSession(Channel channel, int replicaId) {
+        this(channel, replicaId, null);
+    }
+
+    /**
+     * Creates a session of the server side, whose replies are written by the given
+     * writer. The writer is shared by all the sessions of the clients multiplexed
+     * over the same channel.
+     */
+    NettyClientServerSession(Channel channel, int replicaId, NettyReplyWriter writer) {
         this.channel = channel;
         this.replicaId = replicaId;
         this.lock =  new ReentrantLock();
         this.lastMsgReceived = -1;
+        this.writer = writer;
     }
     
     public Channel getChannel() {
         return channel;
     }
 
+    // null in the sessions of the client side
+    NettyReplyWriter getWriter() {
+        return writer;
+    }
+
     public int getReplicaId() {
         return replicaId;
     }
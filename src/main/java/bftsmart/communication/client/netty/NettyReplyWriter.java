@@ -0,0 +1,84 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.client.netty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * Writes the encoded replies to the clients of a channel in its event loop, with
+ * a single flush for all the replies queued since the previous one. A channel
+ * may carry the requests and replies of several clients, whose sessions share the
+ * same writer.
+ */
+class NettyReplyWriter {
+
+    private final Channel channel;
+
+    private final Queue<ByteBuf> pendingReplies = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    NettyReplyWriter(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Queues an encoded reply to be written to the channel.
+     *
+     * @param frame The encoded reply
+     * @return true if the caller must invoke scheduleFlush(), false if a flush
+     * of the queued replies is already scheduled
+     */
+    boolean enqueue(ByteBuf frame) {
+        pendingReplies.add(frame);
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes the queued replies in the event loop of the channel, with a single
+     * flush for all of them.
+     */
+    void scheduleFlush() {
+        try {
+            channel.eventLoop().execute(this::writePending);
+        } catch (RejectedExecutionException ex) {
+            // the event loop was shut down, the replies will never be sent
+            ByteBuf frame;
+            while ((frame = pendingReplies.poll()) != null) {
+                frame.release();
+            }
+        }
+    }
+
+    private void writePending() {
+        // cleared before draining, so that replies queued from now on schedule a new flush
+        flushScheduled.set(false);
+        boolean written = false;
+        ByteBuf frame;
+        while ((frame = pendingReplies.poll()) != null) {
+            channel.write(frame);
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+}
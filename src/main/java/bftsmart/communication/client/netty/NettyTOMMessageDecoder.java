@@ -49,6 +49,7 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
     private boolean firstTime;
     private ReentrantReadWriteLock rl;
     private int bytesToSkip;
+    private NettyReplyWriter replyWriter;
     
     
     public NettyTOMMessageDecoder(boolean isClient, 
@@ -127,6 +128,9 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         // Skip the length field because we know it already.
         buffer.skipBytes(Integer.BYTES);
 
+        // replies are preceded by the id of the client they are addressed to
+        int destination = isClient ? buffer.readInt() : -1;
+
         int size = buffer.readInt();
         byte[] data = new byte[size];
         buffer.readBytes(data);
@@ -148,6 +152,7 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
             sm = new TOMMessage();
             sm.rExternal(dis);
             sm.serializedMessage = data;
+            sm.destination = destination;
 
             if (signature != null) {
                 sm.serializedMessageSignature = signature;
@@ -159,9 +164,13 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
                 if (!sessionTable.containsKey(sm.getSender())) {
                     rl.readLock().unlock();
               
+                    // the clients multiplexed over this channel share the writer of their replies
+                    if (replyWriter == null) {
+                        replyWriter = new NettyReplyWriter(context.channel());
+                    }
                     NettyClientServerSession cs = new NettyClientServerSession(
                     		context.channel(), 
-                    		sm.getSender());
+                    		sm.getSender(), replyWriter);
                                        
                     rl.writeLock().lock();
                     sessionTable.put(sm.getSender(), cs);
@@ -0,0 +1,103 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
+
+/**
+ * Message sent by each end of a replica-to-replica connection when it is established,
+ * to agree on the key used to compute the MACs addressed to the other end (see
+ * NettyServerConnection). It carries an ephemeral Diffie-Hellman public key, signed
+ * with the private key of the sender, so that the key is only shared by these two
+ * replicas.
+ */
+public final class KeyExchangeMessage extends SystemMessage {
+
+    private int target;
+    private byte[] ephemeralKey;
+    private byte[] signature;
+
+    public KeyExchangeMessage() {
+    }
+
+    /**
+     * Creates the message
+     *
+     * @param sender Replica that sends the message
+     * @param target Replica at the other end of the connection
+     * @param ephemeralKey Encoded ephemeral public key of the sender
+     * @param signature Signature of signedData(sender, target, ephemeralKey)
+     */
+    public KeyExchangeMessage(int sender, int target, byte[] ephemeralKey, byte[] signature) {
+        super(sender);
+        this.target = target;
+        this.ephemeralKey = ephemeralKey;
+        this.signature = signature;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public byte[] getEphemeralKey() {
+        return ephemeralKey;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * Builds the data signed by the sender, which binds the ephemeral key to both
+     * ends of the connection
+     *
+     * @param sender Replica that sends the message
+     * @param target Replica at the other end of the connection
+     * @param ephemeralKey Encoded ephemeral public key of the sender
+     * @return The data to be signed
+     */
+    public static byte[] signedData(int sender, int target, byte[] ephemeralKey) {
+        return ByteBuffer.allocate(2 * Integer.BYTES + ephemeralKey.length)
+                .putInt(sender).putInt(target).put(ephemeralKey).array();
+    }
+
+    @Override
+    public void wExternal(DataOutput out) throws IOException {
+        super.wExternal(out);
+
+        out.writeInt(target);
+        SystemMessageCodec.writeBytes(out, ephemeralKey);
+        SystemMessageCodec.writeBytes(out, signature);
+    }
+
+    @Override
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+        super.rExternal(in);
+
+        target = in.readInt();
+        ephemeralKey = SystemMessageCodec.readBytes(in);
+        signature = SystemMessageCodec.readBytes(in);
+        if (ephemeralKey == null || signature == null) {
+            throw new IOException("Key exchange message without key or signature");
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.metrics.Metrics;
+import bftsmart.tom.util.TOMUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * This class represents a connection with other server, running over the event loops
+ * of the ServersCommunicationLayer instead of dedicated sender/receiver threads.
+ * Messages are written to the channel without blocking the caller, and all the
+ * messages written before the event loop gets to run are sent with a single flush.
+ * While there is no channel (e.g., during startup or a reconnection), up to
+ * outQueueSize messages are kept and sent once the channel is established.
+ *
+ * If ACCEPT messages are authenticated with MAC vectors, both ends of each new channel
+ * agree on the key of the MACs they address to each other, through an ephemeral
+ * elliptic curve Diffie-Hellman exchange signed with the private keys of the replicas
+ * (see KeyExchangeMessage). The key is therefore only known by these two replicas,
+ * and changes with every channel.
+ */
+public class NettyServerConnection {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final long POOL_TIME = 5000;
+
+	private final ServersCommunicationLayer communication;
+	private final ServerViewController controller;
+	private final int remoteId;
+	private final SecretKey secretKey;
+
+	private static final String EXCHANGE_CURVE = "secp256r1";
+	public static final String MAC_ALGORITHM = "HmacSHA256";
+
+	// MAC key shared with the remote replica, null while it is being agreed on
+	private final boolean keyExchange;
+	private volatile SecretKey macKey = null;
+	// channel of the current key exchange and ephemeral key pair used in it (guarded by this)
+	private Channel exchangeChannel = null;
+	private KeyPair exchangeKeys = null;
+	// key exchange message received before the channel was set (guarded by this)
+	private Channel earlyExchangeChannel = null;
+	private KeyExchangeMessage earlyExchange = null;
+
+	private volatile Channel channel = null;
+	private volatile boolean doWork = true;
+
+	// number of messages queued or written but not yet sent (bounded by the out queue size)
+	private final AtomicInteger outQueue = new AtomicInteger();
+	private final int outQueueSize;
+	private final Queue<byte[]> toSend = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private final Metrics metrics;
+	private final LongAdder notConnectedDrops;
+	private final LongAdder outQueueDrops;
+
+	public NettyServerConnection(ServersCommunicationLayer communication, ServerViewController controller,
+			Channel channel, int remoteId, SecretKey secretKey) {
+
+		this.communication = communication;
+		this.controller = controller;
+		this.remoteId = remoteId;
+		this.secretKey = secretKey;
+		this.outQueueSize = controller.getStaticConf().getOutQueueSize();
+		this.keyExchange = controller.getStaticConf().useMACAcceptProofs()
+				&& controller.getStaticConf().getTTPId() != remoteId
+				&& controller.getStaticConf().getTTPId() != controller.getStaticConf().getProcessId();
+
+		this.metrics = Metrics.of(controller.getStaticConf().getProcessId());
+		this.notConnectedDrops = metrics.counter(Metrics.DROPPED_MESSAGES, "reason", "not_connected");
+		this.outQueueDrops = metrics.counter(Metrics.DROPPED_MESSAGES, "reason", "out_queue_full");
+		metrics.gauge(Metrics.QUEUE_DEPTH, "queue", "out_" + remoteId, outQueue::get);
+
+		// Connect to the remote process or just wait for the connection?
+		if (isToConnect()) {
+			connect();
+		} else if (channel != null) {
+			setChannel(channel);
+		}
+	}
+
+	/**
+	 * Returns the key derived from the password shared by all the replicas. It must
+	 * not be used to authenticate messages to third parties, see getMACKey().
+	 */
+	public SecretKey getSecretKey() {
+		return secretKey;
+	}
+
+	/**
+	 * Returns the key agreed on with the remote replica for the current channel, which
+	 * is only known by the two replicas
+	 *
+	 * @return The MAC key, or null if there is no channel or the key exchange did not complete
+	 */
+	public SecretKey getMACKey() {
+		return macKey;
+	}
+
+	public int getRemoteId() {
+		return remoteId;
+	}
+
+	/**
+	 * Stop message sending and reception.
+	 */
+	public void shutdown() {
+		logger.debug("SHUTDOWN for " + remoteId);
+
+		doWork = false;
+		metrics.removeGauge(Metrics.QUEUE_DEPTH, "queue", "out_" + remoteId);
+		while (toSend.poll() != null) {
+			outQueue.decrementAndGet();
+		}
+
+		Channel ch = channel;
+		channel = null;
+		if (ch != null) {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Used to send packets to the remote server. Never blocks: if the peer is not
+	 * connected, the message is kept until it is; if too many messages are waiting
+	 * to be sent to it, the message is discarded (as with a full out queue).
+	 */
+	public final void send(byte[] data) {
+		if (outQueue.incrementAndGet() > outQueueSize) {
+			outQueue.decrementAndGet();
+			Channel ch = channel;
+			if (ch == null || !ch.isActive()) {
+				logger.debug("Not connected to " + remoteId + " and out queue full (message discarded).");
+				notConnectedDrops.increment();
+			} else {
+				logger.debug("Out queue for " + remoteId + " full (message discarded).");
+				outQueueDrops.increment();
+			}
+			return;
+		}
+
+		toSend.offer(data);
+
+		// if there is no channel yet, the message is sent once it is set (see setChannel)
+		Channel ch = channel;
+		if (ch != null && ch.isActive()) {
+			scheduleFlush(ch);
+		}
+	}
+
+	// all messages queued until the event loop runs are written with a single flush
+	private void scheduleFlush(Channel ch) {
+		if (flushScheduled.compareAndSet(false, true)) {
+			ch.eventLoop().execute(this::flush);
+		}
+	}
+
+	private void flush() {
+		flushScheduled.set(false);
+
+		Channel ch = channel;
+		if (ch == null || !ch.isActive()) {
+			return; // connection lost meanwhile, the messages wait for the next one
+		}
+
+		byte[] data;
+		while ((data = toSend.poll()) != null) {
+			ch.write(data).addListener(f -> outQueue.decrementAndGet());
+		}
+		ch.flush();
+	}
+
+	public int getOutQueueSize() {
+		return outQueue.get();
+	}
+
+	//******* EDUARDO BEGIN **************//
+	//return true of a process shall connect to the remote process, false otherwise
+	private boolean isToConnect() {
+		if (this.controller.getStaticConf().getTTPId() == remoteId) {
+			//Need to wait for the connection request from the TTP, do not tray to connect to it
+			return false;
+		} else if (this.controller.getStaticConf().getTTPId() == this.controller.getStaticConf().getProcessId()) {
+			//If this is a TTP, one must connect to the remote process
+			return true;
+		}
+		//in this case, the node with higher ID starts the connection
+		return this.controller.isInCurrentView() && this.controller.getStaticConf().getProcessId() > remoteId;
+	}
+	//******* EDUARDO END **************//
+
+	/**
+	 * Used when the remote process connected to this replica.
+	 *
+	 * @param newChannel channel created when this server accepted the connection
+	 */
+	protected void reconnect(Channel newChannel) {
+		if (isToConnect()) {
+			// we are the ones supposed to connect; the remote process may be recovering
+			newChannel.close();
+			if (channel == null) {
+				connect();
+			}
+		} else {
+			setChannel(newChannel);
+		}
+	}
+
+	private void setChannel(Channel newChannel) {
+		Channel old = channel;
+		channel = newChannel;
+
+		if (old != null && old != newChannel) {
+			old.close();
+		}
+
+		newChannel.closeFuture().addListener(f -> channelClosed(newChannel));
+
+		if (keyExchange && old != newChannel) {
+			startKeyExchange(newChannel);
+		}
+
+		// sends the messages queued while there was no channel
+		if (!toSend.isEmpty()) {
+			scheduleFlush(newChannel);
+		}
+	}
+
+	/**
+	 * Sends an ephemeral public key, signed by this replica, to the remote replica
+	 */
+	private void startKeyExchange(Channel ch) {
+		byte[] data;
+		synchronized (this) {
+			macKey = null;
+			exchangeChannel = ch;
+			exchangeKeys = null;
+			try {
+				KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+				kpg.initialize(new ECGenParameterSpec(EXCHANGE_CURVE));
+				exchangeKeys = kpg.generateKeyPair();
+
+				int me = controller.getStaticConf().getProcessId();
+				byte[] ephemeralKey = exchangeKeys.getPublic().getEncoded();
+				byte[] signature = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(),
+						KeyExchangeMessage.signedData(me, remoteId, ephemeralKey));
+
+				data = SystemMessageCodec.encode(new KeyExchangeMessage(me, remoteId, ephemeralKey, signature));
+			} catch (Exception ex) {
+				logger.error("Failed to start key exchange with " + remoteId, ex);
+				return;
+			}
+
+			if (earlyExchangeChannel == ch) {
+				completeKeyExchange(earlyExchange);
+			}
+			earlyExchangeChannel = null;
+			earlyExchange = null;
+		}
+		send(data);
+	}
+
+	/**
+	 * Called when the remote replica sends its ephemeral public key
+	 *
+	 * @param ch Channel from which the message was received
+	 * @param msg The message
+	 */
+	protected synchronized void keyExchangeReceived(Channel ch, KeyExchangeMessage msg) {
+		if (!keyExchange) {
+			return;
+		}
+		if (ch != exchangeChannel) {
+			// the channel was not set yet (e.g., the view is still unknown)
+			earlyExchangeChannel = ch;
+			earlyExchange = msg;
+			return;
+		}
+		completeKeyExchange(msg);
+	}
+
+	// caller must hold the lock of this object
+	private void completeKeyExchange(KeyExchangeMessage msg) {
+		int me = controller.getStaticConf().getProcessId();
+
+		if (exchangeKeys == null || msg.getSender() != remoteId || msg.getTarget() != me) {
+			logger.warn("Discarding key exchange message from " + remoteId);
+			return;
+		}
+
+		PublicKey signer = controller.getStaticConf().getPublicKey(remoteId);
+		if (signer == null || !TOMUtil.verifySignature(signer,
+				KeyExchangeMessage.signedData(remoteId, me, msg.getEphemeralKey()), msg.getSignature())) {
+			logger.warn("Invalid signature in key exchange message from " + remoteId);
+			return;
+		}
+
+		try {
+			PublicKey remoteKey = KeyFactory.getInstance("EC")
+					.generatePublic(new X509EncodedKeySpec(msg.getEphemeralKey()));
+			KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+			agreement.init(exchangeKeys.getPrivate());
+			agreement.doPhase(remoteKey, true);
+
+			// the key also depends on both ephemeral keys, taken in the order of the replica ids
+			byte[] localKey = exchangeKeys.getPublic().getEncoded();
+			MessageDigest md = TOMUtil.getHashEngine();
+			md.update(agreement.generateSecret());
+			md.update(me < remoteId ? localKey : msg.getEphemeralKey());
+			md.update(me < remoteId ? msg.getEphemeralKey() : localKey);
+
+			macKey = new SecretKeySpec(md.digest(), MAC_ALGORITHM);
+			exchangeKeys = null;
+			logger.info("Established MAC key with replica {}", remoteId);
+		} catch (Exception ex) {
+			logger.error("Failed to complete key exchange with " + remoteId, ex);
+		}
+	}
+
+	private void connect() {
+		if (!doWork) {
+			return;
+		}
+
+		ChannelFuture f = communication.connect(this);
+		f.addListener(future -> {
+			if (future.isSuccess()) {
+				if (doWork) {
+					setChannel(f.channel());
+				} else {
+					f.channel().close();
+				}
+			} else {
+				logger.debug("Failed to connect to " + remoteId + ", retrying in " + POOL_TIME + " ms");
+				scheduleReconnect(f.channel());
+			}
+		});
+	}
+
+	private void channelClosed(Channel closed) {
+		if (channel == closed) {
+			channel = null;
+			macKey = null;
+			logger.debug("Connection to " + remoteId + " closed");
+
+			if (isToConnect()) {
+				scheduleReconnect(closed);
+			}
+		}
+	}
+
+	private void scheduleReconnect(Channel ch) {
+		if (doWork) {
+			ch.eventLoop().schedule(this::connect, POOL_TIME, TimeUnit.MILLISECONDS);
+		}
+	}
+}
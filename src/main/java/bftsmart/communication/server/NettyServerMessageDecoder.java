@@ -0,0 +1,96 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Decodes the frames exchanged among replicas: DATA_LENGTH(int) + DATA(byte) + HAS_MAC(byte),
+ * where DATA is a SystemMessage encoded by SystemMessageCodec. On connections accepted by
+ * this replica, the first four bytes carry the ID of the remote process, which is
+ * passed on as an Integer.
+ */
+public class NettyServerMessageDecoder extends ByteToMessageDecoder {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private boolean expectId;
+
+    /**
+     * @param expectId true if the channel was accepted by this replica, so the
+     * remote process sends its ID before the first message
+     */
+    public NettyServerMessageDecoder(boolean expectId) {
+        this.expectId = expectId;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+
+        if (expectId) {
+            if (in.readableBytes() < Integer.BYTES) {
+                return;
+            }
+            out.add(in.readInt());
+            expectId = false;
+            return;
+        }
+
+        // Wait until the length prefix is available.
+        if (in.readableBytes() < Integer.BYTES) {
+            return;
+        }
+
+        int dataLength = in.getInt(in.readerIndex());
+
+        if (dataLength < 0) {
+            logger.warn("Invalid frame length {}, closing connection", dataLength);
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            return;
+        }
+
+        // Wait until the whole frame is available.
+        if (in.readableBytes() < Integer.BYTES + (long) dataLength + 1) {
+            return;
+        }
+
+        in.skipBytes(Integer.BYTES);
+        int start = in.readerIndex();
+
+        try {
+            // the message is decoded directly from the receive buffer
+            out.add(SystemMessageCodec.decode(new ByteBufInputStream(in, dataLength)));
+        } catch (Exception ex) {
+            logger.info("Invalid message received. Ignoring!", ex);
+        } finally {
+            in.readerIndex(start + dataLength);
+        }
+
+        byte hasMAC = in.readByte();
+
+        logger.trace("Read: {}, HasMAC: {}", dataLength, hasMAC);
+    }
+}
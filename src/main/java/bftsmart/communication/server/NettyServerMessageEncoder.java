@@ -0,0 +1,43 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+/**
+ * Writes already encoded messages in the frame format read by NettyServerMessageDecoder.
+ * The length prefix is written directly into the (pooled) outbound buffer, so the
+ * message is not copied into an intermediate array.
+ */
+@Sharable
+public class NettyServerMessageEncoder extends MessageToByteEncoder<byte[]> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, byte[] data, ByteBuf out) throws Exception {
+        out.writeInt(data.length);
+        out.writeBytes(data);
+        out.writeByte(0); // without MAC
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, byte[] data, boolean preferDirect) throws Exception {
+        int size = Integer.BYTES + data.length + 1;
+        return preferDirect ? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+    }
+}
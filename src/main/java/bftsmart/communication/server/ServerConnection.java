@@ -16,6 +16,7 @@
 package bftsmart.communication.server;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
@@ -385,8 +386,7 @@ public class ServerConnection {
 
 						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = SystemMessageCodec.decode(data);
 
 						//The verification it is done for the SSL/TLS protocol.
 						sm.authenticated = true;
@@ -450,8 +450,7 @@ public class ServerConnection {
 							read += socketInStream.read(data, read, dataLength - read);
 						} while (read < dataLength);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = SystemMessageCodec.decode(data);
 
 						if (sm.getSender() == remoteId) {
 							this.replica.joinMsgReceived((VMMessage) sm);
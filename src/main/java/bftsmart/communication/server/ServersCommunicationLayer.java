@@ -16,23 +16,44 @@
 package bftsmart.communication.server;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.metrics.Metrics;
 import bftsmart.tom.util.TOMUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.SslProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
-import javax.net.ssl.*;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
 import java.net.*;
 import java.security.KeyStore;
-import java.security.SecureRandom;
 import java.security.Security;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -53,6 +74,12 @@ import java.util.concurrent.locks.ReentrantLock;
 //$keytool -importkeystore -srckeystore ./RSA_KeyPair_2048.pkcs12 -destkeystore ./RSA_KeyPair_2048.pkcs12 -deststoretype pkcs12
 
 
+/**
+ * Communication layer among replicas. Connections are handled by Netty event loops
+ * (see NettyServerConnection), so no threads are dedicated to each peer. The frame
+ * format and the TLS setup are the same as the ones used by ServerConnection, which
+ * is still used by the TTP to connect to the replicas.
+ */
 public class ServersCommunicationLayer extends Thread {
 
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -60,13 +87,14 @@ public class ServersCommunicationLayer extends Thread {
 
 	private final ServerViewController controller;
 	private final LinkedBlockingQueue<SystemMessage> inQueue;
-	private final HashMap<Integer, ServerConnection> connections = new HashMap<>();
+	private final HashMap<Integer, NettyServerConnection> connections = new HashMap<>();
 	private final int me;
 	private boolean doWork = true;
 	private final Lock connectionsLock = new ReentrantLock();
 	private final ReentrantLock waitViewLock = new ReentrantLock();
 	private final List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
 	private final ServiceReplica replica;
+	private final LongAdder inQueueDrops;
 
 	/**
 	 * Tulio A. Ribeiro
@@ -74,16 +102,33 @@ public class ServersCommunicationLayer extends Thread {
 	 */
 	private static final String SECRET = "MySeCreT_2hMOygBwY";
 	private final SecretKey selfPwd;
-	private final SSLServerSocket serverSocketSSLTLS;
+	// key of the MACs this replica addresses to itself, never leaves the process
+	private final SecretKey selfMacKey;
+	private final SslContext serverSslContext;
+	private final SslContext clientSslContext;
+	// same keys and trusted certificates, for connections that are not made through netty
+	private final SSLContext sslContext;
+
+	private static final int bossThreads = 1; /* accepts connections from the other replicas */
+	private static final int connectionBacklog = 100;
+	private static final int connectionTimeoutMsec = 40000; /* (40 seconds) */
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final Bootstrap clientBootstrap;
+	private final NettyServerMessageEncoder encoder = new NettyServerMessageEncoder();
+	private final Channel serverChannel;
 
 	public ServersCommunicationLayer(ServerViewController controller,
 									 LinkedBlockingQueue<SystemMessage> inQueue,
 									 ServiceReplica replica) throws Exception {
 
+		super("Servers Comm. Layer");
+
 		this.controller = controller;
 		this.inQueue = inQueue;
 		this.me = controller.getStaticConf().getProcessId();
 		this.replica = replica;
+		this.inQueueDrops = Metrics.of(me).counter(Metrics.DROPPED_MESSAGES, "reason", "in_queue_full");
 		String ssltlsProtocolVersion = controller.getStaticConf().getSSLTLSProtocolVersion();
 
 		String myAddress;
@@ -126,31 +171,47 @@ public class ServersCommunicationLayer extends Thread {
 		TrustManagerFactory trustMgrFactory = TrustManagerFactory.getInstance(algorithm);
 		trustMgrFactory.init(ks);
 
-		SSLContext context = SSLContext.getInstance(ssltlsProtocolVersion);
-		context.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), new SecureRandom());
-
-		SSLServerSocketFactory serverSocketFactory = context.getServerSocketFactory();
-		this.serverSocketSSLTLS = (SSLServerSocket) serverSocketFactory.createServerSocket(myPort, 100,
-				InetAddress.getByName(myAddress));
-
-		serverSocketSSLTLS.setEnabledCipherSuites(this.controller.getStaticConf().getEnabledCiphers());
-
-		String[] ciphers = serverSocketFactory.getSupportedCipherSuites();
-		for (String cipher : ciphers) {
-			logger.trace("Supported Cipher: {} ", cipher);
-		}
-
-		//serverSocketSSLTLS.setPerformancePreferences(0, 2, 1);
-		//serverSocketSSLTLS.setSoTimeout(connectionTimeoutMsec);
-		serverSocketSSLTLS.setEnableSessionCreation(true);
-		serverSocketSSLTLS.setReuseAddress(true);
-		serverSocketSSLTLS.setNeedClientAuth(true);
-		serverSocketSSLTLS.setWantClientAuth(true);
+		List<String> ciphers = Arrays.asList(this.controller.getStaticConf().getEnabledCiphers());
 
+		this.serverSslContext = SslContextBuilder.forServer(kmf).trustManager(trustMgrFactory)
+				.sslProvider(SslProvider.JDK).protocols(ssltlsProtocolVersion).ciphers(ciphers)
+				.clientAuth(ClientAuth.REQUIRE).build();
+		this.clientSslContext = SslContextBuilder.forClient().keyManager(kmf).trustManager(trustMgrFactory)
+				.sslProvider(SslProvider.JDK).protocols(ssltlsProtocolVersion).ciphers(ciphers).build();
+		this.sslContext = SSLContext.getInstance(ssltlsProtocolVersion);
+		this.sslContext.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), null);
 
 		SecretKeyFactory fac = TOMUtil.getSecretFactory();
 		PBEKeySpec spec = TOMUtil.generateKeySpec(SECRET.toCharArray());
 		selfPwd = fac.generateSecret(spec);
+		selfMacKey = KeyGenerator.getInstance(NettyServerConnection.MAC_ALGORITHM).generateKey();
+
+		this.bossGroup = new NioEventLoopGroup(bossThreads);
+		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+				.option(ChannelOption.SO_REUSEADDR, true)
+				.option(ChannelOption.SO_BACKLOG, connectionBacklog)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					public void initChannel(SocketChannel ch) throws Exception {
+						ch.pipeline().addLast(serverSslContext.newHandler(ch.alloc()));
+						ch.pipeline().addLast(new NettyServerMessageDecoder(true));
+						ch.pipeline().addLast(encoder);
+						ch.pipeline().addLast(new ReplicaHandler(-1));
+					}
+				}).childOption(ChannelOption.SO_KEEPALIVE, true).childOption(ChannelOption.TCP_NODELAY, true);
+
+		this.serverChannel = b.bind(new InetSocketAddress(myAddress, myPort)).sync().channel();
+
+		this.clientBootstrap = new Bootstrap();
+		clientBootstrap.group(workerGroup).channel(NioSocketChannel.class)
+				.option(ChannelOption.SO_KEEPALIVE, true).option(ChannelOption.TCP_NODELAY, true)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
+
+		logger.info("Replica-to-replica transport bound to {}:{}, SSL/TLS protocol version: {}", myAddress, myPort,
+				ssltlsProtocolVersion);
 
 		//Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
 		if (controller.isInCurrentView()) {
@@ -165,10 +226,68 @@ public class ServersCommunicationLayer extends Thread {
 		start();
 	}
 
+	/**
+	 * Opens a connection to the remote replica. After the TLS handshake, this replica
+	 * sends its ID, so that the remote replica knows which connection this is.
+	 *
+	 * @param connection connection to the remote replica
+	 * @return the future of the connect operation
+	 */
+	ChannelFuture connect(NettyServerConnection connection) {
+		int remoteId = connection.getRemoteId();
+
+		Bootstrap b = clientBootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			public void initChannel(SocketChannel ch) throws Exception {
+				SslHandler sslHandler = clientSslContext.newHandler(ch.alloc(),
+						controller.getStaticConf().getHost(remoteId),
+						controller.getStaticConf().getServerToServerPort(remoteId));
+				ch.pipeline().addLast(sslHandler);
+				ch.pipeline().addLast(new NettyServerMessageDecoder(false));
+				ch.pipeline().addLast(encoder);
+				ch.pipeline().addLast(new ReplicaHandler(remoteId));
+			}
+		});
+
+		return b.connect(controller.getStaticConf().getHost(remoteId),
+				controller.getStaticConf().getServerToServerPort(remoteId));
+	}
+
+	/**
+	 * Returns the key derived from the password shared by all replicas. Since every
+	 * replica can compute it, it must not be used to authenticate messages.
+	 */
 	public SecretKey getSecretKey(int id) {
 		if (id == controller.getStaticConf().getProcessId())
 			return selfPwd;
-		else return connections.get(id).getSecretKey();
+		NettyServerConnection conn = connections.get(id);
+		return conn != null ? conn.getSecretKey() : null;
+	}
+
+	/**
+	 * Returns the TLS context of the replica-to-replica connections, for the
+	 * connections between replicas that do not go through this layer (e.g., the
+	 * ones of the chunked state transfer). The enabled protocols and ciphers must
+	 * be set on each socket.
+	 *
+	 * @return The TLS context
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Returns the key of the MACs exchanged with a replica, which only this replica
+	 * and that replica know (see NettyServerConnection)
+	 *
+	 * @param id Id of the replica
+	 * @return The key, or null if no key was agreed on with that replica yet
+	 */
+	public SecretKey getMACKey(int id) {
+		if (id == controller.getStaticConf().getProcessId())
+			return selfMacKey;
+		NettyServerConnection conn = connections.get(id);
+		return conn != null ? conn.getMACKey() : null;
 	}
 
 	//******* EDUARDO BEGIN **************//
@@ -205,12 +324,11 @@ public class ServersCommunicationLayer extends Thread {
 		connectionsLock.unlock();
 	}
 
-	private ServerConnection getConnection(int remoteId) {
+	private NettyServerConnection getConnection(int remoteId) {
 		connectionsLock.lock();
-		ServerConnection ret = this.connections.get(remoteId);
+		NettyServerConnection ret = this.connections.get(remoteId);
 		if (ret == null) {
-			ret = new ServerConnection(controller, null,
-					remoteId, this.inQueue, this.replica);
+			ret = new NettyServerConnection(this, controller, null, remoteId, selfPwd);
 			this.connections.put(remoteId, ret);
 		}
 		connectionsLock.unlock();
@@ -220,15 +338,14 @@ public class ServersCommunicationLayer extends Thread {
 
 
 	public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		byte[] data;
 		try {
-			new ObjectOutputStream(bOut).writeObject(sm);
+			data = SystemMessageCodec.encode(sm);
 		} catch (IOException ex) {
 			logger.error("Failed to serialize message", ex);
+			return;
 		}
 
-		byte[] data = bOut.toByteArray();
-
 		// this shuffling is done to prevent the replica with the lowest ID/index  from being always
 		// the last one receiving the messages, which can result in that replica  to become consistently
 		// delayed in relation to the others.
@@ -252,6 +369,23 @@ public class ServersCommunicationLayer extends Thread {
 		}
 	}
 
+	/**
+	 * Queues a message to be processed by this replica, as if sent by itself,
+	 * without waiting if the in queue is full
+	 *
+	 * @param sm The message
+	 * @return false if the in queue is full and the message was discarded
+	 */
+	public boolean deliverLocally(SystemMessage sm) {
+		sm.authenticated = true;
+		if (!inQueue.offer(sm)) {
+			logger.debug("Inqueue full (my own message discarded).");
+			inQueueDrops.increment();
+			return false;
+		}
+		return true;
+	}
+
 	public void shutdown() {
 
 		logger.info("Shutting down replica sockets");
@@ -266,6 +400,8 @@ public class ServersCommunicationLayer extends Thread {
 				getConnection(activeServer).shutdown();
 			}
 		}
+
+		serverChannel.close();
 	}
 
 	//******* EDUARDO BEGIN **************//
@@ -273,7 +409,7 @@ public class ServersCommunicationLayer extends Thread {
 		waitViewLock.lock();
 		for (PendingConnection pc : pendingConn) {
 			try {
-				establishConnection(pc.s, pc.remoteId);
+				establishConnection(pc.channel, pc.remoteId);
 			} catch (Exception e) {
 				logger.error("Failed to establish connection to " + pc.remoteId, e);
 			}
@@ -285,67 +421,59 @@ public class ServersCommunicationLayer extends Thread {
 	}
 	//******* EDUARDO END **************//
 
+	/**
+	 * The connections are handled by the event loops, this thread only waits for the
+	 * layer to be shut down and releases the event loops afterwards.
+	 */
 	@Override
 	public void run() {
-		while (doWork) {
-			try {
-
-				//System.out.println("Waiting for server connections");
-
-				SSLSocket newSocket = (SSLSocket) serverSocketSSLTLS.accept();
-				setSSLSocketOptions(newSocket);
+		serverChannel.closeFuture().syncUninterruptibly();
 
-				int remoteId = new DataInputStream(newSocket.getInputStream()).readInt();
+		bossGroup.shutdownGracefully();
+		workerGroup.shutdownGracefully().syncUninterruptibly();
 
-				//******* EDUARDO BEGIN **************//
-				if (!this.controller.isInCurrentView() &&
-						(this.controller.getStaticConf().getTTPId() != remoteId)) {
-					waitViewLock.lock();
-					pendingConn.add(new PendingConnection(newSocket, remoteId));
-					waitViewLock.unlock();
-				} else {
-					logger.debug("Trying establish connection with Replica: {}", remoteId);
-					establishConnection(newSocket, remoteId);
-				}
-				//******* EDUARDO END **************//
-
-			} catch (SocketTimeoutException ex) {
-				logger.trace("Server socket timed out, retrying");
-			} catch (SSLHandshakeException sslex) {
-				logger.error("SSL handshake failed", sslex);
-			} catch (IOException ex) {
-				logger.error("Problem during thread execution", ex);
-			}
-		}
+		logger.info("ServerCommunicationLayer stopped.");
+	}
 
-		try {
-			serverSocketSSLTLS.close();
-		} catch (IOException ex) {
-			logger.error("Failed to close server socket", ex);
+	/**
+	 * Called once a remote process that connected to this replica sent its ID
+	 */
+	private void connectionAccepted(Channel channel, int remoteId) {
+		//******* EDUARDO BEGIN **************//
+		if (!this.controller.isInCurrentView() &&
+				(this.controller.getStaticConf().getTTPId() != remoteId)) {
+			// do not read from this connection until the view is known
+			channel.config().setAutoRead(false);
+			waitViewLock.lock();
+			pendingConn.add(new PendingConnection(channel, remoteId));
+			waitViewLock.unlock();
+		} else {
+			logger.debug("Trying establish connection with Replica: {}", remoteId);
+			establishConnection(channel, remoteId);
 		}
-
-		logger.info("ServerCommunicationLayer stopped.");
+		//******* EDUARDO END **************//
 	}
 
 	//******* EDUARDO BEGIN **************//
-	private void establishConnection(SSLSocket newSocket, int remoteId) throws IOException {
+	private void establishConnection(Channel channel, int remoteId) {
 		if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
 			connectionsLock.lock();
 			if (this.connections.get(remoteId) == null) { //This must never happen!!!
 				//first time that this connection is being established
 				//System.out.println("THIS DOES NOT HAPPEN....."+remoteId);
 				this.connections.put(remoteId,
-						new ServerConnection(controller, newSocket, remoteId, inQueue, replica));
+						new NettyServerConnection(this, controller, channel, remoteId, selfPwd));
 			} else {
 				//reconnection
 				logger.debug("ReConnecting with replica: {}", remoteId);
-				this.connections.get(remoteId).reconnect(newSocket);
+				this.connections.get(remoteId).reconnect(channel);
 			}
 			connectionsLock.unlock();
+			channel.config().setAutoRead(true);
 
 		} else {
 			logger.debug("Closing connection with replica: {}", remoteId);
-			newSocket.close();
+			channel.close();
 		}
 	}
 	//******* EDUARDO END **************//
@@ -374,12 +502,97 @@ public class ServersCommunicationLayer extends Thread {
 		int[] activeServers = controller.getCurrentViewAcceptors();
 		for (int activeServer : activeServers) {
 			if (me != activeServer) {
-				str.append(", connections[").append(activeServer).append("]: outQueue=").append(getConnection(activeServer).outQueue);
+				str.append(", connections[").append(activeServer).append("]: outQueue=").append(getConnection(activeServer).getOutQueueSize());
 			}
 		}
 		return str.toString();
 	}
 
+	/**
+	 * Handles the messages received from a remote process, in the event loop of its channel
+	 */
+	private class ReplicaHandler extends ChannelInboundHandlerAdapter {
+
+		private int remoteId;
+
+		/**
+		 * @param remoteId ID of the remote process, or -1 if it is not known yet
+		 * (i.e., the remote process connected to this replica and will send its ID)
+		 */
+		ReplicaHandler(int remoteId) {
+			this.remoteId = remoteId;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			if (remoteId != -1) {
+				// tell the remote replica who we are, sent right after the TLS handshake
+				ctx.writeAndFlush(ctx.alloc().buffer(Integer.BYTES).writeInt(me));
+			}
+			super.channelActive(ctx);
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+			if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+				logger.info("SSL/TLS handshake complete!, Id:{}  ## CipherSuite: {}.", remoteId,
+						ctx.pipeline().get(SslHandler.class).engine().getSession().getCipherSuite());
+			}
+			super.userEventTriggered(ctx, evt);
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (msg instanceof Integer) {
+				remoteId = (Integer) msg;
+				connectionAccepted(ctx.channel(), remoteId);
+				return;
+			}
+
+			SystemMessage sm = (SystemMessage) msg;
+
+			if (sm.getSender() != remoteId) {
+				return;
+			}
+
+			if (sm instanceof KeyExchangeMessage) {
+				NettyServerConnection conn = connections.get(remoteId);
+				if (conn != null) {
+					conn.keyExchangeReceived(ctx.channel(), (KeyExchangeMessage) sm);
+				}
+				return;
+			}
+
+			if (controller.getStaticConf().getTTPId() == remoteId) {
+				// messages indicating the entrance into the system, coming from the TTP
+				if (sm instanceof VMMessage && replica != null) {
+					new Thread(() -> replica.joinMsgReceived((VMMessage) sm), "TTPReceiver for " + remoteId).start();
+				}
+				return;
+			}
+
+			//The verification it is done for the SSL/TLS protocol.
+			sm.authenticated = true;
+
+			if (!inQueue.offer(sm)) {
+				logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+				inQueueDrops.increment();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			if (cause instanceof SSLException || cause.getCause() instanceof SSLException) {
+				logger.error("SSL handshake failed", cause);
+			} else if (cause instanceof IOException) {
+				logger.debug("Closing connection to " + remoteId, cause);
+			} else {
+				logger.error("Problem in connection to " + remoteId, cause);
+			}
+			ctx.close();
+		}
+	}
+
 
 	//******* EDUARDO BEGIN: List entry that stores pending connections,
 	// as a server may accept connections only after learning the current view,
@@ -387,11 +600,11 @@ public class ServersCommunicationLayer extends Thread {
 	// This is for avoiding that the server accepts connectsion from everywhere
 	public static class PendingConnection {
 
-		public SSLSocket s;
+		public Channel channel;
 		public int remoteId;
 
-		public PendingConnection(SSLSocket s, int remoteId) {
-			this.s = s;
+		public PendingConnection(Channel channel, int remoteId) {
+			this.channel = channel;
 			this.remoteId = remoteId;
 		}
 	}
@@ -319,4 +319,28 @@ public class Consensus {
             }
         }
     }
+
+    /**
+     * Drops the values proposed and decided in this consensus instance, keeping
+     * only their hashes. Called once the decision is executed and logged, so that
+     * large batches do not stay in memory until the instance is removed.
+     */
+    public void releasePayload() {
+        if (!decided) {
+            return;
+        }
+        decision.release();
+
+        epochsLock.lock();
+        for (Epoch epoch : epochs.values()) {
+            epoch.propValue = null;
+            epoch.deserializedPropValue = null;
+        }
+        epochsLock.unlock();
+
+        writeSetLock.lock();
+        writeSet = new HashSet<TimestampValuePair>();
+        quorumWrites = null;
+        writeSetLock.unlock();
+    }
 }
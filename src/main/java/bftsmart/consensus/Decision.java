@@ -34,6 +34,7 @@ public class Decision {
     
     private byte[] value = null; // decided value
     private TOMMessage[] deserializedValue = null; // decided value (deserialized)
+    private volatile boolean released = false; // was the decided value released?
     
     //for benchmarking
     public TOMMessage firstMessageProposed = null;
@@ -98,10 +99,14 @@ public class Decision {
     }
     
     /**
-     * Sets the decided value
+     * Returns the decided value. Callers that may access an executed instance must
+     * check isReleased() first (the last executed instance is never released).
+     *
      * @return Decided Value
+     * @throws IllegalStateException if the value was already released
      */
     public byte[] getValue() {
+        checkReleased();
         while (value == null) {
             waitForPropose(); // Eduardo: should have a separate waitForDecision  (works for now, because it is just a sleep)
             value = decisionEpoch.propValue;
@@ -110,6 +115,7 @@ public class Decision {
     }
 
     public TOMMessage[] getDeserializedValue() {
+        checkReleased();
         while (deserializedValue == null) {
             waitForPropose();
             deserializedValue = decisionEpoch.deserializedPropValue;
@@ -125,6 +131,31 @@ public class Decision {
         return cid;
     }
 
+    /**
+     * Informs if the decided value was already released, after being executed
+     * @return True if the value is no longer available, false otherwise
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Drops the references to the decided value, which can no longer be
+     * obtained from this object afterwards
+     */
+    void release() {
+        released = true;
+        value = null;
+        deserializedValue = null;
+        firstMessageProposed = null;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The value decided in consensus " + cid + " was already released");
+        }
+    }
+
     private void waitForPropose() {
         while (decisionEpoch == null ||
                 decisionEpoch.deserializedPropValue == null) {
@@ -17,6 +17,10 @@ package bftsmart.consensus;
 
 import org.apache.commons.codec.binary.Base64;
 
+import bftsmart.communication.SystemMessageCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -124,6 +128,28 @@ public class TimestampValuePair implements Externalizable {
         timestamp = in.readInt();
         value = (byte[]) in.readObject();
     }
+
+    /**
+     * Writes this pair in the binary format exchanged by the leader change protocol
+     * @param out Output to write to
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+
+        out.writeInt(timestamp);
+        SystemMessageCodec.writeBytes(out, value);
+    }
+
+    /**
+     * Reads a pair written by wExternal
+     * @param in Input to read from
+     * @throws IOException
+     */
+    public void rExternal(DataInput in) throws IOException {
+
+        timestamp = in.readInt();
+        value = SystemMessageCodec.readBytes(in);
+    }
     
     private String str(byte[] obj) {
         if(obj == null) {
@@ -15,11 +15,15 @@ limitations under the License.
 */
 package bftsmart.consensus.messages;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 
 
 
@@ -76,70 +80,110 @@ public class ConsensusMessage extends SystemMessage {
 
     }
 
-    // Implemented method of the Externalizable interface
+    // Proof encodings
+    private static final byte NO_PROOF = 0;
+    private static final byte SIGNATURE_PROOF = 1; // proof is a signature (byte[])
+    private static final byte ACCEPTS_PROOF = 2; // proof is a set of ACCEPT messages (decision forwarding)
+    private static final byte SERIALIZED_PROOF = 3; // any other object, using Java serialization
+    private static final byte MAC_VECTOR_PROOF = 4; // proof is a MAC vector (HashMap<Integer, byte[]>)
+
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException {
+    public void wExternal(DataOutput out) throws IOException {
 
-        super.writeExternal(out);
+        super.wExternal(out);
 
         out.writeInt(number);
         out.writeInt(epoch);
         out.writeInt(paxosType);
 
-        if(value == null) {
+        SystemMessageCodec.writeBytes(out, value);
 
-            out.writeInt(-1);
+        if (proof == null) {
 
-        } else {
+            out.writeByte(NO_PROOF);
 
-            out.writeInt(value.length);
-            out.write(value);
+        } else if (proof instanceof byte[]) {
 
-        }
+            out.writeByte(SIGNATURE_PROOF);
+            SystemMessageCodec.writeBytes(out, (byte[]) proof);
 
-        if(this.proof != null) {
+        } else if (proof instanceof HashSet) {
 
-            out.writeBoolean(true);
-            out.writeObject(proof);
+            HashSet<?> accepts = (HashSet<?>) proof;
 
-        }
-        
-        else {
-            out.writeBoolean(false);
-        }
+            out.writeByte(ACCEPTS_PROOF);
+            out.writeInt(accepts.size());
 
-    }
+            for (Object accept : accepts) {
+                ((ConsensusMessage) accept).wExternal(out);
+            }
 
-    // Implemented method of the Externalizable interface
-    @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        } else if (proof instanceof HashMap) {
 
-        super.readExternal(in);
+            HashMap<?, ?> macVector = (HashMap<?, ?>) proof;
 
-        number = in.readInt();
-        epoch = in.readInt();
-        paxosType = in.readInt();
+            out.writeByte(MAC_VECTOR_PROOF);
+            out.writeInt(macVector.size());
 
-        int toRead = in.readInt();
+            for (Map.Entry<?, ?> entry : macVector.entrySet()) {
+                out.writeInt((Integer) entry.getKey());
+                SystemMessageCodec.writeBytes(out, (byte[]) entry.getValue());
+            }
 
-        if(toRead != -1) {
+        } else {
 
-            value = new byte[toRead];
+            out.writeByte(SERIALIZED_PROOF);
+            SystemMessageCodec.writeObject(out, proof);
+        }
 
-            do{
+    }
 
-                toRead -= in.read(value, value.length-toRead, toRead);
+    @Override
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
 
-            } while(toRead > 0);
+        super.rExternal(in);
 
-        }
+        number = in.readInt();
+        epoch = in.readInt();
+        paxosType = in.readInt();
 
-        boolean asProof = in.readBoolean();
-        if (asProof) {
-            
-            proof = in.readObject();
+        value = SystemMessageCodec.readBytes(in);
+
+        byte proofType = in.readByte();
+
+        switch (proofType) {
+            case NO_PROOF:
+                proof = null;
+                break;
+            case SIGNATURE_PROOF:
+                proof = SystemMessageCodec.readBytes(in);
+                break;
+            case ACCEPTS_PROOF:
+                int size = in.readInt();
+                HashSet<ConsensusMessage> accepts = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    ConsensusMessage accept = new ConsensusMessage();
+                    accept.rExternal(in);
+                    accepts.add(accept);
+                }
+                proof = accepts;
+                break;
+            case MAC_VECTOR_PROOF:
+                int entries = in.readInt();
+                HashMap<Integer, byte[]> macVector = new HashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    int id = in.readInt();
+                    macVector.put(id, SystemMessageCodec.readBytes(in));
+                }
+                proof = macVector;
+                break;
+            case SERIALIZED_PROOF:
+                proof = SystemMessageCodec.readObject(in);
+                break;
+            default:
+                throw new IOException("Unknown proof type " + proofType);
         }
-        
+
     }
 
     /**
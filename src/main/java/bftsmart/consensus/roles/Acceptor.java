@@ -15,22 +15,33 @@ limitations under the License.
 */
 package bftsmart.consensus.roles;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
 import bftsmart.consensus.Decision;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import bftsmart.consensus.messages.ConsensusMessage;
@@ -39,6 +50,9 @@ import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.ExecutionManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.Metrics;
+import bftsmart.tom.util.DigestBatch;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -59,6 +73,11 @@ public final class Acceptor {
 	private TOMLayer tomLayer; // TOM layer
 	private ServerViewController controller;
 
+	// latency of the phases of the consensus instances
+	private final Histogram proposeLatency;
+	private final Histogram writeLatency;
+	private final Histogram acceptLatency;
+
 	// thread pool used to paralelise creation of consensus proofs
 	private ExecutorService proofExecutor = null;
 
@@ -67,6 +86,28 @@ public final class Acceptor {
 	 */
 	private PrivateKey privKey;
 
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	// if true, ACCEPT messages carry a MAC vector instead of a signature
+	private final boolean macProofs;
+	private final ThreadLocal<Mac> macEngine = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance(MAC_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Failed to get MAC engine", e);
+		}
+	});
+
+	// ACCEPT messages signed on demand by their senders to make MAC-vector proofs
+	// verifiable by any replica (see signAccepts), indexed by consensus id and sender
+	private static final int MAX_SIGNED_CIDS = 256;
+	private final LinkedHashMap<Integer, HashMap<Integer, ConsensusMessage>> signedAccepts = new LinkedHashMap<Integer, HashMap<Integer, ConsensusMessage>>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, HashMap<Integer, ConsensusMessage>> eldest) {
+			return size() > MAX_SIGNED_CIDS;
+		}
+	};
+
 	/**
 	 * Creates a new instance of Acceptor.
 	 * 
@@ -82,6 +123,12 @@ public final class Acceptor {
 
 		/* Tulio Ribeiro */
 		this.privKey = controller.getStaticConf().getPrivateKey();
+		this.macProofs = controller.getStaticConf().useMACAcceptProofs();
+
+		Metrics metrics = Metrics.of(me);
+		this.proposeLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_PROPOSE);
+		this.writeLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_WRITE);
+		this.acceptLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_ACCEPT);
 
 		// use either the same number of Netty workers threads if specified in the
 		// configuration
@@ -124,9 +171,19 @@ public final class Acceptor {
 	 * @param msg Paxos messages delivered by the communication layer
 	 */
 	public final void deliver(ConsensusMessage msg) {
+		if (macProofs && msg.getType() == MessageFactory.ACCEPT && msg.getProof() instanceof byte[]) {
+			// signed copy of an ACCEPT message that was sent with a MAC vector
+			signedAcceptReceived(msg);
+			return;
+		}
 		if (executionManager.checkLimits(msg)) {
 			logger.debug("Processing paxos msg with id " + msg.getNumber());
 			processMessage(msg);
+
+			// proposes for the next consensus instances in the pipeline might be waiting for this one
+			if (msg.getType() == MessageFactory.PROPOSE && tomLayer.getPipelineDepth() > 1) {
+				tomLayer.processOutOfContext();
+			}
 		} else {
 			logger.debug("Out of context msg with id " + msg.getNumber());
 			tomLayer.processOutOfContext();
@@ -188,7 +245,16 @@ public final class Acceptor {
 		logger.debug("PROPOSE received from:{}, for consensus cId:{}, I am:{}", msg.getSender(), cid, me);
 		if (msg.getSender() == executionManager.getCurrentLeader() // Is the replica the leader?
 				&& epoch.getTimestamp() == 0 && ts == ets && ets == 0) { // Is all this in epoch 0?
-			executePropose(epoch, msg.getValue());
+			byte[] value = msg.getValue();
+			if (epoch.propValue == null && DigestBatch.isDigestBatch(value)) {
+				// the batch is rebuilt from the requests received from the clients
+				value = tomLayer.getProposalResolver().resolve(msg);
+				if (value == null) {
+					logger.debug("Waiting for the missing requests of the PROPOSE for cId:{}", cid);
+					return;
+				}
+			}
+			executePropose(epoch, value);
 		} else {
 			logger.debug("Propose received is not from the expected leader");
 		}
@@ -207,8 +273,12 @@ public final class Acceptor {
 		long consensusStartTime = System.nanoTime();
 
 		if (epoch.propValue == null) { // only accept one propose per epoch
+			// a large value is hashed by another thread while it is deserialized
+			CompletableFuture<byte[]> valueHash = tomLayer.computeHashAsync(value);
+			TOMMessage[] requests = tomLayer.checkProposedValue(value, true);
+
 			epoch.propValue = value;
-			epoch.propValueHash = tomLayer.computeHash(value);
+			epoch.propValueHash = valueHash.join();
 
 			/*** LEADER CHANGE CODE ********/
 			epoch.getConsensus().addWritten(value);
@@ -217,10 +287,10 @@ public final class Acceptor {
 			/*****************************************/
 
 			// start this consensus if it is not already running
-			if (cid == tomLayer.getLastExec() + 1) {
+			if (cid > tomLayer.getLastExec() && cid <= tomLayer.getLastExec() + tomLayer.getPipelineDepth()) {
 				tomLayer.setInExec(cid);
 			}
-			epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
+			epoch.deserializedPropValue = requests;
 
 			if (epoch.deserializedPropValue != null && !epoch.isWriteSent()) {
 				if (epoch.getConsensus().getDecision().firstMessageProposed == null) {
@@ -249,21 +319,13 @@ public final class Acceptor {
 					logger.debug("WRITE computed for cId:{}, I am:{}", cid, me);
 
 				} else {
-					epoch.setAccept(me, epoch.propValueHash);
 					epoch.getConsensus().getDecision().firstMessageProposed.writeSentTime = System.nanoTime();
-					epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
-
-					/**** LEADER CHANGE CODE! ******/
-					logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to "
-							+ epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
-					epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
-					/*****************************************/
 
-					communication.send(this.controller.getCurrentViewOtherAcceptors(),
-							factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
-
-					epoch.acceptSent();
-					computeAccept(cid, epoch, epoch.propValueHash);
+					if (canSendAccept(cid)) {
+						acceptProposedValue(cid, epoch);
+					} else {
+						logger.debug("Holding ACCEPT for cId:{} until consensus {} is decided", cid, cid - 1);
+					}
 				}
 				executionManager.processOutOfContext(epoch.getConsensus());
 
@@ -274,6 +336,69 @@ public final class Acceptor {
 		}
 	}
 
+	/**
+	 * Sends the ACCEPT for the value proposed in an epoch without waiting for a
+	 * quorum of WRITEs (used in the crash fault model only)
+	 *
+	 * @param cid   Consensus ID of the epoch
+	 * @param epoch Epoch in which the value was proposed
+	 */
+	private void acceptProposedValue(int cid, Epoch epoch) {
+		epoch.setAccept(me, epoch.propValueHash);
+		epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
+
+		/**** LEADER CHANGE CODE! ******/
+		logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to "
+				+ epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
+		epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
+		/*****************************************/
+
+		communication.send(this.controller.getCurrentViewOtherAcceptors(),
+				factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
+
+		epoch.acceptSent();
+		computeAccept(cid, epoch, epoch.propValueHash);
+	}
+
+	/**
+	 * Informs if this replica can send the ACCEPT for a consensus. When several
+	 * consensus instances are pipelined, the ACCEPT for an instance is only sent
+	 * after all the previous instances are decided, so that any value decided by
+	 * a quorum is always carried over by the synchronization phase of the leader
+	 * change protocol (which only handles the instance after the last decided one).
+	 *
+	 * @param cid Consensus ID
+	 * @return true if all consensus instances before cid are decided
+	 */
+	private boolean canSendAccept(int cid) {
+		return cid <= tomLayer.getLastExec() + 1;
+	}
+
+	/**
+	 * Called by the delivery thread when all consensus instances before cid are
+	 * decided. If this replica was holding the ACCEPT for cid (because it was
+	 * pipelined), the ACCEPT is sent now.
+	 *
+	 * @param cid Consensus ID
+	 */
+	public void processHeldAccept(int cid) {
+		Consensus consensus = executionManager.getConsensus(cid);
+
+		consensus.lock.lock();
+		Epoch epoch = consensus.getLastEpoch();
+		if (epoch != null && epoch.propValueHash != null && epoch.deserializedPropValue != null
+				&& !epoch.isAcceptSent() && !consensus.isDecided()) {
+
+			logger.debug("Processing held ACCEPT for cId:{}", cid);
+			if (controller.getStaticConf().isBFT()) {
+				computeWrite(cid, epoch, epoch.propValueHash);
+			} else {
+				acceptProposedValue(cid, epoch);
+			}
+		}
+		consensus.lock.unlock();
+	}
+
 	/**
 	 * Called when a WRITE message is received
 	 *
@@ -308,6 +433,11 @@ public final class Acceptor {
 
 			if (!epoch.isAcceptSent()) {
 
+				if (!canSendAccept(cid)) {
+					logger.debug("Holding ACCEPT for cId:{} until consensus {} is decided", cid, cid - 1);
+					return;
+				}
+
 				logger.debug("Sending ACCEPT message, cId:{}, I am:{}", cid, me);
 
 				/**** LEADER CHANGE CODE! ******/
@@ -380,29 +510,213 @@ public final class Acceptor {
 	 * Create a cryptographic proof for a consensus message
 	 * 
 	 * This method modifies the consensus message passed as an argument, so that it
-	 * contains a cryptographic proof.
+	 * contains a cryptographic proof. The proof is either a signature or a MAC
+	 * vector, depending on system.totalordermulticast.accept_proof.
 	 * 
 	 * @param cm   The consensus message to which the proof shall be set
 	 * @param msgs tom messages
 	 */
 	private void insertProof(ConsensusMessage cm, TOMMessage[] msgs) {
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		byte[] data = new byte[0];
 		try {
-			ObjectOutputStream obj = new ObjectOutputStream(bOut);
-			obj.writeObject(cm);
-			obj.flush();
-			bOut.flush();
+			data = SystemMessageCodec.encode(cm);
 		} catch (IOException ex) {
 			logger.error("Failed to serialize consensus message", ex);
 		}
 
-		byte[] data = bOut.toByteArray();
+		if (macProofs) {
+			HashMap<Integer, byte[]> macVector = new HashMap<>();
+			Mac mac = macEngine.get();
+
+			for (int id : controller.getCurrentViewProcesses()) {
+				SecretKey key = communication.getMACKey(id);
+				if (key == null) {
+					logger.debug("No key shared with replica {}, leaving it out of the MAC vector", id);
+					continue;
+				}
+				try {
+					mac.init(key);
+					macVector.put(id, mac.doFinal(data));
+				} catch (InvalidKeyException ex) {
+					logger.error("Failed to generate MAC for replica " + id, ex);
+				}
+			}
+
+			cm.setProof(macVector);
+		} else {
+			byte[] signature = TOMUtil.signMessage(privKey, data);
+
+			cm.setProof(signature);
+		}
+	}
+
+	/**
+	 * Verifies the proof of an ACCEPT message, as created by insertProof() at the
+	 * replica that sent it. If the proof is a MAC vector, only the MAC addressed to
+	 * this replica is verified.
+	 *
+	 * @param accept The ACCEPT message
+	 * @return true if the proof is valid
+	 */
+	public boolean hasValidProof(ConsensusMessage accept) {
+		ConsensusMessage cm = new ConsensusMessage(accept.getType(), accept.getNumber(), accept.getEpoch(),
+				accept.getSender(), accept.getValue());
+
+		byte[] data;
+		try {
+			data = SystemMessageCodec.encode(cm);
+		} catch (IOException ex) {
+			logger.error("Could not serialize message", ex);
+			return false;
+		}
+
+		Object proof = accept.getProof();
+
+		if (proof instanceof byte[]) { // proof is a signature
+			PublicKey pubKey = controller.getStaticConf().getPublicKey(accept.getSender());
+			return TOMUtil.verifySignature(pubKey, data, (byte[]) proof);
+
+		} else if (proof instanceof HashMap) { // proof is a MAC vector
+			byte[] recvMAC = ((HashMap<Integer, byte[]>) proof).get(me);
+			SecretKey key = communication.getMACKey(accept.getSender());
+			if (recvMAC == null || key == null) {
+				return false;
+			}
+
+			Mac mac = macEngine.get();
+			try {
+				mac.init(key);
+				return MessageDigest.isEqual(recvMAC, mac.doFinal(data));
+			} catch (InvalidKeyException ex) {
+				logger.error("Failed to verify MAC from replica " + accept.getSender(), ex);
+				return false;
+			}
+		}
+
+		logger.debug("Proof of message from {} is neither a signature nor a MAC vector", accept.getSender());
+		return false;
+	}
+
+	/**
+	 * Signs the ACCEPT messages this replica sent in the decided consensus instances
+	 * from 'from' to 'to', and sends the signed copies to the other replicas. A MAC
+	 * vector can only be verified by the replicas it is addressed to, so the ACCEPT
+	 * messages are only signed when their proofs must be verified by third parties,
+	 * i.e., when a leader change starts.
+	 *
+	 * @param from First consensus id
+	 * @param to Last consensus id
+	 */
+	public void signAccepts(int from, int to) {
+		if (!macProofs) {
+			return;
+		}
+		int[] targets = controller.getCurrentViewOtherAcceptors();
+		for (int cid = Math.max(0, from); cid <= to; cid++) {
+			Consensus consensus = executionManager.findConsensus(cid);
+			if (consensus == null || !consensus.isDecided()) {
+				continue;
+			}
+
+			Set<ConsensusMessage> proof = null;
+			consensus.lock.lock();
+			Epoch epoch = consensus.getDecisionEpoch();
+			if (epoch != null) {
+				proof = new HashSet<>(epoch.getProof());
+			}
+			consensus.lock.unlock();
+
+			if (proof != null) {
+				sendSignedAccept(proof, targets);
+			}
+		}
+	}
 
-		// Always sign a consensus proof.
-		byte[] signature = TOMUtil.signMessage(privKey, data);
+	/**
+	 * Signs the ACCEPT message this replica sent, if it is part of the given proof,
+	 * and sends the signed copy to the specified replicas (see signAccepts)
+	 *
+	 * @param proof Proof of a decided consensus instance
+	 * @param targets Replicas to which the signed ACCEPT is sent
+	 */
+	public void sendSignedAccept(Set<ConsensusMessage> proof, int[] targets) {
+		if (!macProofs || proof == null) {
+			return;
+		}
+		for (ConsensusMessage accept : proof) {
+			if (accept.getSender() != me || accept.getType() != MessageFactory.ACCEPT) {
+				continue;
+			}
 
-		cm.setProof(signature);
+			ConsensusMessage cm = new ConsensusMessage(MessageFactory.ACCEPT, accept.getNumber(), accept.getEpoch(),
+					me, accept.getValue());
+			try {
+				cm.setProof(TOMUtil.signMessage(privKey, SystemMessageCodec.encode(cm)));
+			} catch (IOException ex) {
+				logger.error("Failed to serialize consensus message", ex);
+				return;
+			}
 
+			addSignedAccept(cm);
+			communication.getServersConn().send(targets, cm, true);
+			return;
+		}
+	}
+
+	/**
+	 * Called when a signed copy of an ACCEPT message is received
+	 *
+	 * @param msg The signed ACCEPT message
+	 */
+	private void signedAcceptReceived(ConsensusMessage msg) {
+		if (!hasValidProof(msg)) {
+			logger.warn("Invalid signature in ACCEPT from {} for consensus {}", msg.getSender(), msg.getNumber());
+			return;
+		}
+		logger.debug("Signed ACCEPT from {} for consensus {}", msg.getSender(), msg.getNumber());
+		addSignedAccept(msg);
+	}
+
+	private void addSignedAccept(ConsensusMessage msg) {
+		synchronized (signedAccepts) {
+			signedAccepts.computeIfAbsent(msg.getNumber(), cid -> new HashMap<>()).put(msg.getSender(), msg);
+		}
+	}
+
+	/**
+	 * Returns the given consensus proof, in which the ACCEPT messages authenticated
+	 * with MAC vectors are replaced by the signed copies received from their senders
+	 * (see signAccepts), so that the proof can be verified by any replica
+	 *
+	 * @param cid Consensus id
+	 * @param proof Proof of the consensus instance
+	 * @return The proof, with the signed ACCEPT messages received for it
+	 */
+	public Set<ConsensusMessage> withSignedAccepts(int cid, Set<ConsensusMessage> proof) {
+		if (!macProofs || proof == null) {
+			return proof;
+		}
+
+		HashMap<Integer, ConsensusMessage> signed;
+		synchronized (signedAccepts) {
+			signed = signedAccepts.get(cid);
+			if (signed == null) {
+				return proof;
+			}
+			signed = new HashMap<>(signed);
+		}
+
+		HashSet<ConsensusMessage> result = new HashSet<>(proof.size());
+		for (ConsensusMessage accept : proof) {
+			ConsensusMessage s = signed.get(accept.getSender());
+			if (s != null && !(accept.getProof() instanceof byte[]) && s.getEpoch() == accept.getEpoch()
+					&& Arrays.equals(s.getValue(), accept.getValue())) {
+				result.add(s);
+			} else {
+				result.add(accept);
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -453,7 +767,10 @@ public final class Acceptor {
 
 		logger.debug("Forwarding Decision necessary? for cid " + cid);
 
-		if (targets != null &&
+		if (epoch.getConsensus().getDecision().isReleased()) {
+			// the decided value was already executed and dropped
+			logger.debug("Value decided in consensus " + cid + " was already released, not forwarding it");
+		} else if (targets != null &&
 				executionManager.getCurrentLeader() != controller.getStaticConf().getProcessId()) {  // Forwarding is necessary if toForward set is non-empty (non null)
 
 			// Create the "FORWARD-DECISION" message
@@ -476,8 +793,21 @@ public final class Acceptor {
 	 * @param epoch Epoch at which the decision is made
 	 */
 	private void decide(Epoch epoch) {
-		if (epoch.getConsensus().getDecision().firstMessageProposed != null)
-			epoch.getConsensus().getDecision().firstMessageProposed.decisionTime = System.nanoTime();
+		TOMMessage first = epoch.getConsensus().getDecision().firstMessageProposed;
+		if (first != null) {
+			first.decisionTime = System.nanoTime();
+
+			// without a WRITE phase (CFT), the proposal stage ends when the ACCEPT is sent
+			if (first.consensusStartTime > 0 && first.acceptSentTime > 0) {
+				if (first.writeSentTime > 0) {
+					proposeLatency.record(first.writeSentTime - first.consensusStartTime);
+					writeLatency.record(first.acceptSentTime - first.writeSentTime);
+				} else {
+					proposeLatency.record(first.acceptSentTime - first.consensusStartTime);
+				}
+				acceptLatency.record(first.decisionTime - first.acceptSentTime);
+			}
+		}
 
 		epoch.getConsensus().decided(epoch, true);
 	}
@@ -487,6 +817,11 @@ public final class Acceptor {
 		int cid = epoch.getConsensus().getId();
 		logger.debug("Forwarding Decision for cid " + cid);
 
+		if (epoch.getConsensus().getDecision().isReleased()) {
+			logger.debug("Value decided in consensus " + cid + " was already released, not forwarding it");
+			return;
+		}
+
 		// Create the "FORWARD-DECISION" message
 		byte[] value = epoch.getConsensus().getDecision().getValue();
 		ConsensusMessage forwardDecision = factory.createForwardDecision(cid, epoch.getTimestamp(), value);
@@ -528,8 +863,11 @@ public final class Acceptor {
 			logger.debug(">>> >> >>  > Consensus " + cid  + " is already decided ");
 			Decision decision = epoch.getConsensus().getDecision();
 
-			// Dont forward a decision twice for the same requester in the same consensus instance
-			if ( !executionManager.hasBeenForwardedAlready(msg.getEpoch(), msg.getSender())) {
+			if (decision.isReleased()) {
+				// the decided value was already executed and dropped
+				logger.debug("Value decided in consensus " + cid + " was already released, not forwarding it");
+			} else if ( !executionManager.hasBeenForwardedAlready(msg.getEpoch(), msg.getSender())) {
+				// Dont forward a decision twice for the same requester in the same consensus instance
 				logger.debug(">>> >> >> >> > Send FWD_DECISION for epoch " + epoch.getTimestamp() + " to replica " + msg.getSender());
 
 				byte[] value = decision.getValue();
@@ -615,35 +953,18 @@ public final class Acceptor {
 			int numberOfValidAccepts = 0;
 			HashSet<Integer> replicaID_already_counted = new HashSet<>();
 
-			// For each ACCEPT message contained in the proof, check if the signature is correct
+			// For each ACCEPT message contained in the proof, check if its signature or MAC is correct
 			for (ConsensusMessage accept : proof) {
 
-				ConsensusMessage cm = new ConsensusMessage(accept.getType(), accept.getNumber(), accept.getEpoch(),
-						 accept.getSender(), accept.getValue());
-
-				ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-				try {
-					new ObjectOutputStream(bOut).writeObject(cm);
-				} catch (IOException ex) {
-					logger.error("ACCEPTOR.verifyDecision: Could not serialize message", ex);
-				}
-
-				byte[] data = bOut.toByteArray();
-				byte[] signature = (byte[]) accept.getProof();
-
-				logger.debug("ACCEPTOR.verifyDecision: Proof made of Signatures");
-
-				// Verify the signature of the ACCEPT
-				PublicKey pubKey = controller.getStaticConf().getPublicKey(accept.getSender());
-				boolean validSignature = TOMUtil.verifySignature(pubKey, data, signature);
+				boolean validProof = hasValidProof(accept);
 
-				if (!validSignature) {
-					logger.warn("ACCEPTOR.verifyDecision:  Signature is invalid!");
+				if (!validProof) {
+					logger.warn("ACCEPTOR.verifyDecision: Proof of ACCEPT from " + accept.getSender() + " is invalid!");
 				}
 
 				// The ACCEPT is valid and will be counted iff
 				if (Arrays.equals(accept.getValue(), decisionHash)    // decision hash equals digest in ACCEPT
-						&& validSignature 							  // ACCEPT's signature was successfully verified
+						&& validProof 								  // ACCEPT's signature or MAC was successfully verified
 						&& !replicaID_already_counted.contains(accept.getSender())) { // unique: a replica may vote only once!
 
 					replicaID_already_counted.add(accept.getSender());
@@ -654,7 +975,7 @@ public final class Acceptor {
 			// A quorum certificate of valid ACCEPTs makes a decision valid
 			boolean decisionIsValid = numberOfValidAccepts > controller.getQuorum();
 			if(!decisionIsValid) {
-				logger.warn("ACCEPTOR.verifyDecision: Too few signed accepts received; # " + numberOfValidAccepts + " " + proof);
+				logger.warn("ACCEPTOR.verifyDecision: Too few authenticated accepts received; # " + numberOfValidAccepts + " " + proof);
 			}
 			return  decisionIsValid;
 		}
@@ -15,9 +15,15 @@ limitations under the License.
 */
 package bftsmart.consensus.roles;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.DigestBatch;
+import bftsmart.tom.util.HashedBatch;
+import bftsmart.tom.util.TOMUtil;
 
 /**
  * This class represents the proposer role in the consensus protocol.
@@ -27,6 +33,7 @@ public class Proposer {
     private MessageFactory factory; // Factory for PaW messages
     private ServerCommunicationSystem communication; // Replicas comunication system
     private ServerViewController controller;
+    private MessageDigest md; // used to build digest-only proposals (null if disabled)
 
     /**
      * Creates a new instance of Proposer
@@ -41,6 +48,33 @@ public class Proposer {
         this.communication = communication;
         this.factory = factory;
         this.controller = controller;
+
+        if (controller.getStaticConf().useDigestProposals()) {
+            try {
+                this.md = TOMUtil.getHashEngine();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Failed to create the request hash engine", e);
+            }
+        }
+    }
+
+    /**
+     * This method is called by the TOMLayer to start the consensus instance
+     * with a batch it built.
+     *
+     * @param cid ID for the consensus instance to be started
+     * @param batch Value to be proposed, with its hash and digest form
+     */
+    public void startConsensus(int cid, HashedBatch batch) {
+        if (md != null && batch.getDigestForm() != null) {
+            // the digests of the requests were computed while the batch was built
+            communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                    factory.createPropose(cid, 0, batch.getDigestForm()));
+            communication.send(new int[] { controller.getStaticConf().getProcessId() },
+                    factory.createPropose(cid, 0, batch.getValue()));
+            return;
+        }
+        startConsensus(cid, batch.getValue());
     }
 
     /**
@@ -51,6 +85,17 @@ public class Proposer {
      * @param value Value to be proposed
      */
     public void startConsensus(int cid, byte[] value) {
+        if (md != null) {
+            // the other replicas only receive the digests of the requests, which they
+            // already received from the clients
+            byte[] digests = DigestBatch.fromBatch(value,
+                    controller.getStaticConf().getUseSignatures() == 1, md);
+            communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                    factory.createPropose(cid, 0, digests));
+            communication.send(new int[] { controller.getStaticConf().getProcessId() },
+                    factory.createPropose(cid, 0, value));
+            return;
+        }
         //******* EDUARDO BEGIN **************//
         communication.send(this.controller.getCurrentViewAcceptors(),
                 factory.createPropose(cid, 0, value));
@@ -15,11 +15,12 @@ limitations under the License.
 */
 package bftsmart.reconfiguration;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 
 /**
  *
@@ -41,18 +42,18 @@ public class VMMessage extends SystemMessage{
     }
      
      
-      // Implemented method of the Externalizable interface
+      // Implemented method of the replica wire format (see SystemMessageCodec)
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException {
-        super.writeExternal(out);
-        out.writeObject(reply);
+    public void wExternal(DataOutput out) throws IOException {
+        super.wExternal(out);
+        SystemMessageCodec.writeObject(out, reply);
     }
 
-    // Implemented method of the Externalizable interface
+    // Implemented method of the replica wire format (see SystemMessageCodec)
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        super.readExternal(in);
-        this.reply = (ReconfigureReply) in.readObject();
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+        super.rExternal(in);
+        this.reply = (ReconfigureReply) SystemMessageCodec.readObject(in);
     }
 
     public ReconfigureReply getReply() {
@@ -31,10 +31,15 @@ public class TOMConfiguration extends Configuration {
     protected int f;
     protected int requestTimeout;
     protected int batchTimeout;
+    protected boolean adaptiveBatching;
+    protected int latencyTarget;
     protected int tomPeriod;
     protected int paxosHighMark;
     protected int revivalHighMark;
     protected int timeoutHighMark;
+    protected int pipelineDepth;
+    protected boolean macAcceptProofs;
+    protected boolean digestProposals;
     protected int replyVerificationTime;
     protected int maxBatchSize;
     protected int maxBatchSizeInBytes;
@@ -46,6 +51,7 @@ public class TOMConfiguration extends Configuration {
     private int numNIOThreads;
     private int useSignatures;
     private boolean stateTransferEnabled;
+    private int stateChunkSize;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
     private int useControlFlow;
@@ -58,13 +64,24 @@ public class TOMConfiguration extends Configuration {
     private boolean logToDisk;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private int checkpointCompaction;
+    private int retainedDecisions;
     private boolean isBFT;
     private int numRepliers;
+    private int readOnlyThreads;
+    private int readOnlyMaxPending;
+    private boolean metricsJmx;
+    private int metricsHttpPort;
     private int numNettyWorkers;
     private boolean sameBatchSize;
     private boolean fairbatch;
     private String bindAddress;
     private int clientInvokeOrderedTimeout;
+    private int clientBatchMaxOperations;
+    private int clientBatchMaxBytes;
+    private int clientBatchLinger;
+    private int clientAsyncWindow;
+    private boolean clientSharedRuntime;
 
     /* Tulio Ribeiro*/
     //private Boolean ssltls=true;
@@ -126,6 +143,19 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.totalordermulticast.adaptive_batching");
+            adaptiveBatching = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.latency_target");
+            if (s == null) {
+                latencyTarget = 100;
+            } else {
+                latencyTarget = Integer.parseInt(s);
+                if (latencyTarget < 1) {
+                    latencyTarget = 1;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.highMark");
             if (s == null) {
                 paxosHighMark = 10000;
@@ -156,6 +186,30 @@ public class TOMConfiguration extends Configuration {
                 }
             }
             
+            s = (String) configs.remove("system.totalordermulticast.pipeline_depth");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                }
+            }
+            
+            s = (String) configs.remove("system.totalordermulticast.accept_proof");
+            if (s == null) {
+                macAcceptProofs = false;
+            } else {
+                macAcceptProofs = s.equalsIgnoreCase("macs");
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.digest_proposals");
+            if (s == null) {
+                digestProposals = false;
+            } else {
+                digestProposals = Boolean.parseBoolean(s);
+            }
+            
             s = (String) configs.remove("system.totalordermulticast.maxbatchsize");
             if (s == null) {
                 maxBatchSize = 100;
@@ -215,6 +269,13 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_chunk_size");
+            if (s == null) {
+                stateChunkSize = 0;
+            } else {
+                stateChunkSize = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -329,6 +390,23 @@ public class TOMConfiguration extends Configuration {
                     syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.checkpoint_compaction");
+            if (s == null) {
+                checkpointCompaction = 8;
+            } else {
+                checkpointCompaction = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.retained_decisions");
+            if (s == null) {
+                retainedDecisions = 16;
+            } else {
+                retainedDecisions = Integer.parseInt(s);
+                if (retainedDecisions < 1) {
+                    retainedDecisions = 1;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -345,7 +423,31 @@ public class TOMConfiguration extends Configuration {
             } else {
                 numRepliers = Integer.parseInt(s);
             }
+
+            s = (String) configs.remove("system.optimizations.readonly_threads");
+            if (s == null) {
+                readOnlyThreads = 0;
+            } else {
+                readOnlyThreads = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.optimizations.readonly_max_pending");
+            if (s == null) {
+                readOnlyMaxPending = 1000;
+            } else {
+                readOnlyMaxPending = Integer.parseInt(s);
+            }
  
+            s = (String) configs.remove("system.metrics.jmx");
+            metricsJmx = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.metrics.http_port");
+            if (s == null) {
+                metricsHttpPort = -1;
+            } else {
+                metricsHttpPort = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.numnettyworkers");
             if (s == null) {
                 numNettyWorkers = 0;
@@ -432,6 +534,41 @@ public class TOMConfiguration extends Configuration {
                 clientInvokeOrderedTimeout = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.client.batch_max_operations");
+            if (s == null) {
+                clientBatchMaxOperations = 128;
+            } else {
+                clientBatchMaxOperations = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.client.batch_max_bytes");
+            if (s == null) {
+                clientBatchMaxBytes = 65536;
+            } else {
+                clientBatchMaxBytes = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.client.batch_linger");
+            if (s == null) {
+                clientBatchLinger = 0;
+            } else {
+                clientBatchLinger = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.client.async_window");
+            if (s == null) {
+                clientAsyncWindow = 256;
+            } else {
+                clientAsyncWindow = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.client.shared_runtime");
+            if (s == null) {
+                clientSharedRuntime = false;
+            } else {
+                clientSharedRuntime = Boolean.parseBoolean(s);
+            }
+
         } catch (Exception e) {
             logger.error("Could not parse system configuration file",e);
         }
@@ -467,6 +604,26 @@ public class TOMConfiguration extends Configuration {
     public int getBatchTimeout() {
         return batchTimeout;
     }
+
+    /**
+     * Informs if the leader tunes the size of its batches, and how long it waits
+     * for them to fill, according to the observed load (see BatchController)
+     *
+     * @return True if adaptive batching is enabled, false otherwise
+     */
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    /**
+     * Latency (in milliseconds) that adaptive batching tries not to exceed
+     * between the proposal of a batch and the end of its execution
+     *
+     * @return The latency target, in milliseconds
+     */
+    public int getLatencyTarget() {
+        return latencyTarget;
+    }
     
     public int getReplyVerificationTime() {
         return replyVerificationTime;
@@ -492,6 +649,30 @@ public class TOMConfiguration extends Configuration {
         return timeoutHighMark;
     }
     
+    /**
+     * Maximum number of consensus instances the leader may have in execution at the same time.
+     * A value of 1 disables pipelining, i.e., a new instance is only started after the previous one is decided.
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Indicates if ACCEPT messages are authenticated with a MAC vector (one MAC per replica of
+     * the current view) instead of a signature of the replica.
+     */
+    public boolean useMACAcceptProofs() {
+        return macAcceptProofs;
+    }
+
+    /**
+     * Indicates if the leader proposes only the identifiers and digests of the requests, which
+     * the other replicas resolve against the requests they received from the clients.
+     */
+    public boolean useDigestProposals() {
+        return digestProposals;
+    }
+
     public int getMaxBatchSize() {
         return maxBatchSize;
     }
@@ -512,6 +693,14 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * Size of the chunks in which the checkpoint is fetched during the state
+     * transfer. If 0, the checkpoint is sent inside the state transfer reply.
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -558,6 +747,26 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+	/**
+	 * Number of incremental checkpoints kept on disk before they are compacted
+	 * into a full checkpoint (only used by IncrementalRecoverable)
+	 *
+	 * @return The number of incremental checkpoints between compactions
+	 */
+	public int getCheckpointCompaction() {
+		return checkpointCompaction;
+	}
+
+	/**
+	 * Number of executed consensus instances whose decided batches are kept in
+	 * memory (to be forwarded to other replicas) before being released
+	 *
+	 * @return The number of decided batches kept after execution
+	 */
+	public int getRetainedDecisions() {
+		return retainedDecisions;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -570,8 +779,12 @@ public class TOMConfiguration extends Configuration {
 		return logToDisk;
 	}
 
+	/**
+	 * Indicates if decided batches are logged while they are executed
+	 *
+	 * @return true if the log is written by a separate thread
+	 */
 	public boolean isToLogParallel() {
-		// TODO Auto-generated method stub
 		return parallelLog;
 	}
 
@@ -605,6 +818,44 @@ public class TOMConfiguration extends Configuration {
     public int getNumRepliers() {
         return numRepliers;
     }
+
+    /**
+     * Number of threads that execute unordered requests. If 0, unordered
+     * requests are executed by the thread that received them.
+     *
+     * @return The size of the read-only execution pool
+     */
+    public int getReadOnlyThreads() {
+        return readOnlyThreads;
+    }
+
+    /**
+     * Maximum number of unordered requests of a client waiting for a thread of
+     * the read-only execution pool. Requests beyond that are discarded.
+     *
+     * @return The maximum number of pending unordered requests per client
+     */
+    public int getReadOnlyMaxPending() {
+        return readOnlyMaxPending;
+    }
+
+    /**
+     * Informs if the metrics of the replica are registered as a JMX MBean
+     *
+     * @return True if the metrics are exported through JMX, false otherwise
+     */
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    /**
+     * Port of the local HTTP endpoint that serves the metrics of the replica
+     *
+     * @return The port, or -1 if the endpoint is disabled
+     */
+    public int getMetricsHttpPort() {
+        return metricsHttpPort;
+    }
     
     public int getNumNettyWorkers() {
         return numNettyWorkers;
@@ -626,6 +877,54 @@ public class TOMConfiguration extends Configuration {
         return clientInvokeOrderedTimeout;
     }
 
+    /**
+     * Maximum number of operations that a BatchingServiceProxy puts in a batch request
+     *
+     * @return The maximum number of operations per batch request
+     */
+    public int getClientBatchMaxOperations() {
+        return clientBatchMaxOperations;
+    }
+
+    /**
+     * Maximum size of the operations that a BatchingServiceProxy puts in a batch
+     * request. A larger operation is sent alone in a batch request.
+     *
+     * @return The maximum size of a batch request, in bytes
+     */
+    public int getClientBatchMaxBytes() {
+        return clientBatchMaxBytes;
+    }
+
+    /**
+     * Time a BatchingServiceProxy waits for more operations before sending a batch
+     * request that is not full
+     *
+     * @return The time, in milliseconds
+     */
+    public int getClientBatchLinger() {
+        return clientBatchLinger;
+    }
+
+    /**
+     * Maximum number of requests that a FutureServiceProxy keeps outstanding
+     *
+     * @return The number of requests sent and not yet replied
+     */
+    public int getClientAsyncWindow() {
+        return clientAsyncWindow;
+    }
+
+    /**
+     * Whether the clients created in the same JVM share their threads and their
+     * connections to the replicas
+     *
+     * @return true if the clients use the shared client runtime
+     */
+    public boolean useClientSharedRuntime() {
+        return clientSharedRuntime;
+    }
+
     /**
      * Tulio Ribeiro ## SSL/TLS getters.
      * */
@@ -15,11 +15,12 @@ limitations under the License.
 */
 package bftsmart.statemanagement;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.tom.util.TOMUtil;
 
@@ -114,26 +115,26 @@ public abstract class SMMessage extends SystemMessage {
     }
     
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException{
-        super.writeExternal(out);
+    public void wExternal(DataOutput out) throws IOException{
+        super.wExternal(out);
         out.writeInt(sender);
         out.writeInt(cid);
         out.writeInt(type);
         out.writeInt(regency);
         out.writeInt(leader);
-        out.writeObject(state);
-        out.writeObject(view);
+        SystemMessageCodec.writeObject(out, state);
+        SystemMessageCodec.writeObject(out, view);
     }
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
-        super.readExternal(in);
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException{
+        super.rExternal(in);
         sender = in.readInt();
         cid = in.readInt();
         type = in.readInt();
         regency = in.readInt();
         leader = in.readInt();
-        state = (ApplicationState) in.readObject();
-        view = (View) in.readObject();
+        state = (ApplicationState) SystemMessageCodec.readObject(in);
+        view = (View) SystemMessageCodec.readObject(in);
     }
 }
@@ -348,6 +348,13 @@ public abstract class StateManager {
         appStateOnly = false;
     }
     
+    /**
+     * Releases the threads and connections used by the state transfer protocol.
+     * Invoked when the replica shuts down; init() may be invoked again afterwards.
+     */
+    public void shutdown() {
+    }
+
     public void triggerTimeout(SMMessage msg) {
         
         int[] myself = new int[1];
@@ -15,10 +15,11 @@ limitations under the License.
 */
 package bftsmart.statemanagement.durability;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
@@ -41,15 +42,15 @@ public class CSTSMMessage extends SMMessage {
     }
     
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException{
-        super.writeExternal(out);
-        out.writeObject(cstConfig);
+    public void wExternal(DataOutput out) throws IOException{
+        super.wExternal(out);
+        SystemMessageCodec.writeObject(out, cstConfig);
     }
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
-        super.readExternal(in);
-        cstConfig = (CSTRequestF1)in.readObject();
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException{
+        super.rExternal(in);
+        cstConfig = (CSTRequestF1) SystemMessageCodec.readObject(in);
     }
 	
 }
@@ -15,9 +15,9 @@ limitations under the License.
 */
 package bftsmart.statemanagement.standard;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
@@ -31,11 +31,17 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private StateChunks chunks; // describes the checkpoint, when it is fetched in chunks
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
     	super(sender, cid, type, state, view, regency, leader);
     	this.replica = replica;
     }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, StateChunks chunks) {
+    	this(sender, cid, type, replica, state, view, regency, leader);
+    	this.chunks = chunks;
+    }
 	
     public StandardSMMessage() {
     	super();
@@ -49,15 +55,31 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the descriptor of the checkpoint of the sender, if it is
+     * to be fetched in chunks
+     * @return The descriptor of the checkpoint, or null
+     */
+    public StateChunks getChunks() {
+        return chunks;
+    }
+
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException{
-        super.writeExternal(out);
+    public void wExternal(DataOutput out) throws IOException{
+        super.wExternal(out);
         out.writeInt(replica);
+        out.writeBoolean(chunks != null);
+        if (chunks != null) {
+            chunks.wExternal(out);
+        }
     }
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
-        super.readExternal(in);
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException{
+        super.rExternal(in);
         replica = in.readInt();
+        if (in.readBoolean()) {
+            chunks = StateChunks.rExternal(in);
+        }
     }
 }
@@ -16,13 +16,21 @@
 package bftsmart.statemanagement.standard;
 
 import bftsmart.statemanagement.StateManager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.Random;
 
@@ -35,6 +43,7 @@ import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.server.defaultservices.PageHashTree;
 import bftsmart.tom.util.TOMUtil;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
@@ -58,6 +67,13 @@ public class StandardStateManager extends StateManager {
     private final static long INIT_TIMEOUT = 40000;
     private long timeout = INIT_TIMEOUT;
 
+    // chunked state transfer (see system.totalordermulticast.state_chunk_size)
+    private final static int CHUNK_PORT_OFFSET = 2;
+    private volatile StateChunkServer chunkServer = null;
+    private volatile ExecutorService chunkExecutor = null;
+    private StateChunkFetcher fetcher = null;
+    private Map<Integer, StandardSMMessage> chunkReplies = new HashMap<>();
+
     @Override
     public void init(TOMLayer tomLayer, DeliveryThread dt) {
 
@@ -132,8 +148,10 @@ public class StandardStateManager extends StateManager {
         if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
             StandardSMMessage stdMsg = (StandardSMMessage) msg;
             boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
+            int chunkSize = SVController.getStaticConf().getStateChunkSize();
 
-            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            // when the state is fetched in chunks, every replica describes its checkpoint
+            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState || chunkSize > 0);
             if (thisState == null) {
 
                 logger.warn("For some reason, I am sending a void state");
@@ -141,6 +159,29 @@ public class StandardStateManager extends StateManager {
             }
 
             int[] targets = {msg.getSender()};
+            byte[] snapshot = thisState.getSerializedState();
+
+            if (SVController.getStaticConf().useMACAcceptProofs()) {
+                // the MAC vectors of the proof can only be verified by the replicas that
+                // were connected to their senders, so the requester also gets a signature
+                CertifiedDecision cDec = thisState.getCertifiedDecision(SVController);
+                if (cDec != null) {
+                    tomLayer.acceptor.sendSignedAccept(cDec.getConsMessages(), targets);
+                }
+            }
+
+            if (chunkSize > 0 && snapshot != null && startChunkServer()) {
+                sendStateChunks(msg, thisState, snapshot, chunkSize);
+                return;
+            }
+            StateChunkServer server = chunkServer;
+            if (server != null) {
+                server.withdraw(msg.getSender()); // the requester is no longer fetching it
+            }
+            if (!sendState) {
+                thisState.setSerializedState(null);
+            }
+
             SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
                     msg.getCID(), TOMUtil.SM_REPLY, -1, thisState, SVController.getCurrentView(),
                     tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader());
@@ -151,6 +192,89 @@ public class StandardStateManager extends StateManager {
         }
     }
 
+    /**
+     * Offers the checkpoint in the chunk server and sends its descriptor (instead
+     * of the checkpoint) in the reply. The chunk hashes are computed by another
+     * thread, so that the delivery of consensus messages is not delayed.
+     */
+    private void sendStateChunks(SMMessage msg, ApplicationState thisState, byte[] snapshot, int chunkSize) {
+        int me = SVController.getStaticConf().getProcessId();
+        View view = SVController.getCurrentView();
+        int regency = tomLayer.getSynchronizer().getLCManager().getLastReg();
+        int leader = tomLayer.execManager.getCurrentLeader();
+
+        thisState.setSerializedState(null);
+
+        // the server and its executor are released if the replica shuts down meanwhile
+        StateChunkServer server = chunkServer;
+        ExecutorService executor = chunkExecutor;
+        if (server == null || executor == null) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                StateChunks chunks = StateChunks.describe(snapshot, chunkSize);
+                server.offer(msg.getSender(), msg.getCID(), snapshot, chunks);
+
+                SMMessage smsg = new StandardSMMessage(me, msg.getCID(), TOMUtil.SM_REPLY, -1, thisState, view,
+                        regency, leader, chunks);
+
+                logger.info("Sending state descriptor ({} chunks) to replica {}", chunks.getChunkCount(), msg.getSender());
+                tomLayer.getCommunication().send(new int[]{msg.getSender()}, smsg);
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("State chunk server was shut down, not sending the state descriptor");
+        }
+    }
+
+    private boolean startChunkServer() {
+        if (chunkServer == null) {
+            InetSocketAddress address = SVController.getCurrentView().getAddress(SVController.getStaticConf().getProcessId());
+            // the server binds to the configured address of this replica, where the others look for it
+            String host = SVController.getStaticConf().getBindAddress().isEmpty() ? address.getHostString()
+                    : SVController.getStaticConf().getBindAddress();
+            InetSocketAddress bindAddress = new InetSocketAddress(host, address.getPort() + CHUNK_PORT_OFFSET);
+            try {
+                chunkServer = new StateChunkServer(bindAddress, tomLayer.getCommunication(), SVController.getStaticConf());
+            } catch (IOException e) {
+                logger.error("Failed to start state chunk server on " + bindAddress + ", sending the state in the reply", e);
+                return false;
+            }
+            chunkServer.start();
+            chunkExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "State chunk hasher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        lockTimer.lock();
+        try {
+            if (stateTimer != null) {
+                stateTimer.cancel();
+            }
+            if (fetcher != null) {
+                fetcher.cancel();
+                fetcher = null;
+            }
+            if (chunkServer != null) {
+                chunkServer.shutdown();
+                chunkServer = null;
+            }
+            if (chunkExecutor != null) {
+                chunkExecutor.shutdown();
+                chunkExecutor = null;
+            }
+        } finally {
+            lockTimer.unlock();
+        }
+    }
+
     @Override
     public void SMReplyDeliver(SMMessage msg, boolean isBFT) {
         lockTimer.lock();
@@ -195,6 +319,15 @@ public class StandardStateManager extends StateManager {
 
                 senderStates.put(msg.getSender(), msg.getState());
 
+                StateChunks chunks = ((StandardSMMessage) msg).getChunks();
+                if (state == null && chunks != null) {
+                    // the checkpoint is installed once all its chunks are fetched (see chunksFetched)
+                    chunkReplies.put(msg.getSender(), (StandardSMMessage) msg);
+                    fetchChunks();
+                    lockTimer.unlock();
+                    return;
+                }
+
                 logger.debug("Verifying more than F replies");
                 if (enoughReplies()) {
                     logger.debug("More than F confirmed");
@@ -202,7 +335,11 @@ public class StandardStateManager extends StateManager {
                     int haveState = 0;
                     if (state != null) {
                         byte[] hash = null;
-                        hash = tomLayer.computeHash(state.getSerializedState());
+                        if (state instanceof DefaultApplicationState && ((DefaultApplicationState) state).isPaged()) {
+                            hash = PageHashTree.hashOf(state.getSerializedState());
+                        } else {
+                            hash = tomLayer.computeHash(state.getSerializedState());
+                        }
                         if (otherReplicaState != null) {
                             if (Arrays.equals(hash, otherReplicaState.getStateHash())) {
                                 haveState = 1;
@@ -355,6 +492,91 @@ public class StandardStateManager extends StateManager {
         lockTimer.unlock();
     }
 
+    /**
+     * Starts (or resumes) fetching the checkpoint in chunks once f+1 replicas
+     * sent the same descriptor, using all the replicas that sent it. Caller
+     * must hold lockTimer.
+     */
+    private void fetchChunks() {
+        StateChunks agreed = null;
+        for (StandardSMMessage reply : chunkReplies.values()) {
+            int count = 0;
+            for (StandardSMMessage other : chunkReplies.values()) {
+                if (reply.getChunks().equals(other.getChunks())) {
+                    count++;
+                }
+            }
+            if (count > SVController.getCurrentViewF()) {
+                agreed = reply.getChunks();
+                break;
+            }
+        }
+        if (agreed == null) {
+            logger.debug("Not enough matching state descriptors yet");
+            return;
+        }
+
+        Map<Integer, InetSocketAddress> sources = new HashMap<>();
+        for (StandardSMMessage reply : chunkReplies.values()) {
+            InetSocketAddress address = SVController.getCurrentView().getAddress(reply.getSender());
+            if (address != null && agreed.equals(reply.getChunks())) {
+                sources.put(reply.getSender(),
+                        new InetSocketAddress(address.getHostString(), address.getPort() + CHUNK_PORT_OFFSET));
+            }
+        }
+
+        if (fetcher == null || !fetcher.matches(waitingCID, agreed)) {
+            if (fetcher != null) {
+                fetcher.cancel();
+            }
+            fetcher = new StateChunkFetcher(waitingCID, agreed, this::chunksFetched, tomLayer.getCommunication(),
+                    SVController.getStaticConf());
+        }
+        fetcher.fetch(sources);
+    }
+
+    /**
+     * Invoked once all the chunks of the checkpoint are fetched. The reply of
+     * one of the replicas that described it is delivered again, now holding the
+     * checkpoint, so that the state is installed as in the non-chunked transfer.
+     */
+    private void chunksFetched(StateChunkFetcher completed) {
+        lockTimer.lock();
+        try {
+            if (completed != fetcher || completed.getCID() != waitingCID || state != null) {
+                return;
+            }
+
+            StandardSMMessage reply = null;
+            for (StandardSMMessage r : chunkReplies.values()) {
+                if (completed.matches(r.getCID(), r.getChunks())) {
+                    reply = r;
+                    break;
+                }
+            }
+            if (reply == null) {
+                logger.debug("State fetched, waiting for the replies of the current request");
+                return;
+            }
+
+            reply.getState().setSerializedState(completed.getState());
+            replica = reply.getSender();
+            SMReplyDeliver(reply, SVController.getStaticConf().isBFT());
+
+            if (waitingCID == -1) {
+                fetcher = null;
+            }
+        } finally {
+            lockTimer.unlock();
+        }
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        chunkReplies.clear();
+    }
+
     /**
      * Search in the received states table for a state that was not sent by the
      * expected replica. This is used to compare both states after received the
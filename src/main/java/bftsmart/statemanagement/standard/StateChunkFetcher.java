@@ -0,0 +1,234 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLSocket;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.util.TOMUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the chunks of a checkpoint from several replicas in parallel, one
+ * connection per replica, verifying each chunk against its hash as soon as it
+ * arrives. A replica that fails or sends a chunk that does not match its hash is
+ * no longer used, and its chunk is fetched from the others. Chunks that were
+ * already verified are kept, so that an interrupted transfer can be resumed by
+ * invoking fetch() again with the replicas available at that time. The
+ * connections are authenticated as described in StateChunkServer.
+ */
+public class StateChunkFetcher {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final int cid;
+    private final StateChunks chunks;
+    private final byte[] state;
+    private final Consumer<StateChunkFetcher> onComplete;
+    private final ServerCommunicationSystem communication;
+    private final TOMConfiguration conf;
+
+    private final BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+    private final AtomicInteger missing;
+    private final Set<Integer> activeSources = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates the fetcher, without starting it
+     *
+     * @param cid Consensus ID of the state being fetched
+     * @param chunks Descriptor of the checkpoint, agreed by f+1 replicas
+     * @param onComplete Invoked (by one of the fetching threads) once all chunks are verified
+     * @param communication Communication system of the replica, which provides the TLS context and the MAC keys
+     * @param conf Configuration of the replica
+     */
+    public StateChunkFetcher(int cid, StateChunks chunks, Consumer<StateChunkFetcher> onComplete,
+            ServerCommunicationSystem communication, TOMConfiguration conf) {
+        this.cid = cid;
+        this.chunks = chunks;
+        this.state = new byte[chunks.getStateLength()];
+        this.onComplete = onComplete;
+        this.communication = communication;
+        this.conf = conf;
+        this.missing = new AtomicInteger(chunks.getChunkCount());
+
+        for (int i = 0; i < chunks.getChunkCount(); i++) {
+            pending.add(i);
+        }
+    }
+
+    /**
+     * Starts (or resumes) fetching the missing chunks from the given replicas.
+     * Replicas that are already being used by this fetcher are ignored.
+     *
+     * @param sources Address of the chunk server of each replica
+     */
+    public void fetch(Map<Integer, InetSocketAddress> sources) {
+        if (isComplete()) {
+            onComplete.accept(this);
+            return;
+        }
+        for (Map.Entry<Integer, InetSocketAddress> source : sources.entrySet()) {
+            if (activeSources.add(source.getKey())) {
+                Thread thread = new Thread(() -> fetchFrom(source.getKey(), source.getValue()),
+                        "State chunk fetcher for replica " + source.getKey());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        logger.info("Fetching {} of {} chunks of the state for CID {} from replicas {}", missing.get(),
+                chunks.getChunkCount(), cid, activeSources);
+    }
+
+    private void fetchFrom(int replica, InetSocketAddress address) {
+        MessageDigest md;
+        try {
+            md = TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Failed to get hash engine", e);
+            activeSources.remove(replica);
+            return;
+        }
+
+        Integer index = null;
+        try (SSLSocket socket = (SSLSocket) communication.getSSLContext().getSocketFactory().createSocket()) {
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setEnabledProtocols(new String[]{conf.getSSLTLSProtocolVersion()});
+            socket.setEnabledCipherSuites(conf.getEnabledCiphers());
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            authenticate(replica, in, out);
+
+            while (!cancelled && !isComplete()) {
+                // chunks being fetched from other replicas might be given back
+                index = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (index == null) {
+                    continue;
+                }
+
+                out.writeInt(cid);
+                out.writeInt(index);
+                out.flush();
+
+                int length = in.readInt();
+                if (length != chunks.getLength(index)) {
+                    throw new IOException("Replica " + replica + " does not have chunk " + index);
+                }
+
+                int offset = chunks.getOffset(index);
+                in.readFully(state, offset, length);
+
+                if (!chunks.verify(index, state, offset, md)) {
+                    throw new IOException("Replica " + replica + " sent an invalid chunk " + index);
+                }
+
+                index = null;
+                if (missing.decrementAndGet() == 0) {
+                    logger.info("Fetched all the chunks of the state for CID {}", cid);
+                    onComplete.accept(this);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Stopped fetching state chunks from replica " + replica, e);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while fetching state chunks from replica " + replica);
+        } finally {
+            if (index != null) {
+                pending.add(index); // someone else will fetch it
+            }
+            activeSources.remove(replica);
+        }
+    }
+
+    private void authenticate(int replica, DataInputStream in, DataOutputStream out) throws IOException {
+        SecretKey key = communication.getMACKey(replica);
+        if (key == null) {
+            throw new IOException("No MAC key shared with replica " + replica);
+        }
+
+        byte[] nonce = new byte[StateChunkServer.NONCE_LENGTH];
+        in.readFully(nonce);
+
+        byte[] proof = StateChunkServer.proof(key, nonce, conf.getProcessId());
+        out.writeInt(conf.getProcessId());
+        out.writeInt(proof.length);
+        out.write(proof);
+        out.flush();
+    }
+
+    /**
+     * Verifies if this fetcher is fetching the given checkpoint
+     *
+     * @param cid Consensus ID of the state
+     * @param chunks Descriptor of the checkpoint
+     * @return true if it is the same checkpoint
+     */
+    public boolean matches(int cid, StateChunks chunks) {
+        return this.cid == cid && this.chunks.equals(chunks);
+    }
+
+    public boolean isComplete() {
+        return missing.get() == 0;
+    }
+
+    public int getCID() {
+        return cid;
+    }
+
+    /**
+     * The fetched checkpoint. Must only be used once the fetch is complete.
+     *
+     * @return The serialized checkpoint
+     */
+    public byte[] getState() {
+        return state;
+    }
+
+    /**
+     * Stops fetching chunks, after the ones being fetched arrive
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.communication.server.NettyServerConnection;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the chunks of the checkpoints offered by this replica to recovering
+ * replicas, over connections that are independent from the replica-to-replica
+ * channel. The connections use the TLS configuration of that channel. After the
+ * handshake, the server sends a nonce and the requester replies with its id and
+ * the MAC of the nonce, computed with the key this replica shares with it (see
+ * ServerCommunicationSystem.getMACKey), so only a replica connected to this one
+ * can identify itself.
+ *
+ * Each request is the consensus ID of the checkpoint and the index of a chunk;
+ * the reply is the length of the chunk followed by its bytes, or -1 if the chunk
+ * is not available. A checkpoint is only served to the replica it was offered
+ * to, for the CID it was offered for. A new offer to a replica replaces the
+ * previous one, and offers that are not used for a while are discarded.
+ */
+public class StateChunkServer implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int IDLE_TIMEOUT = 60000;
+    private static final int OFFER_TIMEOUT = 120000;
+    private static final int EVICTION_INTERVAL = 10000;
+    private static final int MAX_SENDERS = 16;
+    static final int NONCE_LENGTH = 16;
+
+    private final SSLServerSocket server;
+    private final ServerCommunicationSystem communication;
+    private final ThreadPoolExecutor senders;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Integer, Offer> offers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the server, bound to the given address
+     *
+     * @param address Address to bind to
+     * @param communication Communication system of the replica, which provides the TLS context and the MAC keys
+     * @param conf Configuration of the replica
+     * @throws IOException If the server socket could not be created
+     */
+    public StateChunkServer(InetSocketAddress address, ServerCommunicationSystem communication,
+            TOMConfiguration conf) throws IOException {
+        this.communication = communication;
+
+        server = (SSLServerSocket) communication.getSSLContext().getServerSocketFactory().createServerSocket();
+        server.setReuseAddress(true);
+        server.setEnabledProtocols(new String[]{conf.getSSLTLSProtocolVersion()});
+        server.setEnabledCipherSuites(conf.getEnabledCiphers());
+        server.setNeedClientAuth(true);
+        server.setSoTimeout(EVICTION_INTERVAL);
+        server.bind(address);
+
+        // at most MAX_SENDERS connections are served at once, the others are refused
+        senders = new ThreadPoolExecutor(0, MAX_SENDERS, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "State chunk sender");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Starts accepting connections
+     */
+    public void start() {
+        Thread thread = new Thread(this, "State chunk server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Makes the chunks of a checkpoint available to a replica, replacing the
+     * checkpoint previously offered to it
+     *
+     * @param requester Replica that requested the state
+     * @param cid Consensus ID of the state transfer in which it was offered
+     * @param state The serialized checkpoint
+     * @param chunks Descriptor of the checkpoint
+     */
+    public void offer(int requester, int cid, byte[] state, StateChunks chunks) {
+        offers.put(requester, new Offer(cid, state, chunks));
+    }
+
+    /**
+     * Discards the checkpoint offered to a replica, if any
+     *
+     * @param requester Replica to which the checkpoint was offered
+     */
+    public void withdraw(int requester) {
+        offers.remove(requester);
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                SSLSocket socket = (SSLSocket) server.accept();
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                socket.setTcpNoDelay(true);
+
+                try {
+                    senders.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Too many state chunk connections, refusing the one from {}",
+                            socket.getRemoteSocketAddress());
+                    socket.close();
+                }
+            } catch (SocketTimeoutException e) {
+                // no connection meanwhile, only the offers are checked
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    logger.error("Failed to accept connection for state chunks", e);
+                }
+            }
+            evictIdleOffers();
+        }
+    }
+
+    private void evictIdleOffers() {
+        long now = System.currentTimeMillis();
+        offers.entrySet().removeIf(e -> {
+            if (now - e.getValue().lastUsed > OFFER_TIMEOUT) {
+                logger.debug("Discarding the state offered to replica {} for CID {}", e.getKey(), e.getValue().cid);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void serve(SSLSocket socket) {
+        try (SSLSocket s = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+
+            int requester = authenticate(in, out);
+            if (requester == -1) {
+                logger.warn("Refusing state chunk connection from {}, it did not authenticate",
+                        socket.getRemoteSocketAddress());
+                return;
+            }
+
+            while (true) {
+                int cid = in.readInt();
+                int index = in.readInt();
+
+                Offer o = offers.get(requester);
+                if (o == null || o.cid != cid || index < 0 || index >= o.chunks.getChunkCount()) {
+                    logger.debug("Chunk {} of state for CID {} is not available to replica {}", index, cid, requester);
+                    out.writeInt(-1);
+                } else {
+                    o.lastUsed = System.currentTimeMillis();
+                    int length = o.chunks.getLength(index);
+                    out.writeInt(length);
+                    out.write(o.state, o.chunks.getOffset(index), length);
+                }
+                out.flush();
+            }
+        } catch (EOFException | SocketTimeoutException e) {
+            logger.debug("Closing state chunk connection from {}", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            logger.warn("Failed to send state chunks to " + socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * Challenges the requester to prove its id
+     *
+     * @return The id of the requester, or -1 if the proof is not valid
+     */
+    private int authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        out.write(nonce);
+        out.flush();
+
+        int requester = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > 1024) {
+            return -1;
+        }
+        byte[] proof = new byte[length];
+        in.readFully(proof);
+
+        SecretKey key = communication.getMACKey(requester);
+        if (key == null) {
+            logger.debug("No MAC key shared with replica {}", requester);
+            return -1;
+        }
+        return MessageDigest.isEqual(proof(key, nonce, requester), proof) ? requester : -1;
+    }
+
+    /**
+     * Proof that the sender of a state chunk request is the given replica
+     *
+     * @param key Key shared by the requester and the server
+     * @param nonce Nonce sent by the server
+     * @param requester Id of the requester
+     * @return The MAC of the nonce and the id
+     */
+    static byte[] proof(SecretKey key, byte[] nonce, int requester) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(NettyServerConnection.MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(nonce);
+            mac.update(new byte[]{(byte) (requester >>> 24), (byte) (requester >>> 16),
+                    (byte) (requester >>> 8), (byte) requester});
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to compute the MAC of the state chunk connection", e);
+        }
+    }
+
+    public void shutdown() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.error("Failed to close state chunk server", e);
+        }
+        senders.shutdownNow();
+        offers.clear();
+    }
+
+    private static class Offer {
+
+        final int cid;
+        final byte[] state;
+        final StateChunks chunks;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Offer(int cid, byte[] state, StateChunks chunks) {
+            this.cid = cid;
+            this.state = state;
+            this.chunks = chunks;
+        }
+    }
+}
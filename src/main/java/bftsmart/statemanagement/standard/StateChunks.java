@@ -0,0 +1,179 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Describes how a checkpoint is split into chunks for the chunked state
+ * transfer: the size of the checkpoint, the size of the chunks, and the hash of
+ * each chunk. The root hash is computed over the hashes of all chunks, hence
+ * two descriptors with the same root describe the same checkpoint. Since the
+ * whole list of chunk hashes is sent, a recovering replica can verify each
+ * chunk as soon as it arrives, once f+1 replicas agree on the descriptor.
+ */
+public class StateChunks {
+
+    private static final int MAX_CHUNKS = 1 << 20;
+
+    private int chunkSize;
+    private int stateLength;
+    private byte[][] hashes;
+    private byte[] root;
+
+    private StateChunks() {
+    }
+
+    /**
+     * Splits a checkpoint into chunks and computes their hashes
+     *
+     * @param state The serialized checkpoint
+     * @param chunkSize Size of the chunks, in bytes
+     * @return The descriptor of the checkpoint
+     */
+    public static StateChunks describe(byte[] state, int chunkSize) {
+        StateChunks chunks = new StateChunks();
+        chunks.chunkSize = chunkSize;
+        chunks.stateLength = state.length;
+        chunks.hashes = new byte[chunks.getChunkCount()][];
+
+        MessageDigest md = hashEngine();
+        for (int i = 0; i < chunks.hashes.length; i++) {
+            md.update(state, chunks.getOffset(i), chunks.getLength(i));
+            chunks.hashes[i] = md.digest();
+        }
+        chunks.root = chunks.computeRoot(md);
+        return chunks;
+    }
+
+    private byte[] computeRoot(MessageDigest md) {
+        for (byte[] hash : hashes) {
+            md.update(hash);
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest hashEngine() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to get hash engine", e);
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getStateLength() {
+        return stateLength;
+    }
+
+    public int getChunkCount() {
+        return (int) (((long) stateLength + chunkSize - 1) / chunkSize);
+    }
+
+    public byte[] getRoot() {
+        return root;
+    }
+
+    /**
+     * Position of a chunk in the checkpoint
+     *
+     * @param index Index of the chunk
+     * @return Offset of the first byte of the chunk
+     */
+    public int getOffset(int index) {
+        return index * chunkSize;
+    }
+
+    /**
+     * Size of a chunk (only the last one may be smaller than the chunk size)
+     *
+     * @param index Index of the chunk
+     * @return Number of bytes in the chunk
+     */
+    public int getLength(int index) {
+        return Math.min(chunkSize, stateLength - getOffset(index));
+    }
+
+    /**
+     * Verifies a chunk against its hash
+     *
+     * @param index Index of the chunk
+     * @param data Buffer holding the chunk
+     * @param offset Position of the chunk in the buffer
+     * @param md Hash engine to use
+     * @return true if the chunk matches its hash
+     */
+    public boolean verify(int index, byte[] data, int offset, MessageDigest md) {
+        md.reset();
+        md.update(data, offset, getLength(index));
+        return MessageDigest.isEqual(md.digest(), hashes[index]);
+    }
+
+    public void wExternal(DataOutput out) throws IOException {
+        out.writeInt(chunkSize);
+        out.writeInt(stateLength);
+        for (byte[] hash : hashes) {
+            SystemMessageCodec.writeBytes(out, hash);
+        }
+    }
+
+    public static StateChunks rExternal(DataInput in) throws IOException {
+        StateChunks chunks = new StateChunks();
+        chunks.chunkSize = in.readInt();
+        chunks.stateLength = in.readInt();
+        if (chunks.chunkSize <= 0 || chunks.stateLength < 0) {
+            throw new IOException("Invalid chunk descriptor");
+        }
+        if (chunks.getChunkCount() > MAX_CHUNKS) {
+            throw new IOException("Too many chunks (" + chunks.getChunkCount() + ")");
+        }
+        chunks.hashes = new byte[chunks.getChunkCount()][];
+        for (int i = 0; i < chunks.hashes.length; i++) {
+            chunks.hashes[i] = SystemMessageCodec.readBytes(in);
+            if (chunks.hashes[i] == null) {
+                throw new IOException("Missing hash for chunk " + i);
+            }
+        }
+        chunks.root = chunks.computeRoot(hashEngine());
+        return chunks;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof StateChunks) {
+            StateChunks other = (StateChunks) obj;
+            return chunkSize == other.chunkSize && stateLength == other.stateLength
+                    && Arrays.equals(root, other.root);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(root);
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.tom;
+
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.KeyLoader;
+import bftsmart.tom.util.OperationBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is an extension of 'ServiceProxy' that coalesces the ordered
+ * operations submitted by many application threads into batch requests. A batch
+ * request is a single ORDERED_BATCH_REQUEST message, signed and sent once to each
+ * replica, whose content is the vector of the operations (see OperationBatch).
+ * Replicas execute its operations one by one, in the order of the vector, and
+ * reply with the vector of their results, which is demultiplexed to the futures
+ * returned by invokeOrderedBatched().
+ *
+ * A sender thread sends one batch request at a time, so the operations submitted
+ * while a batch request is being ordered are sent together in the next one (up to
+ * the limits in system.client.batch_max_operations and system.client.batch_max_bytes).
+ * Requests issued with the methods of ServiceProxy are not batched.
+ */
+public class BatchingServiceProxy extends ServiceProxy {
+
+	private final Logger logger = LoggerFactory.getLogger("bftsmart.proxy");
+
+	private final int maxOperations;
+	private final int maxBytes;
+	private final long lingerNanos;
+
+	private final BlockingQueue<Operation> pending = new LinkedBlockingQueue<>();
+	private final Thread sender;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @see #BatchingServiceProxy(int, String, KeyLoader)
+	 */
+	public BatchingServiceProxy(int processId) {
+		this(processId, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @see #BatchingServiceProxy(int, String, KeyLoader)
+	 */
+	public BatchingServiceProxy(int processId, String configHome) {
+		this(processId, configHome, null);
+	}
+
+	/**
+	 * Constructor. Replies are compared as a whole, so this proxy does not take a
+	 * comparator nor an extractor.
+	 *
+	 * @param processId Process id for this client (should be different from replicas)
+	 * @param configHome Configuration directory for BFT-SMART
+	 * @param loader Used to load signature keys from disk
+	 */
+	public BatchingServiceProxy(int processId, String configHome, KeyLoader loader) {
+		super(processId, configHome, loader);
+		this.maxOperations = getViewManager().getStaticConf().getClientBatchMaxOperations();
+		this.maxBytes = getViewManager().getStaticConf().getClientBatchMaxBytes();
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(getViewManager().getStaticConf().getClientBatchLinger());
+
+		this.sender = new Thread(this::sendBatches, "Batching proxy sender " + processId);
+		this.sender.setDaemon(true);
+		this.sender.start();
+	}
+
+	/**
+	 * Submits an ordered operation, to be sent to the replicas in the next batch
+	 * request. This method is thread-safe and does not block.
+	 *
+	 * The future completes with the reply of the replicas to the operation, or with
+	 * null if the batch request times out (as invokeOrdered() would return). It
+	 * completes exceptionally if the replies do not match or the proxy is closed.
+	 *
+	 * @param operation The operation to be sent
+	 * @return A future for the reply to the operation
+	 */
+	public CompletableFuture<byte[]> invokeOrderedBatched(byte[] operation) {
+		Operation op = new Operation(operation);
+		pending.add(op);
+		// the sender may have already failed the pending operations and exited
+		if (closed && pending.remove(op)) {
+			op.future.completeExceptionally(new IllegalStateException("Proxy is closed"));
+		}
+		return op.future;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		sender.interrupt();
+		try {
+			sender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		super.close();
+	}
+
+	private void sendBatches() {
+		List<Operation> batch = new ArrayList<>();
+		Operation next = null;
+
+		try {
+			while (!closed) {
+				batch.add(next != null ? next : pending.take());
+				next = null;
+
+				int bytes = Integer.BYTES + OperationBatch.packedSize(batch.get(0).content);
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maxOperations) {
+					Operation op = pending.poll();
+					if (op == null) {
+						long wait = deadline - System.nanoTime();
+						if (wait <= 0 || (op = pending.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+							break;
+						}
+					}
+					int size = OperationBatch.packedSize(op.content);
+					if (bytes + size > maxBytes) {
+						next = op;
+						break;
+					}
+					batch.add(op);
+					bytes += size;
+				}
+
+				send(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			logger.debug("Batching proxy sender interrupted");
+		}
+
+		IllegalStateException closedException = new IllegalStateException("Proxy is closed");
+		if (next != null) {
+			batch.add(next);
+		}
+		pending.drainTo(batch);
+		for (Operation op : batch) {
+			op.future.completeExceptionally(closedException);
+		}
+	}
+
+	private void send(List<Operation> batch) {
+		byte[][] operations = new byte[batch.size()][];
+		for (int i = 0; i < operations.length; i++) {
+			operations[i] = batch.get(i).content;
+		}
+
+		byte[][] results = null;
+		RuntimeException failure = null;
+		try {
+			logger.debug("Sending batch request with {} operations", operations.length);
+			byte[] reply = invoke(OperationBatch.pack(operations), TOMMessageType.ORDERED_BATCH_REQUEST);
+			if (reply != null) {
+				results = OperationBatch.unpack(reply);
+				if (results.length != operations.length) {
+					failure = new IllegalStateException("Received " + results.length + " results for a batch of "
+							+ operations.length + " operations");
+				}
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+
+		for (int i = 0; i < operations.length; i++) {
+			if (failure != null) {
+				batch.get(i).future.completeExceptionally(failure);
+			} else {
+				batch.get(i).future.complete(results == null ? null : results[i]);
+			}
+		}
+	}
+
+	private static class Operation {
+
+		private final byte[] content;
+		private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+		Operation(byte[] content) {
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.tom;
+
+import bftsmart.reconfiguration.views.View;
+import bftsmart.tom.client.AbstractRequestHandler;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.Extractor;
+import bftsmart.tom.util.HashedWheelTimer;
+import bftsmart.tom.util.KeyLoader;
+import bftsmart.tom.util.TOMUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class is an extension of 'ServiceProxy' that sends requests without
+ * waiting for the replies of the previous ones. Each invocation returns a
+ * CompletableFuture that completes with the reply extracted from the matching
+ * replies of the replicas, as the synchronous methods of ServiceProxy return it.
+ *
+ * Up to system.client.async_window requests are outstanding at a time; further
+ * invocations block until a reply arrives. Replies are matched to their requests
+ * by type and sequence number in a concurrent map, without the locks that
+ * ServiceProxy holds during a round trip. The timeouts of the requests of all
+ * proxies are driven by a single timer thread.
+ *
+ * Futures are completed by the threads that receive the replies (or by the timer
+ * thread), so dependent actions that block or invoke this proxy must be
+ * registered with the asynchronous methods of CompletableFuture.
+ */
+public class FutureServiceProxy extends ServiceProxy {
+
+	private static final HashedWheelTimer timer = new HashedWheelTimer("Client request timer", 10,
+			TimeUnit.MILLISECONDS, 1024);
+
+	private final Logger logger = LoggerFactory.getLogger("bftsmart.proxy");
+
+	private final ConcurrentHashMap<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+	private final Semaphore window;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @see #FutureServiceProxy(int, String, Comparator, Extractor, KeyLoader)
+	 */
+	public FutureServiceProxy(int processId) {
+		this(processId, null, null, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @see #FutureServiceProxy(int, String, Comparator, Extractor, KeyLoader)
+	 */
+	public FutureServiceProxy(int processId, String configHome) {
+		this(processId, configHome, null, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @see #FutureServiceProxy(int, String, Comparator, Extractor, KeyLoader)
+	 */
+	public FutureServiceProxy(int processId, String configHome, KeyLoader loader) {
+		this(processId, configHome, null, null, loader);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param processId Process id for this client (should be different from replicas)
+	 * @param configHome Configuration directory for BFT-SMART
+	 * @param replyComparator Used for comparing replies from different servers
+	 *                        to extract one returned by f+1
+	 * @param replyExtractor Used for extracting the response from the matching
+	 *                       quorum of replies
+	 * @param loader Used to load signature keys from disk
+	 */
+	public FutureServiceProxy(int processId, String configHome,
+							  Comparator<byte[]> replyComparator, Extractor replyExtractor, KeyLoader loader) {
+		super(processId, configHome, replyComparator, replyExtractor, loader);
+		this.window = new Semaphore(getViewManager().getStaticConf().getClientAsyncWindow());
+	}
+
+	/**
+	 * Sends an ordered request to the replicas. Blocks while the window of
+	 * outstanding requests is full.
+	 *
+	 * @param request Request to be sent
+	 * @return A future for the reply of the replicas
+	 */
+	public CompletableFuture<byte[]> invokeOrderedAsync(byte[] request) {
+		return invokeAsync(request, TOMMessageType.ORDERED_REQUEST);
+	}
+
+	/**
+	 * Sends an unordered request to the replicas. If its replies do not match or
+	 * it times out, it is sent again as an ordered request. Blocks while the
+	 * window of outstanding requests is full.
+	 *
+	 * @param request Request to be sent
+	 * @return A future for the reply of the replicas
+	 */
+	public CompletableFuture<byte[]> invokeUnorderedAsync(byte[] request) {
+		return invokeAsync(request, TOMMessageType.UNORDERED_REQUEST);
+	}
+
+	/**
+	 * Sends a request to the replicas. Blocks while the window of outstanding
+	 * requests is full.
+	 *
+	 * The future completes exceptionally with a TimeoutException if an ordered
+	 * request is not replied within the invoke timeout, and with a RuntimeException
+	 * if all replicas replied and no reply could be extracted.
+	 *
+	 * @param request Request to be sent
+	 * @param reqType ORDERED_REQUEST/ORDERED_HASHED_REQUEST/UNORDERED_REQUEST/UNORDERED_HASHED_REQUEST
+	 * @return A future for the reply of the replicas
+	 */
+	public CompletableFuture<byte[]> invokeAsync(byte[] request, TOMMessageType reqType) {
+		if (reqType != TOMMessageType.ORDERED_REQUEST && reqType != TOMMessageType.ORDERED_HASHED_REQUEST
+				&& reqType != TOMMessageType.UNORDERED_REQUEST && reqType != TOMMessageType.UNORDERED_HASHED_REQUEST) {
+			throw new IllegalArgumentException("Unsupported request type: " + reqType);
+		}
+
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+		send(new PendingRequest(request, future), reqType);
+		return future;
+	}
+
+	/**
+	 * Number of requests sent and not yet replied
+	 *
+	 * @return The number of outstanding requests
+	 */
+	public int getOutstandingRequests() {
+		return pending.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		IllegalStateException closedException = new IllegalStateException("Proxy is closed");
+		for (Long key : pending.keySet()) {
+			PendingRequest p = pending.get(key);
+			if (p != null && p.finish()) {
+				pending.remove(key, p);
+				fail(p, closedException);
+			}
+		}
+		super.close();
+	}
+
+	// must be invoked with a permit of the window, which is released when the future completes
+	private void send(PendingRequest p, TOMMessageType reqType) {
+		if (closed) {
+			fail(p, new IllegalStateException("Proxy is closed"));
+			return;
+		}
+
+		long key = -1;
+		canSendLock.lock();
+		try {
+			p.handler = createRequestHandler(reqType);
+			p.replicas = getViewManager().getCurrentViewN();
+			p.done = false;
+			final long k = key(reqType, p.handler.getSequenceId());
+			p.timeout = timer.schedule(() -> timeout(k, p), getInvokeTimeout(), TimeUnit.SECONDS);
+			pending.put(k, p);
+			key = k;
+
+			logger.debug("Sending asynchronous request ({}) with seqId = {}", reqType, p.handler.getSequenceId());
+			TOMulticast(p.handler.createRequest(p.request));
+		} catch (RuntimeException e) {
+			if (key != -1 && p.finish()) {
+				pending.remove(key, p);
+				p.timeout.cancel();
+				fail(p, e);
+			} else if (key == -1) {
+				fail(p, e);
+			}
+		} finally {
+			canSendLock.unlock();
+		}
+	}
+
+	/**
+	 * This is the method invoked by the client side communication system.
+	 *
+	 * @param reply The reply delivered by the client side communication system
+	 */
+	@Override
+	public void replyReceived(TOMMessage reply) {
+		long key = key(reply.getReqType(), reply.getSequence());
+		PendingRequest p = pending.get(key);
+		if (p == null) { // it is not an asynchronous request
+			super.replyReceived(reply);
+			return;
+		}
+
+		TOMMessage response;
+		synchronized (p) {
+			if (p.done) {
+				return;
+			}
+			p.handler.processReply(reply);
+			response = p.handler.getResponse();
+			if (response == null && p.handler.getNumberReceivedReplies() < p.replicas) {
+				return;
+			}
+			p.done = true;
+		}
+		pending.remove(key, p);
+		p.timeout.cancel();
+
+		TOMMessageType reqType = reply.getReqType();
+		boolean unordered = reqType == TOMMessageType.UNORDERED_REQUEST
+				|| reqType == TOMMessageType.UNORDERED_HASHED_REQUEST;
+
+		if (response == null) {
+			//the response can be null if n-f replies are received but there isn't
+			//a replyQuorumSize of matching replies
+			if (unordered) {
+				logger.debug("Received n-f replies to an unordered request, sending it again as ordered");
+				resend(p, TOMMessageType.ORDERED_REQUEST);
+			} else {
+				p.handler.printState();
+				fail(p, new RuntimeException("Received n-f replies without f+1 of them matching."));
+			}
+		} else if (response.getViewID() == getViewManager().getCurrentViewId()) {
+			complete(p, response.getContent());
+		} else if (response.getViewID() > getViewManager().getCurrentViewId()) {
+			if (unordered) {
+				// Ignore the response and request again because servers are in a later view
+				resend(p, TOMMessageType.ORDERED_REQUEST);
+			} else {
+				Object view = TOMUtil.getObject(response.getContent());
+				if (view instanceof View) {
+					resend(p, reqType, (View) view);
+				} else {
+					fail(p, new IllegalStateException("Reply from a later view does not contain the view"));
+				}
+			}
+		} else {
+			logger.error("My view is ahead of the servers' view. This should never happen!");
+			fail(p, new IllegalStateException("Reply from an earlier view"));
+		}
+	}
+
+	private void timeout(long key, PendingRequest p) {
+		if (!p.finish()) {
+			return;
+		}
+		pending.remove(key, p);
+
+		TOMMessageType reqType = p.handler.getRequestType();
+		logger.info("###### TIMEOUT ({}s) OF ASYNCHRONOUS REQUEST {} | seqId: {} | replies received: {} ######",
+				getInvokeTimeout(), reqType, p.handler.getSequenceId(), p.handler.getNumberReceivedReplies());
+		if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
+			resend(p, TOMMessageType.ORDERED_REQUEST);
+		} else {
+			fail(p, new TimeoutException("No reply received in " + getInvokeTimeout() + " seconds"));
+		}
+	}
+
+	private void resend(PendingRequest p, TOMMessageType reqType) {
+		resend(p, reqType, null);
+	}
+
+	// sending may block until previous messages are flushed, so it must not be
+	// done by the threads that receive replies
+	private void resend(PendingRequest p, TOMMessageType reqType, View view) {
+		CompletableFuture.runAsync(() -> {
+			if (view != null && view.getId() > getViewManager().getCurrentViewId()) {
+				reconfigureTo(view);
+			}
+			send(p, reqType);
+		});
+	}
+
+	private void complete(PendingRequest p, byte[] reply) {
+		window.release();
+		p.future.complete(reply);
+	}
+
+	private void fail(PendingRequest p, Throwable cause) {
+		window.release();
+		p.future.completeExceptionally(cause);
+	}
+
+	private static long key(TOMMessageType reqType, int sequence) {
+		return ((long) reqType.ordinal() << 32) | (sequence & 0xffffffffL);
+	}
+
+	private static class PendingRequest {
+
+		private final byte[] request;
+		private final CompletableFuture<byte[]> future;
+
+		// the fields below change when the request is sent again, with a new sequence number
+		private AbstractRequestHandler handler;
+		private HashedWheelTimer.Timeout timeout;
+		private int replicas;
+		private boolean done;
+
+		PendingRequest(byte[] request, CompletableFuture<byte[]> future) {
+			this.request = request;
+			this.future = future;
+		}
+
+		// returns true if the caller is the one to finish this attempt of the request
+		synchronized boolean finish() {
+			if (done) {
+				return false;
+			}
+			done = true;
+			return true;
+		}
+	}
+}
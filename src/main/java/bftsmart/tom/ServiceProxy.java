@@ -192,7 +192,8 @@ public class ServiceProxy extends TOMSender {
 	 *
 	 * @param request Request to be sent
 	 * @param reqType ORDERED_REQUEST/ORDERED_HASHED_REQUEST/UNORDERED_REQUEST/UNORDERED_HASHED_REQUEST
-	 *                   for normal requests, and RECONFIG for reconfiguration requests.
+	 *                   for normal requests, ORDERED_BATCH_REQUEST for requests carrying a vector
+	 *                   of operations (see OperationBatch), and RECONFIG for reconfiguration requests.
 	 *
 	 * @return The reply from the replicas related to request
 	 */
@@ -245,9 +246,9 @@ public class ServiceProxy extends TOMSender {
 				if (response.getViewID() == getViewManager().getCurrentViewId()) {// normal operation
 					return response.getContent();
 				} else if (response.getViewID() > getViewManager().getCurrentViewId()) {
-					if (reqType == TOMMessageType.ORDERED_REQUEST) {
+					if (reqType == TOMMessageType.ORDERED_REQUEST || reqType == TOMMessageType.ORDERED_BATCH_REQUEST) {
 						reconfigureTo((View) TOMUtil.getObject(response.getContent()));
-						return invokeOrdered(request);
+						return invoke(request, reqType);
 					} else if (reqType == TOMMessageType.UNORDERED_REQUEST
 							|| reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
 						// Ignore the response and request again because servers are in a later view
@@ -284,7 +285,7 @@ public class ServiceProxy extends TOMSender {
 	 * @param requestType Request type
 	 * @return Request handler
 	 */
-	private AbstractRequestHandler createRequestHandler(TOMMessageType requestType) {
+	protected AbstractRequestHandler createRequestHandler(TOMMessageType requestType) {
 		AbstractRequestHandler requestHandler;
 		int replyQuorumSize = getReplyQuorum();// size of the reply quorum
 		int sequenceId = generateRequestId(requestType);
@@ -29,19 +29,25 @@ import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ReconfigureReply;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.core.ReadOnlyExecutor;
 import bftsmart.tom.core.ReplyManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.leaderchange.CertifiedDecision;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.Metrics;
+import bftsmart.tom.metrics.MetricsExporter;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Executable;
+import bftsmart.tom.server.ReadViewExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.server.SingleExecutable;
 
 import bftsmart.tom.server.defaultservices.DefaultReplier;
+import bftsmart.tom.server.defaultservices.ParallelRecoverable;
 import bftsmart.tom.util.KeyLoader;
 import bftsmart.tom.util.ShutdownHookThread;
 import bftsmart.tom.util.TOMUtil;
@@ -68,6 +74,11 @@ public class ServiceReplica {
     // Server side comunication system
     private ServerCommunicationSystem cs = null;
     private ReplyManager repMan = null;
+    private MetricsExporter metricsExporter = null;
+    private final Histogram executeLatency;
+    private final Histogram replyLatency;
+    private ReadOnlyExecutor readPool = null;
+    private volatile Object readView = null; // last view published by a ReadViewExecutable
     private ServerViewController SVController;
     private ReentrantLock waitTTPJoinMsgLock = new ReentrantLock();
     private Condition canProceed = waitTTPJoinMsgLock.newCondition();
@@ -137,6 +148,9 @@ public class ServiceReplica {
         this.recoverer = recoverer;
         this.replier = (replier != null ? replier : new DefaultReplier());
         this.verifier = verifier;
+        Metrics metrics = Metrics.of(id);
+        this.executeLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_EXECUTE);
+        this.replyLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_REPLY);
         this.init();
         this.recoverer.setReplicaContext(replicaCtx);
         this.replier.setReplicaContext(replicaCtx);
@@ -188,18 +202,57 @@ public class ServiceReplica {
     private void initReplica() {
         cs.start();
         repMan = new ReplyManager(SVController.getStaticConf().getNumRepliers(), cs);
+        if (SVController.getStaticConf().isMetricsJmx() || SVController.getStaticConf().getMetricsHttpPort() >= 0) {
+            metricsExporter = new MetricsExporter(Metrics.of(id), SVController.getStaticConf().isMetricsJmx(),
+                    SVController.getStaticConf().getMetricsHttpPort());
+        }
+        if (SVController.getStaticConf().getReadOnlyThreads() > 0) {
+            readPool = new ReadOnlyExecutor(SVController.getStaticConf().getReadOnlyThreads(),
+                    SVController.getStaticConf().getReadOnlyMaxPending(),
+                    Metrics.of(id).counter(Metrics.DROPPED_MESSAGES, "reason", "readonly_backlog_full"),
+                    this::executeReadonlyBatch);
+        }
     }
 
     public final void receiveReadonlyMessage(TOMMessage message, MessageContext msgCtx) {
+        if (readPool != null) {
+            readPool.execute(message, msgCtx);
+        } else {
+            executeReadonly(message, msgCtx, readView);
+        }
+    }
+
+    // Executes the unordered requests of a client collected by the read-only
+    // execution pool, all against the same read view
+    private void executeReadonlyBatch(TOMMessage[] messages, MessageContext[] msgCtxs) {
+        Object view = readView;
+        cs.getClientsConn().startBatch();
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                executeReadonly(messages[i], msgCtxs[i], view);
+            }
+        } finally {
+            cs.getClientsConn().flushBatch();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void executeReadonly(TOMMessage message, MessageContext msgCtx, Object view) {
         TOMMessage response;
 
         // This is used to deliver the requests to the application and obtain a reply to deliver
         //to the clients. The raw decision does not need to be delivered to the recoverable since
         // it is not associated with any consensus instance, and therefore there is no need for
         //applications to log it or keep any proof.
-        response = executor.executeUnordered(id, SVController.getCurrentViewId(),
-                (message.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST &&
-                        message.getReplyServer() != this.id),message.getContent(), msgCtx);
+        boolean isReplyHash = message.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST
+                && message.getReplyServer() != this.id;
+        if (view != null) {
+            response = ((ReadViewExecutable<Object>) executor).executeUnordered(view, id,
+                    SVController.getCurrentViewId(), isReplyHash, message.getContent(), msgCtx);
+        } else {
+            response = executor.executeUnordered(id, SVController.getCurrentViewId(), isReplyHash,
+                    message.getContent(), msgCtx);
+        }
 
         if (response != null) {
             if (SVController.getStaticConf().getNumRepliers() > 0) {
@@ -224,6 +277,15 @@ public class ServiceReplica {
                 if (tomLayer != null) {   
                     tomLayer.shutdown();
                 }     
+                if (readPool != null) {
+                    readPool.shutdown();
+                }
+                if (executor instanceof ParallelRecoverable) {
+                    ((ParallelRecoverable) executor).shutdown();
+                }
+                if (metricsExporter != null) {
+                    metricsExporter.shutdown();
+                }
             }
         };
         t.start();
@@ -254,6 +316,15 @@ public class ServiceReplica {
                     tomStackCreated = false;
                     tomLayer = null;
                     cs = null;
+                    if (readPool != null) {
+                        readPool.shutdown();
+                        readPool = null;
+                    }
+                    readView = null;
+                    if (metricsExporter != null) {
+                        metricsExporter.shutdown();
+                        metricsExporter = null;
+                    }
 
                     init();
                     recoverer.setReplicaContext(replicaCtx);
@@ -266,6 +337,16 @@ public class ServiceReplica {
     }
 
     public void receiveMessages(int consId[], int regencies[], int leaders[], CertifiedDecision[] cDecs, TOMMessage[][] requests) {
+        // the replies to the decided requests reach each client with a single flush
+        cs.getClientsConn().startBatch();
+        try {
+            deliverMessages(consId, regencies, leaders, cDecs, requests);
+        } finally {
+            cs.getClientsConn().flushBatch();
+        }
+    }
+
+    private void deliverMessages(int consId[], int regencies[], int leaders[], CertifiedDecision[] cDecs, TOMMessage[][] requests) {
         int numRequests = 0;
         int consensusCount = 0;
         List<TOMMessage> toBatch = new ArrayList<>();
@@ -288,6 +369,10 @@ public class ServiceReplica {
                     } else switch (request.getReqType()) {
                         case ORDERED_REQUEST:
 						case ORDERED_HASHED_REQUEST:
+                        case ORDERED_BATCH_REQUEST:
+                            // a batch request reaches the recoverer and the executor as it was decided, so that
+                            // the log can rebuild the decided value; its operations are unpacked right before
+                            // they are handed to the application (see OperationBatch.execute)
                             noop = false;
                             numRequests++;
                             MessageContext msgCtx = new MessageContext(request.getSender(), request.getViewID(),
@@ -328,11 +413,14 @@ public class ServiceReplica {
 										&& request.getReplyServer() != this.id;
                                 TOMMessage response = ((SingleExecutable) executor).executeOrdered(id,
 										SVController.getCurrentViewId(), isReplyHash, request.getContent(), msgCtx);
+                                long executed = System.nanoTime();
+                                executeLatency.record(executed - request.deliveryTime);
 
                                 if (response != null) {
                                     
                                     logger.debug("sending reply to " + response.getSender());
                                     replier.manageReply(response, msgCtx);
+                                    replyLatency.record(System.nanoTime() - executed);
                                 }
                             } else { //this code should never be executed
                                 throw new UnsupportedOperationException("Non-existent interface");
@@ -418,8 +506,11 @@ public class ServiceReplica {
             msgContexts = msgCtxts.toArray(msgContexts);
             
             //Deliver the batch and wait for replies
+            long start = System.nanoTime();
             TOMMessage[] replies = ((BatchExecutable) executor).executeBatch(id, SVController.getCurrentViewId(),
 					isReplyHashes, batch, msgContexts);
+            long executed = System.nanoTime();
+            executeLatency.record(executed - start);
 
             //Send the replies back to the client
             if (replies != null) {
@@ -435,10 +526,16 @@ public class ServiceReplica {
                         //cs.send(new int[]{request.getSender()}, request.reply);
                     }
                 }
+                replyLatency.record(System.nanoTime() - executed);
             }
             //DEBUG
             logger.debug("BATCHEXECUTOR END");
         }
+
+        // unordered requests received from now on see the requests executed above
+        if (executor instanceof ReadViewExecutable && consId.length > 0) {
+            readView = ((ReadViewExecutable<?>) executor).getReadView(consId[consId.length - 1]);
+        }
     }
 
     /**
@@ -104,6 +104,10 @@ public abstract class AbstractRequestHandler {
 		return sequenceId;
 	}
 
+	public TOMMessageType getRequestType() {
+		return requestType;
+	}
+
 	public int getNumberReceivedReplies() {
 		return replySenders.size();
 	}
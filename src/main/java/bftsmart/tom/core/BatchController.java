@@ -0,0 +1,175 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the size of the batches proposed by the leader, and how long it waits
+ * for a batch to fill, from the load observed by the replica. It keeps moving
+ * averages of the arrival rate of ordered requests, of the latency of consensus
+ * instances and of the time the application takes to execute each request.
+ *
+ * The batch size is the largest one (up to maxbatchsize) whose consensus and
+ * execution fit in the latency target. The leader only waits for more requests
+ * when they arrive faster than consensus instances are decided (i.e., when
+ * larger batches are needed to keep up with the load), and only for as long as
+ * the remaining latency budget allows. Under light load batches are proposed as
+ * soon as there is a request, as with batchtimeout = -1.
+ */
+public class BatchController {
+
+    private static final double ALPHA = 0.2; // weight of new samples in the moving averages
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int maxBatchSize;
+    private final double latencyTarget; // milliseconds
+
+    private final LongAdder arrivals = new LongAdder();
+    private long lastUpdate = System.nanoTime();
+
+    // moving averages, in requests per millisecond and milliseconds
+    private double arrivalRate = 0;
+    private double consensusLatency = -1;
+    private double executionTime = -1;
+
+    private volatile int batchSize;
+    private volatile long waitTime = 0; // nanoseconds
+
+    /**
+     * Constructor
+     *
+     * @param maxBatchSize Upper bound for the batch size
+     * @param latencyTarget Latency target, in milliseconds
+     */
+    public BatchController(int maxBatchSize, int latencyTarget) {
+        this.maxBatchSize = maxBatchSize;
+        this.latencyTarget = latencyTarget;
+        this.batchSize = maxBatchSize;
+    }
+
+    /**
+     * Counts an ordered request received from a client
+     */
+    public void requestArrived() {
+        arrivals.increment();
+    }
+
+    /**
+     * Accounts for a decided consensus instance
+     *
+     * @param nanos Time between the proposal and the decision
+     */
+    public synchronized void consensusDecided(long nanos) {
+        consensusLatency = average(consensusLatency, nanos / 1e6);
+    }
+
+    /**
+     * Accounts for the execution of a set of decided batches
+     *
+     * @param requests Number of requests executed
+     * @param nanos Time taken to execute them and send the replies
+     */
+    public synchronized void executed(int requests, long nanos) {
+        if (requests > 0) {
+            executionTime = average(executionTime, nanos / 1e6 / requests);
+        }
+    }
+
+    /**
+     * Recomputes the batch size and the wait time. Invoked by the proposer
+     * before it builds each batch.
+     */
+    public synchronized void update() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastUpdate) / 1e6;
+        if (elapsed < 1) {
+            return;
+        }
+        lastUpdate = now;
+        arrivalRate = arrivalRate * (1 - ALPHA) + (arrivals.sumThenReset() / elapsed) * ALPHA;
+
+        if (consensusLatency < 0 || executionTime < 0) {
+            return; // nothing was decided yet
+        }
+
+        int size;
+        long wait = 0;
+        double budget = latencyTarget - consensusLatency;
+        if (budget <= executionTime) {
+            // the target cannot be met, so batches are made as large as possible
+            // to drain the pending requests at the highest throughput
+            size = maxBatchSize;
+        } else {
+            size = (int) Math.max(1, Math.min(maxBatchSize, budget / executionTime));
+            double slack = budget - size * executionTime;
+            if (arrivalRate * consensusLatency >= 1 && slack > 0) {
+                wait = (long) (Math.min(slack / 2, size / arrivalRate) * 1e6);
+            }
+        }
+
+        if (size != batchSize || Math.abs(wait - waitTime) > 1000000) {
+            logger.debug("Batch size set to {} and wait time to {} us (arrival rate {} req/ms, "
+                    + "consensus latency {} ms, execution time {} ms/req)", size, wait / 1000,
+                    arrivalRate, consensusLatency, executionTime);
+        }
+        batchSize = size;
+        waitTime = wait;
+    }
+
+    /**
+     * @return The maximum number of requests of the next batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return How long (in nanoseconds) the leader may wait for the next batch to fill
+     */
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return The average arrival rate of ordered requests, in requests per second
+     */
+    public synchronized double getArrivalRate() {
+        return arrivalRate * 1000;
+    }
+
+    /**
+     * @return The average latency of consensus instances, in milliseconds (-1 if unknown)
+     */
+    public synchronized double getConsensusLatency() {
+        return consensusLatency;
+    }
+
+    /**
+     * @return The average execution time of a request, in milliseconds (-1 if unknown)
+     */
+    public synchronized double getExecutionTime() {
+        return executionTime;
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current * (1 - ALPHA) + sample * ALPHA;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import bftsmart.consensus.Consensus;
+import bftsmart.tom.util.IntObjectMap;
+
+/**
+ * Table of the consensus instances kept by the ExecutionManager, indexed by
+ * consensus ID. Instance cid is stored in slot (cid mod capacity) of a fixed
+ * array, which is sized to hold every instance from the oldest one still kept
+ * (checkpoint period instances behind the last executed one) to the end of the
+ * pipeline. Instances that find their slot taken, which only happens when they
+ * are far ahead of (or behind) that window, are kept in an overflow map.
+ *
+ * This class is not thread-safe; the ExecutionManager accesses it while holding
+ * its consensuses lock.
+ */
+final class ConsensusTable {
+
+    private final Consensus[] slots;
+    private final int mask;
+    private final IntObjectMap<Consensus> overflow = new IntObjectMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param window Number of consecutive instances that fit in the array,
+     * rounded up to a power of two
+     */
+    ConsensusTable(int window) {
+        int capacity = 16;
+        while (capacity < window) {
+            capacity <<= 1;
+        }
+        slots = new Consensus[capacity];
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    Consensus get(int cid) {
+        Consensus consensus = slots[cid & mask];
+        if (consensus != null && consensus.getId() == cid) {
+            return consensus;
+        }
+        return overflow.isEmpty() ? null : overflow.get(cid);
+    }
+
+    void put(Consensus consensus) {
+        int i = consensus.getId() & mask;
+        if (slots[i] == null) {
+            slots[i] = consensus;
+        } else {
+            overflow.put(consensus.getId(), consensus);
+        }
+    }
+
+    Consensus remove(int cid) {
+        int i = cid & mask;
+        Consensus consensus = slots[i];
+        if (consensus != null && consensus.getId() == cid) {
+            slots[i] = null;
+            return consensus;
+        }
+        return overflow.isEmpty() ? null : overflow.remove(cid);
+    }
+
+    /**
+     * Removes the instances with IDs in [from, to)
+     */
+    void removeRange(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        if ((long) to - from <= slots.length) {
+            for (int cid = from; cid < to; cid++) {
+                remove(cid);
+            }
+        } else {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null && slots[i].getId() >= from && slots[i].getId() < to) {
+                    slots[i] = null;
+                }
+            }
+            overflow.removeIf(cid -> cid >= from && cid < to);
+        }
+    }
+
+    /**
+     * Removes the instances that are not decided and have IDs above the
+     * specified one
+     *
+     * @return The removed instances, sorted by ID
+     */
+    List<Consensus> removeUndecidedAfter(int id) {
+        List<Consensus> removed = new ArrayList<>();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null && slots[i].getId() > id && !slots[i].isDecided()) {
+                removed.add(slots[i]);
+                slots[i] = null;
+            }
+        }
+        int fromSlots = removed.size();
+        overflow.forEach((consensus, cid) -> {
+            if (cid > id && !consensus.isDecided()) {
+                removed.add(consensus);
+            }
+        });
+        for (int i = fromSlots; i < removed.size(); i++) {
+            overflow.remove(removed.get(i).getId());
+        }
+        removed.sort(Comparator.comparingInt(Consensus::getId));
+        return removed;
+    }
+}
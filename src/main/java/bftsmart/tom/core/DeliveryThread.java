@@ -23,12 +23,15 @@ import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.leaderchange.CertifiedDecision;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.Metrics;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.BatchReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -46,6 +49,8 @@ public final class DeliveryThread extends Thread {
 	private boolean doWork = true;
 	private int lastReconfig = -2;
 	private final LinkedBlockingQueue<Decision> decided;
+	// decisions of pipelined consensus that were reached before the ones that precede them
+	private final TreeMap<Integer, Decision> outOfOrderDecided = new TreeMap<>();
 	private final TOMLayer tomLayer; // TOM layer
 	private final ServiceReplica receiver; // Object that receives requests from clients
 	private final Recoverable recoverer; // Object that uses state transfer
@@ -58,6 +63,10 @@ public final class DeliveryThread extends Thread {
 	private final Condition deliveryPausedCondition = pausingDeliveryLock.newCondition();
 	private int isPauseDelivery;
 
+	// time decisions wait to be delivered, and number of requests decided in each one
+	private final Histogram deliveryLatency;
+	private final Histogram batchSize;
+
 	/**
 	 * Creates a new instance of DeliveryThread
 	 *
@@ -75,6 +84,11 @@ public final class DeliveryThread extends Thread {
 		// ******* EDUARDO BEGIN **************//
 		this.controller = controller;
 		// ******* EDUARDO END **************//
+
+		Metrics metrics = Metrics.of(controller.getStaticConf().getProcessId());
+		this.deliveryLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_DELIVERY);
+		this.batchSize = metrics.histogram(Metrics.BATCH_SIZE, 1);
+		metrics.gauge(Metrics.QUEUE_DEPTH, "queue", "decided", decided::size);
 	}
 
 	public Recoverable getRecoverer() {
@@ -89,6 +103,40 @@ public final class DeliveryThread extends Thread {
 	public void delivery(Decision dec) {
 		decidedLock.lock();
 
+		int lastExec = tomLayer.getLastExec();
+
+		if (tomLayer.getPipelineDepth() > 1 && dec.getConsensusId() > lastExec + 1) {
+			// the application must receive decisions in consensus order
+			logger.debug("Consensus " + dec.getConsensusId() + " finished before consensus " + (lastExec + 1)
+					+ ", holding its decision");
+			outOfOrderDecided.put(dec.getConsensusId(), dec);
+			decidedLock.unlock();
+			return;
+		}
+
+		enqueue(dec);
+
+		// deliver the pipelined decisions that were waiting for this one
+		Decision next;
+		while ((next = outOfOrderDecided.remove(tomLayer.getLastExec() + 1)) != null) {
+			enqueue(next);
+		}
+
+		notEmptyQueue.signalAll();
+		decidedLock.unlock();
+
+		if (tomLayer.getPipelineDepth() > 1 && tomLayer.getLastExec() > lastExec) {
+			tomLayer.acceptor.processHeldAccept(tomLayer.getLastExec() + 1);
+		}
+	}
+
+	/**
+	 * Puts a decision in the decided queue and sets it as the last one from this
+	 * replica. Caller must hold decidedLock.
+	 *
+	 * @param dec Decision to be delivered to the application
+	 */
+	private void enqueue(Decision dec) {
 		try {
 			decided.put(dec);
 
@@ -105,16 +153,13 @@ public final class DeliveryThread extends Thread {
 			// set this decision as the last one from this replica
 			tomLayer.setLastExec(dec.getConsensusId());
 			// define that end of this execution
-			tomLayer.setInExec(-1);
+			tomLayer.removeInExec(dec.getConsensusId());
 		} // else if (tomLayer.controller.getStaticConf().getProcessId() == 0)
 		// System.exit(0);
 		else {
 			logger.debug("Decision from consensus " + dec.getConsensusId() + " has reconfiguration");
 			lastReconfig = dec.getConsensusId();
 		}
-
-		notEmptyQueue.signalAll();
-		decidedLock.unlock();
 	}
 
 	private boolean containsReconfig(Decision dec) {
@@ -210,6 +255,10 @@ public final class DeliveryThread extends Thread {
 		logger.info("Current decided size: " + decided.size());
 		decided.clear();
 
+		decidedLock.lock();
+		outOfOrderDecided.headMap(lastCID, true).clear();
+		decidedLock.unlock();
+
 		logger.info("All finished up to " + lastCID);
 	}
 
@@ -272,8 +321,13 @@ public final class DeliveryThread extends Thread {
 					CertifiedDecision[] cDecs;
 					cDecs = new CertifiedDecision[requests.length];
 					int count = 0;
+					long now = System.nanoTime();
 					for (Decision d : decisions) {
 						requests[count] = extractMessagesFromDecision(d);
+						batchSize.record(requests[count].length);
+						if (d.firstMessageProposed != null && d.firstMessageProposed.decisionTime > 0) {
+							deliveryLatency.record(now - d.firstMessageProposed.decisionTime);
+						}
 						consensusIds[count] = d.getConsensusId();
 						leadersIds[count] = d.getLeader();
 						regenciesIds[count] = d.getRegency();
@@ -294,7 +348,16 @@ public final class DeliveryThread extends Thread {
 
 					Decision lastDecision = decisions.get(decisions.size() - 1);
 
+					long executionStart = System.nanoTime();
 					deliverMessages(consensusIds, regenciesIds, leadersIds, cDecs, requests);
+					BatchController batchController = tomLayer.getBatchController();
+					if (batchController != null) {
+						int executed = 0;
+						for (TOMMessage[] batch : requests) {
+							executed += batch.length;
+						}
+						batchController.executed(executed, System.nanoTime() - executionStart);
+					}
 
 					// ******* EDUARDO BEGIN ***********//
 					if (controller.hasUpdates()) {
@@ -306,10 +369,14 @@ public final class DeliveryThread extends Thread {
 						logger.debug("Setting last executed consensus to " + lastDecision.getConsensusId());
 						tomLayer.setLastExec(lastDecision.getConsensusId());
 						// define that end of this execution
-						tomLayer.setInExec(-1);
+						tomLayer.removeInExec(lastDecision.getConsensusId());
 						// ******* EDUARDO END **************//
 
 						lastReconfig = -2;
+
+						if (tomLayer.getPipelineDepth() > 1) {
+							deliverHeldDecisions();
+						}
 					}
 
 					// define the last stable consensus... the stable consensus can
@@ -317,6 +384,9 @@ public final class DeliveryThread extends Thread {
 					// TODO: Is this part necessary? If it is, can we put it
 					// inside setLastExec
 					int cid = lastDecision.getConsensusId();
+					// the decided batches were executed and logged, so only the most recent
+					// ones are kept in memory, to be forwarded to other replicas
+					tomLayer.execManager.releaseDecided(cid - controller.getStaticConf().getRetainedDecisions());
 					if (cid >= controller.getStaticConf().getCheckpointPeriod()) {
 						int stableConsensus = cid - controller.getStaticConf().getCheckpointPeriod();
 						// How to avoid memory problems? (make sure sufficient memory is available)
@@ -336,6 +406,22 @@ public final class DeliveryThread extends Thread {
 
 	}
 
+	/**
+	 * Delivers the pipelined decisions that were held while a reconfiguration
+	 * was being executed, and resumes the consensus following them.
+	 */
+	private void deliverHeldDecisions() {
+		decidedLock.lock();
+		Decision next;
+		while (lastReconfig == -2 && (next = outOfOrderDecided.remove(tomLayer.getLastExec() + 1)) != null) {
+			enqueue(next);
+		}
+		notEmptyQueue.signalAll();
+		decidedLock.unlock();
+
+		tomLayer.acceptor.processHeldAccept(tomLayer.getLastExec() + 1);
+	}
+
 	private TOMMessage[] extractMessagesFromDecision(Decision dec) {
 		TOMMessage[] requests = dec.getDeserializedValue();
 		if (requests == null) {
@@ -27,6 +27,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.IntObjectMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,12 +51,12 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Consensus> consensuses = new TreeMap<Integer, Consensus>(); // Consensuses
+    private ConsensusTable consensuses; // Consensuses, indexed by their IDs
     private ReentrantLock consensusesLock = new ReentrantLock(); //lock for consensuses table
     // Paxos messages that were out of context (that didn't belong to the consensus that was/is is progress
-    private Map<Integer, List<ConsensusMessage>> outOfContext = new HashMap<Integer, List<ConsensusMessage>>();
+    private IntObjectMap<List<ConsensusMessage>> outOfContext = new IntObjectMap<List<ConsensusMessage>>();
     // Proposes that were out of context (that belonged to future consensuses, and not the one running at the time)
-    private Map<Integer, ConsensusMessage> outOfContextProposes = new HashMap<Integer, ConsensusMessage>();
+    private IntObjectMap<ConsensusMessage> outOfContextProposes = new IntObjectMap<ConsensusMessage>();
     private ReentrantLock outOfContextLock = new ReentrantLock(); //lock for out of context
     private boolean stopped = false; // Is the execution manager stopped?
     // When the execution manager is stopped, incoming paxos messages are stored here
@@ -76,6 +77,7 @@ public final class ExecutionManager {
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
 
     private int lastRemovedCID = 0; // Addition to fix memory leak
+    private int lastReleasedCID = -1; // last consensus whose decided value was released
 
     /******************************************************************/
 
@@ -106,6 +108,9 @@ public final class ExecutionManager {
         /******************************************************************/
         //******* EDUARDO END **************//
 
+        this.consensuses = new ConsensusTable(this.controller.getStaticConf().getCheckpointPeriod()
+                + this.controller.getStaticConf().getPipelineDepth() + 1);
+
         // Get initial leader
         if (controller.getCurrentViewAcceptors().length > 0)
             currentLeader = controller.getCurrentViewAcceptors()[0];
@@ -253,9 +258,9 @@ public final class ExecutionManager {
                 stoppedMsgsLock.unlock();
             } else {
                 if (isRetrievingState ||
-                        msg.getNumber() > (lastConsId + 1) ||
-                        (inExec != -1 && inExec < msg.getNumber()) ||
-                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        msg.getNumber() > (lastConsId + tomLayer.getPipelineDepth()) || //beyond the pipeline
+                        (!tomLayer.isInExec(msg.getNumber()) && msg.getType() != MessageFactory.PROPOSE) || //not propose message for a consensus not in execution
+                        (msg.getNumber() > (lastConsId + 1) && !tomLayer.isInExec(msg.getNumber() - 1))) { //previous consensus in the pipeline not started yet
                     logger.debug("Message for consensus " +
                             msg.getNumber() + " is out of context, adding it to out of context set");
 
@@ -391,7 +396,7 @@ public final class ExecutionManager {
         Consensus consensus = consensuses.remove(id);
 
         // Addition to fix memory leak
-        for (int i = lastRemovedCID; i < id; i++) consensuses.remove(i);
+        consensuses.removeRange(lastRemovedCID, id);
         lastRemovedCID = id;
 
         /******* END CONSENSUS CRITICAL SECTION *******/
@@ -421,26 +426,37 @@ public final class ExecutionManager {
         return consensus;
     }
 
+    /**
+     * Removes the undecided consensus instances that come after the specified one,
+     * together with the out of context proposes received for them. This is
+     * used to discard the instances pipelined by a previous leader.
+     *
+     * @param id ID of the last consensus to be kept
+     * @return The consensus instances that were removed
+     */
+    public List<Consensus> removePipelinedConsensuses(int id) {
+        consensusesLock.lock();
+        /******* BEGIN CONSENSUS CRITICAL SECTION *******/
+        List<Consensus> removed = consensuses.removeUndecidedAfter(id);
+        /******* END CONSENSUS CRITICAL SECTION *******/
+        consensusesLock.unlock();
+
+        outOfContextLock.lock();
+        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextProposes.removeIf(cid -> cid > id);
+        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextLock.unlock();
+
+        return removed;
+    }
+
     /** THIS IS JOAO'S CODE, FOR HANDLING THE STATE TRANSFER */
     public void removeOutOfContexts(int id) {
 
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        Integer[] keys = new Integer[outOfContextProposes.keySet().size()];
-        outOfContextProposes.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContextProposes.remove(keys[i]);
-            }
-        }
-
-        keys = new Integer[outOfContext.keySet().size()];
-        outOfContext.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContext.remove(keys[i]);
-            }
-        }
+        outOfContextProposes.removeIf(cid -> cid <= id);
+        outOfContext.removeIf(cid -> cid <= id);
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextLock.unlock();
@@ -466,7 +482,7 @@ public final class ExecutionManager {
             consensus = new Consensus(this, dec);
 
             //...and add it to the consensuses table
-            consensuses.put(cid, consensus);
+            consensuses.put(consensus);
         }
 
         /******* END CONSENSUS CRITICAL SECTION *******/
@@ -475,6 +491,58 @@ public final class ExecutionManager {
         return consensus;
     }
 
+    /**
+     * Returns the specified consensus, without creating it if it does not exist
+     *
+     * @param cid ID of the consensus to be returned
+     * @return The consensus specified, or null if there is no such consensus
+     */
+    public Consensus findConsensus(int cid) {
+        consensusesLock.lock();
+        Consensus consensus = consensuses.get(cid);
+        consensusesLock.unlock();
+
+        return consensus;
+    }
+
+    /**
+     * Releases the values decided in the consensus instances up to the specified
+     * one, which must already be executed and logged. The instances themselves
+     * (and the hashes of their values) are kept until removeConsensus() is called
+     * for them.
+     *
+     * @param cid ID of the last consensus whose value can be released
+     */
+    public void releaseDecided(int cid) {
+        // the last executed instance is always kept, since leader changes send its value
+        cid = Math.min(cid, tomLayer.getLastExec() - 1);
+
+        consensusesLock.lock();
+        /******* BEGIN CONSENSUS CRITICAL SECTION *******/
+        int from = Math.max(lastReleasedCID + 1, Math.max(lastRemovedCID, cid - consensuses.capacity() + 1));
+        List<Consensus> toRelease = new ArrayList<>(Math.max(0, cid - from + 1));
+        for (int i = from; i <= cid; i++) {
+            Consensus consensus = consensuses.get(i);
+            if (consensus != null && consensus.isDecided()) {
+                toRelease.add(consensus);
+            }
+        }
+        if (cid > lastReleasedCID) {
+            lastReleasedCID = cid;
+        }
+        /******* END CONSENSUS CRITICAL SECTION *******/
+        consensusesLock.unlock();
+
+        // an instance being used by the acceptor (e.g., to forward its decision)
+        // is skipped, and only freed when it is removed
+        for (Consensus consensus : toRelease) {
+            if (consensus.lock.tryLock()) {
+                consensus.releasePayload();
+                consensus.lock.unlock();
+            }
+        }
+    }
+
     public boolean isDecidable(int cid) {
         if (receivedOutOfContextPropose(cid)) {
             Consensus cons = getConsensus(cid);
@@ -644,7 +712,7 @@ public final class ExecutionManager {
 
                 logger.debug("ExecutionManager.checkRequestDecision: I have " + countAccepts + " Accepts for cid " + cid);
 
-                if (countAccepts > controller.getCurrentViewF() && !epoch.decisionRequested &&
+                if (countAccepts > controller.getCurrentViewF() && !epoch.getConsensus().isDecided() && !epoch.decisionRequested &&
                         (epoch.propValue == null || !Arrays.equals(epoch.propValueHash, message.getValue()))) {
 
                     logger.debug("ExecutionManager.checkRequestDecision: No Propose, or propose mismatch, I request a decision from others");
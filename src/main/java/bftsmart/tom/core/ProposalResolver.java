@@ -0,0 +1,437 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.DigestBatch;
+import bftsmart.tom.util.HashedBatch;
+import bftsmart.tom.util.HashedWheelTimer;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Rebuilds the batches of digest-only PROPOSE messages (see DigestBatch) from the
+ * requests this replica received from the clients. Requests that were not
+ * received yet are fetched from the leader (and, if the leader does not have
+ * them, from the other replicas of the view), and the PROPOSE is delivered to
+ * the acceptor again once they arrive. A fetch that is not answered in time
+ * is repeated, with an increasing delay, until the consensus instance is decided
+ * or its leader is replaced. The PROPOSE is also delivered again when a missing
+ * request is received from its client in the meantime.
+ *
+ * The rebuilt batch is identical to the one the leader built, so the consensus
+ * itself (hashes, decisions, logs and leader change) only ever sees full batches.
+ *
+ * The requests relayed in STOP messages are also sent as digests, and resolved
+ * in the same way, except that missing requests are fetched from the sender of
+ * the STOP and handed to the TOM layer as if they were forwarded by it.
+ */
+public final class ProposalResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // delay before a fetch is repeated (first to the leader, then to the other
+    // replicas), doubled at each attempt up to the maximum
+    private static final long FETCH_TIMEOUT = 200;
+    private static final long MAX_FETCH_TIMEOUT = 5000;
+
+    private final TOMLayer tomLayer;
+    private final ServerCommunicationSystem communication;
+    private final ServerViewController controller;
+    private final int me;
+    private final boolean useSignatures;
+
+    private final MessageDigest md;
+    private final BatchBuilder bb = new BatchBuilder(0);
+
+    // proposals waiting for missing requests, by consensus id
+    private final TreeMap<Integer, PendingProposal> waiting = new TreeMap<>();
+
+    public ProposalResolver(TOMLayer tomLayer, ServerCommunicationSystem communication,
+            ServerViewController controller) {
+        this.tomLayer = tomLayer;
+        this.communication = communication;
+        this.controller = controller;
+        this.me = controller.getStaticConf().getProcessId();
+        this.useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+        try {
+            this.md = TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to create the request hash engine", e);
+        }
+    }
+
+    /**
+     * Rebuilds the batch of a digest-only PROPOSE. If some requests are missing,
+     * they are fetched and null is returned; the PROPOSE is delivered again to the
+     * acceptor when they arrive. A malformed proposal is returned unchanged, so that
+     * it is rejected as any other invalid value.
+     *
+     * @param propose The PROPOSE message, carrying a digest batch
+     * @return The full batch, or null if it can not be rebuilt yet
+     */
+    public byte[] resolve(ConsensusMessage propose) {
+        int[] targets = null;
+        RequestFetchMessage fetch = null;
+
+        synchronized (this) {
+            Map<Integer, PendingProposal> decided = waiting.headMap(tomLayer.getLastExec(), true);
+            for (PendingProposal old : decided.values()) {
+                old.cancelRetry();
+            }
+            decided.clear();
+
+            DigestBatch batch;
+            try {
+                batch = DigestBatch.fromBytes(propose.getValue());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Received malformed digest batch from " + propose.getSender(), e);
+                return propose.getValue();
+            }
+
+            int cid = propose.getNumber();
+            PendingProposal pending = waiting.get(cid);
+            if (pending != null && pending.propose.getSender() != propose.getSender()) {
+                // proposed by a previous leader
+                pending.cancelRetry();
+                pending = null;
+                waiting.remove(cid);
+            }
+
+            List<TOMMessage> requests = new ArrayList<>(batch.size());
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                TOMMessage request = findRequest(batch.getSender(i), batch.getSequence(i), batch.getDigest(i));
+                if (request == null && pending != null) {
+                    request = pending.fetched.get(ByteBuffer.wrap(batch.getDigest(i)));
+                }
+                if (request == null) {
+                    missing.add(i);
+                }
+                requests.add(request);
+            }
+
+            if (missing.isEmpty()) {
+                if (pending != null) {
+                    pending.cancelRetry();
+                }
+                waiting.remove(cid);
+                // hashed while rebuilt, so the acceptor does not hash it again
+                HashedBatch full = bb.makeHashedBatch(requests, batch.getNumberOfNonces(), batch.getSeed(),
+                        batch.getTimestamp(), useSignatures, false);
+                tomLayer.addBuiltValue(full);
+                return full.getValue();
+            }
+
+            if (pending == null) {
+                pending = new PendingProposal(propose);
+                waiting.put(cid, pending);
+            }
+
+            if (!pending.fetching) {
+                int[] senders = new int[missing.size()];
+                int[] sequences = new int[missing.size()];
+                byte[][] digests = new byte[missing.size()][];
+                for (int j = 0; j < senders.length; j++) {
+                    int i = missing.get(j);
+                    senders[j] = batch.getSender(i);
+                    sequences[j] = batch.getSequence(i);
+                    digests[j] = batch.getDigest(i);
+                    pending.wanted.add(ByteBuffer.wrap(digests[j]));
+                }
+                fetch = new RequestFetchMessage(me, cid, senders, sequences, digests);
+                targets = pending.attempts == 0 ? new int[] { propose.getSender() }
+                        : controller.getCurrentViewOtherAcceptors();
+                pending.attempts++;
+                pending.fetching = true;
+                scheduleRetry(cid, pending);
+            }
+
+            logger.debug("Missing {} of the {} requests proposed for cId:{}", missing.size(), batch.size(), cid);
+        }
+
+        if (fetch != null) {
+            communication.send(targets, fetch);
+        }
+        return null;
+    }
+
+    /**
+     * Called when a request to be ordered is received, so that the proposals that
+     * are waiting for it are resolved without waiting for the fetch
+     *
+     * @param request The request
+     */
+    public void requestArrived(TOMMessage request) {
+        ConsensusMessage propose = null;
+
+        synchronized (this) {
+            if (waiting.isEmpty()) {
+                return;
+            }
+            ByteBuffer digest = ByteBuffer.wrap(DigestBatch.digest(md, request, useSignatures));
+            for (PendingProposal pending : waiting.values()) {
+                if (pending.wanted.contains(digest)) {
+                    propose = pending.propose;
+                    break;
+                }
+            }
+        }
+
+        if (propose != null) {
+            // the caller may be a client connection thread, which must not block on the in queue
+            // (if the in queue is full, the retry of the fetch delivers it later)
+            ConsensusMessage resume = propose;
+            tomLayer.getTimer().schedule(() -> redeliver(resume), 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Builds the payload of a STOP message, which carries the ids and digests of
+     * the requests to be relayed
+     *
+     * @param requests The requests to relay
+     * @return The requests in the digest batch format
+     */
+    public synchronized byte[] digestRequests(List<TOMMessage> requests) {
+        int[] senders = new int[requests.size()];
+        int[] sequences = new int[requests.size()];
+        byte[][] digests = new byte[requests.size()][];
+        int i = 0;
+        for (TOMMessage request : requests) {
+            senders[i] = request.getSender();
+            sequences[i] = request.getSequence();
+            digests[i++] = DigestBatch.digest(md, request, useSignatures);
+        }
+        return new DigestBatch(0, 0, 0, senders, sequences, digests).toBytes();
+    }
+
+    /**
+     * Resolves the requests relayed in a STOP message. The requests that this
+     * replica did not receive are fetched from the sender of the STOP, and
+     * delivered to the TOM layer when they arrive.
+     *
+     * @param sender Replica that sent the STOP
+     * @param payload Payload of the STOP, built by digestRequests()
+     * @return The requests that this replica already has
+     */
+    public TOMMessage[] resolveSTOP(int sender, byte[] payload) {
+        List<TOMMessage> found = new ArrayList<>();
+        RequestFetchMessage fetch;
+
+        synchronized (this) {
+            DigestBatch batch;
+            try {
+                batch = DigestBatch.fromBytes(payload);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Received malformed STOP from " + sender, e);
+                return new TOMMessage[0];
+            }
+
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                TOMMessage request = findRequest(batch.getSender(i), batch.getSequence(i), batch.getDigest(i));
+                if (request != null) {
+                    found.add(request);
+                } else {
+                    missing.add(i);
+                }
+            }
+            if (missing.isEmpty()) {
+                return found.toArray(new TOMMessage[0]);
+            }
+
+            int[] senders = new int[missing.size()];
+            int[] sequences = new int[missing.size()];
+            byte[][] digests = new byte[missing.size()][];
+            for (int j = 0; j < senders.length; j++) {
+                int i = missing.get(j);
+                senders[j] = batch.getSender(i);
+                sequences[j] = batch.getSequence(i);
+                digests[j] = batch.getDigest(i);
+            }
+            fetch = new RequestFetchMessage(me, RequestFetchMessage.STOP, senders, sequences, digests);
+            logger.debug("Fetching {} of the {} requests relayed by replica {}", senders.length, batch.size(), sender);
+        }
+
+        communication.send(new int[] { sender }, fetch);
+        return found.toArray(new TOMMessage[0]);
+    }
+
+    /**
+     * Called when a fetch request or reply is received from another replica
+     *
+     * @param msg The message received
+     */
+    public void fetchReceived(RequestFetchMessage msg) {
+        if (msg.isReply()) {
+            replyReceived(msg);
+        } else {
+            requestReceived(msg);
+        }
+    }
+
+    private void requestReceived(RequestFetchMessage msg) {
+        List<TOMMessage> found = new ArrayList<>();
+
+        synchronized (this) {
+            int[] senders = msg.getSenders();
+            for (int i = 0; i < senders.length; i++) {
+                TOMMessage request = findRequest(senders[i], msg.getSequences()[i], msg.getDigests()[i]);
+                if (request == null) {
+                    ByteBuffer digest = ByteBuffer.wrap(msg.getDigests()[i]);
+                    for (PendingProposal pending : waiting.values()) {
+                        if ((request = pending.fetched.get(digest)) != null) {
+                            break;
+                        }
+                    }
+                }
+                if (request != null) {
+                    found.add(request);
+                }
+            }
+        }
+
+        logger.debug("Sending {} of the {} requests asked by replica {} for cId:{}", found.size(),
+                msg.getSenders().length, msg.getSender(), msg.getCID());
+        communication.send(new int[] { msg.getSender() },
+                new RequestFetchMessage(me, msg.getCID(), found.toArray(new TOMMessage[0])));
+    }
+
+    private void replyReceived(RequestFetchMessage msg) {
+        if (msg.getCID() == RequestFetchMessage.STOP) {
+            // relayed requests are handled as requests forwarded by the replica
+            for (TOMMessage request : msg.getRequests()) {
+                tomLayer.requestReceived(request, false);
+            }
+            return;
+        }
+
+        ConsensusMessage propose;
+
+        synchronized (this) {
+            PendingProposal pending = waiting.get(msg.getCID());
+            if (pending == null) {
+                return;
+            }
+            for (TOMMessage request : msg.getRequests()) {
+                ByteBuffer digest = ByteBuffer.wrap(DigestBatch.digest(md, request, useSignatures));
+                if (pending.wanted.contains(digest)) {
+                    pending.fetched.put(digest, request);
+                } else {
+                    logger.warn("Replica {} sent a request that was not asked for in cId:{}", msg.getSender(),
+                            msg.getCID());
+                }
+            }
+            // the fetch is only repeated when it times out, so that partial replies
+            // from several replicas do not each trigger a new fetch
+            propose = pending.propose;
+        }
+
+        // processed outside of the lock, since the acceptor calls resolve() holding the consensus lock
+        tomLayer.acceptor.deliver(propose);
+    }
+
+    // must be called while holding the lock of this object
+    private void scheduleRetry(int cid, PendingProposal pending) {
+        long delay = Math.min(MAX_FETCH_TIMEOUT, FETCH_TIMEOUT << Math.min(pending.attempts - 1, 16));
+        pending.retry = tomLayer.getTimer().schedule(() -> fetchTimedOut(cid, pending), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fetchTimedOut(int cid, PendingProposal pending) {
+        ConsensusMessage propose;
+
+        synchronized (this) {
+            if (waiting.get(cid) != pending) {
+                return; // resolved or replaced in the meantime
+            }
+            if (cid <= tomLayer.getLastExec()
+                    || pending.propose.getSender() != tomLayer.execManager.getCurrentLeader()) {
+                // decided, or the epoch was abandoned by a leader change
+                waiting.remove(cid);
+                return;
+            }
+            logger.debug("Fetch of the requests proposed for cId:{} timed out (attempt {})", cid, pending.attempts);
+            pending.fetching = false;
+            propose = pending.propose;
+        }
+
+        if (!redeliver(propose)) {
+            synchronized (this) {
+                if (waiting.get(cid) == pending) {
+                    scheduleRetry(cid, pending);
+                }
+            }
+        }
+    }
+
+    // delivers the PROPOSE again through the in queue, so that it is processed by
+    // the same thread as the other consensus messages, and resolve() fetches again.
+    // Runs in the timer thread, so it does not wait if the in queue is full
+    private boolean redeliver(ConsensusMessage propose) {
+        return communication.getServersConn().deliverLocally(propose);
+    }
+
+    // looks for a request among the ones received from the client
+    private TOMMessage findRequest(int sender, int sequence, byte[] digest) {
+        for (TOMMessage request : tomLayer.clientsManager.getBySequence(sender, sequence)) {
+            if (request != null && Arrays.equals(digest, DigestBatch.digest(md, request, useSignatures))) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private static class PendingProposal {
+
+        private final ConsensusMessage propose;
+        private final Set<ByteBuffer> wanted = new HashSet<>();
+        private final Map<ByteBuffer, TOMMessage> fetched = new HashMap<>();
+        private int attempts = 0;
+        private boolean fetching = false;
+        private HashedWheelTimer.Timeout retry = null;
+
+        PendingProposal(ConsensusMessage propose) {
+            this.propose = propose;
+        }
+
+        void cancelRetry() {
+            if (retry != null) {
+                retry.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Pool of threads that execute unordered requests. Each client has a queue of
+ * pending requests, which is drained by one thread at a time, so the requests of
+ * a client are executed in the order in which they were received. The requests
+ * that are pending when a thread drains a queue are executed together, as a
+ * batch.
+ *
+ * The queue of a client is removed once it is drained, and a client cannot have
+ * more than a configured number of pending requests; requests beyond that are
+ * discarded.
+ */
+public class ReadOnlyExecutor {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ExecutorService workers;
+    private final BiConsumer<TOMMessage[], MessageContext[]> handler;
+    private final Map<Integer, ClientQueue> queues = new ConcurrentHashMap<>();
+    private final int maxPending;
+    private final LongAdder drops;
+
+    /**
+     * Creates the pool and its threads
+     *
+     * @param nThreads Number of threads
+     * @param maxPending Maximum number of pending requests of each client
+     * @param drops Counter of the requests discarded
+     * @param handler Executes a batch of unordered requests from the same client
+     *        and sends their replies
+     */
+    public ReadOnlyExecutor(int nThreads, int maxPending, LongAdder drops,
+            BiConsumer<TOMMessage[], MessageContext[]> handler) {
+        this.handler = handler;
+        this.maxPending = maxPending;
+        this.drops = drops;
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "Read-only execution thread " + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Enqueues an unordered request for execution
+     *
+     * @param request The request
+     * @param msgCtx The context associated to the request
+     */
+    public void execute(TOMMessage request, MessageContext msgCtx) {
+        ClientQueue queue;
+        boolean schedule;
+        while (true) {
+            queue = queues.computeIfAbsent(request.getSender(), ClientQueue::new);
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue; // drained and removed in the meantime
+                }
+                if (queue.requests.size() >= maxPending) {
+                    logger.warn("Too many pending unordered requests from client {}, discarding request {}",
+                            request.getSender(), request.getSequence());
+                    drops.increment();
+                    return;
+                }
+                queue.requests.add(request);
+                queue.contexts.add(msgCtx);
+                schedule = !queue.scheduled;
+                queue.scheduled = true;
+            }
+            break;
+        }
+        if (schedule) {
+            ClientQueue scheduled = queue;
+            try {
+                workers.execute(() -> drain(scheduled));
+            } catch (RejectedExecutionException e) {
+                logger.debug("Read-only execution pool is shut down, discarding requests from client {}",
+                        request.getSender());
+                synchronized (queue) {
+                    queue.requests.clear();
+                    queue.contexts.clear();
+                    queue.scheduled = false;
+                    queue.removed = true;
+                    queues.remove(queue.client, queue);
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void drain(ClientQueue queue) {
+        while (true) {
+            TOMMessage[] requests;
+            MessageContext[] contexts;
+            synchronized (queue) {
+                if (queue.requests.isEmpty()) {
+                    queue.scheduled = false;
+                    queue.removed = true;
+                    queues.remove(queue.client, queue);
+                    return;
+                }
+                requests = queue.requests.toArray(new TOMMessage[queue.requests.size()]);
+                contexts = queue.contexts.toArray(new MessageContext[queue.contexts.size()]);
+                queue.requests.clear();
+                queue.contexts.clear();
+            }
+            try {
+                handler.accept(requests, contexts);
+            } catch (RuntimeException e) {
+                logger.error("Failed to execute unordered requests from client " + requests[0].getSender(), e);
+            }
+        }
+    }
+
+    private static class ClientQueue {
+        private final int client;
+        private final List<TOMMessage> requests = new ArrayList<>();
+        private final List<MessageContext> contexts = new ArrayList<>();
+        private boolean scheduled = false;
+        private boolean removed = false;
+
+        ClientQueue(int client) {
+            this.client = client;
+        }
+    }
+}
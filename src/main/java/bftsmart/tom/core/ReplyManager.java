@@ -7,6 +7,7 @@ package bftsmart.tom.core;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.tom.core.messages.TOMMessage;
 import io.netty.channel.Channel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -26,13 +27,11 @@ import org.slf4j.LoggerFactory;
  */
 public class ReplyManager {
         
-    private LinkedList<ReplyThread> threads;
-    private int iteration;
+    private ArrayList<ReplyThread> threads;
     
     public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
         
-        this.threads = new LinkedList();
-        this.iteration = 0;
+        this.threads = new ArrayList<>();
         
         for (int i = 0; i < numThreads; i++) {
             this.threads.add(new ReplyThread(cs));
@@ -44,8 +43,8 @@ public class ReplyManager {
     
     public void send (TOMMessage msg) {
         
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+        // replies to the same client are always sent by the same thread, and thus in order
+        threads.get(Math.abs(msg.getSender() % threads.size())).send(msg);
 
     }
 }
@@ -91,9 +90,15 @@ class ReplyThread extends Thread {
                 replies.drainTo(list);
                 queueLock.unlock();
                 
-                for (TOMMessage msg : list) {
-                    
-                    cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);             
+                // the replies drained together are flushed once per client
+                cs.getClientsConn().startBatch();
+                try {
+                    for (TOMMessage msg : list) {
+
+                        cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);
+                    }
+                } finally {
+                    cs.getClientsConn().flushBatch();
                 }
             } catch (InterruptedException ex) {
                 LoggerFactory.getLogger(this.getClass()).error("Could not retrieve reply from queue",ex);
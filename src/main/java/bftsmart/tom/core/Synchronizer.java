@@ -6,6 +6,7 @@
 package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.consensus.Decision;
 import bftsmart.consensus.Epoch;
 import bftsmart.consensus.Consensus;
@@ -21,17 +22,15 @@ import bftsmart.tom.leaderchange.CollectData;
 import bftsmart.tom.leaderchange.LCManager;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.leaderchange.CertifiedDecision;
-import bftsmart.tom.util.BatchBuilder;
-import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.leaderchange.SignedCollect;
 import bftsmart.tom.util.TOMUtil;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.security.MessageDigest;
-import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -69,7 +68,6 @@ public class Synchronizer {
     private final RequestsTimer requestsTimer;
     private final ExecutionManager execManager;
     private final ServerViewController controller;
-    private final BatchBuilder bb;
     private final ServerCommunicationSystem communication;
     private final StateManager stateManager;
     private final Acceptor acceptor;
@@ -79,7 +77,7 @@ public class Synchronizer {
     // if state transfer is required for synchronization
     private int tempRegency = -1;
     private CertifiedDecision tempLastHighestCID = null;
-    private HashSet<SignedObject> tempSignedCollects = null;
+    private HashSet<SignedCollect> tempSignedCollects = null;
     private byte[] tempPropose = null;
     private int tempBatchSize = -1;
     private boolean tempIAmLeader = false;
@@ -92,7 +90,6 @@ public class Synchronizer {
         this.requestsTimer = this.tom.requestsTimer;
         this.execManager = this.tom.execManager;
         this.controller = this.tom.controller;
-        this.bb = this.tom.bb;
         this.communication = this.tom.getCommunication();
         this.stateManager = this.tom.stateManager;
         this.acceptor = this.tom.acceptor;
@@ -115,9 +112,6 @@ public class Synchronizer {
      */
     public void triggerTimeout(List<TOMMessage> requestList) {
 
-        ObjectOutputStream out = null;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
         int regency = lcManager.getNextReg();
         
         requestsTimer.stopTimer();
@@ -143,47 +137,7 @@ public class Synchronizer {
             addSTOPedRequestsToClientManager();
             List<TOMMessage> messages = getRequestsToRelay();
 
-            try { // serialize content to send in STOP message
-                out = new ObjectOutputStream(bos);
-
-                if (messages != null && messages.size() > 0) {
-
-					//TODO: If this is null, then there was no timeout nor STOP messages.
-                    //What to do?
-                    byte[] serialized = bb.makeBatch(messages, 0, 0, controller.getStaticConf().getUseSignatures() == 1);
-                    out.writeBoolean(true);
-                    out.writeObject(serialized);
-                } else {
-                    out.writeBoolean(false);
-                    logger.warn("Strange... did not include any request in my STOP message for regency " + regency);
-                }
-
-                out.flush();
-                bos.flush();
-
-                byte[] payload = bos.toByteArray();
-
-                out.close();
-                bos.close();
-
-                // send STOP-message                
-                logger.info("Sending STOP message to install regency " + regency + " with " + (messages != null ? messages.size() : 0) + " request(s) to relay");
-                
-                LCMessage stop = new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload);
-                requestsTimer.setSTOP(regency, stop); // make replica re-transmit the stop message until a new regency is installed
-                communication.send(this.controller.getCurrentViewOtherAcceptors(), stop);
-
-            } catch (IOException ex) {
-                logger.error("Could not serialize STOP message", ex);
-            } finally {
-                try {
-                    out.close();
-                    bos.close();
-                } catch (IOException ex) {
-                    logger.error("Could not serialize STOP message", ex);
-                }
-            }
-
+            sendSTOP(regency, messages);
         }
 
         processOutOfContextSTOPs(regency); // the replica might have received STOPs
@@ -194,6 +148,32 @@ public class Synchronizer {
                 
     }
 
+    // Sends a STOP message with the ids and digests of the requests to relay. The other
+    // replicas usually received the requests from the clients, and fetch the ones they
+    // did not, so the size of the message does not depend on the size of the requests
+    private void sendSTOP(int regency, List<TOMMessage> messages) {
+
+        if (messages.isEmpty()) {
+            //TODO: If this is empty, then there was no timeout nor STOP messages.
+            //What to do?
+            logger.warn("Strange... did not include any request in my STOP message for regency " + regency);
+        }
+
+        byte[] payload = tom.getProposalResolver().digestRequests(messages);
+
+        // the proofs of the last decisions will be shown to the other replicas, so
+        // the ACCEPT messages sent with MAC vectors must be signed now
+        tom.acceptor.signAccepts(tom.getLastExec() - tom.getPipelineDepth() + 1,
+                tom.getLastExec() + tom.getPipelineDepth());
+
+        // send STOP-message
+        logger.info("Sending STOP message to install regency " + regency + " with " + messages.size() + " request(s) to relay");
+
+        LCMessage stop = new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload);
+        requestsTimer.setSTOP(regency, stop); // make replica re-transmit the stop message until a new regency is installed
+        communication.send(this.controller.getCurrentViewOtherAcceptors(), stop);
+    }
+
     // Processes STOP messages that were not process upon reception, because they were
     // ahead of the replica's expected regency
     private void processOutOfContextSTOPs(int regency) {
@@ -209,7 +189,7 @@ public class Synchronizer {
         }
 
         for (LCMessage m : stops) {
-            TOMMessage[] requests = deserializeTOMMessages(m.getPayload());
+            TOMMessage[] requests = deserializeTOMMessages(m);
 
             // store requests that came with the STOP message
             lcManager.addRequestsFromSTOP(requests);
@@ -225,26 +205,24 @@ public class Synchronizer {
 
         //TODO: It is necessary to verify the proof of the last decided consensus and the signature of the state of the current consensus!
         CertifiedDecision lastData = null;
-        SignedObject signedCollect = null;
+        SignedCollect signedCollect = null;
 
         int last = -1;
         byte[] lastValue = null;
         Set<ConsensusMessage> proof = null;
 
-        ByteArrayInputStream bis;
-        ObjectInputStream ois;
+        DataInputStream in;
 
         try { // deserialize the content of the message
 
-            bis = new ByteArrayInputStream(msg.getPayload());
-            ois = new ObjectInputStream(bis);
+            in = new DataInputStream(new ByteArrayInputStream(msg.getPayload()));
 
-            if (ois.readBoolean()) { // content of the last decided cid
+            if (in.readBoolean()) { // content of the last decided cid
 
-                last = ois.readInt();
+                last = in.readInt();
 
-                lastValue = (byte[]) ois.readObject();
-                proof = (Set<ConsensusMessage>) ois.readObject();
+                lastValue = SystemMessageCodec.readBytes(in);
+                proof = CertifiedDecision.readProof(in);
 
                 //TODO: Proof is missing!
             }
@@ -253,10 +231,7 @@ public class Synchronizer {
 
             lcManager.addLastCID(regency, lastData);
 
-            signedCollect = (SignedObject) ois.readObject();
-
-            ois.close();
-            bis.close();
+            signedCollect = SignedCollect.read(in);
 
             lcManager.addCollect(regency, signedCollect);
 
@@ -286,22 +261,30 @@ public class Synchronizer {
         
         CertifiedDecision lastHighestCID = null;
         int currentCID = -1;
-        HashSet<SignedObject> signedCollects = null;
+        HashSet<SignedCollect> signedCollects = null;
         byte[] propose = null;
         int batchSize = -1;
 
-        ByteArrayInputStream bis;
-        ObjectInputStream ois;
+        DataInputStream in;
 
         try { // deserialization of the message content
 
-            bis = new ByteArrayInputStream(payload);
-            ois = new ObjectInputStream(bis);
+            in = new DataInputStream(new ByteArrayInputStream(payload));
+
+            lastHighestCID = new CertifiedDecision();
+            lastHighestCID.rExternal(in);
+
+            int collects = in.readInt();
+            if (collects < 0) {
+                throw new IOException("Invalid number of collects: " + collects);
+            }
+            signedCollects = new HashSet<>();
+            for (int i = 0; i < collects; i++) {
+                signedCollects.add(SignedCollect.read(in));
+            }
 
-            lastHighestCID = (CertifiedDecision) ois.readObject();
-            signedCollects = (HashSet<SignedObject>) ois.readObject();
-            propose = (byte[]) ois.readObject();
-            batchSize = ois.readInt();
+            propose = SystemMessageCodec.readBytes(in);
+            batchSize = in.readInt();
 
             lcManager.setCollects(regency, signedCollects);
             
@@ -313,9 +296,6 @@ public class Synchronizer {
                 finalise(regency, lastHighestCID, signedCollects, propose, batchSize, false);
             }
 
-            ois.close();
-            bis.close();
-
         } catch (IOException | ClassNotFoundException ex) {
             logger.error("Could not deserialize SYNC message", ex);
         }
@@ -340,43 +320,12 @@ public class Synchronizer {
         return result;
     }
 
-    // Deserializes requests that were included in STOP messages
-    private TOMMessage[] deserializeTOMMessages(byte[] playload) {
-
-        ByteArrayInputStream bis;
-        ObjectInputStream ois;
-
-        TOMMessage[] requests = null;
-
-        try { // deserialize the content of the STOP message
-
-            bis = new ByteArrayInputStream(playload);
-            ois = new ObjectInputStream(bis);
-
-            boolean hasReqs = ois.readBoolean();
-
-            if (hasReqs) {
-
-                // Store requests that the other replica did not manage to order
-                //TODO: The requests have to be verified!
-                byte[] temp = (byte[]) ois.readObject();
-                BatchReader batchReader = new BatchReader(temp,
-                        controller.getStaticConf().getUseSignatures() == 1);
-                requests = batchReader.deserialiseRequests(controller);
-            } else {
-                
-                requests = new TOMMessage[0];
-            }
-
-            ois.close();
-            bis.close();
-
-        } catch (IOException | ClassNotFoundException ex) {
-            logger.error("Could not serialize requests", ex);
-        }
-
-        return requests;
+    // Gets the requests that were included in STOP messages. Only their ids and digests
+    // are sent, so the ones this replica did not receive are fetched from the sender
+    // of the STOP (and handed to the TOM layer when they arrive)
+    private TOMMessage[] deserializeTOMMessages(LCMessage stop) {
 
+        return tom.getProposalResolver().resolveSTOP(stop.getSender(), stop.getPayload());
     }
 
     // Get requests that timed out and the requests received in STOP messages
@@ -441,7 +390,7 @@ public class Synchronizer {
     private void startSynchronization(int nextReg) {
 
         boolean condition;
-        ObjectOutputStream out = null;
+        DataOutputStream out = null;
         ByteArrayOutputStream bos = null;
         
         if (this.controller.getStaticConf().isBFT()) {
@@ -471,40 +420,7 @@ public class Synchronizer {
             addSTOPedRequestsToClientManager();
             List<TOMMessage> messages = getRequestsToRelay();
 
-            try { // serialize conent to send in the STOP message
-                bos = new ByteArrayOutputStream();
-                out = new ObjectOutputStream(bos);
-
-                // Do I have messages to send in the STOP message?
-                if (messages != null && messages.size() > 0) {
-
-                    //TODO: If this is null, there was no timeout nor STOP messages.
-                    //What shall be done then?
-                    out.writeBoolean(true);
-                    byte[] serialized = bb.makeBatch(messages, 0, 0, controller.getStaticConf().getUseSignatures() == 1);
-                    out.writeObject(serialized);
-                } else {
-                    out.writeBoolean(false);
-                    logger.warn("Strange... did not include any request in my STOP message for regency " + regency);
-                }
-
-                out.flush();
-                bos.flush();
-
-                byte[] payload = bos.toByteArray();
-                out.close();
-                bos.close();
-
-                // send message STOP
-                logger.info("Sending STOP message to install regency " + regency + " with " + (messages != null ? messages.size() : 0) + " request(s) to relay");
-
-                LCMessage stop = new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload);
-                requestsTimer.setSTOP(regency, stop); // make replica re-transmit the stop message until a new regency is installed
-                communication.send(this.controller.getCurrentViewOtherAcceptors(), stop);
-
-            } catch (IOException ex) {
-                logger.error("Could not deserialize STOP message", ex);
-            }
+            sendSTOP(regency, messages);
         }
         
         if (this.controller.getStaticConf().isBFT()) {
@@ -546,25 +462,28 @@ public class Synchronizer {
                 try { // serialize content of the STOPDATA message
 
                     bos = new ByteArrayOutputStream();
-                    out = new ObjectOutputStream(bos);
+                    out = new DataOutputStream(bos);
                     
                     Consensus cons = null;
                     
                     // content of the last decided CID
                     if (last > -1) cons = execManager.getConsensus(last);
 
+                    // the value of the last executed consensus is never released (see
+                    // ExecutionManager.releaseDecided), but it is read only once anyway
+                    byte[] decision = (cons != null && cons.getDecisionEpoch() != null) ? cons.getDecisionEpoch().propValue : null;
+
                     //Do I have info on my last executed consensus?
-                    if (cons != null && cons.getDecisionEpoch() != null && cons.getDecisionEpoch().propValue != null) {
+                    if (decision != null) {
                         
                     out.writeBoolean(true);
                     out.writeInt(last);
                     //byte[] decision = exec.getLearner().getDecision();
 
-                    byte[] decision = cons.getDecisionEpoch().propValue;
-                    Set<ConsensusMessage> proof = cons.getDecisionEpoch().getProof();
+                    Set<ConsensusMessage> proof = tom.acceptor.withSignedAccepts(last, cons.getDecisionEpoch().getProof());
 
-                    out.writeObject(decision);
-                    out.writeObject(proof);
+                    SystemMessageCodec.writeBytes(out, decision);
+                    CertifiedDecision.writeProof(out, proof);
                     // TODO: WILL BE NECESSARY TO ADD A PROOF!!!
 
                 } else {
@@ -580,6 +499,8 @@ public class Synchronizer {
                         }
                         else if (cons.getDecisionEpoch() == null) {
                             logger.debug("No decision epoch for cid " + last);
+                        } else if (cons.getDecision().isReleased()) {
+                            logger.warn("Value decided in cid " + last + " was already released");
                         } else {
                             logger.debug("epoch for cid: " + last + ": " + cons.getDecisionEpoch().toString());
 
@@ -621,9 +542,9 @@ public class Synchronizer {
                         //CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), in, ets, quorumWrites, writeSet);
                         CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), in, regency, quorumWrites, writeSet);
 
-                        SignedObject signedCollect = tom.sign(collect);
+                        SignedCollect signedCollect = tom.sign(collect);
 
-                        out.writeObject(signedCollect);
+                        signedCollect.wExternal(out);
 
                     } else {
 
@@ -641,9 +562,9 @@ public class Synchronizer {
                         //CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), last + 1, ets, new TimestampValuePair(0, new byte[0]), new HashSet<TimestampValuePair>());
                         CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), last + 1, regency, new TimestampValuePair(0, new byte[0]), new HashSet<TimestampValuePair>());
                         
-                        SignedObject signedCollect = tom.sign(collect);
+                        SignedCollect signedCollect = tom.sign(collect);
 
-                        out.writeObject(signedCollect);
+                        signedCollect.wExternal(out);
 
                     }
 
@@ -696,13 +617,15 @@ public class Synchronizer {
                 //Content of the last decided CID
                 if (last > -1) cons = execManager.getConsensus(last);
                         
+                // the value of the last executed consensus is never released (see
+                // ExecutionManager.releaseDecided), but it is read only once anyway
+                byte[] decision = (cons != null && cons.getDecisionEpoch() != null) ? cons.getDecisionEpoch().propValue : null;
+
                 //Do I have info on my last executed consensus?
-                if (cons != null && cons.getDecisionEpoch() != null && cons.getDecisionEpoch().propValue != null) { 
+                if (decision != null) { 
                     //byte[] decision = exec.getLearner().getDecision();
 
-
-                    byte[] decision = cons.getDecisionEpoch().propValue;
-                    Set<ConsensusMessage> proof = cons.getDecisionEpoch().getProof();
+                    Set<ConsensusMessage> proof = tom.acceptor.withSignedAccepts(last, cons.getDecisionEpoch().getProof());
 
                     lastDec = new CertifiedDecision(this.controller.getStaticConf().getProcessId(), last, decision, proof);
                     // TODO: WILL BE NECESSARY TO ADD A PROOF!!!??
@@ -720,13 +643,16 @@ public class Synchronizer {
                         }
                         else if (cons.getDecisionEpoch() == null) {
                             logger.debug("No decision epoch for cid " + last);
+                        } else if (cons.getDecision().isReleased()) {
+                            logger.warn("Value decided in cid " + last + " was already released");
                         } else {
                             logger.debug("epoch for cid: " + last + ": " + cons.getDecisionEpoch().toString());
-                        }
-                        if (cons.getDecisionEpoch().propValue == null) {
-                            logger.debug("No propose for cid " + last);
-                        } else {
-                            logger.debug("Propose hash for cid " + last + ": " + Base64.encodeBase64String(tom.computeHash(cons.getDecisionEpoch().propValue)));
+
+                            if (cons.getDecisionEpoch().propValue == null) {
+                                logger.debug("No propose for cid " + last);
+                            } else {
+                                logger.debug("Propose hash for cid " + last + ": " + Base64.encodeBase64String(tom.computeHash(cons.getDecisionEpoch().propValue)));
+                            }
                         }
                     }
                     
@@ -776,7 +702,7 @@ public class Synchronizer {
                     collect = new CollectData(this.controller.getStaticConf().getProcessId(), last + 1, regency, new TimestampValuePair(0, new byte[0]), new HashSet<TimestampValuePair>());
                 }
 
-                SignedObject signedCollect = tom.sign(collect);
+                SignedCollect signedCollect = tom.sign(collect);
 
                 lcManager.addCollect(regency, signedCollect);
 
@@ -817,7 +743,7 @@ public class Synchronizer {
 
                     logger.debug("Received regency change request");
 
-                    TOMMessage[] requests = deserializeTOMMessages(msg.getPayload());
+                    TOMMessage[] requests = deserializeTOMMessages(msg);
 
                     // store requests that came with the STOP message
                     lcManager.addRequestsFromSTOP(requests);
@@ -910,13 +836,13 @@ public class Synchronizer {
     private void catch_up(int regency) {
 
         logger.debug("Verifying STOPDATA info");
-        ObjectOutputStream out = null;
+        DataOutputStream out = null;
         ByteArrayOutputStream bos = null;
 
         CertifiedDecision lastHighestCID = lcManager.getHighestLastCID(regency);
 
         int currentCID = lastHighestCID.getCID() + 1;
-        HashSet<SignedObject> signedCollects = null;
+        HashSet<SignedCollect> signedCollects = null;
         byte[] propose = null;
         int batchSize = -1;
 
@@ -935,21 +861,20 @@ public class Synchronizer {
             
             try { // serialization of the CATCH-UP message
                 bos = new ByteArrayOutputStream();
-                out = new ObjectOutputStream(bos);
+                out = new DataOutputStream(bos);
 
-                out.writeObject(lastHighestCID);
+                lastHighestCID.wExternal(out);
 
-		//TODO: Missing: serialization of the proof?
-                out.writeObject(signedCollects);
-                out.writeObject(propose);
+                out.writeInt(signedCollects.size());
+                for (SignedCollect signedCollect : signedCollects) {
+                    signedCollect.wExternal(out);
+                }
+                SystemMessageCodec.writeBytes(out, propose);
                 out.writeInt(batchSize);
 
                 out.flush();
-                bos.flush();
 
                 byte[] payload = bos.toByteArray();
-                out.close();
-                bos.close();
 
                 logger.info("Sending SYNC message for regency " + regency);
 
@@ -994,7 +919,7 @@ public class Synchronizer {
     // this method is called on all replicas, and serves to verify and apply the
     // information sent in the catch-up message
     private void finalise(int regency, CertifiedDecision lastHighestCID,
-            HashSet<SignedObject> signedCollects, byte[] propose, int batchSize, boolean iAmLeader) {
+            HashSet<SignedCollect> signedCollects, byte[] propose, int batchSize, boolean iAmLeader) {
 
         int currentCID = lastHighestCID.getCID() + 1;
         logger.debug("Final stage of LC protocol");
@@ -1187,6 +1112,9 @@ public class Synchronizer {
 
             }
 
+            // discard the consensus instances the previous leader had pipelined after this one
+            tom.discardPipelined(currentCID);
+
             // resume normal operation
             execManager.restart();
             //leaderChanged = true;
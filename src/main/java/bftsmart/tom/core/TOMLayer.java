@@ -18,6 +18,7 @@ package bftsmart.tom.core;
 
 import bftsmart.clientsmanagement.ClientsManager;
 import bftsmart.clientsmanagement.RequestList;
+import bftsmart.clientsmanagement.SignatureVerifier;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.consensus.Consensus;
@@ -30,25 +31,36 @@ import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.ForwardedMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.leaderchange.CollectData;
 import bftsmart.tom.leaderchange.RequestsTimer;
+import bftsmart.tom.leaderchange.SignedCollect;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.Metrics;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.HashService;
+import bftsmart.tom.util.HashedBatch;
+import bftsmart.tom.util.HashedWheelTimer;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Serializable;
 import java.security.*;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -70,8 +82,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     private final DeliveryThread dt; // Thread which delivers total ordered messages to the appication
     public StateManager stateManager; // object which deals with the state transfer protocol
 
-    //thread pool used to paralelise verification of requests contained in a batch
-    private final ExecutorService verifierExecutor;
+    //threads used to verify the signatures of requests received from clients and contained in batches
+    private final SignatureVerifier signatureVerifier;
 
     /**
      * Manage timers for pending requests
@@ -85,15 +97,40 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     public ClientsManager clientsManager;
     /**
-     * The id of the consensus being executed (or -1 if there is none)
+     * The ids of the consensus instances being executed (empty if there is none)
      */
-    private int inExecution = -1;
+    private final TreeSet<Integer> inExecution = new TreeSet<>();
     private int lastExecuted = -1;
 
+    /**
+     * Maximum number of consensus instances that can be in execution at the same time
+     */
+    private final int pipelineDepth;
+
+    /**
+     * Adapts the batches proposed by this replica to the load (null if disabled)
+     */
+    private BatchController batchController;
+
+    /**
+     * Resolves the requests of digest-only proposals and STOP messages
+     */
+    private final ProposalResolver proposalResolver;
+
+    /**
+     * Runs the timeouts of the replica (request timer, STOP retransmissions and
+     * fetches of missing requests) in a single thread
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer("Replica timer", 10, TimeUnit.MILLISECONDS, 512);
+
+    // time requests wait to be proposed, and requests discarded on reception
+    private final Histogram receiveLatency;
+    private final LongAdder discardedRequests;
+
     public MessageDigest md;
-    private Signature engine;
 
-    private final ReentrantLock hashLock = new ReentrantLock();
+    // hashes of the values built by this replica, computed while the values were built
+    private final Map<byte[], byte[]> builtValueHashes = Collections.synchronizedMap(new WeakHashMap<>());
 
     //the next two are used to generate non-deterministic data in a deterministic way (by the leader)
     public BatchBuilder bb = new BatchBuilder(System.nanoTime());
@@ -138,6 +175,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         this.acceptor = a;
         this.communication = cs;
         this.controller = controller;
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
+
+        Metrics metrics = Metrics.of(this.controller.getStaticConf().getProcessId());
+        this.receiveLatency = metrics.latency(Metrics.STAGE_LATENCY, "stage", Metrics.STAGE_RECEIVE);
+        this.discardedRequests = metrics.counter(Metrics.DROPPED_MESSAGES, "reason", "request_discarded");
 
         /*Tulio Ribeiro*/
         this.privateKey = this.controller.getStaticConf().getPrivateKey();
@@ -150,7 +192,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         // or use a many as the number of cores available
         int nWorkers = this.controller.getStaticConf().getNumNettyWorkers();
         nWorkers = nWorkers > 0 ? nWorkers : Runtime.getRuntime().availableProcessors();
-        this.verifierExecutor = Executors.newWorkStealingPool(nWorkers);
+        this.signatureVerifier = new SignatureVerifier(this.controller, nWorkers);
 
         //do not create a timer manager if the timeout is 0
         if (this.controller.getStaticConf().getRequestTimeout() == 0) {
@@ -165,16 +207,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             logger.error("Failed to get message digest engine",e);
         }
 
-        try {
-            this.engine = TOMUtil.getSigEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get signature engine",e);
-        }
-
         RequestVerifier verifier1 = (verifier != null) ? verifier : ((request) -> true); // By default, never validate requests
 
         // I have a verifier, now create clients manager
-        this.clientsManager = new ClientsManager(this.controller, requestsTimer, verifier1, cs);
+        this.clientsManager = new ClientsManager(this.controller, requestsTimer, verifier1, cs, signatureVerifier);
 
 
         // If recoverer should use lastReplies of clients to recover, it needs reference to clientsManager
@@ -188,7 +224,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         this.syncher = new Synchronizer(this); // create synchronizer
 
-        if (controller.getStaticConf().getBatchTimeout() > -1) {
+        this.proposalResolver = new ProposalResolver(this, cs, controller);
+
+        if (controller.getStaticConf().isAdaptiveBatching()) {
+            this.batchController = new BatchController(controller.getStaticConf().getMaxBatchSize(),
+                    controller.getStaticConf().getLatencyTarget());
+            metrics.gauge("adaptive_batch_size", null, null, batchController::getBatchSize);
+            metrics.gauge("adaptive_batch_wait_microseconds", null, null, () -> batchController.getWaitTime() / 1000);
+        } else if (controller.getStaticConf().getBatchTimeout() > -1) {
 
             //timeout for batch
             Timer batchTimer = new Timer();
@@ -215,21 +258,41 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * @return Hash for the specified TOM message
      */
     public byte[] computeHash(byte[] data) {
-        byte[] ret;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
+        byte[] hash = builtValueHashes.get(data);
+        return hash != null ? hash : HashService.hash(data);
+    }
 
-        return ret;
+    /**
+     * Computes the hash of a value in a hashing thread if the value is large,
+     * so that the caller can meanwhile process the value
+     *
+     * @param data Data from which to generate the hash
+     * @return The hash, to be completed by a hashing thread
+     */
+    public CompletableFuture<byte[]> computeHashAsync(byte[] data) {
+        byte[] hash = builtValueHashes.get(data);
+        return hash != null ? CompletableFuture.completedFuture(hash) : HashService.hashAsync(data);
     }
 
-    public SignedObject sign(Serializable obj) {
-        try {
-            return new SignedObject(obj, privateKey, engine);
-        } catch (Exception e) {
-            logger.error("Failed to sign object",e);
-            return null;
-        }
+    /**
+     * Records the hash of a batch built by this replica, so that it is not
+     * computed again when the batch is proposed or decided
+     *
+     * @param batch The batch and its hash
+     */
+    public void addBuiltValue(HashedBatch batch) {
+        builtValueHashes.put(batch.getValue(), batch.getHash());
+    }
+
+    /**
+     * Signs a collect of the leader change protocol
+     *
+     * @param collect Collect to be signed
+     * @return The collect and the signature of its binary encoding
+     */
+    public SignedCollect sign(CollectData collect) {
+        byte[] data = SignedCollect.encode(collect);
+        return new SignedCollect(data, TOMUtil.signMessage(privateKey, data));
     }
 
     public void loadPublicKey(int target){
@@ -237,19 +300,16 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     }
 
     /**
-     * Verifies the signature of a signed object
+     * Verifies the signature of a signed collect
      *
-     * @param so Signed object to be verified
-     * @param sender Replica id that supposedly signed this object
+     * @param sc Signed collect to be verified
+     * @param sender Replica id that supposedly signed the collect
      * @return True if the signature is valid, false otherwise
      */
-    public boolean verifySignature(SignedObject so, int sender) {
-        try {
-            return so.verify(publicKey.get(sender), engine);
-        } catch (Exception e) {
-            logger.error("Failed to verify object signature",e);
-        }
-        return false;
+    public boolean verifySignature(SignedCollect sc, int sender) {
+        PublicKey key = publicKey.get(sender);
+        return key != null && sc.getSignature() != null
+                && TOMUtil.verifySignature(key, sc.getData(), sc.getSignature());
     }
 
     /**
@@ -287,20 +347,62 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     }
 
     /**
-     * Sets which consensus is being executed at the moment
+     * Sets which consensus is being executed at the moment. If pipelining is
+     * enabled, the consensus is added to the ones already in execution.
      *
-     * @param inEx ID of the consensus being executed at the moment
+     * @param inEx ID of the consensus being executed at the moment (-1 if there is none)
      */
     public void setInExec(int inEx) {
         proposeLock.lock();
         logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx);
-        this.inExecution = inEx;
-        if (inEx == -1 && !isRetrievingState()) {
+        if (inEx == -1) {
+            this.inExecution.clear();
+        } else {
+            this.inExecution.add(inEx);
+        }
+        if (this.inExecution.size() < pipelineDepth && !isRetrievingState()) {
+            canPropose.signalAll();
+        }
+        proposeLock.unlock();
+    }
+
+    /**
+     * Informs that the execution of a consensus (and of all the ones before it) is finished
+     *
+     * @param cid ID of the consensus that is no longer in execution
+     */
+    public void removeInExec(int cid) {
+        proposeLock.lock();
+        logger.debug("Removing consensus " + cid + " from inExec " + this.inExecution);
+        this.inExecution.headSet(cid, true).clear();
+        if (this.inExecution.size() < pipelineDepth && !isRetrievingState()) {
             canPropose.signalAll();
         }
         proposeLock.unlock();
     }
 
+    /**
+     * Informs if a consensus is currently being executed
+     *
+     * @param cid ID of the consensus
+     * @return true if the consensus is in execution, false otherwise
+     */
+    public boolean isInExec(int cid) {
+        proposeLock.lock();
+        boolean result = this.inExecution.contains(cid);
+        proposeLock.unlock();
+        return result;
+    }
+
+    /**
+     * Gets the maximum number of consensus instances that can be in execution at the same time
+     *
+     * @return the configured pipeline depth (1 if pipelining is disabled)
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -311,13 +413,42 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     }
 
     /**
-     * Gets the ID of the consensus currently beign executed
+     * Gets the ID of the consensus currently beign executed. If pipelining is
+     * enabled, this is the oldest consensus in execution.
      *
      * @return ID of the consensus currently beign executed (if no consensus ir
      * executing, -1 is returned)
      */
     public int getInExec() {
-        return this.inExecution;
+        proposeLock.lock();
+        int result = this.inExecution.isEmpty() ? -1 : this.inExecution.first();
+        proposeLock.unlock();
+        return result;
+    }
+
+    /**
+     * Gets the ID of the next consensus to be started by the leader, i.e., the
+     * one following the newest consensus in execution (or the last executed one)
+     *
+     * @return ID of the next consensus to be proposed
+     */
+    private int getNextToPropose() {
+        proposeLock.lock();
+        int result = this.inExecution.isEmpty() ? getLastExec() + 1 : this.inExecution.last() + 1;
+        proposeLock.unlock();
+        return result;
+    }
+
+    /**
+     * Checks if there is room in the pipeline to start another consensus
+     *
+     * @return true if less than pipeline depth consensus instances are in execution
+     */
+    private boolean canStartConsensus() {
+        proposeLock.lock();
+        boolean result = this.inExecution.size() < pipelineDepth;
+        proposeLock.unlock();
+        return result;
     }
 
     /**
@@ -341,6 +472,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			return;
 		case RECONFIG:
 		case ORDERED_REQUEST:
+		case ORDERED_BATCH_REQUEST:
 		case UNORDERED_HASHED_REQUEST:
 		case UNORDERED_REQUEST:
 			// These messages should be processed
@@ -361,31 +493,51 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                 return;
             }
             dt.deliverUnordered(msg, syncher.getLCManager().getLastReg());
+        } else if (fromClient && msg.signed && controller.getStaticConf().getUseSignatures() == 1) {
+            // the signature is verified by a verifier thread, which then adds the request
+            signatureVerifier.verify(msg, request -> orderedRequestReceived(request, true));
         } else {
-            logger.debug("Received TOMMessage from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession());
+            orderedRequestReceived(msg, fromClient);
+        }
+    }
 
-            if (clientsManager.requestReceived(msg, fromClient, communication)) {
+    /**
+     * Adds a request to be ordered to the pending requests of its client
+     *
+     * @param msg The request being received
+     * @param fromClient Whether the request was received from a client or was part of a forwarded message
+     */
+    private void orderedRequestReceived(TOMMessage msg, boolean fromClient) {
+        logger.debug("Received TOMMessage from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession());
 
-                if(controller.getStaticConf().getBatchTimeout() == -1) {
-                    haveMessages();
-                } else {
+        if (clientsManager.requestReceived(msg, fromClient, communication)) {
 
-                    if (!clientsManager.isNextBatchReady()) {
+            // a proposal may be waiting for this request
+            proposalResolver.requestArrived(msg);
 
-                        lastRequest = System.currentTimeMillis();
+            if (batchController != null) {
+                batchController.requestArrived();
+                haveMessages();
+            } else if(controller.getStaticConf().getBatchTimeout() == -1) {
+                haveMessages();
+            } else {
 
-                    } else {
+                if (!clientsManager.isNextBatchReady()) {
 
-                        haveMessages();
-                    }
+                    lastRequest = System.currentTimeMillis();
 
-                }
-            } else {
-                if (clientsManager.thisReplicaWasRecovered()){
-                    logger.debug("The received TOMMessage " + msg + " was discarded.");
                 } else {
-                    logger.warn("The received TOMMessage " + msg + " was discarded.");
+
+                    haveMessages();
                 }
+
+            }
+        } else {
+            discardedRequests.increment();
+            if (clientsManager.thisReplicaWasRecovered()){
+                logger.debug("The received TOMMessage " + msg + " was discarded.");
+            } else {
+                logger.warn("The received TOMMessage " + msg + " was discarded.");
             }
         }
     }
@@ -398,8 +550,21 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * @return A value to be proposed to the acceptors
      */
     public byte[] createPropose(Decision dec) {
+        return createHashedPropose(dec).getValue();
+    }
+
+    /**
+     * Creates a value to be proposed to the acceptors, computing its hash (and
+     * its digest form, if digest proposals are enabled) while it is built
+     *
+     * @param dec Decision of the consensus instance
+     * @return The value to be proposed and its hash
+     */
+    public HashedBatch createHashedPropose(Decision dec) {
         // Retrieve a set of pending requests from the clients manager
-        RequestList pendingRequests = clientsManager.getPendingRequests();
+        RequestList pendingRequests = batchController != null
+                ? clientsManager.getPendingRequests(batchController.getBatchSize())
+                : clientsManager.getPendingRequests();
 
         logger.debug("Number of pending requets to propose in consensus {}: {}", dec.getConsensusId(), pendingRequests.size());
 
@@ -413,9 +578,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         }
         dec.batchSize = numberOfMessages;
 
+        long now = System.nanoTime();
+        for (TOMMessage request : pendingRequests) {
+            if (request.receptionTime > 0) {
+                receiveLatency.record(now - request.receptionTime);
+            }
+        }
+
         logger.debug("Creating a PROPOSE with " + numberOfMessages + " msgs");
 
-        return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures() == 1);
+        HashedBatch batch = bb.makeHashedBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(),
+                controller.getStaticConf().getUseSignatures() == 1, controller.getStaticConf().useDigestProposals());
+        addBuiltValue(batch);
+        return batch;
     }
 
     /**
@@ -442,10 +617,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if (!doWork) break;
 
-            // blocks until the current consensus finishes
+            // blocks until the current consensus finishes (or until there is room in the pipeline)
             proposeLock.lock();
 
-            if (getInExec() != -1) { //there is some consensus running
+            if (inExecution.size() >= pipelineDepth) { //there are enough consensus running
                 logger.debug("Waiting for consensus " + getInExec() + " termination.");
                 canPropose.awaitUninterruptibly();
             }
@@ -458,7 +633,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             // blocks until there are requests to be processed/ordered
             messagesLock.lock();
             if (!clientsManager.havePendingRequests() ||
-                    (controller.getStaticConf().getBatchTimeout() > -1
+                    (batchController == null && controller.getStaticConf().getBatchTimeout() > -1
                             && !clientsManager.isNextBatchReady())) {
 
                 logger.debug("Waiting for enough requests");
@@ -469,15 +644,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if (!doWork) break;
 
+            if (batchController != null) {
+                waitForBatch();
+            }
+
             logger.debug("There are requests to be ordered. I will propose.");
 
 
             if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
                     (clientsManager.havePendingRequests()) && //there are messages to be ordered
-                    (getInExec() == -1)) { //there is no consensus in execution
+                    canStartConsensus()) { //there is no consensus in execution (or the pipeline is not full)
 
                 // Sets the current consensus
-                int execId = getLastExec() + 1;
+                int execId = getNextToPropose();
                 setInExec(execId);
 
                 Decision dec = execManager.getConsensus(execId).getDecision();
@@ -487,12 +666,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
                     logger.debug("Only one replica, bypassing consensus.");
 
-                    byte[] value = createPropose(dec);
+                    HashedBatch batch = createHashedPropose(dec);
+                    byte[] value = batch.getValue();
 
                     Consensus consensus = execManager.getConsensus(dec.getConsensusId());
                     Epoch epoch = consensus.getEpoch(0, controller);
                     epoch.propValue = value;
-                    epoch.propValueHash = computeHash(value);
+                    epoch.propValueHash = batch.getHash();
                     epoch.getConsensus().addWritten(value);
                     epoch.deserializedPropValue = checkProposedValue(value, true);
                     epoch.getConsensus().getDecision().firstMessageProposed = epoch.deserializedPropValue[0];
@@ -503,12 +683,60 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                     continue;
 
                 }
-                execManager.getProposer().startConsensus(execId, createPropose(dec));
+                execManager.getProposer().startConsensus(execId, createHashedPropose(dec));
             }
         }
         logger.info("TOMLayer stopped.");
     }
 
+    /**
+     * Waits, for as long as the batch controller allows, until there are enough
+     * pending requests to fill the next batch
+     */
+    private void waitForBatch() {
+        batchController.update();
+        long wait = batchController.getWaitTime();
+        if (wait <= 0) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + wait;
+        messagesLock.lock();
+        while (doWork && !clientsManager.isNextBatchReady(batchController.getBatchSize())
+                && (wait = deadline - System.nanoTime()) > 0) {
+            try {
+                haveMessages.awaitNanos(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        messagesLock.unlock();
+    }
+
+    /**
+     * Returns the controller of the size of the batches proposed by this replica
+     *
+     * @return The batch controller, or null if adaptive batching is disabled
+     */
+    public BatchController getBatchController() {
+        return batchController;
+    }
+
+    /**
+     * Returns the object that resolves the requests of digest-only proposals
+     * and STOP messages
+     *
+     * @return The proposal resolver
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    public ProposalResolver getProposalResolver() {
+        return proposalResolver;
+    }
+
     /**
      * Called by the current consensus instance, to notify the TOM layer that
      * a value was decided
@@ -520,6 +748,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         dec.setRegency(syncher.getLCManager().getLastReg());
         dec.setLeader(execManager.getCurrentLeader());
 
+        if (batchController != null && dec.firstMessageProposed != null
+                && dec.firstMessageProposed.consensusStartTime > 0) {
+            batchController.consensusDecided(System.nanoTime() - dec.firstMessageProposed.consensusStartTime);
+        }
+
         this.dt.delivery(dec); // Sends the decision to the delivery thread
     }
 
@@ -550,32 +783,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if (addToClientManager) {
 
-                //use parallelization to validate the request
-                final CountDownLatch latch = new CountDownLatch(requests.length);
-
-                for (TOMMessage request : requests) {
-
-                    verifierExecutor.submit(() -> {
-                        try {
-
-                            //notifies the client manager that this request was received and get
-                            //the result of its validation
-                            request.isValid = clientsManager.requestReceived(request, false);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-
-                        }
-                        catch (Exception e) {
-
-                            logger.error("Error while validating requests", e);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-
-                        }
-
-                        latch.countDown();
-                    });
-                }
+                //use the verifier threads to validate the requests (signatures already
+                //verified when the requests were received from the clients are not verified again)
+                signatureVerifier.verifyBatch(requests, request -> {
 
-                latch.await();
+                    //notifies the client manager that this request was received and get
+                    //the result of its validation
+                    request.isValid = clientsManager.requestReceived(request, false);
+                });
 
                 for (TOMMessage request : requests) {
                     if (!request.isValid) {
@@ -617,15 +832,40 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     }
 
     public void setNoExec() {
-        logger.debug("Modifying inExec from " + this.inExecution + " to " + -1);
-
         proposeLock.lock();
-        this.inExecution = -1;
+        logger.debug("Modifying inExec from " + this.inExecution + " to " + -1);
+        this.inExecution.clear();
         //ot.addUpdate();
         canPropose.signalAll();
         proposeLock.unlock();
     }
 
+    /**
+     * Discards the consensus instances that were started after the given one
+     * and that are not decided yet. This is used when a new regency is installed
+     * while the previous leader had several consensus instances in the pipeline:
+     * only the given consensus is carried over by the synchronization phase, and
+     * the requests of the discarded ones become available to be proposed again.
+     *
+     * @param cid ID of the consensus resumed by the synchronization phase
+     */
+    public void discardPipelined(int cid) {
+        if (pipelineDepth == 1) return;
+
+        proposeLock.lock();
+        this.inExecution.tailSet(cid, false).clear();
+        proposeLock.unlock();
+
+        List<Consensus> discarded = execManager.removePipelinedConsensuses(cid);
+        for (Consensus cons : discarded) {
+            logger.info("Discarding pipelined consensus " + cons.getId());
+            Epoch epoch = cons.getLastEpoch();
+            if (epoch != null && epoch.deserializedPropValue != null) {
+                clientsManager.requestsNotProposed(epoch.deserializedPropValue);
+            }
+        }
+    }
+
     public void processOutOfContext() {
         for (int nextConsensus = getLastExec() + 1;
             // DECISION_FORWARDING: process aut of context decisions
@@ -639,6 +879,17 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                 execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
             }
         }
+
+        // proposes for the following consensus instances in the pipeline can
+        // be processed once the instance before them is being executed
+        for (int nextConsensus = getLastExec() + 2;
+                nextConsensus <= getLastExec() + pipelineDepth && isInExec(nextConsensus - 1);
+                nextConsensus++) {
+
+            if (execManager.receivedOutOfContextPropose(nextConsensus)) {
+                execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
+            }
+        }
     }
 
     public StateManager getStateManager() {
@@ -666,12 +917,15 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         setNoExec();
 
         if (this.requestsTimer != null) this.requestsTimer.shutdown();
+        if (this.signatureVerifier != null) this.signatureVerifier.shutdown();
         if (this.clientsManager != null) {
             this.clientsManager.clear();
             this.clientsManager.getPendingRequests().clear();
         }
         if (this.dt != null) this.dt.shutdown();
+        if (this.stateManager != null) this.stateManager.shutdown();
         if (this.communication != null) this.communication.shutdown();
+        this.timer.stop();
 
     }
 }
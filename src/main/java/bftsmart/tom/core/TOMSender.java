@@ -82,7 +82,8 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 	public int generateRequestId(TOMMessageType type) {
 		lock.lock();
 		int id;
-		if(type == TOMMessageType.ORDERED_REQUEST || type == TOMMessageType.ORDERED_HASHED_REQUEST)
+		if(type == TOMMessageType.ORDERED_REQUEST || type == TOMMessageType.ORDERED_HASHED_REQUEST
+				|| type == TOMMessageType.ORDERED_BATCH_REQUEST)
 			id = sequence++;
 		else
 			id = unorderedMessageSequence++; 
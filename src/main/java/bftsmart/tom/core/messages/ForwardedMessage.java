@@ -15,9 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.core.messages;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
 import bftsmart.communication.SystemMessage;
 
@@ -45,11 +45,10 @@ public final class ForwardedMessage extends SystemMessage {
     }
 
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException {
-        super.writeExternal(out);
+    public void wExternal(DataOutput out) throws IOException {
+        super.wExternal(out);
 
-        out.writeInt(request.serializedMessage.length);
-        out.write(request.serializedMessage);
+        request.writeSerializedMessage(out);
         out.writeBoolean(request.signed);
 
         if (request.signed) {
@@ -59,8 +58,8 @@ public final class ForwardedMessage extends SystemMessage {
     }
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        super.readExternal(in);
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+        super.rExternal(in);
 
         byte[] serReq = new byte[in.readInt()];
         in.readFully(serReq);
@@ -0,0 +1,169 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
+
+/**
+ * Message used by a replica to ask another one for the requests of a digest-only
+ * PROPOSE or STOP that it did not receive from the clients, and to send them
+ * back (see ProposalResolver).
+ *
+ */
+public final class RequestFetchMessage extends SystemMessage {
+
+    // consensus id used when fetching the requests relayed in a STOP message
+    public static final int STOP = -1;
+
+    private int cid;
+    private boolean reply;
+
+    // fields of a fetch request
+    private int[] senders;
+    private int[] sequences;
+    private byte[][] digests;
+
+    // fields of a fetch reply
+    private TOMMessage[] requests;
+
+    public RequestFetchMessage() {
+    }
+
+    /**
+     * Creates a request for the bodies of some requests of a proposal
+     *
+     * @param senderId Replica that is asking for the requests
+     * @param cid Consensus in which the requests were proposed (or STOP)
+     * @param senders Client of each missing request
+     * @param sequences Sequence number of each missing request
+     * @param digests Digest of each missing request
+     */
+    public RequestFetchMessage(int senderId, int cid, int[] senders, int[] sequences, byte[][] digests) {
+        super(senderId);
+        this.cid = cid;
+        this.reply = false;
+        this.senders = senders;
+        this.sequences = sequences;
+        this.digests = digests;
+    }
+
+    /**
+     * Creates a reply carrying the requests that were asked for
+     *
+     * @param senderId Replica that is sending the requests
+     * @param cid Consensus in which the requests were proposed
+     * @param requests The requests found by the replica
+     */
+    public RequestFetchMessage(int senderId, int cid, TOMMessage[] requests) {
+        super(senderId);
+        this.cid = cid;
+        this.reply = true;
+        this.requests = requests;
+    }
+
+    public int getCID() {
+        return cid;
+    }
+
+    public boolean isReply() {
+        return reply;
+    }
+
+    public int[] getSenders() {
+        return senders;
+    }
+
+    public int[] getSequences() {
+        return sequences;
+    }
+
+    public byte[][] getDigests() {
+        return digests;
+    }
+
+    public TOMMessage[] getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void wExternal(DataOutput out) throws IOException {
+        super.wExternal(out);
+
+        out.writeInt(cid);
+        out.writeBoolean(reply);
+
+        if (reply) {
+            out.writeInt(requests.length);
+            for (TOMMessage request : requests) {
+                request.writeSerializedMessage(out);
+                SystemMessageCodec.writeBytes(out, request.serializedMessageSignature);
+            }
+        } else {
+            out.writeInt(senders.length);
+            for (int i = 0; i < senders.length; i++) {
+                out.writeInt(senders[i]);
+                out.writeInt(sequences[i]);
+                SystemMessageCodec.writeBytes(out, digests[i]);
+            }
+        }
+    }
+
+    @Override
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+        super.rExternal(in);
+
+        cid = in.readInt();
+        reply = in.readBoolean();
+
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid number of requests: " + count);
+        }
+
+        if (reply) {
+            requests = new TOMMessage[count];
+            for (int i = 0; i < count; i++) {
+                byte[] serReq = SystemMessageCodec.readBytes(in);
+                if (serReq == null) {
+                    throw new IOException("Missing request in fetch reply");
+                }
+
+                requests[i] = TOMMessage.bytesToMessage(serReq);
+                if (requests[i] == null) {
+                    throw new IOException("Malformed request in fetch reply");
+                }
+                requests[i].serializedMessage = serReq;
+                requests[i].serializedMessageSignature = SystemMessageCodec.readBytes(in);
+                requests[i].signed = requests[i].serializedMessageSignature != null;
+            }
+        } else {
+            senders = new int[count];
+            sequences = new int[count];
+            digests = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                senders[i] = in.readInt();
+                sequences[i] = in.readInt();
+                digests[i] = SystemMessageCodec.readBytes(in);
+            }
+        }
+    }
+
+}
@@ -25,6 +25,8 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectOutput;
 import java.io.ObjectInput;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import bftsmart.communication.SystemMessage;
 import bftsmart.tom.util.DebugInfo;
@@ -58,6 +60,8 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
         
 	public transient int destination = -1; // message destination
 	public transient boolean signed = false; // is this message signed?
+	public transient boolean verified = false; // was its signature already verified by the replica?
+	public transient boolean signatureChecked = false; // was its signature already checked (with the result in verified)?
 
 	public transient long receptionTime;//the reception time of this message (nanoseconds)
 	public transient long receptionTimestamp;//the reception timestamp of this message (miliseconds)
@@ -72,6 +76,14 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	public transient byte[] serializedMessageSignature = null;
 	public transient byte[] serializedMessageMAC = null;
 
+	//the proposed batch from which this message was read (see BatchReader). The serialized
+	//message and its content are only copied out of the batch when they are first needed
+	private transient byte[] batch = null;
+	private transient int batchOffset; //offset of the serialized message in the batch
+	private transient int batchLength; //length of the serialized message in the batch
+	private transient int contentOffset = -1; //offset of the content in the batch (-1 if there is no content)
+	private transient int contentLength;
+
 	//for benchmarking purposes
 	public transient long consensusStartTime = 0; //time the consensus is created
 	public transient long proposeReceivedTime = 0; //time the propose is received
@@ -189,9 +201,60 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	 * @return The content of the message
 	 */
 	public byte[] getContent() {
+		if (content == null && batch != null && contentOffset >= 0) {
+			content = Arrays.copyOfRange(batch, contentOffset, contentOffset + contentLength);
+		}
 		return content;
 	}
 
+	/**
+	 * Retrieves the bytes of this message as received from the client.
+	 * If the message was read from a batch, they are copied from it on the first call.
+	 * @return The serialized message
+	 */
+	public byte[] getSerializedMessage() {
+		if (serializedMessage == null && batch != null) {
+			serializedMessage = Arrays.copyOfRange(batch, batchOffset, batchOffset + batchLength);
+		}
+		return serializedMessage;
+	}
+
+	/**
+	 * Retrieves the bytes of this message as received from the client without copying
+	 * them out of the batch it was read from. The returned buffer must not be modified.
+	 * @return A buffer holding the serialized message, or null if there is none
+	 */
+	public ByteBuffer getSerializedBuffer() {
+		if (serializedMessage != null) {
+			return ByteBuffer.wrap(serializedMessage);
+		}
+		return batch == null ? null : ByteBuffer.wrap(batch, batchOffset, batchLength).slice();
+	}
+
+	/**
+	 * Writes the size and the bytes of the serialized message, without copying them
+	 * out of the batch it was read from
+	 * @param out Output to write to
+	 * @throws IOException If the output fails
+	 */
+	public void writeSerializedMessage(DataOutput out) throws IOException {
+		if (serializedMessage != null) {
+			out.writeInt(serializedMessage.length);
+			out.write(serializedMessage);
+		} else {
+			out.writeInt(batchLength);
+			out.write(batch, batchOffset, batchLength);
+		}
+	}
+
+	/**
+	 * Retrieves the size of the serialized message without copying it out of its batch
+	 * @return The size of the serialized message, in bytes
+	 */
+	public int getSerializedSize() {
+		return serializedMessage != null ? serializedMessage.length : batchLength;
+	}
+
 	/**
 	 * Verifies if two TOMMessage are equal. For performance reasons, the method
 	 * only verifies if the send and sequence are equal.
@@ -237,6 +300,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		out.writeInt(operationId);
 		out.writeInt(replyServer);
 		
+		byte[] content = getContent();
 		if (content == null) {
 			out.writeInt(-1);
 		} else {
@@ -263,6 +327,54 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		buildId();
 	}
 
+	/**
+	 * Reads a message serialized (by wExternal) inside a proposed batch. Only the
+	 * header fields are decoded; the message keeps a reference to the batch and
+	 * copies its bytes and content from it only when they are requested.
+	 * @param batch Buffer holding the batch (must be backed by an array)
+	 * @param offset Position of the serialized message in the buffer
+	 * @param length Length of the serialized message
+	 * @throws IOException If the serialized message is malformed
+	 */
+	public void readFromBatch(ByteBuffer batch, int offset, int length) throws IOException {
+		int end = offset + length;
+		int pos = offset;
+
+		if (length < 7 * Integer.BYTES + 1) {
+			throw new IOException("Request too short (" + length + " bytes)");
+		}
+
+		sender = batch.getInt(pos);
+		pos += Integer.BYTES;
+		viewID = batch.getInt(pos);
+		pos += Integer.BYTES;
+		type = TOMMessageType.getMessageType(batch.get(pos));
+		pos += 1;
+		session = batch.getInt(pos);
+		pos += Integer.BYTES;
+		sequence = batch.getInt(pos);
+		pos += Integer.BYTES;
+		operationId = batch.getInt(pos);
+		pos += Integer.BYTES;
+		replyServer = batch.getInt(pos);
+		pos += Integer.BYTES;
+
+		int toRead = batch.getInt(pos);
+		pos += Integer.BYTES;
+
+		if (toRead < -1 || toRead > end - pos) {
+			throw new IOException("Invalid content length " + toRead);
+		}
+
+		this.batch = batch.array();
+		this.batchOffset = batch.arrayOffset() + offset;
+		this.batchLength = length;
+		this.contentOffset = toRead == -1 ? -1 : batch.arrayOffset() + pos;
+		this.contentLength = Math.max(toRead, 0);
+
+		buildId();
+	}
+
 	/**
 	 * Used to build an unique id for the message
 	 */
@@ -349,7 +461,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
              
                           
                     TOMMessage clone = new TOMMessage(sender, session, sequence,
-                            operationId, content, viewID, type);
+                            operationId, getContent(), viewID, type);
 
                     clone.setReplyServer(replyServer);
                     
@@ -370,10 +482,12 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
                     clone.recvFromClient = this.recvFromClient;
                     clone.reply = this.reply;
                     clone.seed = this.seed;
-                    clone.serializedMessage = this.serializedMessage;
+                    clone.serializedMessage = this.getSerializedMessage();
                     clone.serializedMessageMAC = this.serializedMessageMAC;
                     clone.serializedMessageSignature = this.serializedMessageSignature;
                     clone.signed = this.signed;
+                    clone.verified = this.verified;
+                    clone.signatureChecked = this.signatureChecked;
                     clone.timeout = this.timeout;
                     clone.timestamp = this.timestamp;
                     clone.writeSentTime = this.writeSentTime;
@@ -15,11 +15,15 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.consensus.messages.ConsensusMessage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -122,4 +126,71 @@ public class CertifiedDecision implements Externalizable {
         decision = (byte[]) in.readObject();
         consMsgs = (Set<ConsensusMessage>) in.readObject();
     }
+
+    /**
+     * Writes this decision in the binary format exchanged by the leader change protocol
+     * @param out Output to write to
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+
+        out.writeInt(pid);
+        out.writeInt(cid);
+        SystemMessageCodec.writeBytes(out, decision);
+        writeProof(out, consMsgs);
+    }
+
+    /**
+     * Reads a decision written by wExternal
+     * @param in Input to read from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException {
+
+        pid = in.readInt();
+        cid = in.readInt();
+        decision = SystemMessageCodec.readBytes(in);
+        consMsgs = readProof(in);
+    }
+
+    /**
+     * Writes the proof of a decision (which may be null)
+     * @param out Output to write to
+     * @param proof The consensus messages that prove the decision
+     * @throws IOException
+     */
+    public static void writeProof(DataOutput out, Set<ConsensusMessage> proof) throws IOException {
+
+        if (proof == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(proof.size());
+            for (ConsensusMessage cm : proof) {
+                cm.wExternal(out);
+            }
+        }
+    }
+
+    /**
+     * Reads a proof written by writeProof
+     * @param in Input to read from
+     * @return The consensus messages that prove the decision, or null
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Set<ConsensusMessage> readProof(DataInput in) throws IOException, ClassNotFoundException {
+
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Set<ConsensusMessage> proof = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            ConsensusMessage cm = new ConsensusMessage();
+            cm.rExternal(in);
+            proof.add(cm);
+        }
+        return proof;
+    }
 }
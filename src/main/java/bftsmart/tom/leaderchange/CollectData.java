@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -138,4 +140,46 @@ public class CollectData implements Externalizable {
         quorumWrites = (TimestampValuePair) in.readObject();
         writeSet = (HashSet<TimestampValuePair>) in.readObject();
     }
+
+    /**
+     * Writes this collect in the binary format that is signed and exchanged by
+     * the leader change protocol
+     * @param out Output to write to
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+
+        out.writeInt(pid);
+        out.writeInt(cid);
+        out.writeInt(ets);
+        quorumWrites.wExternal(out);
+        out.writeInt(writeSet.size());
+        for (TimestampValuePair rv : writeSet) {
+            rv.wExternal(out);
+        }
+    }
+
+    /**
+     * Reads a collect written by wExternal
+     * @param in Input to read from
+     * @throws IOException
+     */
+    public void rExternal(DataInput in) throws IOException {
+
+        pid = in.readInt();
+        cid = in.readInt();
+        ets = in.readInt();
+        quorumWrites = new TimestampValuePair();
+        quorumWrites.rExternal(in);
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid write set size: " + size);
+        }
+        writeSet = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            TimestampValuePair rv = new TimestampValuePair();
+            rv.rExternal(in);
+            writeSet.add(rv);
+        }
+    }
 }
@@ -15,12 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.MessageDigest;
-import java.security.PublicKey;
-import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,7 +32,6 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.TOMUtil;
 
 /**
  *
@@ -63,7 +58,7 @@ public class LCManager {
     //data structures for info in stop, sync and catch-up messages
     private HashMap<Integer,HashSet<Integer>> stops;
     private HashMap<Integer,HashSet<CertifiedDecision>> lastCIDs;
-    private HashMap<Integer,HashSet<SignedObject>> collects;
+    private HashMap<Integer,HashSet<SignedCollect>> collects;
 
     //stuff from the TOM layer that this object needss
     private ServerViewController SVController;
@@ -312,10 +307,10 @@ public class LCManager {
      * @param ts the current regency
      * @param signedCollect the signed collect data
      */
-    public void addCollect(int regency, SignedObject signedCollect) {
+    public void addCollect(int regency, SignedCollect signedCollect) {
 
-        HashSet<SignedObject> c = collects.get(regency);
-        if (c == null) c = new HashSet<SignedObject>();
+        HashSet<SignedCollect> c = collects.get(regency);
+        if (c == null) c = new HashSet<SignedCollect>();
         c.add(signedCollect);
         collects.put(regency, c);
     }
@@ -341,7 +336,7 @@ public class LCManager {
      */
     public int getCollectsSize(int regency) {
 
-        HashSet<SignedObject> c = collects.get(regency);
+        HashSet<SignedCollect> c = collects.get(regency);
         return c == null ? 0 : c.size();
     }
 
@@ -350,7 +345,7 @@ public class LCManager {
      * @param regency Regency for collects
      * @return a set of collect data
      */
-    public HashSet<SignedObject> getCollects(int regency) {
+    public HashSet<SignedCollect> getCollects(int regency) {
         return collects.get(regency);
     }
 
@@ -359,7 +354,7 @@ public class LCManager {
      * @param regency Regency for the last CID info
      * @param colls a set of collect data
      */
-    public void setCollects(int regency, HashSet<SignedObject> colls) {
+    public void setCollects(int regency, HashSet<SignedCollect> colls) {
 
         collects.put(regency, colls);
     }
@@ -679,7 +674,7 @@ public class LCManager {
      */
     public HashSet<CollectData> selectCollects(int regency, int cid) {
 
-        HashSet<SignedObject> c = collects.get(regency);
+        HashSet<SignedCollect> c = collects.get(regency);
 
         if (c == null) return null;
 
@@ -694,7 +689,7 @@ public class LCManager {
      * @param cid the CID to which to normalize the collects
      * @return a set of correctly signed and normalized collect data structures
      */
-    public HashSet<CollectData> selectCollects(HashSet<SignedObject> signedObjects, int cid, int regency) {
+    public HashSet<CollectData> selectCollects(HashSet<SignedCollect> signedObjects, int cid, int regency) {
 
         if (signedObjects == null) return null;
 
@@ -703,20 +698,20 @@ public class LCManager {
     }
 
     // Filters the correctly signed collects
-    private HashSet<CollectData> getSignedCollects(HashSet<SignedObject> signedCollects) {
+    private HashSet<CollectData> getSignedCollects(HashSet<SignedCollect> signedCollects) {
 
         HashSet<CollectData> colls = new HashSet<CollectData>();
 
-        for (SignedObject so : signedCollects) {
+        for (SignedCollect so : signedCollects) {
 
             CollectData c;
             try {
-                c = (CollectData) so.getObject();
+                c = so.getCollect();
                 int sender = c.getPid();
                 if (tomLayer.verifySignature(so, sender)) {
                     colls.add(c);
                 }
-            } catch (IOException | ClassNotFoundException ex) {
+            } catch (IOException ex) {
                 logger.error("Error processing collect data", ex);
             }
         }
@@ -793,47 +788,26 @@ public class LCManager {
                                              // any proof
         
         byte[] hashedValue = md.digest(cDec.getDecision());
-        Set<ConsensusMessage> ConsensusMessages = cDec.getConsMessages();
+        Set<ConsensusMessage> ConsensusMessages = tomLayer.acceptor.withSignedAccepts(cDec.getCID(), cDec.getConsMessages());
         int certificateCurrentView = (2*tomLayer.controller.getCurrentViewF()) + 1;
         int certificateLastView = -1;
         if (tomLayer.controller.getLastView() != null) certificateLastView = (2*tomLayer.controller.getLastView().getF()) + 1;
         int countValid = 0;
-        PublicKey pubKey = null;
+        boolean signed = false;
         
         HashSet<Integer> alreadyCounted = new HashSet<>(); //stores replica IDs that were already counted
             
         for (ConsensusMessage consMsg : ConsensusMessages) {
             
-            ConsensusMessage cm = new ConsensusMessage(consMsg.getType(),consMsg.getNumber(),
-                    consMsg.getEpoch(), consMsg.getSender(), consMsg.getValue());
-
-            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-            try {
-                new ObjectOutputStream(bOut).writeObject(cm);
-            } catch (IOException ex) {
-                logger.error("Could not serialize message",ex);
-            }
+            if (consMsg.getProof() instanceof byte[]) signed = true; // certificate is made of signatures
 
-            byte[] data = bOut.toByteArray();
+            if (Arrays.equals(consMsg.getValue(), hashedValue) &&
+                    tomLayer.acceptor.hasValidProof(consMsg) && !alreadyCounted.contains(consMsg.getSender())) {
 
-            if (consMsg.getProof() instanceof byte[]) { // certificate is made of signatures
-                
-                logger.debug("Proof made of Signatures");
-                pubKey = SVController.getStaticConf().getPublicKey(consMsg.getSender());
-                   
-                byte[] signature = (byte[]) consMsg.getProof();
-                            
-                if (Arrays.equals(consMsg.getValue(), hashedValue) &&
-                        TOMUtil.verifySignature(pubKey, data, signature) && !alreadyCounted.contains(consMsg.getSender())) {
-                    
-                    alreadyCounted.add(consMsg.getSender());
-                    countValid++;
-                } else {
-                    logger.error("Invalid signature in message from " + consMsg.getSender());
-                }
-   
+                alreadyCounted.add(consMsg.getSender());
+                countValid++;
             } else {
-                logger.debug("Proof message is not an instance of byte[].");
+                logger.error("Invalid proof in message from " + consMsg.getSender());
             }
         }
         
@@ -841,13 +815,13 @@ public class LCManager {
         // otherwise, use certificate for the current view
         // To understand why this is important, check the comments in Acceptor.computeWrite()
                 
-        if (certificateLastView != -1 && pubKey != null)
+        if (certificateLastView != -1 && signed)
             logger.debug("Computing certificate based on previous view");
         
         //return countValid >= certificateCurrentView;
-        boolean ret = countValid >=  (certificateLastView != -1 && pubKey != null ? certificateLastView : certificateCurrentView);
+        boolean ret = countValid >=  (certificateLastView != -1 && signed ? certificateLastView : certificateCurrentView);
         logger.debug("Proof for CID {} is {} ({} valid messages, needed {})",
-                cDec.getCID(), (ret ? "valid" : "invalid"), countValid, ( pubKey != null ? certificateLastView : certificateCurrentView));
+                cDec.getCID(), (ret ? "valid" : "invalid"), countValid, ( signed ? certificateLastView : certificateCurrentView));
         return ret;
     }
 
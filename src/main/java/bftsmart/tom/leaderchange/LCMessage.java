@@ -15,11 +15,12 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -84,20 +85,20 @@ public class LCMessage extends SystemMessage {
     }
 
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException{
-        super.writeExternal(out);
+    public void wExternal(DataOutput out) throws IOException{
+        super.wExternal(out);
 
         out.writeInt(type);
         out.writeInt(ts);
-        out.writeObject(payload);
+        SystemMessageCodec.writeBytes(out, payload);
     }
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
-        super.readExternal(in);
+    public void rExternal(DataInput in) throws IOException, ClassNotFoundException{
+        super.rExternal(in);
 
         type = in.readInt();
         ts = in.readInt();
-        payload = (byte[]) in.readObject();
+        payload = SystemMessageCodec.readBytes(in);
     }
 }
@@ -15,20 +15,19 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.HashedWheelTimer;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -37,25 +36,30 @@ import org.slf4j.LoggerFactory;
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * Pending requests are kept in a concurrent set, so that watching and unwatching
+ * a request costs constant time and does not serialize the threads that receive
+ * and order requests. The request timer and the retransmission of STOP messages
+ * are tasks of the hashed wheel timer of the replica (see TOMLayer.getTimer()).
  */
 public class RequestsTimer {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private final HashedWheelTimer timer; // shared by the replica, see TOMLayer.getTimer()
+    private HashedWheelTimer.Timeout rtTask = null;
+    private volatile boolean running = false; // whether the request timer was started
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
-    private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private volatile long shortTimeout;
+    private final Set<TOMMessage> watched = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger watchedCount = new AtomicInteger();
     
-    private boolean enabled = true;
+    private volatile boolean enabled = true;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
     
-    private HashMap <Integer, Timer> stopTimers = new HashMap<>();
+    private final ConcurrentHashMap<Integer, HashedWheelTimer.Timeout> stopTimers = new ConcurrentHashMap<>();
     
     //private Storage st1 = new Storage(100000);
     //private Storage st2 = new Storage(10000);
@@ -65,6 +69,7 @@ public class RequestsTimer {
      */
     public RequestsTimer(TOMLayer tomLayer, ServerCommunicationSystem communication, ServerViewController controller) {
         this.tomLayer = tomLayer;
+        this.timer = tomLayer.getTimer();
         
         this.communication = communication;
         this.controller = controller;
@@ -77,21 +82,33 @@ public class RequestsTimer {
         this.shortTimeout = shortTimeout;
     }
     
-    public void startTimer() {
-        if (rtTask == null) {
+    public synchronized void startTimer() {
+        if (!running) {
             long t = (shortTimeout > -1 ? shortTimeout : timeout);
             //shortTimeout = -1;
-            rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) timer.schedule(rtTask, t);
+            scheduleTimer(t);
         }
     }
     
-    public void stopTimer() {
-        if (rtTask != null) {
-            rtTask.cancel();
+    public synchronized void stopTimer() {
+        if (running) {
+            if (rtTask != null) rtTask.cancel();
             rtTask = null;
+            running = false;
         }
     }
+
+    // stops the timer unless a request was watched since the caller found the set empty
+    private synchronized void stopTimerIfIdle() {
+        if (watchedCount.get() == 0) {
+            stopTimer();
+        }
+    }
+
+    private synchronized void scheduleTimer(long t) {
+        running = true;
+        if (controller.getCurrentViewN() > 1) rtTask = timer.schedule(this::sendTrigger, t, TimeUnit.MILLISECONDS);
+    }
     
     public void Enabled(boolean phase) {
         
@@ -108,10 +125,11 @@ public class RequestsTimer {
      */
     public void watch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        watched.add(request);
-        if (watched.size() >= 1 && enabled) startTimer();
-        rwLock.writeLock().unlock();
+        if (watched.add(request) && watchedCount.incrementAndGet() == 1 && enabled) {
+            startTimer();
+        } else if (!running && enabled) {
+            startTimer();
+        }
     }
 
     /**
@@ -120,27 +138,16 @@ public class RequestsTimer {
      */
     public void unwatch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
-        rwLock.writeLock().unlock();
+        if (watched.remove(request) && watchedCount.decrementAndGet() == 0) stopTimerIfIdle();
     }
 
     /**
      * Cancels all timers for all messages
      */
     public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
-        rwLock.writeLock().lock();
-        
-        watched.toArray(requests);
-
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
-            }
+        for (TOMMessage request : watched) {
+            unwatch(request);
         }
-        rwLock.writeLock().unlock();
     }
     
     public void run_lc_protocol() {
@@ -151,20 +158,11 @@ public class RequestsTimer {
 
         LinkedList<TOMMessage> pendingRequests = new LinkedList<>();
 
-        try {
-        
-            rwLock.readLock().lock();
-        
-            for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-                TOMMessage request = i.next();
-                if ((System.currentTimeMillis() - request.receptionTimestamp ) > t) {
-                    pendingRequests.add(request);
-                }
+        long now = System.currentTimeMillis();
+        for (TOMMessage request : watched) {
+            if ((now - request.receptionTimestamp ) > t) {
+                pendingRequests.add(request);
             }
-            
-        } finally {
-            
-            rwLock.readLock().unlock();
         }
         
         if (!pendingRequests.isEmpty()) {
@@ -192,15 +190,13 @@ public class RequestsTimer {
                 tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
             }
             else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+                scheduleTimer(t);
             }
         } else {
             
             logger.debug("Timeout triggered with no expired requests");
             
-            rtTask = new RequestTimerTask();
-            timer.schedule(rtTask, t);
+            scheduleTimer(t);
         }
         
     }
@@ -209,79 +205,60 @@ public class RequestsTimer {
         
         stopSTOP(regency);
         
-        SendStopTask stopTask = new SendStopTask(stop);
-        Timer stopTimer = new Timer("Stop message");
-        
-        stopTimer.schedule(stopTask, timeout);
+        HashedWheelTimer.Timeout stopTask = timer.schedule(() -> sendSTOP(stop), timeout, TimeUnit.MILLISECONDS);
         
-       stopTimers.put(regency, stopTimer);
+       stopTimers.put(regency, stopTask);
 
     }   
     
     public void stopAllSTOPs() {
-        Iterator stops = getTimers().iterator();
-        while (stops.hasNext()) {
-            stopSTOP((Integer) stops.next());
+        for (Integer regency : getTimers()) {
+            stopSTOP(regency);
         }
     }
     
     public void stopSTOP(int regency){
         
-        Timer stopTimer = stopTimers.remove(regency);
-        if (stopTimer != null) stopTimer.cancel();
+        HashedWheelTimer.Timeout stopTask = stopTimers.remove(regency);
+        if (stopTask != null) stopTask.cancel();
 
     }
     
     public Set<Integer> getTimers() {
         
-        return ((HashMap <Integer,Timer>) stopTimers.clone()).keySet();
+        return new HashSet<>(stopTimers.keySet());
         
     }
     
     public void shutdown() {
-        timer.cancel();
+        stopTimer();
         stopAllSTOPs();
         LoggerFactory.getLogger(this.getClass()).info("RequestsTimer stopped.");
 
     }
     
-    class RequestTimerTask extends TimerTask {
-
-        @Override
-        /**
-         * This is the code for the TimerTask. It executes the timeout for the first
-         * message on the watched list.
-         */
-        public void run() {
-            
-            int[] myself = new int[1];
-            myself[0] = controller.getStaticConf().getProcessId();
+    /**
+     * This is the code for the request timer. It makes the replica check which
+     * of the watched requests timed out.
+     */
+    private void sendTrigger() {
+        
+        int[] myself = new int[1];
+        myself[0] = controller.getStaticConf().getProcessId();
 
-            communication.send(myself, new LCMessage(-1, TOMUtil.TRIGGER_LC_LOCALLY, -1, null));
+        communication.send(myself, new LCMessage(-1, TOMUtil.TRIGGER_LC_LOCALLY, -1, null));
 
-        }
     }
     
-    class SendStopTask extends TimerTask {
-        
-        private LCMessage stop;
-        
-        public SendStopTask(LCMessage stop) {
-            this.stop = stop;
-        }
-
-        @Override
-        /**
-         * This is the code for the TimerTask. It sends a STOP
-         * message to the other replicas
-         */
-        public void run() {
+    /**
+     * This is the code for the STOP timer. It sends a STOP message to the other
+     * replicas
+     */
+    private void sendSTOP(LCMessage stop) {
 
-                logger.info("Re-transmitting STOP message to install regency " + stop.getReg());
-                communication.send(controller.getCurrentViewOtherAcceptors(),this.stop);
+        logger.info("Re-transmitting STOP message to install regency " + stop.getReg());
+        communication.send(controller.getCurrentViewOtherAcceptors(), stop);
 
-                setSTOP(stop.getReg(), stop); //repeat
-        }
-        
+        setSTOP(stop.getReg(), stop); //repeat
     }
 }
@@ -0,0 +1,107 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import bftsmart.communication.SystemMessageCodec;
+
+/**
+ * A COLLECT signed by the replica that created it. The signature covers the
+ * binary encoding of the collect (see CollectData.wExternal), which is what is
+ * sent in STOPDATA and SYNC messages, so the collect does not need to be
+ * serialized again to be verified.
+ */
+public class SignedCollect {
+
+    private final byte[] data; // binary encoding of the collect
+    private final byte[] signature;
+    private CollectData collect; // decoded lazily
+
+    /**
+     * Constructor
+     *
+     * @param data Binary encoding of the collect
+     * @param signature Signature of the encoding
+     */
+    public SignedCollect(byte[] data, byte[] signature) {
+        this.data = data;
+        this.signature = signature;
+    }
+
+    /**
+     * Get the binary encoding of the collect, i.e., the signed data
+     * @return binary encoding of the collect
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * Get the collect data
+     * @return the collect data
+     * @throws IOException if the signed data is not a valid collect
+     */
+    public CollectData getCollect() throws IOException {
+        if (collect == null) {
+            CollectData c = new CollectData();
+            c.rExternal(new DataInputStream(new ByteArrayInputStream(data)));
+            collect = c;
+        }
+        return collect;
+    }
+
+    /**
+     * Encodes a collect into the binary format that is signed
+     * @param collect the collect data
+     * @return binary encoding of the collect
+     */
+    public static byte[] encode(CollectData collect) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            collect.wExternal(out);
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode collect", e);
+        }
+    }
+
+    public void wExternal(DataOutput out) throws IOException {
+        SystemMessageCodec.writeBytes(out, data);
+        SystemMessageCodec.writeBytes(out, signature);
+    }
+
+    public static SignedCollect read(DataInput in) throws IOException {
+        byte[] data = SystemMessageCodec.readBytes(in);
+        byte[] signature = SystemMessageCodec.readBytes(in);
+        if (data == null) {
+            throw new IOException("Missing collect data");
+        }
+        return new SignedCollect(data, signature);
+    }
+}
@@ -0,0 +1,175 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of a replica: histograms (latencies and sizes),
+ * counters and gauges (values read when the metrics are exported). Each metric
+ * has a name and optionally one label, e.g., the stage of the protocol to which
+ * a latency refers. Metrics are created on first use and live as long as the
+ * process, so components look them up once and keep a reference.
+ *
+ * There is one registry per replica ID, so that several replicas can run in
+ * the same JVM. The registries are exported by MetricsExporter.
+ */
+public final class Metrics {
+
+    // latency of each stage of the processing of ordered requests, in seconds
+    public static final String STAGE_LATENCY = "stage_latency_seconds";
+    public static final String STAGE_RECEIVE = "receive"; // reception by the leader until proposal
+    public static final String STAGE_PROPOSE = "propose"; // proposal until WRITE sent
+    public static final String STAGE_WRITE = "write"; // WRITE sent until WRITE quorum (ACCEPT sent)
+    public static final String STAGE_ACCEPT = "accept"; // ACCEPT sent until ACCEPT quorum (decision)
+    public static final String STAGE_DELIVERY = "delivery"; // decision until delivery to the application
+    public static final String STAGE_EXECUTE = "execute"; // execution of the decided requests
+    public static final String STAGE_REPLY = "reply"; // sending of the replies
+
+    public static final String BATCH_SIZE = "batch_size"; // requests per decided batch
+    public static final String SIGNATURE_VERIFICATION = "signature_verification_seconds";
+    public static final String DROPPED_MESSAGES = "dropped_messages_total"; // labeled by reason
+    public static final String QUEUE_DEPTH = "queue_depth"; // labeled by queue
+
+    private static final Map<Integer, Metrics> registries = new ConcurrentHashMap<>();
+
+    private final int replicaId;
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics(int replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    /**
+     * Returns the registry of a replica, creating it if needed
+     *
+     * @param replicaId ID of the replica
+     * @return The registry of the replica
+     */
+    public static Metrics of(int replicaId) {
+        return registries.computeIfAbsent(replicaId, Metrics::new);
+    }
+
+    public int getReplicaId() {
+        return replicaId;
+    }
+
+    /**
+     * Returns a histogram of durations, which are recorded in nanoseconds and
+     * exported in seconds
+     */
+    public Histogram latency(String name) {
+        return histogram(name, null, null, 1e-9);
+    }
+
+    public Histogram latency(String name, String label, String labelValue) {
+        return histogram(name, label, labelValue, 1e-9);
+    }
+
+    public Histogram histogram(String name, double scale) {
+        return histogram(name, null, null, scale);
+    }
+
+    public Histogram histogram(String name, String label, String labelValue, double scale) {
+        return (Histogram) metrics.computeIfAbsent(key(name, label, labelValue),
+                k -> new Metric(name, label, labelValue, new Histogram(scale))).value;
+    }
+
+    public LongAdder counter(String name, String label, String labelValue) {
+        return (LongAdder) metrics.computeIfAbsent(key(name, label, labelValue),
+                k -> new Metric(name, label, labelValue, new LongAdder())).value;
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge with the same name and label
+     *
+     * @param value Supplies the value of the gauge when the metrics are exported
+     */
+    public void gauge(String name, String label, String labelValue, LongSupplier value) {
+        metrics.put(key(name, label, labelValue), new Metric(name, label, labelValue, value));
+    }
+
+    public void removeGauge(String name, String label, String labelValue) {
+        metrics.remove(key(name, label, labelValue));
+    }
+
+    /**
+     * @param key Key of the metric, as returned by Metric.getKey()
+     * @return The metric with that key, or null if there is none
+     */
+    public Metric getMetric(String key) {
+        return metrics.get(key);
+    }
+
+    /**
+     * @return The metrics of this registry, sorted by name and label
+     */
+    public List<Metric> getMetrics() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    private static String key(String name, String label, String labelValue) {
+        return label == null ? name : name + '{' + label + '=' + labelValue + '}';
+    }
+
+    /**
+     * A metric of the registry. The value is a Histogram, a LongAdder (counter)
+     * or a LongSupplier (gauge).
+     */
+    public static final class Metric {
+
+        private final String name;
+        private final String label;
+        private final String labelValue;
+        private final Object value;
+
+        private Metric(String name, String label, String labelValue, Object value) {
+            this.name = name;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getLabelValue() {
+            return labelValue;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @return The name of the metric followed by its label, if any
+         */
+        public String getKey() {
+            return key(name, label, labelValue);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exports the metrics of a replica through JMX (as the attributes of the MBean
+ * bftsmart:type=Metrics,replica=ID) and/or through an HTTP endpoint bound to the
+ * loopback interface, which serves them at /metrics in the Prometheus text
+ * format. Histograms are exported as their count, sum and some quantiles.
+ */
+public class MetricsExporter {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILES = {"p50", "p90", "p99", "p999"}; // JMX names of the quantiles
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Metrics metrics;
+    private ObjectName objectName;
+    private HttpServer server;
+    private ExecutorService serverThread;
+
+    /**
+     * Starts exporting the metrics of a replica
+     *
+     * @param metrics The registry of the replica
+     * @param jmx Whether to register the metrics MBean
+     * @param httpPort Port of the HTTP endpoint (negative to disable it)
+     */
+    public MetricsExporter(Metrics metrics, boolean jmx, int httpPort) {
+        this.metrics = metrics;
+
+        if (jmx) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                objectName = new ObjectName("bftsmart:type=Metrics,replica=" + metrics.getReplicaId());
+                if (mbs.isRegistered(objectName)) {
+                    mbs.unregisterMBean(objectName);
+                }
+                mbs.registerMBean(new MetricsMBean(), objectName);
+            } catch (Exception ex) {
+                logger.error("Failed to register the metrics MBean", ex);
+                objectName = null;
+            }
+        }
+
+        if (httpPort >= 0) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+                server.createContext("/metrics", this::handle);
+                serverThread = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "Metrics HTTP server");
+                    t.setDaemon(true);
+                    return t;
+                });
+                server.setExecutor(serverThread);
+                server.start();
+                logger.info("Serving metrics at http://{}:{}/metrics", server.getAddress().getHostString(),
+                        server.getAddress().getPort());
+            } catch (IOException ex) {
+                logger.error("Failed to start the metrics HTTP server on port " + httpPort, ex);
+                server = null;
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception ex) {
+                logger.debug("Failed to unregister the metrics MBean", ex);
+            }
+            objectName = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            serverThread.shutdown();
+            server = null;
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format
+     *
+     * @return The metrics, one sample per line
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        String replica = "replica=\"" + metrics.getReplicaId() + "\"";
+        String lastName = null;
+
+        for (Metrics.Metric metric : metrics.getMetrics()) {
+            String name = "bftsmart_" + metric.getName();
+            String labels = replica + (metric.getLabel() == null ? ""
+                    : "," + metric.getLabel() + "=\"" + metric.getLabelValue() + "\"");
+            Object value = metric.getValue();
+
+            if (!name.equals(lastName)) {
+                String type = value instanceof Histogram ? "summary" : value instanceof LongAdder ? "counter" : "gauge";
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                lastName = name;
+            }
+
+            if (value instanceof Histogram) {
+                Histogram histogram = (Histogram) value;
+                Histogram.Snapshot snapshot = histogram.snapshot();
+                for (double q : QUANTILES) {
+                    sample(out, name, labels + ",quantile=\"" + q + "\"", snapshot.getValueAt(q) * histogram.getScale());
+                }
+                sample(out, name + "_sum", labels, snapshot.getSum() * histogram.getScale());
+                sample(out, name + "_count", labels, snapshot.getCount());
+            } else {
+                sample(out, name, labels, longValue(value));
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.9g", value));
+        }
+        out.append('\n');
+    }
+
+    private static long longValue(Object value) {
+        return value instanceof LongAdder ? ((LongAdder) value).sum() : ((LongSupplier) value).getAsLong();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Exposes each counter and gauge as an attribute named after its key, and
+     * each histogram as the attributes key.count, key.mean, key.max and key.pNN
+     * (with the values in the exported unit)
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Metrics.Metric metric = metrics.getMetric(attribute);
+            if (metric != null && !(metric.getValue() instanceof Histogram)) {
+                return longValue(metric.getValue());
+            }
+
+            int dot = attribute.lastIndexOf('.');
+            metric = dot < 0 ? null : metrics.getMetric(attribute.substring(0, dot));
+            if (metric != null && metric.getValue() instanceof Histogram) {
+                Histogram histogram = (Histogram) metric.getValue();
+                String field = attribute.substring(dot + 1);
+                if (field.equals("count")) {
+                    return histogram.snapshot().getCount();
+                } else if (field.equals("mean")) {
+                    return histogram.snapshot().getMean() * histogram.getScale();
+                } else if (field.equals("max")) {
+                    return histogram.snapshot().getMax() * histogram.getScale();
+                }
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    if (field.equals(PERCENTILES[i])) {
+                        return histogram.snapshot().getValueAt(QUANTILES[i]) * histogram.getScale();
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ex) {
+                    // skipped, as specified by DynamicMBean
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // metrics have no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Metrics.Metric metric : metrics.getMetrics()) {
+                String key = metric.getKey();
+                if (metric.getValue() instanceof Histogram) {
+                    attributes.add(attribute(key + ".count", "long"));
+                    attributes.add(attribute(key + ".mean", "double"));
+                    attributes.add(attribute(key + ".max", "double"));
+                    for (String percentile : PERCENTILES) {
+                        attributes.add(attribute(key + "." + percentile, "double"));
+                    }
+                } else {
+                    attributes.add(attribute(key, "long"));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of replica " + metrics.getReplicaId(),
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private MBeanAttributeInfo attribute(String name, String type) {
+            return new MBeanAttributeInfo(name, type, name, true, false, false);
+        }
+    }
+}
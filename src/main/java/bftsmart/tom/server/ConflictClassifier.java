@@ -0,0 +1,47 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import java.util.Collection;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * 
+ * Applications that execute ordered requests in parallel must implement this
+ * interface, to inform which requests conflict with each other. Two requests
+ * conflict if they share at least one key. Conflicting requests are always
+ * executed in the order in which they were decided, while requests that do not
+ * conflict may be executed concurrently.
+ *
+ */
+public interface ConflictClassifier {
+
+    /**
+     * Returns the keys (e.g., the data items or the classes of data items) that
+     * a request reads or writes. Keys are compared with equals()/hashCode().
+     * 
+     * This method must be deterministic, i.e., return the same keys for the same
+     * request at every replica.
+     *
+     * @param command The request
+     * @param msgCtx The context associated to the request
+     * @return The keys of the request, or null if the request conflicts with
+     *         every other request
+     */
+    public Collection<?> getConflictKeys(byte[] command, MessageContext msgCtx);
+
+}
@@ -0,0 +1,68 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * 
+ * Executables that implement this interface keep a versioned (multi-version)
+ * read view of their state, against which unordered requests are executed.
+ * After each group of decided batches is executed, the replica asks the
+ * application for an immutable view of its state (e.g., the current version of
+ * a persistent data structure) and publishes it. Unordered requests are then
+ * executed against the last published view by the read-only execution threads
+ * (see system.optimizations.readonly_threads), concurrently with the execution
+ * of ordered requests and without taking any of the locks used by it.
+ *
+ * @param <V> The type of the read view
+ */
+public interface ReadViewExecutable<V> extends Executable {
+
+    /**
+     * Returns an immutable view of the state, reflecting every ordered request
+     * executed so far. Invoked by the delivery thread while no ordered request is
+     * being executed, so it should be cheap (e.g., returning a reference to the
+     * current version of the state).
+     *
+     * @param lastCID The consensus ID of the last executed batch
+     * @return The read view
+     */
+    public V getReadView(int lastCID);
+
+    /**
+     * Executes an unordered request against a read view. May be invoked
+     * concurrently by several threads.
+     *
+     * @param view The read view, as returned by getReadView()
+     * @param command The request
+     * @param msgCtx The context associated to the request
+     * @return The reply for the request issued by the client
+     */
+    public byte[] executeUnordered(V view, byte[] command, MessageContext msgCtx);
+
+    public default TOMMessage executeUnordered(V view, int processID, int viewID, boolean isReplyHash,
+            byte[] command, MessageContext msgCtx) {
+
+        byte[] result = executeUnordered(view, command, msgCtx);
+
+        if (isReplyHash) result = TOMUtil.computeHash(result);
+
+        return getTOMMessage(processID, viewID, command, msgCtx, result);
+    }
+}
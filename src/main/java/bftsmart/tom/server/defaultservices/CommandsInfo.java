@@ -15,10 +15,18 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessageType;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -124,6 +132,142 @@ public class CommandsInfo implements Serializable {
         return hash;
     }
 
+    // Proof encodings used by wExternal. The messages of a batch usually share the same proof
+    private static final byte NO_PROOF = 0;
+    private static final byte SAME_PROOF = 1; // same proof as the previous message context
+    private static final byte NEW_PROOF = 2;
+
+    /**
+     * Writes this batch in the binary format used by the decision log. The first
+     * request of the batch is not written, since it is only kept for statistics.
+     *
+     * @param out Output to which the batch is written
+     * @throws IOException If the batch could not be written
+     */
+    public void wExternal(DataOutput out) throws IOException {
+
+        if (commands == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(commands.length);
+            for (byte[] command : commands) {
+                SystemMessageCodec.writeBytes(out, command);
+            }
+        }
+
+        if (msgCtx == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(msgCtx.length);
+        Set<ConsensusMessage> lastProof = null;
+        for (MessageContext m : msgCtx) {
+            out.writeInt(m.getSender());
+            out.writeInt(m.getViewID());
+            out.writeByte(m.getType() == null ? -1 : m.getType().ordinal());
+            out.writeInt(m.getSession());
+            out.writeInt(m.getSequence());
+            out.writeInt(m.getOperationId());
+            out.writeInt(m.getReplyServer());
+            SystemMessageCodec.writeBytes(out, m.getSignature());
+            out.writeLong(m.getTimestamp());
+            out.writeInt(m.getNumOfNonces());
+            out.writeLong(m.getSeed());
+            out.writeInt(m.getRegency());
+            out.writeInt(m.getLeader());
+            out.writeInt(m.getConsensusId());
+            out.writeBoolean(m.isNoOp());
+
+            Set<ConsensusMessage> proof = m.getProof();
+            if (proof == null) {
+                out.writeByte(NO_PROOF);
+            } else if (proof == lastProof) {
+                out.writeByte(SAME_PROOF);
+            } else {
+                out.writeByte(NEW_PROOF);
+                out.writeInt(proof.size());
+                for (ConsensusMessage cm : proof) {
+                    cm.wExternal(out);
+                }
+            }
+            lastProof = proof;
+        }
+    }
+
+    /**
+     * Reads a batch written by wExternal
+     *
+     * @param in Input from which the batch is read
+     * @return The batch
+     * @throws IOException If the batch could not be read
+     * @throws ClassNotFoundException If a proof could not be read
+     */
+    public static CommandsInfo rExternal(DataInput in) throws IOException, ClassNotFoundException {
+
+        CommandsInfo ci = new CommandsInfo();
+
+        int size = in.readInt();
+        if (size >= 0) {
+            ci.commands = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                ci.commands[i] = SystemMessageCodec.readBytes(in);
+            }
+        }
+
+        size = in.readInt();
+        if (size < 0) {
+            return ci;
+        }
+
+        ci.msgCtx = new MessageContext[size];
+        Set<ConsensusMessage> lastProof = null;
+        for (int i = 0; i < size; i++) {
+            int sender = in.readInt();
+            int viewID = in.readInt();
+            byte type = in.readByte();
+            int session = in.readInt();
+            int sequence = in.readInt();
+            int operationId = in.readInt();
+            int replyServer = in.readInt();
+            byte[] signature = SystemMessageCodec.readBytes(in);
+            long timestamp = in.readLong();
+            int numOfNonces = in.readInt();
+            long seed = in.readLong();
+            int regency = in.readInt();
+            int leader = in.readInt();
+            int consensusId = in.readInt();
+            boolean noOp = in.readBoolean();
+
+            Set<ConsensusMessage> proof = null;
+            switch (in.readByte()) {
+                case NO_PROOF:
+                    break;
+                case SAME_PROOF:
+                    proof = lastProof;
+                    break;
+                case NEW_PROOF:
+                    int proofSize = in.readInt();
+                    proof = new HashSet<>();
+                    for (int j = 0; j < proofSize; j++) {
+                        ConsensusMessage cm = new ConsensusMessage();
+                        cm.rExternal(in);
+                        proof.add(cm);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown proof encoding");
+            }
+            lastProof = proof;
+
+            ci.msgCtx[i] = new MessageContext(sender, viewID, type < 0 ? null : TOMMessageType.getMessageType(type),
+                    session, sequence, operationId, replyServer, signature, timestamp, numOfNonces, seed,
+                    regency, leader, consensusId, proof, null, noOp);
+        }
+
+        return ci;
+    }
+
     //These methods were used when the class extended interface Externizable,
     //but this was causing serialization problems when the batch of operations
     //had very large commands. Using the Serializable interface, the issue was solved
@@ -42,6 +42,7 @@ public class DefaultApplicationState implements ApplicationState {
     protected byte[] stateHash; // Hash of the state associated with the last checkpoint
     protected int lastCID = -1; // Consensus ID for the last messages batch delivered to the application
     protected boolean hasState; // indicates if the replica really had the requested state
+    protected boolean paged; // indicates if the state is a full checkpoint made of pages (see PageDelta)
 
     protected TreeMap<Integer, TOMMessage> lastReplies = new TreeMap<>(); // For each client id (Integer) remember the last reply
     protected byte[] lastRepliesHash; // Hash of lastReplies to confirm integrity
@@ -179,6 +180,19 @@ public class DefaultApplicationState implements ApplicationState {
         return stateHash;
     }
 
+    /**
+     * Indicates if the state is a full checkpoint made of pages, whose hash is
+     * computed by PageHashTree instead of over the whole state
+     * @return true if the state was taken by an IncrementalRecoverable
+     */
+    public boolean isPaged() {
+        return paged;
+    }
+
+    public void setPaged(boolean paged) {
+        this.paged = paged;
+    }
+
     /**
      * Sets the state associated with the last checkpoint
      * @param state State associated with the last checkpoint
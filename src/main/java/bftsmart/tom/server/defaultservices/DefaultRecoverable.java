@@ -22,6 +22,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.clientsmanagement.ClientsManager;
@@ -35,6 +39,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
+import bftsmart.tom.util.OperationBatch;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -61,6 +66,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private StateLog log;
     private StateManager stateManager;
     private ClientsManager clientsManager;
+    private ExecutorService logWriter; // logs batches while they execute, if log_parallel is enabled
 
     /**
      * Constructor
@@ -92,14 +98,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         if (checkpointIndex == -1) {
 
-            if (!noop) {
-
-                stateLock.lock();
-                replies = appExecuteBatch(commands, msgCtxs, true);
-                stateLock.unlock();
-            }
-
-            saveCommands(commands, msgCtxs);
+            replies = executeAndLog(commands, msgCtxs, noop);
 
             if (!noop && controller.getStaticConf().useReadOnlyRequests()) {
                 saveReplies(commands, msgCtxs, replies, cid);
@@ -132,7 +131,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             if (!noop) {
                 stateLock.lock();
-                firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx, true);
+                firstHalfReplies = OperationBatch.execute(firstHalf, firstHalfMsgCtx, (c, m) -> appExecuteBatch(c, m, true));
                 stateLock.unlock();
             }
             if (controller.getStaticConf().useReadOnlyRequests()) {
@@ -141,12 +140,18 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             logger.info("Performing checkpoint for consensus " + cid);
             stateLock.lock();
 
-            byte[] snapshot = getSnapshot();
+            // incremental checkpoints only copy the pages modified since the previous one
+            PageDelta delta = (this instanceof IncrementalRecoverable ? ((IncrementalRecoverable) this).takeDelta() : null);
+            byte[] snapshot = (delta == null ? getSnapshot() : null);
             TreeMap<Integer, TOMMessage> lastReplies = controller.getStaticConf().useReadOnlyRequests() ?
                     clientsManager.getLastReplyOfEachClient() : new TreeMap<>();
 
             stateLock.unlock();
-            saveState(snapshot, cid);
+            if (delta != null) {
+                saveState(delta, cid);
+            } else {
+                saveState(snapshot, cid);
+            }
             if (controller.getStaticConf().useReadOnlyRequests()) {
                 saveReplies(lastReplies, cid);
             }
@@ -158,14 +163,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 //	        	System.out.println("----THERE IS A SECOND HALF----");
                 cid = msgCtxs[msgCtxs.length - 1].getConsensusId();
 
-                if (!noop) {
-                    stateLock.lock();
-                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx, true);
-                    stateLock.unlock();
-                }
-
                 logger.debug("Storing message batch in the state log for consensus " + cid);
-                saveCommands(secondHalf, secondHalfMsgCtx);
+                secondHalfReplies = executeAndLog(secondHalf, secondHalfMsgCtx, noop);
                 saveReplies(secondHalf, secondHalfMsgCtx, secondHalfReplies, cid);
 
                 System.arraycopy(secondHalfReplies, 0, replies, firstHalfReplies.length, secondHalfReplies.length);
@@ -179,6 +178,44 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return replies;
     }
 
+    /**
+     * Executes a batch and stores it in the log. If log_parallel is enabled, the
+     * batch is logged by the log writer thread while it is executed. In both
+     * cases this method only returns after the batch is executed and logged, so
+     * that replies are never sent for requests that are not in the log.
+     */
+    private byte[][] executeAndLog(byte[][] commands, MessageContext[] msgCtxs, boolean noop) {
+
+        Future<?> logging = (logWriter != null ? logWriter.submit(() -> saveCommands(commands, msgCtxs)) : null);
+
+        byte[][] replies = new byte[commands.length][];
+        if (!noop) {
+            stateLock.lock();
+            replies = OperationBatch.execute(commands, msgCtxs, (c, m) -> appExecuteBatch(c, m, true));
+            stateLock.unlock();
+        }
+
+        if (logging == null) {
+            saveCommands(commands, msgCtxs);
+        } else {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    logging.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to log batch", e.getCause());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return replies;
+    }
+
     private final byte[] computeHash(byte[] data) {
         byte[] ret = null;
         hashLock.lock();
@@ -209,6 +246,22 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    private void saveState(PageDelta delta, int lastCID) {
+
+        StateLog thisLog = getLog();
+
+        logLock.lock();
+
+        logger.debug("(TOMLayer.saveState) Saving " + delta.size() + " modified pages of CID " + lastCID);
+
+        thisLog.newCheckpoint(delta, lastCID);
+        thisLog.setLastCID(lastCID);
+        thisLog.setLastCheckpointCID(lastCID);
+
+        logLock.unlock();
+        logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
+    }
+
 
     private void saveReplies(byte[][] commands, MessageContext[] msgCtxs, byte[][] results,  int lastCID) {
         TOMMessage[] executedRequests = new TOMMessage[msgCtxs.length];
@@ -272,6 +325,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 }
             }
         }
+        // one sync for all the consensus instances in this batch, before the replies are sent
+        log.sync();
         logLock.unlock();
     }
 
@@ -338,8 +393,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     
                     if (commands == null || msgCtx == null || msgCtx[0].isNoOp()) {
                         continue;
-                    }                        
-                    appExecuteBatch(commands, msgCtx, false);
+                    }
+                    // the log holds the requests as decided, so batch requests are unpacked again
+                    OperationBatch.execute(commands, msgCtx, (c, m) -> appExecuteBatch(c, m, false));
                     
                 } catch (Exception e) {
                     logger.error("Failed to process and verify batched requests",e);
@@ -437,12 +493,17 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
             byte[] state = getSnapshot();
+            boolean paged = this instanceof IncrementalRecoverable;
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, (paged ? null : computeHash(state)), isToLog, syncLog, syncCkp);
+                if (paged) {
+                    ((DiskStateLog) log).setCompactionPeriod(config.getCheckpointCompaction());
+                    log.usePages(state);
+                }
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -450,7 +511,10 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     getStateManager().setLastCID(storedState.getLastCID());
                 }
             } else {
-                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, computeHash(state));
+                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, (paged ? null : computeHash(state)));
+                if (paged) {
+                    log.usePages(state);
+                }
             }
         }
     }
@@ -459,6 +523,13 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     public void setReplicaContext(ReplicaContext replicaContext) {
         this.config = replicaContext.getStaticConfiguration();
         this.controller = replicaContext.getSVController();
+        if (config.isToLogParallel() && logWriter == null) {
+            logWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Log writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
         initLog();
         getStateManager().askCurrentConsensusId();
     }
@@ -34,6 +34,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.SingleExecutable;
+import bftsmart.tom.util.OperationBatch;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,7 +93,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             
         if (!noop) {
             stateLock.lock();
-            reply = appExecuteOrdered(command, msgCtx);
+            reply = OperationBatch.execute(command, msgCtx, this::appExecuteOrdered);
             stateLock.unlock();
         }
         
@@ -177,6 +178,10 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             }
         }
         
+        // the commands are only logged (and synced) once the last request of the
+        // consensus instance is executed, so the replies to the previous ones are
+        // sent before their decision is durable, as before group commit
+        log.sync();
         logLock.unlock();
     }
 
@@ -244,8 +249,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                         continue;
                     }
                     
+                    // the log holds the requests as decided, so batch requests are unpacked again
                     for(int i = 0; i < cmds.length; i++) {
-                    	appExecuteOrdered(cmds[i], msgCtxs[i]);
+                    	OperationBatch.execute(cmds[i], msgCtxs[i], this::appExecuteOrdered);
                     }
                 } catch (Exception e) {
                     logger.error("Failed to process and verify batched requests",e);
@@ -15,16 +15,18 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.statemanagement.ApplicationState;
@@ -37,8 +39,9 @@ public class DiskStateLog extends StateLog {
 			.getProperty("file.separator"));
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
+	private static final String DELTA_EXT = ".dlt";
 
-	private RandomAccessFile log;
+	private LogSegment log;
 	private boolean syncLog;
 	private String logPath;
 	private String lastCkpPath;
@@ -46,6 +49,13 @@ public class DiskStateLog extends StateLog {
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+
+	// incremental checkpoints (see usePages) written since the last full checkpoint
+	private List<String> deltaPaths = new ArrayList<>();
+	private int compactionPeriod = 8;
+	private int generation = 0; // incremented whenever the full checkpoint is replaced by newCheckpoint()
+	private boolean compacting = false;
+	private ExecutorService compactor;
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
@@ -64,12 +74,8 @@ public class DiskStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
+			log = new LogSegment(logPath);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -78,7 +84,7 @@ public class DiskStateLog extends StateLog {
 	 * Adds a message batch to the log. This batches should be added to the log
 	 * in the same order in which they are delivered to the application. Only
 	 * the 'k' batches received after the last checkpoint are supposed to be
-	 * kept
+	 * kept. The batch is only guaranteed to be on disk after sync() is invoked.
 	 * 
 	 * @param commands The batch of messages to be kept.
          * @param consensusId
@@ -95,57 +101,42 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(consensusId, commandsInfo);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
 	    }
 	}
 
+	/**
+	 * Forces the batches added since the last invocation to disk, if sync_log is
+	 * enabled. Invoked once per group of decisions delivered together.
+	 */
+        @Override
+	public void sync() {
+		if (syncLog && log != null) {
+			try {
+				log.sync();
+			} catch (IOException e) {
+				logger.error("Failed to sync log to disk",e);
+			}
+		}
+	}
+
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".tmp";
 		try {
 			checkpointLock.lock();
-			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
-					(syncCkp ? "rwd" : "rw"));
-
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
-			
-			ckp.write(ckpState);
-			ckp.close();
+			writeCheckpointFile(ckpPath, state, stateHash, consensusId);
 
 			if (isToLog)
 				deleteLogFile();
 			deleteLastCkp();
 			renameCkp(ckpPath);
+			deleteDeltas();
+			generation++;
 			if (isToLog)
 				createLogFile();
 			
@@ -160,6 +151,169 @@ public class DiskStateLog extends StateLog {
 		}
 	}
 
+	/**
+	 * Writes the pages modified since the last checkpoint to a delta file, in the
+	 * same format of a full checkpoint. Once compactionPeriod deltas are written,
+	 * they are merged with the full checkpoint by a background thread, while new
+	 * checkpoints keep being taken.
+	 *
+	 * Unlike the compaction, the delta is hashed and written by the calling (delivery)
+	 * thread. The log of the previous period is deleted as soon as the checkpoint is
+	 * taken, so the delta must be on disk before that, and the requests logged next
+	 * must go to the new log. Only the hashes of the modified pages are recomputed
+	 * (see PageHashTree) and only those pages are written, so the cost is proportional
+	 * to the pages modified during the checkpoint period, not to the size of the state.
+	 *
+	 * @param delta Pages modified since the last checkpoint
+	 * @param consensusId Consensus ID of the checkpoint
+	 */
+        @Override
+	public void newCheckpoint(PageDelta delta, int consensusId) {
+		byte[] stateHash = updatePages(delta);
+
+		if (lastCkpPath == null) {
+			// deltas are applied on top of a full checkpoint, so the first one is written in full
+			PageDelta image = PageDelta.fromBytes(getState()).merge(delta);
+			newCheckpoint(image.toBytes(), stateHash, consensusId);
+			return;
+		}
+
+		String deltaPath = DEFAULT_DIR + String.valueOf(id) + "." + consensusId + DELTA_EXT;
+		try {
+			checkpointLock.lock();
+			writeCheckpointFile(deltaPath + ".tmp", delta.toBytes(), stateHash, consensusId);
+			new File(deltaPath + ".tmp").renameTo(new File(deltaPath));
+			deltaPaths.add(deltaPath);
+
+			if (isToLog) {
+				deleteLogFile();
+				createLogFile();
+			}
+
+			if (!compacting && deltaPaths.size() >= compactionPeriod) {
+				compacting = true;
+				String base = lastCkpPath;
+				List<String> deltas = new ArrayList<>(deltaPaths);
+				int gen = generation;
+				getCompactor().execute(() -> compact(base, deltas, gen));
+			}
+		} catch (IOException e) {
+			logger.error("Failed to write incremental checkpoint to disk",e);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how many incremental checkpoints are written before they are
+	 * compacted into a full checkpoint
+	 *
+	 * @param compactionPeriod Number of incremental checkpoints between compactions
+	 */
+	public void setCompactionPeriod(int compactionPeriod) {
+		this.compactionPeriod = Math.max(1, compactionPeriod);
+	}
+
+        @Override
+	protected void applyPages(PageDelta delta) {
+		// the contents of the pages are kept on disk only
+	}
+
+	private void writeCheckpointFile(String path, byte[] state, byte[] stateHash, int consensusId) throws IOException {
+		RandomAccessFile ckp = new RandomAccessFile(path,
+				(syncCkp ? "rwd" : "rw"));
+
+		ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
+				+ 4 * INT_BYTE_SIZE);
+		bf.putInt(state.length);
+		bf.put(state);
+		bf.putInt(stateHash.length);
+		bf.put(stateHash);
+		bf.putInt(EOF);
+		bf.putInt(consensusId);
+
+		byte[] ckpState = bf.array();
+		
+		ckp.write(ckpState);
+		ckp.close();
+	}
+
+	private synchronized ExecutorService getCompactor() {
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "Checkpoint compactor");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return compactor;
+	}
+
+	// Merges the full checkpoint with the deltas written after it. The files are
+	// never modified once written, so they can be read without holding the lock
+	private void compact(String base, List<String> deltas, int gen) {
+		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ System.currentTimeMillis() + ".tmp";
+		try {
+			FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
+			PageDelta image = readPages(fr, base);
+			for (String deltaPath : deltas) {
+				image = image.merge(readPages(fr, deltaPath));
+			}
+			// the recoverer holds the hash and consensus ID of the last delta read
+			writeCheckpointFile(ckpPath, image.toBytes(), fr.getCkpStateHash(), fr.getCkpLastConsensusId());
+
+			checkpointLock.lock();
+			try {
+				if (gen == generation) {
+					deleteLastCkp();
+					renameCkp(ckpPath);
+					for (String deltaPath : deltas) {
+						new File(deltaPath).delete();
+					}
+					deltaPaths.removeAll(deltas);
+					logger.info("Compacted " + deltas.size() + " incremental checkpoints up to CID " + fr.getCkpLastConsensusId());
+				} else {
+					new File(ckpPath).delete();
+				}
+			} finally {
+				checkpointLock.unlock();
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Failed to compact incremental checkpoints",e);
+			new File(ckpPath).delete();
+		} finally {
+			checkpointLock.lock();
+			compacting = false;
+			checkpointLock.unlock();
+		}
+	}
+
+	private PageDelta readPages(FileRecoverer fr, String path) throws IOException {
+		byte[] pages = fr.getCkpState(path);
+		if (pages == null) {
+			throw new IOException("Failed to read checkpoint " + path);
+		}
+		return PageDelta.fromBytes(pages);
+	}
+
+	// Reads the full checkpoint and applies the deltas written after it.
+	// Must be invoked while holding checkpointLock
+	private byte[] readPagedCheckpoint(FileRecoverer fr) throws IOException {
+		PageDelta image = readPages(fr, lastCkpPath);
+		for (String deltaPath : deltaPaths) {
+			image = image.merge(readPages(fr, deltaPath));
+		}
+		return image.toBytes();
+	}
+
+	private void deleteDeltas() {
+		for (String deltaPath : deltaPaths) {
+			new File(deltaPath).delete();
+		}
+		deltaPaths.clear();
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
@@ -175,6 +329,7 @@ public class DiskStateLog extends StateLog {
 		try {
 			if(log != null)
 				log.close();
+			log = null;
 			new File(logPath).delete();
 		} catch (IOException e) {
 			logger.error("Failed to delete log file",e);
@@ -214,17 +369,31 @@ public class DiskStateLog extends StateLog {
 					batches[i] = recoveredBatches[i];
 			}
 			
+			byte[] ckpState = null;
+			byte[] ckpStateHash = null;
 			checkpointLock.lock();
-			byte[] ckpState = fr.getCkpState(lastCkpPath);
-			byte[] ckpStateHash = fr.getCkpStateHash();
+			if (isPaged()) {
+				// only the hash is kept in memory, the pages are read from disk if needed
+				try {
+					ckpState = (sendState ? (lastCkpPath != null ? readPagedCheckpoint(fr) : getState()) : null);
+				} catch (IOException | IllegalArgumentException e) {
+					logger.error("Failed to read incremental checkpoints",e);
+				}
+				ckpStateHash = getStateHash();
+			} else {
+				ckpState = fr.getCkpState(lastCkpPath);
+				ckpStateHash = fr.getCkpStateHash();
+			}
 			checkpointLock.unlock();
 
 			logger.info("FINISHED READING STATE");
 //			readingState = false;
 
 //			return new DefaultApplicationState((sendState ? batches : null), lastCheckpointCID,
-			return new DefaultApplicationState(batches, lastCheckpointCID,
+			DefaultApplicationState state = new DefaultApplicationState(batches, lastCheckpointCID,
 					cid, (sendState ? ckpState : null), ckpStateHash, this.id);
+			state.setPaged(isPaged());
+			return state;
 
 		}
 		return null;
@@ -247,8 +416,8 @@ public class DiskStateLog extends StateLog {
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
 			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
+				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.position());
+				logPointers.put(ckpReplicaIndex, log.position());
 			} catch (IOException e) {
 				logger.error("Failed to get file pointer",e);
 			}
@@ -265,6 +434,8 @@ public class DiskStateLog extends StateLog {
 	 */
         @Override
 	public void update(DefaultApplicationState transState) {
+		if (isPaged())
+			usePages(transState.getState());
 		newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointCID());
 		setLastCheckpointCID(transState.getLastCheckpointCID());
 	}
@@ -272,18 +443,21 @@ public class DiskStateLog extends StateLog {
 	protected ApplicationState loadDurableState() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
-		logPath = fr.getLatestFile(".log");
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
+		if (isPaged())
+			checkpoint = recoverDeltas(fr, checkpoint);
+		logPath = fr.getLatestFile(".log"); // may have been discarded by recoverDeltas
 		CommandsInfo[] log = null;
 		if(logPath !=null)
 			log = fr.getLogState(0, logPath);
 		int ckpLastConsensusId = fr.getCkpLastConsensusId();
 		int logLastConsensusId = fr.getLogLastConsensusId();
 		logger.info("log last consensus id: " + logLastConsensusId);
-		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
+		DefaultApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
 				logLastConsensusId, checkpoint, fr.getCkpStateHash(), this.id);
+		state.setPaged(isPaged());
 		if(logLastConsensusId > ckpLastConsensusId) {
 			super.setLastCID(logLastConsensusId);
 		} else
@@ -292,4 +466,60 @@ public class DiskStateLog extends StateLog {
 		
 		return state;
 	}
+
+	// Applies to the full checkpoint read by the recoverer the deltas written
+	// after it, leaving in the recoverer the hash and consensus ID of the last one.
+	// The log only holds the decisions after the last delta written, so if a delta
+	// is damaged the log is discarded as well, and the decisions after the last good
+	// delta are left to the state transfer
+	private byte[] recoverDeltas(FileRecoverer fr, byte[] checkpoint) {
+		String[] deltas = fr.getFiles(DELTA_EXT);
+		if (checkpoint == null) {
+			for (String deltaPath : deltas)
+				new File(deltaPath).delete();
+			return null;
+		}
+		int ckpLastConsensusId = fr.getCkpLastConsensusId();
+		byte[] lastHash = fr.getCkpStateHash();
+		int lastCID = ckpLastConsensusId;
+		PageDelta image = PageDelta.fromBytes(checkpoint);
+		boolean broken = false;
+		for (String deltaPath : deltas) {
+			if (broken) {
+				// depends on a delta that could not be recovered
+				new File(deltaPath).delete();
+				continue;
+			}
+			int deltaCID = Integer.parseInt(new File(deltaPath).getName().split("\\.")[1]);
+			if (deltaCID <= ckpLastConsensusId) {
+				// already compacted into the full checkpoint
+				new File(deltaPath).delete();
+				continue;
+			}
+			try {
+				PageDelta pages = readPages(fr, deltaPath);
+				if (fr.getCkpLastConsensusId() != deltaCID) {
+					throw new IOException("Incomplete incremental checkpoint " + deltaPath);
+				}
+				image = image.merge(pages);
+				deltaPaths.add(deltaPath);
+				lastHash = fr.getCkpStateHash();
+				lastCID = deltaCID;
+			} catch (IOException | IllegalArgumentException e) {
+				// the following deltas depend on this one, and the recoverer may hold
+				// what was read from it, so the last good delta is restored
+				logger.error("Failed to recover incremental checkpoint " + deltaPath,e);
+				fr.setCkpInfo(lastHash, lastCID);
+				new File(deltaPath).delete();
+				broken = true;
+			}
+		}
+		if (broken) {
+			for (String logFile : fr.getFiles(".log"))
+				new File(logFile).delete();
+			logger.warn("Discarded the log, the state is only recovered up to CID " + lastCID);
+		}
+		logger.info("Recovered " + deltaPaths.size() + " incremental checkpoints after the checkpoint of CID " + ckpLastConsensusId);
+		return image.toBytes();
+	}
 }
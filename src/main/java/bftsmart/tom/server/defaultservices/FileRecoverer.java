@@ -15,14 +15,17 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -59,49 +62,20 @@ public class FileRecoverer {
 //	}
 
 	public CommandsInfo[] getLogState(int index, String logPath) {
-		RandomAccessFile log = null;
-
 		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, index);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
-
-		return null;
+		return recoverLogState(logPath, LogSegment.HEADER_SIZE, 0, index);
 	}
 
 	/**
 	 * Recover portions of the log for collaborative state transfer.
-	 * @param start the index for which the commands start to be collected
+	 * @param pointer the position in the log file from which records are read
+	 * @param startOffset the number of records to skip after the pointer
 	 * @param number the number of commands retrieved
 	 * @return The commands for the period selected
 	 */
 	public CommandsInfo[] getLogState(long pointer, int startOffset,  int number, String logPath) {
-		RandomAccessFile log = null;
-
 		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, pointer, startOffset, number);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
-
-		return null;
+		return recoverLogState(logPath, pointer, startOffset, number);
 	}
 
 	public byte[] getCkpState(String ckpPath) {
@@ -277,6 +251,15 @@ public class FileRecoverer {
 		return ckpLastConsensusId;
 	}
 
+	/**
+	 * Overrides the hash and consensus ID of the last checkpoint read, e.g., when
+	 * an incremental checkpoint read after it turns out to be damaged
+	 */
+	void setCkpInfo(byte[] ckpHash, int ckpLastConsensusId) {
+		this.ckpHash = ckpHash;
+		this.ckpLastConsensusId = ckpLastConsensusId;
+	}
+
 	public int getLogLastConsensusId() {
 		return logLastConsensusId;
 	}
@@ -290,116 +273,74 @@ public class FileRecoverer {
 		return null;
 	}
 
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-			logger.debug("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									logger.debug("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recover log state",e);
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception", e);
-		}
-
-		return null;
-	}
-
 	/**
-	 * Searches the log file and retrieves the portion selected.
-	 * @param log The log file
-	 * @param start The offset to start retrieving commands
-	 * @param number The number of commands retrieved
+	 * Streams the records of a log segment (see LogSegment), stopping at the
+	 * first record that is truncated or fails its CRC.
+	 * @param logPath The log file
+	 * @param pointer The position of the first record to read
+	 * @param startOffset The number of records to skip
+	 * @param number The number of commands retrieved, or 0 for all of them
 	 * @return The commands for the period selected
 	 */
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, long pointer, int startOffset, int number) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
+	private CommandsInfo[] recoverLogState(String logPath, long pointer, int startOffset, int number) {
+		try (FileChannel channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.READ);
+				DataInputStream log = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536))) {
+
+			long remaining = channel.size();
+			if (remaining < LogSegment.HEADER_SIZE || log.readInt() != LogSegment.MAGIC) {
+				logger.error("Log file " + logPath + " is not a valid log segment");
+				return null;
+			}
+			remaining -= LogSegment.HEADER_SIZE;
 
-			log.seek(pointer);
+			if (pointer > LogSegment.HEADER_SIZE) {
+				long toSkip = pointer - LogSegment.HEADER_SIZE;
+				while (toSkip > 0) {
+					toSkip -= log.skip(toSkip);
+				}
+				remaining -= pointer - LogSegment.HEADER_SIZE;
+			}
+
+			logger.debug("pointer: " + pointer + " loglength " + channel.size() + " startoffset " + startOffset + " number " + number);
 
+			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
 			int index = 0;
-			while(index < startOffset) {
+			while (remaining >= LogSegment.RECORD_HEADER_SIZE) {
 				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
-				index++;
-			}
+				int checksum = log.readInt();
+				int consensusId = log.readInt();
+				remaining -= LogSegment.RECORD_HEADER_SIZE;
 
-			while (mayRead) {
+				if (size < 0 || size > remaining) {
+					logger.warn("Log record for consensus " + consensusId + " is truncated, ignoring it");
+					break;
+				}
 
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
+				byte[] payload = new byte[size];
+				log.readFully(payload);
+				remaining -= size;
 
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
+				if (!LogSegment.isValid(consensusId, payload, checksum)) {
+					logger.warn("Log record for consensus " + consensusId + " is corrupted, ignoring it");
+					break;
+				}
 
-								state.add((CommandsInfo) ois.readObject());
+				logLastConsensusId = consensusId;
+				if (index++ < startOffset) {
+					continue;
+				}
 
-								if (++recoveredBatches == number) {
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							mayRead = false;
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recolver log state",e);
-					state.clear();
-					mayRead = false;
+				state.add(LogSegment.decode(payload));
+				if (state.size() == number) {
+					logger.debug("read all " + number + " log messages");
+					break;
 				}
 			}
+
+			return state.toArray(new CommandsInfo[state.size()]);
+
 		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception",e);
+			logger.error("State recover was aborted due to an unexpected exception", e);
 		}
 
 		return null;
@@ -424,6 +365,28 @@ public class FileRecoverer {
 		return latestFile;
 	}
 
+	/**
+	 * Lists the files of this replica with a given extension
+	 *
+	 * @param extention The extension of the files
+	 * @return The paths of the files, in ascending order of the number that
+	 *         follows the replica id in their names
+	 */
+	public String[] getFiles(String extention) {
+		File directory = new File(defaultDir);
+		if (!directory.isDirectory()) {
+			return new String[0];
+		}
+		File[] files = directory.listFiles(new FileListFilter(replicaId, extention));
+		Arrays.sort(files, (a, b) -> Long.compare(Long.parseLong(a.getName().split("\\.")[1]),
+				Long.parseLong(b.getName().split("\\.")[1])));
+		String[] paths = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			paths[i] = files[i].getAbsolutePath();
+		}
+		return paths;
+	}
+
 	private class FileListFilter implements FilenameFilter {
 
 		private int id;
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and
+ * the authors indicated in the @author tags
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package bftsmart.tom.server.defaultservices;
+
+import java.util.BitSet;
+
+/**
+ *
+ * This class extends DefaultRecoverable to take incremental checkpoints. The
+ * application divides its state in pages (e.g., by hashing its keys into a
+ * fixed number of buckets) and reports, through markDirty(), the pages that its
+ * requests modify. At each checkpoint only the pages modified since the previous
+ * one are copied, hashed and logged, instead of the whole state being serialized
+ * by getSnapshot() and hashed. The hash of a checkpoint is the root of a hash tree
+ * over the pages (see PageHashTree).
+ *
+ * Full snapshots, in the format of PageDelta.toBytes(), are only built when the
+ * state is transferred to another replica.
+ */
+public abstract class IncrementalRecoverable extends DefaultRecoverable {
+
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * Informs that a page was modified since the last checkpoint. Must be invoked
+     * by appExecuteBatch() for every page that a request creates, modifies or
+     * empties. May be invoked concurrently.
+     *
+     * @param page The page number
+     */
+    public void markDirty(int page) {
+        synchronized (dirty) {
+            dirty.set(page);
+        }
+    }
+
+    /**
+     * Copies the pages modified since the last checkpoint. Invoked while no
+     * request is executing.
+     *
+     * @return The modified pages
+     */
+    PageDelta takeDelta() {
+        int[] pages;
+        synchronized (dirty) {
+            pages = dirty.stream().toArray();
+            dirty.clear();
+        }
+        byte[][] contents = new byte[pages.length][];
+        for (int i = 0; i < pages.length; i++) {
+            contents[i] = getPage(pages[i]);
+        }
+        return new PageDelta(pages, contents);
+    }
+
+    @Override
+    public final byte[] getSnapshot() {
+        int count = getPageCount();
+        int[] pages = new int[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            pages[i] = i;
+            contents[i] = getPage(i);
+        }
+        return new PageDelta(pages, contents).toBytes();
+    }
+
+    @Override
+    public final void installSnapshot(byte[] state) {
+        PageDelta snapshot = PageDelta.fromBytes(state);
+        int[] pages = snapshot.getPages();
+        byte[][] contents = snapshot.getContents();
+        int count = Math.max(snapshot.getPageCount(), getPageCount());
+        for (int page = 0, i = 0; page < count; page++) {
+            if (i < pages.length && pages[i] == page) {
+                installPage(page, contents[i++]);
+            } else {
+                installPage(page, null);
+            }
+        }
+        synchronized (dirty) {
+            dirty.clear();
+        }
+    }
+
+    /**
+     * Number of pages of the application state. It must not decrease, and new
+     * pages must be marked as dirty.
+     *
+     * @return The number of pages
+     */
+    public abstract int getPageCount();
+
+    /**
+     * Returns a copy of a page of the application state. The copy must not be
+     * modified by the requests executed afterwards.
+     *
+     * @param page The page number
+     * @return The contents of the page, or null if the page is empty
+     */
+    public abstract byte[] getPage(int page);
+
+    /**
+     * Replaces a page of the application state with the one received from the
+     * state transfer protocol
+     *
+     * @param page The page number
+     * @param contents The contents of the page, or null if the page is empty
+     */
+    public abstract void installPage(int page, byte[] contents);
+
+}
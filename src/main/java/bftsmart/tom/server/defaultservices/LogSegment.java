@@ -0,0 +1,202 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A segment of the decision log, i.e., the file holding the batches decided
+ * since the last checkpoint.
+ *
+ * The segment starts with a magic number, followed by one record per consensus
+ * instance. Each record is written as its payload length, the CRC32 of its
+ * consensus ID and payload, the consensus ID, and the payload (a CommandsInfo in
+ * the format written by CommandsInfo.wExternal). Records are appended with a
+ * FileChannel and are only forced to disk when sync() is called, so that a
+ * single fsync covers all the decisions appended since the previous one (group
+ * commit). A record that is truncated or fails its CRC marks the end of the log.
+ */
+public class LogSegment {
+
+    public static final int MAGIC = 0x4246544c; // "BFTL"
+    public static final int HEADER_SIZE = 4;
+    public static final int RECORD_HEADER_SIZE = 3 * 4;
+
+    private final FileChannel channel;
+    private final ReusableOutput buffer = new ReusableOutput();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+    private boolean dirty = false;
+
+    /**
+     * Creates a new, empty segment
+     *
+     * @param path Path of the segment file
+     * @throws IOException If the file could not be created
+     */
+    public LogSegment(String path) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Appends the batch decided in a consensus instance to this segment. The
+     * record is not forced to disk before sync() is called.
+     *
+     * @param consensusId Consensus ID of the batch
+     * @param commandsInfo The batch
+     * @throws IOException If the record could not be written
+     */
+    public void append(int consensusId, CommandsInfo commandsInfo) throws IOException {
+        buffer.reset();
+        buffer.skip(RECORD_HEADER_SIZE);
+        commandsInfo.wExternal(out);
+        out.flush();
+
+        ByteBuffer record = buffer.toByteBuffer();
+        int payloadLength = record.remaining() - RECORD_HEADER_SIZE;
+
+        crc.reset();
+        crc.update((consensusId >>> 24) & 0xFF);
+        crc.update((consensusId >>> 16) & 0xFF);
+        crc.update((consensusId >>> 8) & 0xFF);
+        crc.update(consensusId & 0xFF);
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadLength);
+
+        record.putInt(0, payloadLength);
+        record.putInt(4, (int) crc.getValue());
+        record.putInt(8, consensusId);
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Forces the records appended since the last invocation to disk
+     *
+     * @throws IOException If the segment could not be forced to disk
+     */
+    public void sync() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Position at which the next record will be written
+     *
+     * @return The position in the segment file
+     * @throws IOException If the position could not be read
+     */
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Checks the CRC of a record read from a segment
+     *
+     * @param consensusId Consensus ID read from the record
+     * @param payload Payload read from the record
+     * @param checksum CRC read from the record
+     * @return true if the record is intact
+     */
+    public static boolean isValid(int consensusId, byte[] payload, int checksum) {
+        CRC32 crc = new CRC32();
+        crc.update((consensusId >>> 24) & 0xFF);
+        crc.update((consensusId >>> 16) & 0xFF);
+        crc.update((consensusId >>> 8) & 0xFF);
+        crc.update(consensusId & 0xFF);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Decodes the payload of a record
+     *
+     * @param payload Payload read from the record
+     * @return The batch stored in the record
+     * @throws IOException If the payload is malformed
+     * @throws ClassNotFoundException If a proof in the payload could not be read
+     */
+    public static CommandsInfo decode(byte[] payload) throws IOException, ClassNotFoundException {
+        return CommandsInfo.rExternal(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    // growable buffer that is reused for every record, exposing its backing array
+    private static class ReusableOutput extends OutputStream {
+
+        private byte[] buf = new byte[8192];
+        private int count = 0;
+
+        void reset() {
+            count = 0;
+        }
+
+        void skip(int n) {
+            ensureCapacity(count + n);
+            count += n;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                byte[] newBuf = new byte[Math.max(capacity, buf.length * 2)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
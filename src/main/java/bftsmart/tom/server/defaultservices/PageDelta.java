@@ -0,0 +1,163 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The contents of a set of pages of the application state, sorted by page
+ * number. An incremental checkpoint is a delta holding the pages modified since
+ * the previous checkpoint, and a full checkpoint is a delta holding every page
+ * of the state. A page that is not part of a full checkpoint is empty, as is a
+ * page whose contents are null.
+ *
+ * A delta is serialized as the number of pages, followed by the page number,
+ * the length of the contents (-1 if null) and the contents of each page.
+ */
+public class PageDelta {
+
+    private final int[] pages;
+    private final byte[][] contents;
+
+    /**
+     * Constructor
+     *
+     * @param pages Page numbers, in ascending order and without repetitions
+     * @param contents Contents of each page (may be null)
+     */
+    public PageDelta(int[] pages, byte[][] contents) {
+        if (pages.length != contents.length) {
+            throw new IllegalArgumentException("Pages and contents have different lengths");
+        }
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] < 0 || (i > 0 && pages[i] <= pages[i - 1])) {
+                throw new IllegalArgumentException("Pages must be non-negative and in ascending order");
+            }
+        }
+        this.pages = pages;
+        this.contents = contents;
+    }
+
+    public int[] getPages() {
+        return pages;
+    }
+
+    public byte[][] getContents() {
+        return contents;
+    }
+
+    public int size() {
+        return pages.length;
+    }
+
+    /**
+     * Number of pages of a state that contains this delta
+     *
+     * @return The highest page number in this delta plus one
+     */
+    public int getPageCount() {
+        return pages.length == 0 ? 0 : pages[pages.length - 1] + 1;
+    }
+
+    /**
+     * Applies a newer delta on top of this one. Pages present in both deltas
+     * take the contents of the newer one.
+     *
+     * @param newer Delta taken after this one
+     * @return A delta with the pages of both deltas
+     */
+    public PageDelta merge(PageDelta newer) {
+        int[] mergedPages = new int[pages.length + newer.pages.length];
+        byte[][] mergedContents = new byte[mergedPages.length][];
+        int i = 0, j = 0, n = 0;
+        while (i < pages.length || j < newer.pages.length) {
+            if (j == newer.pages.length || (i < pages.length && pages[i] < newer.pages[j])) {
+                mergedPages[n] = pages[i];
+                mergedContents[n++] = contents[i++];
+            } else {
+                if (i < pages.length && pages[i] == newer.pages[j]) {
+                    i++;
+                }
+                mergedPages[n] = newer.pages[j];
+                mergedContents[n++] = newer.contents[j++];
+            }
+        }
+        if (n < mergedPages.length) {
+            int[] p = new int[n];
+            byte[][] c = new byte[n][];
+            System.arraycopy(mergedPages, 0, p, 0, n);
+            System.arraycopy(mergedContents, 0, c, 0, n);
+            return new PageDelta(p, c);
+        }
+        return new PageDelta(mergedPages, mergedContents);
+    }
+
+    public byte[] toBytes() {
+        int size = 4;
+        for (byte[] c : contents) {
+            size += 8 + (c == null ? 0 : c.length);
+        }
+        ByteBuffer bf = ByteBuffer.allocate(size);
+        bf.putInt(pages.length);
+        for (int i = 0; i < pages.length; i++) {
+            bf.putInt(pages[i]);
+            if (contents[i] == null) {
+                bf.putInt(-1);
+            } else {
+                bf.putInt(contents[i].length);
+                bf.put(contents[i]);
+            }
+        }
+        return bf.array();
+    }
+
+    /**
+     * Reads a delta serialized by toBytes()
+     *
+     * @param data The serialized delta
+     * @return The delta
+     * @throws IllegalArgumentException If the data is not a valid delta
+     */
+    public static PageDelta fromBytes(byte[] data) {
+        try {
+            ByteBuffer bf = ByteBuffer.wrap(data);
+            int count = bf.getInt();
+            if (count < 0 || count > bf.remaining() / 8) {
+                throw new IllegalArgumentException("Invalid number of pages: " + count);
+            }
+            int[] pages = new int[count];
+            byte[][] contents = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                pages[i] = bf.getInt();
+                int length = bf.getInt();
+                if (length < -1 || length > bf.remaining()) {
+                    throw new IllegalArgumentException("Invalid page length: " + length);
+                }
+                if (length >= 0) {
+                    contents[i] = new byte[length];
+                    bf.get(contents[i]);
+                }
+            }
+            if (bf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes after the last page");
+            }
+            return new PageDelta(pages, contents);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated page delta", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Merkle tree over the hashes of the pages of the application state. Each leaf
+ * is the hash of a page (empty pages hash as an empty array), each inner node is
+ * the hash of its two children, and the number of leaves is the number of pages
+ * rounded up to a power of two. The hash of the state is the hash of the number
+ * of pages followed by the root of the tree.
+ *
+ * Applying a delta only hashes the pages it contains and the inner nodes on their
+ * paths to the root, so its cost is proportional to the amount of modified data.
+ * This class is not thread-safe.
+ */
+public class PageHashTree {
+
+    public static final int MAX_PAGES = 1 << 24;
+
+    private final MessageDigest md;
+    private final byte[] emptyHash;
+
+    private byte[][] nodes; // node i has children 2i and 2i+1, the root is node 1
+    private int leaves; // number of leaves, a power of two
+    private int pageCount;
+    private byte[] stateHash;
+
+    public PageHashTree() {
+        try {
+            md = TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to create the page hash engine", e);
+        }
+        emptyHash = md.digest(new byte[0]);
+        leaves = 1;
+        nodes = new byte[2][];
+        nodes[1] = emptyHash;
+        updateStateHash();
+    }
+
+    /**
+     * Replaces the pages contained in a delta
+     *
+     * @param delta The modified pages
+     * @throws IllegalArgumentException If the delta has pages beyond MAX_PAGES
+     */
+    public void update(PageDelta delta) {
+        int[] pages = delta.getPages();
+        byte[][] contents = delta.getContents();
+        if (pages.length == 0) {
+            return;
+        }
+        if (delta.getPageCount() > MAX_PAGES) {
+            throw new IllegalArgumentException("Page " + (delta.getPageCount() - 1) + " exceeds the maximum number of pages");
+        }
+
+        boolean grown = delta.getPageCount() > pageCount && grow(delta.getPageCount());
+
+        int[] dirty = new int[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            dirty[i] = leaves + pages[i];
+            nodes[dirty[i]] = (contents[i] == null ? emptyHash : md.digest(contents[i]));
+        }
+
+        if (grown) {
+            rebuild();
+        } else {
+            // recompute the ancestors of the modified leaves, one level at a time
+            int count = dirty.length;
+            while (dirty[0] > 1) {
+                int n = 0;
+                for (int i = 0; i < count; i++) {
+                    int parent = dirty[i] >>> 1;
+                    if (n == 0 || dirty[n - 1] != parent) {
+                        dirty[n++] = parent;
+                        nodes[parent] = hashChildren(parent);
+                    }
+                }
+                count = n;
+            }
+        }
+        updateStateHash();
+    }
+
+    /**
+     * Hash of the state, to be used as the hash of a checkpoint
+     *
+     * @return The hash of the number of pages and the root of the tree
+     */
+    public byte[] getStateHash() {
+        return stateHash;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Computes the hash of a full checkpoint, as produced by PageDelta.toBytes()
+     *
+     * @param image The serialized pages of the state
+     * @return The hash of the state, or null if the image is malformed
+     */
+    public static byte[] hashOf(byte[] image) {
+        try {
+            PageHashTree tree = new PageHashTree();
+            tree.update(PageDelta.fromBytes(image));
+            return tree.getStateHash();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // returns true if the number of leaves changed
+    private boolean grow(int newPageCount) {
+        pageCount = newPageCount;
+        int newLeaves = leaves;
+        while (newLeaves < newPageCount) {
+            newLeaves <<= 1;
+        }
+        if (newLeaves != leaves) {
+            byte[][] newNodes = new byte[2 * newLeaves][];
+            System.arraycopy(nodes, leaves, newNodes, newLeaves, leaves);
+            Arrays.fill(newNodes, newLeaves + leaves, 2 * newLeaves, emptyHash);
+            nodes = newNodes;
+            leaves = newLeaves;
+            return true;
+        }
+        return false;
+    }
+
+    private void rebuild() {
+        for (int i = leaves - 1; i > 0; i--) {
+            nodes[i] = hashChildren(i);
+        }
+    }
+
+    private byte[] hashChildren(int node) {
+        md.update(nodes[2 * node]);
+        return md.digest(nodes[2 * node + 1]);
+    }
+
+    private void updateStateHash() {
+        md.update(ByteBuffer.allocate(4).putInt(pageCount).array());
+        stateHash = md.digest(nodes[1]);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and
+ * the authors indicated in the @author tags
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package bftsmart.tom.server.defaultservices;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.server.ConflictClassifier;
+
+/**
+ *
+ * This class extends DefaultRecoverable to execute the ordered requests of a
+ * batch in parallel. Requests that do not conflict (according to
+ * getConflictKeys()) are executed concurrently by a pool of worker threads,
+ * while conflicting requests are executed in the order in which they were
+ * decided. Replies are returned in the order of the batch.
+ *
+ * Since the batch is fully executed before DefaultRecoverable logs it or takes a
+ * checkpoint, checkpoints are always taken when no request is executing.
+ * Applications must make appExecuteOrdered() safe to be invoked concurrently
+ * for requests that do not share any key.
+ */
+public abstract class ParallelRecoverable extends DefaultRecoverable implements ConflictClassifier {
+
+    private final ParallelScheduler scheduler;
+
+    /**
+     * Constructor, using one worker thread per available core
+     */
+    public ParallelRecoverable() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nThreads Number of threads executing requests
+     */
+    public ParallelRecoverable(int nThreads) {
+        super();
+        this.scheduler = new ParallelScheduler(this, this::appExecuteOrdered, nThreads);
+    }
+
+    @Override
+    public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
+        return scheduler.execute(commands, msgCtxs);
+    }
+
+    /**
+     * Execute an ordered request. May be invoked concurrently for requests
+     * that do not conflict with each other.
+     *
+     * @param command The ordered request
+     * @param msgCtx The context associated to the request
+     *
+     * @return the reply for the request issued by the client
+     */
+    public abstract byte[] appExecuteOrdered(byte[] command, MessageContext msgCtx);
+
+    /**
+     * Stops the worker threads. Called by ServiceReplica.kill()
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+}
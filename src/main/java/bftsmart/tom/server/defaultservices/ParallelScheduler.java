@@ -0,0 +1,198 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.server.ConflictClassifier;
+
+/**
+ * Executes a batch of ordered requests in a pool of worker threads, such that the
+ * result is the same as executing them one by one in the order of the batch.
+ *
+ * A request depends on the last previous request in the batch that shares one of
+ * its keys, and on the last previous request that conflicts with every other. A
+ * request that conflicts with every other depends on all the requests before it.
+ * A request is executed as soon as all the requests it depends on are executed.
+ * The batch given to execute() usually contains the requests of several
+ * consecutive consensus instances, since these are delivered to the application
+ * together. Execution of a batch only returns after all its requests are executed.
+ */
+public class ParallelScheduler {
+
+    private final ConflictClassifier classifier;
+    private final BiFunction<byte[], MessageContext, byte[]> executor;
+    private final ExecutorService workers;
+
+    /**
+     * Creates the scheduler and its worker threads
+     *
+     * @param classifier Informs the keys of each request
+     * @param executor Executes a single request and returns its reply
+     * @param nThreads Number of worker threads
+     */
+    public ParallelScheduler(ConflictClassifier classifier, BiFunction<byte[], MessageContext, byte[]> executor,
+            int nThreads) {
+        this.classifier = classifier;
+        this.executor = executor;
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "Parallel execution thread " + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Executes a batch of requests and waits until all of them are executed
+     *
+     * @param commands The batch of requests
+     * @param msgCtxs The context associated to each request
+     * @return The replies, in the order of the requests
+     */
+    public byte[][] execute(byte[][] commands, MessageContext[] msgCtxs) {
+        byte[][] replies = new byte[commands.length][];
+
+        if (commands.length == 1) {
+            replies[0] = executor.apply(commands[0], msgCtxs[0]);
+            return replies;
+        }
+
+        CountDownLatch done = new CountDownLatch(commands.length);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Task[] tasks = new Task[commands.length];
+
+        Map<Object, Task> lastAccess = new HashMap<>();
+        List<Task> sinceBarrier = new ArrayList<>();
+        Task barrier = null; // last request that conflicts with every other
+
+        for (int i = 0; i < commands.length; i++) {
+            Task task = new Task(i, commands, msgCtxs, replies, done, failure);
+            Collection<?> keys = classifier.getConflictKeys(commands[i], msgCtxs[i]);
+            Map<Task, Boolean> deps = new IdentityHashMap<>();
+
+            if (barrier != null) {
+                deps.put(barrier, true);
+            }
+
+            if (keys == null) {
+                for (Task t : sinceBarrier) {
+                    deps.put(t, true);
+                }
+                barrier = task;
+                sinceBarrier.clear();
+                lastAccess.clear();
+            } else {
+                for (Object key : keys) {
+                    Task last = lastAccess.put(key, task);
+                    if (last != null && last != task) {
+                        deps.put(last, true);
+                    }
+                }
+                sinceBarrier.add(task);
+            }
+
+            // the extra unit is released once the whole batch is classified
+            task.pending.set(deps.size() + 1);
+            for (Task dep : deps.keySet()) {
+                dep.dependents.add(task);
+            }
+            tasks[i] = task;
+        }
+
+        for (Task task : tasks) {
+            task.release();
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return replies;
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private class Task implements Runnable {
+
+        private final int index;
+        private final byte[][] commands;
+        private final MessageContext[] msgCtxs;
+        private final byte[][] replies;
+        private final CountDownLatch done;
+        private final AtomicReference<RuntimeException> failure;
+
+        private final AtomicInteger pending = new AtomicInteger();
+        private final List<Task> dependents = new ArrayList<>(2);
+
+        Task(int index, byte[][] commands, MessageContext[] msgCtxs, byte[][] replies, CountDownLatch done,
+                AtomicReference<RuntimeException> failure) {
+            this.index = index;
+            this.commands = commands;
+            this.msgCtxs = msgCtxs;
+            this.replies = replies;
+            this.done = done;
+            this.failure = failure;
+        }
+
+        void release() {
+            if (pending.decrementAndGet() == 0) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                replies[index] = executor.apply(commands[index], msgCtxs[index]);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                for (Task t : dependents) {
+                    t.release();
+                }
+                done.countDown();
+            }
+        }
+    }
+}
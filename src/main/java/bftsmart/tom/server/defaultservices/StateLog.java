@@ -20,6 +20,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.TreeMap;
 
 /**
@@ -46,6 +47,9 @@ public class StateLog {
                                                         // TOM message (including reply) up until lastCID
     private byte[] lastRepliesHash; // Hash of lastReplies to confirm integrity
 
+    private PageHashTree pageTree; // hash tree of the pages of the state, if checkpoints are incremental
+    private byte[][] pages; // pages of the state associated with the last checkpoint
+
     /**
      * Constructs a State log
      * @param id
@@ -111,6 +115,78 @@ public class StateLog {
                        
     }
 
+    /**
+     * Makes this log keep the state associated with the last checkpoint as pages,
+     * such that checkpoints are taken with newCheckpoint(PageDelta, int)
+     * @param image Full checkpoint, as produced by PageDelta.toBytes()
+     */
+    public void usePages(byte[] image) {
+        PageDelta delta = PageDelta.fromBytes(image);
+        pageTree = new PageHashTree();
+        pageTree.update(delta);
+        pages = new byte[0][];
+        applyPages(delta);
+        this.state = image;
+        this.stateHash = pageTree.getStateHash();
+    }
+
+    /**
+     * Indicates if checkpoints are incremental (see usePages)
+     * @return true if the state is kept as pages
+     */
+    public boolean isPaged() {
+        return pageTree != null;
+    }
+
+    /**
+     * Replaces the pages modified since the last checkpoint, and updates the consensus ID associated with it.
+     * The full state is only serialized when it is requested.
+     * @param delta Pages modified since the last checkpoint
+     * @param lastConsensusId
+     */
+    public void newCheckpoint(PageDelta delta, int lastConsensusId) {
+
+        if (messageBatches != null) {
+            for (int i = 0; i < this.messageBatches.length; i++)
+                messageBatches[i] = null;
+        }
+
+        position = 0;
+        this.state = null;
+        updatePages(delta);
+    }
+
+    /**
+     * Applies a delta to the hash tree of the pages and to the pages kept by this log,
+     * and sets the hash of the state associated with the last checkpoint
+     * @param delta Pages modified since the last checkpoint
+     * @return The hash of the resulting state
+     */
+    protected byte[] updatePages(PageDelta delta) {
+        pageTree.update(delta);
+        applyPages(delta);
+        stateHash = pageTree.getStateHash();
+        return stateHash;
+    }
+
+    /**
+     * Stores the contents of the pages of a delta. Pages are replaced, never
+     * modified, so previously serialized states are not affected.
+     * @param delta Pages modified since the last checkpoint
+     */
+    protected void applyPages(PageDelta delta) {
+        if (delta.getPageCount() > pages.length) {
+            byte[][] newPages = new byte[Math.max(delta.getPageCount(), 2 * pages.length)][];
+            System.arraycopy(pages, 0, newPages, 0, pages.length);
+            pages = newPages;
+        }
+        int[] numbers = delta.getPages();
+        byte[][] contents = delta.getContents();
+        for (int i = 0; i < numbers.length; i++) {
+            pages[numbers[i]] = contents[i];
+        }
+    }
+
     /**
      * Sets the consensus ID for the last checkpoint
      * @param lastCheckpointCID Consensus ID for the last checkpoint
@@ -150,6 +226,14 @@ public class StateLog {
      * @return State associated with the last checkpoint
      */
     public byte[] getState() {
+        if (state == null && pageTree != null) {
+            int count = pageTree.getPageCount();
+            int[] numbers = new int[count];
+            for (int i = 0; i < count; i++) {
+                numbers[i] = i;
+            }
+            state = new PageDelta(numbers, Arrays.copyOf(pages, count)).toBytes();
+        }
         return state;
     }
 
@@ -177,6 +261,14 @@ public class StateLog {
         setLastCID(lastConsensusId);
     }
 
+    /**
+     * Makes the batches added since the last invocation durable. This log is kept
+     * in memory only, so there is nothing to do.
+     */
+    public void sync() {
+
+    }
+
     public TreeMap<Integer, TOMMessage> getLastReplies() {
         return lastReplies;
     }
@@ -261,8 +353,10 @@ public class StateLog {
                     batches[i] = messageBatches[i];
             }
             lastCID = cid;
-            return new DefaultApplicationState(batches, lastCheckpointCID, lastCID, (setState ? state : null),
-                    stateHash, this.id, this.lastReplies, this.lastRepliesHash);
+            DefaultApplicationState appState = new DefaultApplicationState(batches, lastCheckpointCID, lastCID,
+                    (setState ? getState() : null), stateHash, this.id, this.lastReplies, this.lastRepliesHash);
+            appState.setPaged(isPaged());
+            return appState;
 
         }
         else return null;
@@ -287,6 +381,10 @@ public class StateLog {
 
         this.stateHash = transState.getStateHash();
 
+        if (pageTree != null) {
+            usePages(this.state);
+        }
+
         this.lastReplies = transState.lastReplies;
 
         this.lastRepliesHash = transState.lastRepliesHash;
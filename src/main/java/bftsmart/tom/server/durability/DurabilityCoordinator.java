@@ -31,6 +31,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.util.OperationBatch;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -96,7 +97,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 			
                     if (!noop) {
                         stateLock.lock();
-			replies = appExecuteBatch(commands, msgCtx);
+			replies = OperationBatch.execute(commands, msgCtx, this::appExecuteBatch);
 			stateLock.unlock();
                     }
                     logger.debug("Storing message batch in the state log for consensus " + cid);
@@ -128,7 +129,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 			
                         if (!noop) {
                             stateLock.lock();
-                            firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx);
+                            firstHalfReplies = OperationBatch.execute(firstHalf, firstHalfMsgCtx, this::appExecuteBatch);
                             stateLock.unlock();
                         }
                         
@@ -153,7 +154,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				if (!noop) {
                                     
                                     stateLock.lock();
-                                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx);
+                                    secondHalfReplies = OperationBatch.execute(secondHalf, secondHalfMsgCtx, this::appExecuteBatch);
                                     stateLock.unlock();
                                     
                                 }
@@ -269,8 +270,9 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
                                         if (commands == null || msgCtx == null || msgCtx[0].isNoOp()) {
                                             continue;
                                         }
-                                        
-					appExecuteBatch(commands, msgCtx);
+
+					// the log holds the requests as decided, so batch requests are unpacked again
+					OperationBatch.execute(commands, msgCtx, this::appExecuteBatch);
 				} catch (Exception e) {
 					logger.error("Failed to process and verify batched requests",e);
 				}
@@ -343,6 +345,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				}
 			}
 		}
+		// one sync for all the consensus instances in this batch, before the replies are sent
+		log.sync();
 		logLock.unlock();
 	}
 
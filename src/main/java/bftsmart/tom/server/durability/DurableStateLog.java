@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.durability;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -33,6 +31,7 @@ import bftsmart.statemanagement.durability.CSTState;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.LogSegment;
 import bftsmart.tom.server.defaultservices.StateLog;
 import bftsmart.tom.util.TOMUtil;
 
@@ -44,7 +43,7 @@ public class DurableStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private LogSegment log;
 	private boolean syncLog;
 	private String logPath;
 	private String lastCkpPath;
@@ -73,8 +72,8 @@ public class DurableStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
+			log = new LogSegment(logPath);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -100,29 +99,27 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(consensusId, commandsInfo);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
 	    }
 	}
+
+	/**
+	 * Forces the batches added since the last invocation to disk, if sync_log is
+	 * enabled. Invoked once per group of decisions delivered together.
+	 */
+        @Override
+	public void sync() {
+		if (syncLog && log != null) {
+			try {
+				log.sync();
+			} catch (IOException e) {
+				logger.error("Failed to sync log to disk",e);
+			}
+		}
+	}
 	
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
@@ -180,6 +177,7 @@ public class DurableStateLog extends StateLog {
 		try {
 			if(log != null)
 				log.close();
+			log = null;
 			new File(logPath).delete();
 		} catch (IOException e) {
 			logger.error("Failed to delete log file",e);
@@ -274,8 +272,8 @@ public class DurableStateLog extends StateLog {
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
 			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
+				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.position());
+				logPointers.put(ckpReplicaIndex, log.position());
 			} catch (IOException e) {
 				logger.error("Failed to get file pointer",e);
 			}
@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.tom.util;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.Random;
 
@@ -45,21 +46,33 @@ public final class BatchBuilder {
         }
 
         /** build buffer */
-	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, int numberOfMessages, int totalMessagesSize,
-			boolean useSignatures, byte[][] messages, byte[][] signatures) {
-            
-                int sigsSize = 0;
-                
-                if (useSignatures) {
-                    
-                    sigsSize = Integer.BYTES * numberOfMessages;
-                            
-                    for (byte[] sig : signatures) {
-
-                        sigsSize += sig.length;
-                    }
-                }
-                
+	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, List<TOMMessage> msgs,
+			boolean useSignatures) {
+		return createBatch(timestamp, numberOfNonces, seed, msgs, useSignatures, null, null);
+	}
+
+	/**
+	 * Builds the batch, feeding md with its bytes as the requests are copied into it (if md is not null), and
+	 * storing the digest of each request (see DigestBatch) in digests (if it is not null)
+	 */
+	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, List<TOMMessage> msgs,
+			boolean useSignatures, MessageDigest md, byte[][] digests) {
+
+		int numberOfMessages = msgs.size();
+		int totalMessagesSize = 0; //total size of the messages being batched
+		int sigsSize = 0;
+
+		for (TOMMessage msg : msgs) {
+			totalMessagesSize += msg.getSerializedSize();
+
+			if (useSignatures) {
+				sigsSize += Integer.BYTES;
+				if (msg.serializedMessageSignature != null) {
+					sigsSize += msg.serializedMessageSignature.length;
+				}
+			}
+		}
+
 		int size = 20 + //timestamp 8, nonces 4, nummessages 4
 				(numberOfNonces > 0 ? 8 : 0) + //seed if needed
 				(Integer.BYTES * numberOfMessages) + // messages length
@@ -78,15 +91,31 @@ public final class BatchBuilder {
 
 		proposalBuffer.putInt(numberOfMessages);
 
-		for (int i = 0; i < numberOfMessages; i++) {
-			putMessage(proposalBuffer,messages[i], useSignatures, signatures[i]);
+		// the serialized requests are copied directly into the proposal, and hashed while still in cache
+		int hashed = 0;
+		int i = 0;
+		for (TOMMessage msg : msgs) {
+			logger.debug("Adding request from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession() + " to PROPOSE");
+			putMessage(proposalBuffer, msg.getSerializedBuffer(), useSignatures, msg.serializedMessageSignature);
+			if (md != null) {
+				md.update(proposalBuffer.array(), hashed, proposalBuffer.position() - hashed);
+				hashed = proposalBuffer.position();
+			}
+			if (digests != null) {
+				digests[i] = DigestBatch.digest(HashService.engine(), msg, useSignatures);
+			}
+			i++;
+		}
+		if (md != null) {
+			// up to the capacity, as the size computed above leaves unused bytes at the end of the batch
+			md.update(proposalBuffer.array(), hashed, proposalBuffer.capacity() - hashed);
 		}
 
 		return proposalBuffer.array();
 	}
           
-	private void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean addSig, byte[] signature) {
-		proposalBuffer.putInt(message.length);
+	private void putMessage(ByteBuffer proposalBuffer, ByteBuffer message, boolean addSig, byte[] signature) {
+		proposalBuffer.putInt(message.remaining());
 		proposalBuffer.put(message);
 
                 if (addSig) {
@@ -101,54 +130,54 @@ public final class BatchBuilder {
 
 	public byte[] makeBatch(List<TOMMessage> msgs, int numNounces, long timestamp, boolean useSignatures) {
 
-		int numMsgs = msgs.size();
-		int totalMessageSize = 0; //total size of the messages being batched
-
-		byte[][] messages = new byte[numMsgs][]; //bytes of the message (or its hash)
-		byte[][] signatures = new byte[numMsgs][]; //bytes of the message (or its hash)
-
-		// Fill the array of bytes for the messages/signatures being batched
-		int i = 0;
-                
-		for (TOMMessage msg : msgs) {
-			//TOMMessage msg = msgs.next();
-			logger.debug("Adding request from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession() + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
-			signatures[i] = msg.serializedMessageSignature;
-
-			totalMessageSize += messages[i].length;
-			i++;
-		}
-
 		// return the batch
-		return createBatch(timestamp, numNounces,rnd.nextLong(), numMsgs, totalMessageSize,
-				useSignatures, messages, signatures);
+		return createBatch(timestamp, numNounces, rnd.nextLong(), msgs, useSignatures);
 
 	}
 	public byte[] makeBatch(List<TOMMessage> msgs, int numNounces, long seed, long timestamp, boolean useSignatures) {
 
-		int numMsgs = msgs.size();
-		int totalMessageSize = 0; //total size of the messages being batched
+		// return the batch
+		return createBatch(timestamp, numNounces, seed, msgs, useSignatures);
 
-		byte[][] messages = new byte[numMsgs][]; //bytes of the message (or its hash)
-		byte[][] signatures = new byte[numMsgs][]; //bytes of the message (or its hash)
+	}
 
-		// Fill the array of bytes for the messages/signatures being batched
-		int i = 0;
-                
-		for (TOMMessage msg : msgs) {
-			//TOMMessage msg = msgs.next();
-			//Logger.println("(TOMLayer.run) adding req " + msg + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
-			signatures[i] = msg.serializedMessageSignature;
+	/**
+	 * Builds a batch and computes its hash in the same pass over the requests
+	 *
+	 * @param msgs The requests
+	 * @param numNounces Number of nonces
+	 * @param timestamp Timestamp of the batch
+	 * @param useSignatures true if the signatures of the requests are part of the batch
+	 * @param digestForm true if the digest form of the batch must also be built
+	 * @return The batch and its hash
+	 */
+	public HashedBatch makeHashedBatch(List<TOMMessage> msgs, int numNounces, long timestamp, boolean useSignatures,
+			boolean digestForm) {
+		return makeHashedBatch(msgs, numNounces, rnd.nextLong(), timestamp, useSignatures, digestForm);
+	}
 
-			totalMessageSize += messages[i].length;
-			i++;
+	public HashedBatch makeHashedBatch(List<TOMMessage> msgs, int numNounces, long seed, long timestamp,
+			boolean useSignatures, boolean digestForm) {
+		// the builder is shared by the TOMLayer and the Synchronizer, so the batch is hashed by
+		// an engine of the calling thread, other than the one that hashes the requests
+		MessageDigest md = HashService.outerEngine();
+		byte[][] digests = digestForm ? new byte[msgs.size()][] : null;
+
+		byte[] batch = createBatch(timestamp, numNounces, seed, msgs, useSignatures, md, digests);
+		byte[] hash = md.digest();
+
+		byte[] digestBatch = null;
+		if (digestForm) {
+			int[] senders = new int[msgs.size()];
+			int[] sequences = new int[msgs.size()];
+			int i = 0;
+			for (TOMMessage msg : msgs) {
+				senders[i] = msg.getSender();
+				sequences[i++] = msg.getSequence();
+			}
+			digestBatch = new DigestBatch(timestamp, numNounces, numNounces > 0 ? seed : 0, senders, sequences,
+					digests).toBytes();
 		}
-
-		// return the batch
-		return createBatch(timestamp, numNounces,seed, numMsgs, totalMessageSize,
-				useSignatures, messages, signatures);
-
+		return new HashedBatch(batch, hash, digestBatch);
 	}
 }
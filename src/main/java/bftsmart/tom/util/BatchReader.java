@@ -15,19 +15,18 @@ limitations under the License.
 */
 package bftsmart.tom.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.nio.ByteBuffer;
-import java.util.Random;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
 
 /**
- * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
- *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
+ * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
+ *               N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)]
  *
+ * Requests are not copied out of the batch: each TOMMessage only decodes its
+ * header and references the batch for its serialized form and content.
  */
 public final class BatchReader {
 
@@ -49,10 +48,9 @@ public final class BatchReader {
         
         long seed = 0;
 
-        Random rnd = null;
+        //the nonces are generated by the application from the seed
         if(numberOfNonces > 0){
             seed = proposalBuffer.getLong();
-            rnd = new Random(seed);
         }
         else numberOfNonces = 0; // make sure the value is correct
         
@@ -64,8 +62,8 @@ public final class BatchReader {
             //read the message and its signature from the batch
             int messageSize = proposalBuffer.getInt();
 
-            byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
+            int messageOffset = proposalBuffer.position();
+            proposalBuffer.position(messageOffset + messageSize);
 
             byte[] signature = null;
             
@@ -79,18 +77,13 @@ public final class BatchReader {
                 }
             }
             
-            //obtain the nonces to be delivered to the application
-            byte[] nonces = new byte[numberOfNonces];
-            if (nonces.length > 0) {
-                rnd.nextBytes(nonces);
-            }
             try {
-                DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
+                //the request is not copied, it keeps referencing the batch
                 TOMMessage tm = new TOMMessage();
-                tm.rExternal(ois);
+                tm.readFromBatch(proposalBuffer, messageOffset, messageSize);
 
-                tm.serializedMessage = message;
                 tm.serializedMessageSignature = signature;
+                tm.signed = signature != null;
                 tm.numOfNonces = numberOfNonces;
                 tm.seed = seed;
                 tm.timestamp = timestamp;
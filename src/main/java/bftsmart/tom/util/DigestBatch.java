@@ -0,0 +1,198 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Compact form of a batch, in which each request is replaced by its sender, its
+ * sequence number and a digest of its serialized form (and signature, if
+ * signatures are used). Replicas rebuild the original batch from the requests
+ * they received from the clients, so the digest form is only used to transmit
+ * PROPOSE messages and never reaches the consensus itself.
+ *
+ * Batch format: MARKER(long) + TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
+ *               N_MESSAGES(int) + DIGEST_SIZE(int) +
+ *               N_MESSAGES*[SENDER(int),SEQUENCE(int),DIGEST(byte)]
+ *
+ * The marker is negative, so it can not be confused with the timestamp that
+ * starts a regular batch.
+ */
+public final class DigestBatch {
+
+    public static final long MARKER = -1L;
+
+    private final long timestamp;
+    private final int numberOfNonces;
+    private final long seed;
+    private final int[] senders;
+    private final int[] sequences;
+    private final byte[][] digests;
+
+    public DigestBatch(long timestamp, int numberOfNonces, long seed, int[] senders, int[] sequences,
+            byte[][] digests) {
+        this.timestamp = timestamp;
+        this.numberOfNonces = numberOfNonces;
+        this.seed = seed;
+        this.senders = senders;
+        this.sequences = sequences;
+        this.digests = digests;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getNumberOfNonces() {
+        return numberOfNonces;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int size() {
+        return senders.length;
+    }
+
+    public int getSender(int i) {
+        return senders[i];
+    }
+
+    public int getSequence(int i) {
+        return sequences[i];
+    }
+
+    public byte[] getDigest(int i) {
+        return digests[i];
+    }
+
+    /**
+     * Informs if a proposed value is in digest form
+     *
+     * @param value The proposed value
+     * @return true if the value starts with the digest batch marker
+     */
+    public static boolean isDigestBatch(byte[] value) {
+        return value != null && value.length >= Long.BYTES && ByteBuffer.wrap(value).getLong() == MARKER;
+    }
+
+    /**
+     * Computes the digest that identifies a request in a digest batch
+     *
+     * @param md Hash engine
+     * @param request The request
+     * @param useSignatures true if the signature of the request is part of the batch
+     * @return The digest of the request
+     */
+    public static byte[] digest(MessageDigest md, TOMMessage request, boolean useSignatures) {
+        md.update(request.getSerializedBuffer());
+        if (useSignatures && request.serializedMessageSignature != null) {
+            md.update(request.serializedMessageSignature);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Converts a batch built by BatchBuilder into its digest form
+     *
+     * @param batch The batch
+     * @param useSignatures true if the batch contains the signatures of the requests
+     * @param md Hash engine
+     * @return The digest form of the batch
+     */
+    public static byte[] fromBatch(byte[] batch, boolean useSignatures, MessageDigest md) {
+        ByteBuffer proposalBuffer = ByteBuffer.wrap(batch);
+        long timestamp = proposalBuffer.getLong();
+        int numberOfNonces = proposalBuffer.getInt();
+        long seed = numberOfNonces > 0 ? proposalBuffer.getLong() : 0;
+
+        TOMMessage[] requests = new BatchReader(batch, useSignatures).deserialiseRequests(null);
+        int[] senders = new int[requests.length];
+        int[] sequences = new int[requests.length];
+        byte[][] digests = new byte[requests.length][];
+        for (int i = 0; i < requests.length; i++) {
+            senders[i] = requests[i].getSender();
+            sequences[i] = requests[i].getSequence();
+            digests[i] = digest(md, requests[i], useSignatures);
+        }
+        return new DigestBatch(timestamp, numberOfNonces, seed, senders, sequences, digests).toBytes();
+    }
+
+    public byte[] toBytes() {
+        int digestSize = digests.length > 0 ? digests[0].length : 0;
+        ByteBuffer bf = ByteBuffer.allocate(28 + (numberOfNonces > 0 ? 8 : 0)
+                + senders.length * (8 + digestSize));
+        bf.putLong(MARKER);
+        bf.putLong(timestamp);
+        bf.putInt(numberOfNonces);
+        if (numberOfNonces > 0) {
+            bf.putLong(seed);
+        }
+        bf.putInt(senders.length);
+        bf.putInt(digestSize);
+        for (int i = 0; i < senders.length; i++) {
+            bf.putInt(senders[i]);
+            bf.putInt(sequences[i]);
+            bf.put(digests[i]);
+        }
+        return bf.array();
+    }
+
+    /**
+     * Reads a batch serialized by toBytes()
+     *
+     * @param value The serialized batch
+     * @return The batch
+     * @throws IllegalArgumentException If the value is not a valid digest batch
+     */
+    public static DigestBatch fromBytes(byte[] value) {
+        try {
+            ByteBuffer bf = ByteBuffer.wrap(value);
+            if (bf.getLong() != MARKER) {
+                throw new IllegalArgumentException("Not a digest batch");
+            }
+            long timestamp = bf.getLong();
+            int numberOfNonces = bf.getInt();
+            long seed = 0;
+            if (numberOfNonces > 0) {
+                seed = bf.getLong();
+            } else {
+                numberOfNonces = 0;
+            }
+            int count = bf.getInt();
+            int digestSize = bf.getInt();
+            if (count < 0 || digestSize < 0 || (long) count * (8 + digestSize) != bf.remaining()) {
+                throw new IllegalArgumentException("Invalid number of requests: " + count);
+            }
+            int[] senders = new int[count];
+            int[] sequences = new int[count];
+            byte[][] digests = new byte[count][digestSize];
+            for (int i = 0; i < count; i++) {
+                senders[i] = bf.getInt();
+                sequences[i] = bf.getInt();
+                bf.get(digests[i]);
+            }
+            return new DigestBatch(timestamp, numberOfNonces, seed, senders, sequences, digests);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated digest batch", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes hashes without contention between threads. Each thread has its own
+ * hash engine, created once, and hashes of large values can be computed in a
+ * pool of hashing threads while the caller does other work.
+ */
+public final class HashService {
+
+    // values smaller than this are hashed by the caller, as handing them to another thread costs more
+    public static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    private static final ThreadLocal<MessageDigest> engines = ThreadLocal.withInitial(HashService::newEngine);
+    // second engine of each thread, for hashes computed while the first one is in use
+    private static final ThreadLocal<MessageDigest> outerEngines = ThreadLocal.withInitial(HashService::newEngine);
+
+    private static final ExecutorService pool;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+            Thread t = new Thread(r, "Hashing thread " + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private HashService() {
+    }
+
+    private static MessageDigest newEngine() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to get hash engine", e);
+        }
+    }
+
+    /**
+     * Returns the hash engine of the calling thread. It must be left reset,
+     * i.e., every update must be followed by a digest.
+     *
+     * @return The hash engine of the calling thread
+     */
+    public static MessageDigest engine() {
+        return engines.get();
+    }
+
+    /**
+     * Returns another hash engine of the calling thread, for a hash that is
+     * computed incrementally while engine() is used to compute others (e.g.,
+     * the hash of a batch whose requests are hashed as it is built). It must
+     * also be left reset.
+     *
+     * @return The second hash engine of the calling thread
+     */
+    public static MessageDigest outerEngine() {
+        return outerEngines.get();
+    }
+
+    /**
+     * Computes the hash of a value in the calling thread
+     *
+     * @param data The value
+     * @return The hash of the value
+     */
+    public static byte[] hash(byte[] data) {
+        return engines.get().digest(data);
+    }
+
+    /**
+     * Computes the hash of a value in a hashing thread, or in the calling thread
+     * if the value is smaller than PARALLEL_THRESHOLD
+     *
+     * @param data The value
+     * @return The hash of the value, to be completed by a hashing thread
+     */
+    public static CompletableFuture<byte[]> hashAsync(byte[] data) {
+        if (data.length < PARALLEL_THRESHOLD) {
+            return CompletableFuture.completedFuture(hash(data));
+        }
+        return CompletableFuture.supplyAsync(() -> hash(data), pool);
+    }
+}
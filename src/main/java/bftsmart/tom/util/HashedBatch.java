@@ -0,0 +1,49 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+/**
+ * A batch built by BatchBuilder together with its hash, which is computed while
+ * the requests are copied into the batch, and optionally with its digest form
+ * (see DigestBatch), whose request digests are computed in the same pass.
+ */
+public class HashedBatch {
+
+    private final byte[] value;
+    private final byte[] hash;
+    private final byte[] digestForm;
+
+    public HashedBatch(byte[] value, byte[] hash, byte[] digestForm) {
+        this.value = value;
+        this.hash = hash;
+        this.digestForm = digestForm;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The batch in the digest batch format, or null if it was not built
+     */
+    public byte[] getDigestForm() {
+        return digestForm;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer that runs tasks after a delay, with constant cost to schedule and cancel
+ * them regardless of how many are pending. Tasks are placed in a wheel of
+ * buckets, each covering one tick; a single thread advances the wheel once per
+ * tick and runs the tasks of the current bucket whose deadline has passed. Tasks
+ * whose delay is longer than a turn of the wheel stay in their bucket for the
+ * corresponding number of turns.
+ *
+ * Tasks run up to about one tick after their deadline, by the timer thread, so
+ * they must not block. Cancelled tasks are removed when their bucket is visited.
+ */
+public class HashedWheelTimer {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final long tickNanos;
+    private final ArrayList<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private long tick = 0; // only accessed by the worker thread
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates the timer and starts its thread
+     *
+     * @param name Name of the timer thread
+     * @param tickDuration Duration of a tick
+     * @param unit Unit of the duration of a tick
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules a task. May be invoked by any thread.
+     *
+     * @param task Task to be run
+     * @param delay Time after which the task is run
+     * @param unit Unit of the delay
+     * @return Handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+        if (stopped) {
+            timeout.cancel();
+        } else {
+            scheduled.add(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Pending tasks are not run.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+                if (stopped) {
+                    return;
+                }
+            }
+
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)], now);
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // tasks already due go to the current bucket
+            long ticks = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayList<Timeout> bucket, long now) {
+        int n = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                timeout.expire();
+            } else {
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                bucket.set(n++, timeout);
+            }
+        }
+        for (int i = bucket.size() - 1; i >= n; i--) {
+            bucket.remove(i);
+        }
+    }
+
+    /**
+     * A task scheduled in the timer
+     */
+    public class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds; // only accessed by the worker thread
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, if it has not run yet
+         *
+         * @return True if the task was cancelled, false if it already ran or was cancelled
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+}
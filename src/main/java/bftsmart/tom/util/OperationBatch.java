@@ -0,0 +1,205 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encoding of the content of an ORDERED_BATCH_REQUEST, and of its reply. The
+ * request carries the operations that a client coalesced into a single message,
+ * and the reply carries the result of each of them, in the same order.
+ *
+ * A vector is serialized as the number of elements, followed by the length (-1
+ * if null) and the bytes of each element.
+ *
+ * A batch request is delivered to the executor, and logged, as the single
+ * command that was decided, since that is what a replica must rebuild to prove
+ * the decision during a state transfer. The executor unpacks its operations
+ * right before handing them to the application, both when the request is
+ * decided and when the log is replayed, using execute().
+ */
+public class OperationBatch {
+
+    private static final Logger logger = LoggerFactory.getLogger(OperationBatch.class);
+
+    private OperationBatch() {
+    }
+
+    public static byte[] pack(List<byte[]> elements) {
+        return pack(elements.toArray(new byte[elements.size()][]));
+    }
+
+    public static byte[] pack(byte[][] elements) {
+        int size = Integer.BYTES;
+        for (byte[] e : elements) {
+            size += Integer.BYTES + (e == null ? 0 : e.length);
+        }
+        ByteBuffer bf = ByteBuffer.allocate(size);
+        bf.putInt(elements.length);
+        for (byte[] e : elements) {
+            if (e == null) {
+                bf.putInt(-1);
+            } else {
+                bf.putInt(e.length);
+                bf.put(e);
+            }
+        }
+        return bf.array();
+    }
+
+    /**
+     * Size of an element once packed in a vector
+     *
+     * @param element The element
+     * @return The number of bytes the element adds to the vector
+     */
+    public static int packedSize(byte[] element) {
+        return Integer.BYTES + (element == null ? 0 : element.length);
+    }
+
+    /**
+     * Reads a vector serialized by pack()
+     *
+     * @param data The serialized vector
+     * @return The elements of the vector
+     * @throws IllegalArgumentException If the data is not a valid vector
+     */
+    public static byte[][] unpack(byte[] data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Missing operation batch");
+        }
+        try {
+            ByteBuffer bf = ByteBuffer.wrap(data);
+            int count = bf.getInt();
+            if (count < 0 || count > bf.remaining() / Integer.BYTES) {
+                throw new IllegalArgumentException("Invalid number of operations: " + count);
+            }
+            byte[][] elements = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                int length = bf.getInt();
+                if (length < -1 || length > bf.remaining()) {
+                    throw new IllegalArgumentException("Invalid operation length: " + length);
+                }
+                if (length >= 0) {
+                    elements[i] = new byte[length];
+                    bf.get(elements[i]);
+                }
+            }
+            if (bf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes after the last operation");
+            }
+            return elements;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated operation batch", e);
+        }
+    }
+
+    /**
+     * Executes a command, one operation at a time if it is a batch request. A
+     * malformed batch request executes no operation, as in every replica.
+     *
+     * @param command The command as decided
+     * @param msgCtx The context of the command
+     * @param executor Executes an operation and returns its result
+     * @return The result of the command, or the vector of the results of its operations
+     */
+    public static byte[] execute(byte[] command, MessageContext msgCtx,
+            BiFunction<byte[], MessageContext, byte[]> executor) {
+        if (msgCtx.getType() != TOMMessageType.ORDERED_BATCH_REQUEST) {
+            return executor.apply(command, msgCtx);
+        }
+        byte[][] operations = operations(command, msgCtx);
+        byte[][] results = new byte[operations.length][];
+        for (int i = 0; i < operations.length; i++) {
+            results[i] = executor.apply(operations[i], msgCtx);
+        }
+        return pack(results);
+    }
+
+    /**
+     * Executes a batch of commands, in which the batch requests are replaced by
+     * their operations. Each operation gets the context of its request.
+     *
+     * @param commands The commands as decided
+     * @param msgCtxs The context of each command
+     * @param executor Executes a batch of operations and returns their results
+     * @return The result of each command, or the vector of the results of its operations
+     */
+    public static byte[][] execute(byte[][] commands, MessageContext[] msgCtxs,
+            BiFunction<byte[][], MessageContext[], byte[][]> executor) {
+        boolean batched = false;
+        for (MessageContext msgCtx : msgCtxs) {
+            batched |= msgCtx.getType() == TOMMessageType.ORDERED_BATCH_REQUEST;
+        }
+        if (!batched) {
+            return executor.apply(commands, msgCtxs);
+        }
+
+        List<byte[]> operations = new ArrayList<>(commands.length);
+        List<MessageContext> operationCtxs = new ArrayList<>(commands.length);
+        int[] counts = new int[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            byte[][] ops = msgCtxs[i].getType() == TOMMessageType.ORDERED_BATCH_REQUEST
+                    ? operations(commands[i], msgCtxs[i]) : new byte[][] { commands[i] };
+            for (byte[] op : ops) {
+                operations.add(op);
+                operationCtxs.add(msgCtxs[i]);
+            }
+            counts[i] = ops.length;
+        }
+
+        byte[][] results = operations.isEmpty() ? new byte[0][]
+                : executor.apply(operations.toArray(new byte[operations.size()][]),
+                        operationCtxs.toArray(new MessageContext[operationCtxs.size()]));
+        if (results == null) {
+            return null;
+        }
+
+        byte[][] replies = new byte[commands.length][];
+        int next = 0;
+        for (int i = 0; i < commands.length; i++) {
+            if (msgCtxs[i].getType() == TOMMessageType.ORDERED_BATCH_REQUEST) {
+                byte[][] opResults = new byte[counts[i]][];
+                System.arraycopy(results, next, opResults, 0, counts[i]);
+                replies[i] = pack(opResults);
+            } else {
+                replies[i] = results[next];
+            }
+            next += counts[i];
+        }
+        return replies;
+    }
+
+    private static byte[][] operations(byte[] command, MessageContext msgCtx) {
+        try {
+            return unpack(command);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Not executing malformed batch request from client " + msgCtx.getSender()
+                    + " with sequence number " + msgCtx.getSequence(), e);
+            return new byte[0][];
+        }
+    }
+}
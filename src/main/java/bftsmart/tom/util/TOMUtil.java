@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -214,6 +215,12 @@ public class TOMUtil {
         return initializedSignatureEngine.verify(signature);
     }
 
+    public static boolean verifySignature(Signature initializedSignatureEngine, ByteBuffer message, byte[] signature) throws SignatureException {
+
+        initializedSignatureEngine.update(message);
+        return initializedSignatureEngine.verify(signature);
+    }
+
     public static String byteArrayToString(byte[] b) {
         String s = "";
         for (int i = 0; i < b.length; i++) {
@@ -229,17 +236,7 @@ public class TOMUtil {
 
     public static final byte[] computeHash(byte[] data) {
         
-        byte[] result = null;
-        
-        try {
-            MessageDigest md = getHashEngine();
-            result = md.digest(data);
-            
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("Failed to compute hash",e);
-        } // TODO: shouldn't it be SHA?
-                
-        return result;
+        return HashService.hash(data);
     }
     
     public static Signature getSigEngine() throws NoSuchAlgorithmException {